@@ -6,11 +6,16 @@ DROP TABLE IF EXISTS daily_unit CASCADE;
 DROP TABLE IF EXISTS monthly_record_count CASCADE;
 DROP TABLE IF EXISTS monthly_unit CASCADE;
 DROP TABLE IF EXISTS raw_xml CASCADE;
+DROP TABLE IF EXISTS compression_dictionary CASCADE;
+DROP TABLE IF EXISTS record_partition CASCADE;
+DROP FUNCTION IF EXISTS create_record_partition(varchar, timestamp, timestamp);
+DROP FUNCTION IF EXISTS drop_record_partition(varchar);
 DROP TABLE IF EXISTS record CASCADE;
 DROP TABLE IF EXISTS large_object CASCADE;
 DROP TABLE IF EXISTS transducer CASCADE;
 DROP TABLE IF EXISTS transducer_raw_value CASCADE;
 DROP TABLE IF EXISTS transducer_typed_value CASCADE;
+DROP TABLE IF EXISTS transducer_value_chunk CASCADE;
 DROP TABLE IF EXISTS export_transducer CASCADE;
 DROP TABLE IF EXISTS export CASCADE;
 DROP TABLE IF EXISTS event_log_stacktrace CASCADE;
@@ -197,6 +197,22 @@ def _setup_pg_schema():
         )
 
 
+@task
+def migrate_pg_schema():
+    _migrate_pg_schema()
+
+
+def _migrate_pg_schema():
+    # schema.sqlで作ったあとに増えた列やテーブルを足す (何度流してもよい)
+    require.files.file(
+        '/tmp/migrate.sql',
+        source='./migrate.sql',
+        owner='root', group='root', use_sudo=True
+    )
+    run('psql -U sr2 -d sr2 -v ON_ERROR_STOP=1 -f /tmp/migrate.sql')
+    sudo('rm -f /tmp/migrate.sql')
+
+
 @task
 def setup_stat():
     require.files.file(
@@ -292,6 +308,7 @@ def _deploy_java():
         owner='root', group='root', use_sudo=True
     )
 
+    _migrate_pg_schema()
     sudo('supervisorctl reload')
     # sudo('supervisorctl restart sr2-recorder')
 
@@ -0,0 +1,111 @@
+package soxrecorderv2.bench;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import soxrecorderv2.codec.CompressionCodec;
+import soxrecorderv2.codec.CompressionCodecs;
+import soxrecorderv2.codec.CompressionDictionaryTrainer;
+import soxrecorderv2.codec.DeflateDictionaryCodec;
+import soxrecorderv2.util.MyCharSet;
+
+/**
+ * raw_xmlの圧縮について, codecごとのサイズと速度を比べる。
+ * 辞書は学習用のstanzaから作り, 計測には別のstanzaを使う。
+ *
+ * usage: CompressionCodecBenchmark [nMessages] [nTransducers] [nSamples]
+ */
+public class CompressionCodecBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int nMessages = (0 < args.length) ? Integer.parseInt(args[0]) : 20000;
+		int nTransducers = (1 < args.length) ? Integer.parseInt(args[1]) : 8;
+		int nSamples = (2 < args.length) ? Integer.parseInt(args[2]) : 1000;
+
+		Random random = new Random(42);
+		CompressionDictionaryTrainer trainer = new CompressionDictionaryTrainer(nSamples);
+		for (int i = 0; i < nSamples; i++) {
+			trainer.addSample(buildMessage(i, nTransducers, random));
+		}
+		byte[] dictionary = trainer.build();
+		System.out.println("dictionary: " + dictionary.length + " bytes from " + nSamples + " stanzas");
+
+		List<byte[]> messages = new ArrayList<>(nMessages);
+		for (int i = 0; i < nMessages; i++) {
+			messages.add(buildMessage(nSamples + i, nTransducers, random).getBytes(MyCharSet.UTF8));
+		}
+
+		CompressionCodec[] codecs = {
+			CompressionCodecs.NONE,
+			CompressionCodecs.GZIP,
+			new DeflateDictionaryCodec(1, dictionary)
+		};
+
+		// warm up
+		for (CompressionCodec codec : codecs) {
+			run(codec, messages.subList(0, Math.min(2000, nMessages)), false);
+		}
+		for (CompressionCodec codec : codecs) {
+			run(codec, messages, true);
+		}
+	}
+
+	private static void run(CompressionCodec codec, List<byte[]> messages, boolean report) throws Exception {
+		long originalBytes = 0;
+		long compressedBytes = 0;
+		List<byte[]> compressed = new ArrayList<>(messages.size());
+
+		long tStart = System.nanoTime();
+		for (byte[] message : messages) {
+			byte[] c = codec.compress(message);
+			compressed.add(c);
+			originalBytes += message.length;
+			compressedBytes += c.length;
+		}
+		long compressNanos = System.nanoTime() - tStart;
+
+		tStart = System.nanoTime();
+		for (int i = 0; i < messages.size(); i++) {
+			byte[] restored = codec.decompress(compressed.get(i), messages.get(i).length);
+			if (!Arrays.equals(restored, messages.get(i))) {
+				throw new IllegalStateException(codec.getName() + ": round trip mismatch at " + i);
+			}
+		}
+		long decompressNanos = System.nanoTime() - tStart;
+
+		if (report) {
+			double mb = originalBytes / (1024.0 * 1024.0);
+			System.out.println(String.format("%-22s messages=%d  avg %d -> %d bytes  ratio=%.3f  compress %.1f MB/s  decompress %.1f MB/s",
+					codec.getName(), messages.size(),
+					originalBytes / messages.size(), compressedBytes / messages.size(),
+					(double) compressedBytes / originalBytes,
+					mb / (compressNanos / 1e9), mb / (decompressNanos / 1e9)));
+		}
+	}
+
+	/**
+	 * SOXのpubsub eventと同じ形のメッセージをつくる (PubSubParserBenchmarkより値がばらつく)
+	 */
+	private static String buildMessage(int seq, int nTransducers, Random random) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("<message to=\"soxrecorder@sox.ht.sfc.keio.ac.jp\" from=\"pubsub.sox.ht.sfc.keio.ac.jp\" id=\"msg").append(seq).append("\">");
+		sb.append("<event xmlns=\"http://jabber.org/protocol/pubsub#event\">");
+		sb.append("<items node=\"bench_sensor_").append(seq % 100).append("_data\">");
+		sb.append("<item id=\"item").append(seq).append("\">");
+		sb.append("<data>");
+		String timestamp = String.format("2016-07-01T12:%02d:%02d.%03d+09:00", (seq / 60) % 60, seq % 60, random.nextInt(1000));
+		for (int i = 0; i < nTransducers; i++) {
+			String v = String.format("%.2f", random.nextGaussian() * 10 + 20);
+			sb.append("<transducerValue id=\"t").append(i).append("\"");
+			sb.append(" rawValue=\"").append(v).append("\"");
+			sb.append(" typedValue=\"").append(v).append("\"");
+			sb.append(" timestamp=\"").append(timestamp).append("\"/>");
+		}
+		sb.append("</data>");
+		sb.append("</item></items></event></message>");
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,131 @@
+package soxrecorderv2.bench;
+
+import java.io.FileInputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Properties;
+
+import soxrecorderv2.exporter.ExportWriter;
+import soxrecorderv2.util.PGConnectionManager;
+
+/**
+ * exportの読み出しについて, fetch sizeなし (ドライバが結果をすべてメモリに読む) とカーソル (export_fetch_size) で
+ * heapの最大使用量を比べる。PostgreSQLが必要 (設定ファイルのpg_*を使う)。
+ *
+ * テーブルは使わず, exportのSELECTと同じ列の行をgenerate_seriesで作って,
+ * 1行ずつExportWriterで書いて捨てる。fetchSize = 0 は -Xmx が小さいとOutOfMemoryErrorになる (それが以前の挙動)
+ *
+ * usage: ExportStreamingBenchmark config.ini [nRows=50000000] [fetchSize=10000]
+ * 例: java -Xmx512m ... ExportStreamingBenchmark recorder.secret.ini 50000000 10000
+ *
+ * 測った値はまだない (PostgreSQLのある環境で fetchSize = 0 と 10000 を同じ -Xmx で流して, 出てくるheapの最大値を比べる)
+ */
+public class ExportStreamingBenchmark {
+
+	// AbstractExporter.exportSegment()のSELECTと同じ12列
+	private static final String SYNTHETIC_SQL = "SELECT"
+			+ " g / 8 AS id, (g / 8) % 1000 AS observation_id, false AS is_parse_error,"
+			+ " timestamp '2016-01-01' + (g / 8) * interval '1 second' AS created,"
+			+ " true AS has_same_typed_value, g % 8 AS transducer_id, 3 AS value_type, NULL::varchar AS string_value,"
+			+ " 0::bigint AS int_value, (g % 1000) / 10.0::float8 AS float_value, NULL::numeric AS decimal_value,"
+			+ " NULL::bigint AS large_object_id"
+			+ " FROM generate_series(0, ? - 1) g ORDER BY g;";
+
+	private static final OutputStream NULL_OUTPUT = new OutputStream() {
+		@Override
+		public void write(int b) {
+			// discard
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			// discard
+		}
+	};
+
+	public static void main(String[] args) throws Exception {
+		if (args.length == 0) {
+			System.err.println("usage: ExportStreamingBenchmark config.ini [nRows] [fetchSize]");
+			return;
+		}
+		Properties config = new Properties();
+		try (FileInputStream in = new FileInputStream(args[0])) {
+			config.load(in);
+		}
+		long nRows = (1 < args.length) ? Long.parseLong(args[1]) : 50000000L;
+		int fetchSize = (2 < args.length) ? Integer.parseInt(args[2]) : 10000;
+
+		PGConnectionManager connManager = new PGConnectionManager(config);
+		try {
+			Connection conn = connManager.getConnection();
+			resetPeakUsage();
+			long t0 = System.nanoTime();
+			long nRead = run(conn, nRows, fetchSize);
+			long t1 = System.nanoTime();
+			conn.rollback();
+			System.out.println(String.format("rows=%d fetchSize=%d: %.1f sec, peak heap %.1f MB (max %.1f MB)",
+					nRead, fetchSize, (t1 - t0) / 1e9, peakHeapUsage() / 1048576.0, Runtime.getRuntime().maxMemory() / 1048576.0));
+		} catch (OutOfMemoryError e) {
+			System.out.println("rows=" + nRows + " fetchSize=" + fetchSize + ": OutOfMemoryError (max heap "
+					+ (Runtime.getRuntime().maxMemory() / 1048576) + " MB)");
+		} finally {
+			connManager.invalidate();
+			connManager.getPool().close();
+		}
+	}
+
+	private static long run(Connection conn, long nRows, int fetchSize) throws SQLException, java.io.IOException {
+		PreparedStatement ps = conn.prepareStatement(SYNTHETIC_SQL, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		ps.setFetchSize(fetchSize);  // 0ならすべて読んでから返ってくる
+		ps.setLong(1, nRows);
+		ExportWriter out = new ExportWriter(NULL_OUTPUT);
+		long nRead = 0;
+		ResultSet rs = ps.executeQuery();
+		while (rs.next()) {
+			out.writeLong(rs.getLong(1));
+			out.writeByte(',');
+			out.writeLong(rs.getLong(2));
+			out.writeByte(',');
+			out.writeTimestamp(rs.getTimestamp(4).getTime());
+			out.writeByte(',');
+			out.writeLong(rs.getLong(6));
+			out.writeByte(',');
+			out.writeDouble(rs.getDouble(10));
+			out.writeByte('\n');
+			nRead++;
+		}
+		out.flush();
+		rs.close();
+		ps.close();
+		return nRead;
+	}
+
+	private static void resetPeakUsage() {
+		System.gc();
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				pool.resetPeakUsage();
+			}
+		}
+	}
+
+	/**
+	 * heapのプールごとの最大使用量の合計 (GCの前後で多めに出るが, 桁の比較には十分)
+	 */
+	private static long peakHeapUsage() {
+		long total = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				total += pool.getPeakUsage().getUsed();
+			}
+		}
+		return total;
+	}
+
+}
@@ -0,0 +1,156 @@
+package soxrecorderv2.bench;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.Random;
+
+import soxrecorderv2.exporter.ExportWriter;
+import soxrecorderv2.util.MyCharSet;
+
+/**
+ * exportの1行 (JSON Lines) の書き出しについて, 以前のString経由 (StringBuilder + toString + getBytes) と
+ * ExportWriterを比べる。出力は捨てる。1行あたりの時間と, JVMが数えたメモリ確保量を出す
+ *
+ * usage: ExportWriterBenchmark [nRecords] [nRounds]
+ */
+public class ExportWriterBenchmark {
+
+	private static final String[] NAMES = { "temperature", "humidity", "latitude", "longitude", "status" };
+
+	private static final OutputStream NULL_OUTPUT = new OutputStream() {
+		@Override
+		public void write(int b) {
+			// discard
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			// discard
+		}
+	};
+
+	private static long[] recordIds;
+	private static long[] createds;
+	private static double[] temperatures;
+	private static long[] humidities;
+	private static BigDecimal[] latitudes;
+	private static BigDecimal[] longitudes;
+	private static String[] statuses;
+
+	public static void main(String[] args) throws Exception {
+		int nRecords = (0 < args.length) ? Integer.parseInt(args[0]) : 200000;
+		int nRounds = (1 < args.length) ? Integer.parseInt(args[1]) : 10;
+
+		Random random = new Random(42);
+		recordIds = new long[nRecords];
+		createds = new long[nRecords];
+		temperatures = new double[nRecords];
+		humidities = new long[nRecords];
+		latitudes = new BigDecimal[nRecords];
+		longitudes = new BigDecimal[nRecords];
+		statuses = new String[nRecords];
+		long created = 1467300000000L;
+		for (int i = 0; i < nRecords; i++) {
+			created += 1000 + random.nextInt(20);
+			recordIds[i] = 100000000L + i;
+			createds[i] = created;
+			temperatures[i] = Math.round((20 + random.nextGaussian() * 5) * 10) / 10.0;
+			humidities[i] = 30 + random.nextInt(60);
+			latitudes[i] = BigDecimal.valueOf(35000000 + random.nextInt(1000000), 6);
+			longitudes[i] = BigDecimal.valueOf(139000000 + random.nextInt(1000000), 6);
+			statuses[i] = random.nextBoolean() ? "ON" : "OFF";
+		}
+
+		for (int round = 0; round < 3; round++) {  // warm up
+			runLegacy(nRecords);
+			runWriter(nRecords);
+		}
+		long legacyNanos = 0;
+		long writerNanos = 0;
+		long legacyAlloc = 0;
+		long writerAlloc = 0;
+		for (int round = 0; round < nRounds; round++) {
+			long a0 = allocatedBytes();
+			long t0 = System.nanoTime();
+			runLegacy(nRecords);
+			long t1 = System.nanoTime();
+			long a1 = allocatedBytes();
+			runWriter(nRecords);
+			long t2 = System.nanoTime();
+			long a2 = allocatedBytes();
+			legacyNanos += t1 - t0;
+			writerNanos += t2 - t1;
+			legacyAlloc += a1 - a0;
+			writerAlloc += a2 - a1;
+		}
+		long total = (long) nRecords * nRounds;
+		System.out.println(String.format("legacy  %.1f nsec/record, %.1f bytes allocated/record",
+				(double) legacyNanos / total, (double) legacyAlloc / total));
+		System.out.println(String.format("writer  %.1f nsec/record, %.1f bytes allocated/record",
+				(double) writerNanos / total, (double) writerAlloc / total));
+	}
+
+	private static void runLegacy(int nRecords) throws IOException {
+		BufferedOutputStream out = new BufferedOutputStream(NULL_OUTPUT, ExportWriter.DEFAULT_BUFFER_SIZE);
+		for (int i = 0; i < nRecords; i++) {
+			StringBuilder sb = new StringBuilder();
+			sb.append("{\"record_id\":").append(recordIds[i]);
+			sb.append(",\"created\":\"").append(new Timestamp(createds[i]).toString()).append('"');
+			sb.append(",\"values\":{");
+			sb.append('"').append(NAMES[0]).append("\":").append(Double.toString(temperatures[i]));
+			sb.append(",\"").append(NAMES[1]).append("\":").append(Long.toString(humidities[i]));
+			sb.append(",\"").append(NAMES[2]).append("\":").append(latitudes[i].toString());
+			sb.append(",\"").append(NAMES[3]).append("\":").append(longitudes[i].toString());
+			sb.append(",\"").append(NAMES[4]).append("\":\"").append(statuses[i]).append('"');
+			sb.append("}}\n");
+			out.write(sb.toString().getBytes(MyCharSet.UTF8));
+		}
+		out.flush();
+	}
+
+	private static void runWriter(int nRecords) throws IOException {
+		ExportWriter out = new ExportWriter(NULL_OUTPUT);
+		for (int i = 0; i < nRecords; i++) {
+			out.writeAscii("{\"record_id\":");
+			out.writeLong(recordIds[i]);
+			out.writeAscii(",\"created\":\"");
+			out.writeTimestamp(createds[i]);
+			out.writeAscii("\",\"values\":{");
+			out.writeJsonString(NAMES[0]);
+			out.writeByte(':');
+			out.writeDouble(temperatures[i]);
+			out.writeByte(',');
+			out.writeJsonString(NAMES[1]);
+			out.writeByte(':');
+			out.writeLong(humidities[i]);
+			out.writeByte(',');
+			out.writeJsonString(NAMES[2]);
+			out.writeByte(':');
+			out.writeDecimal(latitudes[i]);
+			out.writeByte(',');
+			out.writeJsonString(NAMES[3]);
+			out.writeByte(':');
+			out.writeDecimal(longitudes[i]);
+			out.writeByte(',');
+			out.writeJsonString(NAMES[4]);
+			out.writeByte(':');
+			out.writeJsonString(statuses[i]);
+			out.writeAscii("}}\n");
+		}
+		out.flush();
+	}
+
+	@SuppressWarnings("restriction")
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return 0;
+	}
+
+}
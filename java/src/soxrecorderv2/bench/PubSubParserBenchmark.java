@@ -0,0 +1,184 @@
+package soxrecorderv2.bench;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathFactory;
+
+import org.simpleframework.xml.core.Persister;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.ls.DOMImplementationLS;
+
+import jp.ac.keio.sfc.ht.sox.protocol.Data;
+import jp.ac.keio.sfc.ht.sox.protocol.TransducerValue;
+import soxrecorderv2.recorder.PubSubMessageParser;
+
+/**
+ * ServerRecordProcessのメッセージのパースについて, 以前のDOM+XPath+Persisterの経路と
+ * PubSubMessageParser(StAX)を比べる。
+ *
+ * usage: PubSubParserBenchmark [nMessages] [nTransducers] [nThreads]
+ */
+public class PubSubParserBenchmark {
+
+	private static final DocumentBuilder DOC_BUILDER;
+	private static final XPathFactory XPATH_FACTORY = XPathFactory.newInstance();
+
+	static {
+		DocumentBuilder docBuilder = null;
+		try {
+			docBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		DOC_BUILDER = docBuilder;
+	}
+
+	private interface ParsePath {
+		Data parse(String rawXml) throws Exception;
+	}
+
+	/**
+	 * 以前のprocessPacket()と同じ処理
+	 */
+	private static final ParsePath LEGACY = new ParsePath() {
+		@Override
+		public Data parse(String rawXml) throws Exception {
+			Document doc;
+			synchronized (DOC_BUILDER) {
+				doc = DOC_BUILDER.parse(new ByteArrayInputStream(rawXml.getBytes("UTF-8")));
+			}
+			XPath xpath = XPATH_FACTORY.newXPath();
+			Node itemsNode = (Node)xpath.evaluate("//items", doc, XPathConstants.NODE);
+			itemsNode.getAttributes().getNamedItem("node").getTextContent();
+			Node dataNode = (Node)xpath.evaluate("//data", doc, XPathConstants.NODE);
+			DOMImplementationLS ls = (DOMImplementationLS)doc.getImplementation();
+			String dataXml = ls.createLSSerializer().writeToString(dataNode);
+			return new Persister().read(Data.class, dataXml);
+		}
+	};
+
+	private static final ParsePath STAX = new ParsePath() {
+		private final PubSubMessageParser parser = new PubSubMessageParser();
+
+		@Override
+		public Data parse(String rawXml) throws Exception {
+			return parser.parse(rawXml).getData();
+		}
+	};
+
+	public static void main(String[] args) throws Exception {
+		int nMessages = (0 < args.length) ? Integer.parseInt(args[0]) : 50000;
+		int nTransducers = (1 < args.length) ? Integer.parseInt(args[1]) : 8;
+		int nThreads = (2 < args.length) ? Integer.parseInt(args[2]) : 4;
+
+		List<String> messages = new ArrayList<>(1000);
+		for (int i = 0; i < 1000; i++) {
+			messages.add(buildMessage(i, nTransducers));
+		}
+
+		verify(messages);
+
+		// warm up
+		run("legacy", LEGACY, messages, nMessages / 5, 1, false);
+		run("stax", STAX, messages, nMessages / 5, 1, false);
+
+		for (int threads : new int[] { 1, nThreads }) {
+			run("legacy", LEGACY, messages, nMessages, threads, true);
+			run("stax", STAX, messages, nMessages, threads, true);
+		}
+	}
+
+	private static void verify(List<String> messages) throws Exception {
+		for (String message : messages) {
+			List<TransducerValue> expected = LEGACY.parse(message).getTransducerValue();
+			List<TransducerValue> actual = STAX.parse(message).getTransducerValue();
+			if (expected.size() != actual.size()) {
+				throw new IllegalStateException("size mismatch: " + expected.size() + " != " + actual.size());
+			}
+			for (int i = 0; i < expected.size(); i++) {
+				TransducerValue e = expected.get(i);
+				TransducerValue a = actual.get(i);
+				if (!e.getId().equals(a.getId())
+						|| !equals(e.getRawValue(), a.getRawValue())
+						|| !equals(e.getTypedValue(), a.getTypedValue())
+						|| !equals(e.getTimestamp(), a.getTimestamp())) {
+					throw new IllegalStateException("value mismatch: id=" + e.getId());
+				}
+			}
+		}
+		System.out.println("verified " + messages.size() + " messages");
+	}
+
+	private static boolean equals(String a, String b) {
+		return (a == null) ? (b == null) : a.equals(b);
+	}
+
+	private static void run(String name, final ParsePath path, final List<String> messages, int nMessages, int nThreads, boolean report) throws Exception {
+		final int perThread = nMessages / nThreads;
+		ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+		List<Future<Long>> futures = new ArrayList<>();
+		long tStart = System.nanoTime();
+		for (int t = 0; t < nThreads; t++) {
+			final int offset = t;
+			futures.add(executor.submit(new Callable<Long>() {
+				@Override
+				public Long call() throws Exception {
+					long nValues = 0;
+					for (int i = 0; i < perThread; i++) {
+						Data data = path.parse(messages.get((offset + i) % messages.size()));
+						nValues += data.getTransducerValue().size();
+					}
+					return nValues;
+				}
+			}));
+		}
+		long nValues = 0;
+		for (Future<Long> f : futures) {
+			nValues += f.get();
+		}
+		long elapsedNanos = System.nanoTime() - tStart;
+		executor.shutdown();
+
+		if (report) {
+			long total = (long)perThread * nThreads;
+			double msgPerSec = total / (elapsedNanos / 1e9);
+			double usecPerMsg = (elapsedNanos / 1e3) / total;
+			System.out.println(String.format("%-8s threads=%d messages=%d values=%d  %.0f msg/s  %.2f usec/msg",
+					name, nThreads, total, nValues, msgPerSec, usecPerMsg));
+		}
+	}
+
+	/**
+	 * SOXのpubsub eventと同じ形のメッセージをつくる
+	 */
+	private static String buildMessage(int seq, int nTransducers) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("<message to=\"soxrecorder@sox.ht.sfc.keio.ac.jp\" from=\"pubsub.sox.ht.sfc.keio.ac.jp\" id=\"msg").append(seq).append("\">");
+		sb.append("<event xmlns=\"http://jabber.org/protocol/pubsub#event\">");
+		sb.append("<items node=\"bench_sensor_").append(seq % 100).append("_data\">");
+		sb.append("<item id=\"item").append(seq).append("\">");
+		sb.append("<data>");
+		for (int i = 0; i < nTransducers; i++) {
+			String v = Double.toString(seq * 0.25 + i);
+			sb.append("<transducerValue id=\"t").append(i).append("\"");
+			sb.append(" rawValue=\"").append(v).append("\"");
+			sb.append(" typedValue=\"").append(v).append("\"");
+			sb.append(" timestamp=\"2016-07-01T12:34:56.789+09:00\"/>");
+		}
+		sb.append("</data>");
+		sb.append("</item></items></event></message>");
+		return sb.toString();
+	}
+
+}
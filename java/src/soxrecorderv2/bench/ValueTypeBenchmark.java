@@ -0,0 +1,188 @@
+package soxrecorderv2.bench;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import soxrecorderv2.util.SOXUtil;
+import soxrecorderv2.util.ScannedValue;
+
+/**
+ * transducerの値の種類の判定+数値への変換について, 以前の正規表現+parseの経路とScannedValueを比べる。
+ * 値はSOXのセンサでよく見る形 (気温, 湿度, 緯度経度, カウンタ, ON/OFF, 時刻など) から作る。
+ *
+ * usage: ValueTypeBenchmark [nValues] [nRounds]
+ */
+public class ValueTypeBenchmark {
+
+	private static final Pattern PATTERN_INT = Pattern.compile("\\A-?[1-9][0-9]*\\z");
+	private static final Pattern PATTERN_FLOAT = Pattern.compile("\\A-?([0-9]|[1-9][0-9]*)\\.[0-9]+\\z");
+
+	private static final String[] TRANSDUCER_IDS = {
+		"temperature", "humidity", "latitude", "longitude", "Lat", "lng", "count", "status", "timestamp", "pm25"
+	};
+
+	private static final String[] FIXED_VALUES = {
+		"0", "-0", "012", "1.", ".5", "-0.0", "0.0", "NaN", "1e-3", "ON", "OFF", "true", "",
+		"2147483648", "9223372036854775807", "9223372036854775808", "-9223372036854775808",
+		"35.388271", "139.427011", "0.000000000000000000000001", "123456789012345678.123456789",
+		"2016-07-01T12:34:56.789+09:00", "12:34", "-", "1-2"
+	};
+
+	// 結果を捨てるとJITに消されるので, ここに足しておく
+	private static volatile long blackhole;
+
+	/**
+	 * 以前のguessValueType()とDBWriterProcessでのparse
+	 */
+	private static int legacyType(String transducerId, String value) {
+		if (255 < value.length()) {
+			return SOXUtil.VALUE_TYPE_LARGE_OBJECT;
+		} else if (PATTERN_INT.matcher(value).matches()) {
+			return SOXUtil.VALUE_TYPE_INT;
+		} else if (PATTERN_FLOAT.matcher(value).matches()) {
+			return SOXUtil.isDecimalName(transducerId) ? SOXUtil.VALUE_TYPE_DECIMAL : SOXUtil.VALUE_TYPE_FLOAT;
+		} else {
+			return SOXUtil.VALUE_TYPE_STRING;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		int nValues = (0 < args.length) ? Integer.parseInt(args[0]) : 100000;
+		int nRounds = (1 < args.length) ? Integer.parseInt(args[1]) : 20;
+
+		Random random = new Random(42);
+		List<String> ids = new ArrayList<>(nValues);
+		List<String> values = new ArrayList<>(nValues);
+		for (String v : FIXED_VALUES) {
+			ids.add(TRANSDUCER_IDS[random.nextInt(TRANSDUCER_IDS.length)]);
+			values.add(v);
+		}
+		while (values.size() < nValues) {
+			String id = TRANSDUCER_IDS[random.nextInt(TRANSDUCER_IDS.length)];
+			ids.add(id);
+			values.add(sensorValue(id, random));
+		}
+
+		verify(ids, values);
+
+		for (int round = 0; round < 3; round++) {  // warm up
+			blackhole += runLegacy(ids, values);
+			blackhole += runScanner(ids, values);
+		}
+		long legacyNanos = 0;
+		long scannerNanos = 0;
+		for (int round = 0; round < nRounds; round++) {
+			long t0 = System.nanoTime();
+			blackhole += runLegacy(ids, values);
+			long t1 = System.nanoTime();
+			blackhole += runScanner(ids, values);
+			long t2 = System.nanoTime();
+			legacyNanos += t1 - t0;
+			scannerNanos += t2 - t1;
+		}
+		long total = (long) nValues * nRounds;
+		System.out.println(String.format("legacy   %.1f nsec/value", (double) legacyNanos / total));
+		System.out.println(String.format("scanner  %.1f nsec/value", (double) scannerNanos / total));
+	}
+
+	private static void verify(List<String> ids, List<String> values) {
+		ScannedValue scanned = new ScannedValue();
+		int nIntOverflow = 0;
+		for (int i = 0; i < values.size(); i++) {
+			String id = ids.get(i);
+			String v = values.get(i);
+			int expected = legacyType(id, v);
+			scanned.scan(id, v);
+			if (expected == SOXUtil.VALUE_TYPE_INT) {
+				long parsed;
+				try {
+					parsed = Long.parseLong(v);
+				} catch (NumberFormatException e) {
+					parsed = 0;
+				}
+				if (parsed < Integer.MIN_VALUE || Integer.MAX_VALUE < parsed) {
+					nIntOverflow++;  // 以前はInteger.parseInt()で例外になっていた
+				}
+				if (scanned.getType() == SOXUtil.VALUE_TYPE_STRING) {
+					continue;  // bigintに入らない整数は文字列として扱う
+				}
+				if (scanned.getLongValue() != parsed) {
+					throw new IllegalStateException("int mismatch: " + v);
+				}
+			}
+			if (scanned.getType() != expected) {
+				throw new IllegalStateException("type mismatch: id=" + id + ", value=" + v + ": " + expected + " != " + scanned.getType());
+			}
+			if (scanned.isFloating()) {
+				if (Double.compare(Double.parseDouble(v), scanned.getDoubleValue()) != 0) {
+					throw new IllegalStateException("double mismatch: " + v + " " + scanned.getDoubleValue());
+				}
+				if (!new BigDecimal(v).equals(scanned.getDecimalValue())) {
+					throw new IllegalStateException("decimal mismatch: " + v + " " + scanned.getDecimalValue());
+				}
+			}
+		}
+		System.out.println("verified " + values.size() + " values (" + nIntOverflow + " would have overflowed Integer.parseInt)");
+	}
+
+	private static long runLegacy(List<String> ids, List<String> values) {
+		long sink = 0;
+		for (int i = 0; i < values.size(); i++) {
+			String v = values.get(i);
+			int type = legacyType(ids.get(i), v);
+			if (type == SOXUtil.VALUE_TYPE_INT) {
+				try {
+					sink += Long.parseLong(v);  // Integer.parseIntだと例外になる値があるのでLongで比べる
+				} catch (NumberFormatException e) {
+					// bigintにも入らない
+				}
+			} else if (type == SOXUtil.VALUE_TYPE_FLOAT || type == SOXUtil.VALUE_TYPE_DECIMAL) {
+				sink += (long) Double.parseDouble(v);
+				sink += new BigDecimal(v).scale();
+			}
+		}
+		return sink;
+	}
+
+	private static long runScanner(List<String> ids, List<String> values) {
+		ScannedValue scanned = new ScannedValue();
+		long sink = 0;
+		for (int i = 0; i < values.size(); i++) {
+			scanned.scan(ids.get(i), values.get(i));
+			if (scanned.getType() == SOXUtil.VALUE_TYPE_INT) {
+				sink += scanned.getLongValue();
+			} else if (scanned.isFloating()) {
+				sink += (long) scanned.getDoubleValue();
+				sink += scanned.getDecimalValue().scale();
+			}
+		}
+		return sink;
+	}
+
+	private static String sensorValue(String id, Random random) {
+		switch (id) {
+		case "temperature":
+			return String.format("%.1f", random.nextGaussian() * 8 + 20);
+		case "humidity":
+			return Integer.toString(30 + random.nextInt(60));
+		case "latitude":
+		case "Lat":
+			return String.format("%.6f", 35 + random.nextDouble());
+		case "longitude":
+		case "lng":
+			return String.format("%.6f", 139 + random.nextDouble());
+		case "count":
+			return Long.toString(1 + (random.nextLong() >>> (1 + random.nextInt(62))));
+		case "status":
+			return random.nextBoolean() ? "ON" : "OFF";
+		case "timestamp":
+			return String.format("2016-07-%02dT%02d:%02d:00.000+09:00", 1 + random.nextInt(28), random.nextInt(24), random.nextInt(60));
+		default:
+			return String.format("%.3f", random.nextDouble() * 100);
+		}
+	}
+
+}
@@ -0,0 +1,120 @@
+package soxrecorderv2.cache;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import soxrecorderv2.common.model.NodeIdentifier;
+
+/**
+ * Redisのかわりにプロセス内に持つSoxRecorderCache。
+ * recorderが1台のときや, Redisなしで動かしたいとき用 (再起動すると消える)
+ */
+public class LocalCache implements SoxRecorderCache {
+	
+	private final ConcurrentHashMap<NodeIdentifier, Long> observationIds = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<NodeIdentifier, ConcurrentHashMap<String, Long>> transducerIds = new ConcurrentHashMap<>();
+
+	@Override
+	public long getObservationId(NodeIdentifier nodeId) throws CacheMissException {
+		Long observationId = observationIds.get(nodeId);
+		if (observationId == null) {
+			throw new CacheMissException();
+		}
+		return observationId;
+	}
+
+	@Override
+	public long getTransducerId(NodeIdentifier nodeId, String transducerId) throws CacheMissException {
+		Map<String, Long> tdrIds = transducerIds.get(nodeId);
+		Long tdrId = (tdrIds == null) ? null : tdrIds.get(transducerId);
+		if (tdrId == null) {
+			throw new CacheMissException();
+		}
+		return tdrId;
+	}
+
+	@Override
+	public Map<NodeIdentifier, Long> getObservationIds(Collection<NodeIdentifier> nodeIds) {
+		Map<NodeIdentifier, Long> found = new HashMap<>();
+		for (NodeIdentifier nodeId : nodeIds) {
+			Long observationId = observationIds.get(nodeId);
+			if (observationId != null) {
+				found.put(nodeId, observationId);
+			}
+		}
+		return found;
+	}
+
+	@Override
+	public Map<String, Long> getTransducerIds(NodeIdentifier nodeId, Collection<String> tdrIdentifiers) {
+		Map<String, Long> found = new HashMap<>();
+		Map<String, Long> tdrIds = transducerIds.get(nodeId);
+		if (tdrIds == null) {
+			return found;
+		}
+		for (String tdrIdentifier : tdrIdentifiers) {
+			Long tdrId = tdrIds.get(tdrIdentifier);
+			if (tdrId != null) {
+				found.put(tdrIdentifier, tdrId);
+			}
+		}
+		return found;
+	}
+
+	@Override
+	public void setObservationId(NodeIdentifier nodeId, long observationId) {
+		observationIds.put(nodeId, observationId);
+	}
+
+	@Override
+	public void setTransducerId(NodeIdentifier nodeId, String transducerId, long transducerDatabsaeId) {
+		transducersOf(nodeId).put(transducerId, transducerDatabsaeId);
+	}
+
+	@Override
+	public void setTransducerIds(NodeIdentifier nodeId, Map<String, Long> tdrIds) {
+		transducersOf(nodeId).putAll(tdrIds);
+	}
+
+	@Override
+	public void setIds(Map<NodeIdentifier, Long> observations, Map<NodeIdentifier, Map<String, Long>> transducers) {
+		observationIds.putAll(observations);
+		for (Map.Entry<NodeIdentifier, Map<String, Long>> entry : transducers.entrySet()) {
+			transducersOf(entry.getKey()).putAll(entry.getValue());
+		}
+	}
+
+	@Override
+	public void removeObservationId(NodeIdentifier nodeId) {
+		observationIds.remove(nodeId);
+	}
+
+	@Override
+	public void removeTransducerId(NodeIdentifier nodeId, String transducerId) {
+		Map<String, Long> tdrIds = transducerIds.get(nodeId);
+		if (tdrIds != null) {
+			tdrIds.remove(transducerId);
+		}
+	}
+	
+	@Override
+	public void removeNode(NodeIdentifier nodeId, Collection<String> tdrIdentifiers) {
+		observationIds.remove(nodeId);
+		Map<String, Long> tdrIds = transducerIds.get(nodeId);
+		if (tdrIds != null) {
+			tdrIds.keySet().removeAll(tdrIdentifiers);
+		}
+	}
+	
+	private ConcurrentHashMap<String, Long> transducersOf(NodeIdentifier nodeId) {
+		ConcurrentHashMap<String, Long> tdrIds = transducerIds.get(nodeId);
+		if (tdrIds == null) {
+			transducerIds.putIfAbsent(nodeId, new ConcurrentHashMap<String, Long>());
+			tdrIds = transducerIds.get(nodeId);
+		}
+		return tdrIds;
+	}
+
+}
@@ -0,0 +1,32 @@
+package soxrecorderv2.cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TieredNodeCacheの段ごとのヒット数。全writerで1つを共有する
+ */
+public class NodeCacheStats {
+	
+	// near: メッセージごと (transducerがすべて既知ならhit)
+	final AtomicLong nearHits = new AtomicLong();
+	final AtomicLong nearMisses = new AtomicLong();
+	// shared: キーごと
+	final AtomicLong sharedHits = new AtomicLong();
+	final AtomicLong sharedMisses = new AtomicLong();
+	final AtomicLong sharedErrors = new AtomicLong();
+	// PostgreSQLへの問い合わせ回数
+	final AtomicLong dbLoads = new AtomicLong();
+	
+	public String format() {
+		return "node_cache: near " + formatTier(nearHits.get(), nearMisses.get())
+				+ ", shared " + formatTier(sharedHits.get(), sharedMisses.get()) + " errors=" + sharedErrors.get()
+				+ ", db loads=" + dbLoads.get();
+	}
+	
+	private static String formatTier(long hits, long misses) {
+		long total = hits + misses;
+		double hitRate = (total == 0) ? 0.0 : (double) hits / total;
+		return String.format("hits=%d misses=%d (%.1f%%)", hits, misses, hitRate * 100);
+	}
+
+}
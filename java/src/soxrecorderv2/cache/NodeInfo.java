@@ -1,26 +1,39 @@
 package soxrecorderv2.cache;
 
-import java.util.Collection;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import jp.ac.keio.sfc.ht.sox.protocol.TransducerValue;
 import soxrecorderv2.common.model.NodeIdentifier;
 
+/**
+ * nodeのobservation idと, これまでに見たtransducerのidの対応。
+ *
+ * nodeはtransducerの一部だけをpublishすることがあるので, transducerの対応は増える一方の集合として持つ
+ * (メッセージのtransducerが既知のものだけなら, 集合がちがっていても引きなおさない)。
+ * DBWriterProcessごとに持つキャッシュに入れるもので, スレッドセーフではない。
+ */
 public class NodeInfo {
 	
+	public static final long NO_OBSERVATION = 0;  // observationの行がまだないnode
+	
 	private final NodeIdentifier nodeId;
 	
 	private final long observationId;
 	
+	private final Map<String, Long> knownTransducers;
+	
 	private final Map<String, Long> transducerIdMap;
 	
 	public NodeInfo(final NodeIdentifier nodeId, final long observationId, final Map<String, Long> transducerIdMap) {
 		this.nodeId = nodeId;
 		this.observationId = observationId;
-		this.transducerIdMap = Collections.unmodifiableMap(transducerIdMap);
+		this.knownTransducers = new HashMap<>(transducerIdMap);
+		this.transducerIdMap = Collections.unmodifiableMap(knownTransducers);
 	}
 	
 	public NodeIdentifier getNodeId() {
@@ -31,6 +44,13 @@ public class NodeInfo {
 		return observationId;
 	}
 	
+	/**
+	 * @return falseならobservationの行がない (recordを書くと外部キー違反になる)
+	 */
+	public boolean hasObservation() {
+		return observationId != NO_OBSERVATION;
+	}
+	
 	public Map<String, Long> getTransducerIdMap() {
 		return transducerIdMap;
 	}
@@ -45,13 +65,45 @@ public class NodeInfo {
 		return equals(otherInfo.getNodeId(), otherInfo.getObservationId(), otherInfo.getTransducerIdMap());
 	}
 	
-	public boolean isCovering(Collection<TransducerValue> tValues) {
-		Set<String> tIdentifiers = new HashSet<>();
+	/**
+	 * メッセージごとに呼ばれるので, 何もallocateしない
+	 * @param tValues
+	 * @return tValuesのtransducerがすべて既知ならtrue
+	 */
+	public boolean isCovering(List<TransducerValue> tValues) {
+		for (int i = 0; i < tValues.size(); i++) {
+			TransducerValue tValue = tValues.get(i);
+			if (tValue != null && !knownTransducers.containsKey(tValue.getId())) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * @param tValues
+	 * @return tValuesのうちidがわからないtransducer (重複なし)
+	 */
+	public List<String> findUnknownTransducers(List<TransducerValue> tValues) {
+		List<String> unknown = new ArrayList<>();
 		for (TransducerValue tValue : tValues) {
-			tIdentifiers.add(tValue.getId());
+			if (tValue == null) {
+				continue;
+			}
+			String tdrId = tValue.getId();
+			if (!knownTransducers.containsKey(tdrId) && !unknown.contains(tdrId)) {
+				unknown.add(tdrId);
+			}
 		}
-		
-		return tIdentifiers.equals(transducerIdMap.keySet());
+		return unknown;
+	}
+	
+	/**
+	 * 新しく解決できたtransducerを足す (既知のものは消さない)
+	 * @param resolved transducer_id -> transducer.id
+	 */
+	public void addTransducers(Map<String, Long> resolved) {
+		knownTransducers.putAll(resolved);
 	}
 	
 		
@@ -2,164 +2,326 @@ package soxrecorderv2.cache;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
 
 import redis.clients.jedis.BinaryJedis;
 import redis.clients.jedis.exceptions.JedisConnectionException;
 import soxrecorderv2.common.model.NodeIdentifier;
 import soxrecorderv2.util.BinaryUtil;
+import soxrecorderv2.util.ConfigUtil;
 import soxrecorderv2.util.MyCharSet;
 
+/**
+ * Redisに置くSoxRecorderCache。複数のrecorderで共有できる。
+ *
+ * コネクションはRedisConnectionPoolから借りるので, 複数のwriterから同時に呼んでよい。
+ * まとめて引く/書くときはMGET/MSET/DELの1コマンドにする (1往復)。
+ * つながらないときはJedisConnectionExceptionをそのまま投げる (リトライはしない)。
+ * 呼び出し側はミスと同じに扱ってDBに問い合わせればよい。
+ */
 public class RedisCache implements SoxRecorderCache, Closeable {
-	
+
+	public static final String CONFIG_KEY_HOST = "id_cache_redis_host";
+	public static final String CONFIG_KEY_PORT = "id_cache_redis_port";
+	public static final String CONFIG_KEY_POOL_SIZE = "id_cache_redis_pool_size";
+	public static final String CONFIG_KEY_TIMEOUT_MSEC = "id_cache_redis_timeout_msec";
+	public static final String CONFIG_KEY_MAX_WAIT_MSEC = "id_cache_redis_max_wait_msec";
+
+	public static final int DEFAULT_PORT = 6379;
+	public static final int DEFAULT_POOL_SIZE = 8;
+	public static final int DEFAULT_TIMEOUT_MSEC = 2000;
+	public static final long DEFAULT_MAX_WAIT_MSEC = 1000;
+
 	private static final byte[] NIL = "nil".getBytes();
-	
-	private String host;
-	private BinaryJedis conn;
-	private int retryCount = 5;
-	
+
+	// キーは "sr2:obid|||<server>|||<node>" と "sr2:tdrid|||<server>|||<node>|||<transducer>"
+	private static final byte[] OBSERVATION_KEY_PREFIX = "sr2:obid|||".getBytes(MyCharSet.UTF8);
+	private static final byte[] TRANSDUCER_KEY_PREFIX = "sr2:tdrid|||".getBytes(MyCharSet.UTF8);
+	private static final byte[] SEPARATOR = "|||".getBytes(MyCharSet.UTF8);
+	private static final byte[] EMPTY = new byte[0];
+
+	/**
+	 * 借りたコネクションで1回だけ呼ぶ
+	 */
+	private interface RedisCall<T> {
+		public T call(BinaryJedis jedis);
+	}
+
+	private final RedisConnectionPool pool;
+
+	public RedisCache(RedisConnectionPool pool) {
+		this.pool = pool;
+	}
+
 	public RedisCache(String host) {
-		this.host = host;
+		this(new RedisConnectionPool(host, DEFAULT_PORT, DEFAULT_TIMEOUT_MSEC, DEFAULT_POOL_SIZE, DEFAULT_MAX_WAIT_MSEC));
 	}
-	
+
+	public static RedisCache fromConfig(Properties config) {
+		return new RedisCache(new RedisConnectionPool(
+				ConfigUtil.getString(config, CONFIG_KEY_HOST, "localhost"),
+				ConfigUtil.getInt(config, CONFIG_KEY_PORT, DEFAULT_PORT),
+				ConfigUtil.getInt(config, CONFIG_KEY_TIMEOUT_MSEC, DEFAULT_TIMEOUT_MSEC),
+				ConfigUtil.getInt(config, CONFIG_KEY_POOL_SIZE, DEFAULT_POOL_SIZE),
+				ConfigUtil.getLong(config, CONFIG_KEY_MAX_WAIT_MSEC, DEFAULT_MAX_WAIT_MSEC)));
+	}
+
+	/**
+	 * つながるかどうか確かめる
+	 * @throws JedisConnectionException つながらないとき
+	 */
 	public void open() {
-		conn = new BinaryJedis(host);
+		execute(new RedisCall<String>() {
+			@Override
+			public String call(BinaryJedis jedis) {
+				return jedis.ping();
+			}
+		});
 	}
-	
+
 	@Override
 	public void close() {
-		if (conn == null) {
-			return;
-		}
-		
-		conn.close();
-		conn = null;
+		pool.close();
+	}
+
+	public String getStats() {
+		return "redis pool: " + pool.getStats();
 	}
 
 	@Override
 	public long getObservationId(NodeIdentifier nodeId) throws CacheMissException {
-		byte[] key = buildKeyForObservationId(nodeId);
-		byte[] binObservationId = get(key);
-		try {
-			return BinaryUtil.bin2long(binObservationId);
-		} catch (IOException e) {
-			e.printStackTrace();
-			return 0; // FIXME
-		}
+		return decodeId(get(buildKeyForObservationId(nodeId)));
 	}
 
 	@Override
 	public long getTransducerId(NodeIdentifier nodeId, String transducerId) throws CacheMissException {
-		byte[] key = buildKeyForTransducerId(nodeId, transducerId);
-		byte[] binTransducerId = get(key);
-		try {
-			return BinaryUtil.bin2long(binTransducerId);
-		} catch (IOException e) {
-			e.printStackTrace();
-			return 0;  // FIXME
+		return decodeId(get(buildKeyForTransducerId(buildTransducerKeyHead(nodeId), transducerId)));
+	}
+
+	@Override
+	public Map<NodeIdentifier, Long> getObservationIds(Collection<NodeIdentifier> nodeIds) {
+		Map<NodeIdentifier, Long> found = new HashMap<>();
+		if (nodeIds.isEmpty()) {
+			return found;
 		}
+		List<NodeIdentifier> nodes = new ArrayList<>(nodeIds);
+		byte[][] keys = new byte[nodes.size()][];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = buildKeyForObservationId(nodes.get(i));
+		}
+		List<byte[]> values = mget(keys);
+		for (int i = 0; i < keys.length; i++) {
+			try {
+				found.put(nodes.get(i), decodeId(values.get(i)));
+			} catch (CacheMissException e) {
+				// みつからなかったものは入れない
+			}
+		}
+		return found;
+	}
+
+	@Override
+	public Map<String, Long> getTransducerIds(NodeIdentifier nodeId, Collection<String> transducerIds) {
+		Map<String, Long> found = new HashMap<>();
+		if (transducerIds.isEmpty()) {
+			return found;
+		}
+		List<String> tdrIdentifiers = new ArrayList<>(transducerIds);
+		byte[] head = buildTransducerKeyHead(nodeId);
+		byte[][] keys = new byte[tdrIdentifiers.size()][];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = buildKeyForTransducerId(head, tdrIdentifiers.get(i));
+		}
+		List<byte[]> values = mget(keys);
+		for (int i = 0; i < keys.length; i++) {
+			try {
+				found.put(tdrIdentifiers.get(i), decodeId(values.get(i)));
+			} catch (CacheMissException e) {
+				// みつからなかったものは入れない
+			}
+		}
+		return found;
 	}
 
 	@Override
 	public void setObservationId(NodeIdentifier nodeId, long observationId) {
-		byte[] key = buildKeyForObservationId(nodeId);
-		byte[] value = BinaryUtil.long2bin(observationId);
-		set(key, value);
+		mset(new byte[][] { buildKeyForObservationId(nodeId), BinaryUtil.long2bin(observationId) });
 	}
 
 	@Override
 	public void setTransducerId(NodeIdentifier nodeId, String transducerId, long transducerDatabsaeId) {
-		byte[] key = buildKeyForTransducerId(nodeId, transducerId);
-		byte[] value = BinaryUtil.long2bin(transducerDatabsaeId);
-		set(key, value);
+		byte[] key = buildKeyForTransducerId(buildTransducerKeyHead(nodeId), transducerId);
+		mset(new byte[][] { key, BinaryUtil.long2bin(transducerDatabsaeId) });
+	}
+
+	@Override
+	public void setTransducerIds(NodeIdentifier nodeId, Map<String, Long> transducerIds) {
+		Map<NodeIdentifier, Map<String, Long>> tdrIds = new HashMap<>();
+		tdrIds.put(nodeId, transducerIds);
+		setIds(new HashMap<NodeIdentifier, Long>(), tdrIds);
+	}
+
+	@Override
+	public void setIds(Map<NodeIdentifier, Long> observationIds, Map<NodeIdentifier, Map<String, Long>> transducerIds) {
+		int nKeys = observationIds.size();
+		for (Map<String, Long> tdrIds : transducerIds.values()) {
+			nKeys += tdrIds.size();
+		}
+		if (nKeys == 0) {
+			return;
+		}
+		byte[][] keysValues = new byte[nKeys * 2][];
+		int i = 0;
+		for (Map.Entry<NodeIdentifier, Long> entry : observationIds.entrySet()) {
+			keysValues[i++] = buildKeyForObservationId(entry.getKey());
+			keysValues[i++] = BinaryUtil.long2bin(entry.getValue());
+		}
+		for (Map.Entry<NodeIdentifier, Map<String, Long>> nodeEntry : transducerIds.entrySet()) {
+			byte[] head = buildTransducerKeyHead(nodeEntry.getKey());
+			for (Map.Entry<String, Long> entry : nodeEntry.getValue().entrySet()) {
+				keysValues[i++] = buildKeyForTransducerId(head, entry.getKey());
+				keysValues[i++] = BinaryUtil.long2bin(entry.getValue());
+			}
+		}
+		mset(keysValues);
 	}
 
 	@Override
 	public void removeObservationId(NodeIdentifier nodeId) {
-		byte[] key = buildKeyForObservationId(nodeId);
-		remove(key);
+		del(new byte[][] { buildKeyForObservationId(nodeId) });
 	}
 
 	@Override
 	public void removeTransducerId(NodeIdentifier nodeId, String transducerId) {
-		byte[] key = buildKeyForTransducerId(nodeId, transducerId);
-		remove(key);
-	}
-	
-	private byte[] buildKeyForObservationId(NodeIdentifier nodeId) {
-		StringBuilder sb = new StringBuilder();
-		sb.append("sr2:obid|||");
-		sb.append(nodeId.getServer());
-		sb.append("|||");
-		sb.append(nodeId.getNode());
-		return sb.toString().getBytes(MyCharSet.UTF8);
-	}
-	
-	private byte[] buildKeyForTransducerId(NodeIdentifier nodeId, String transducerId) {
-		StringBuilder sb = new StringBuilder();
-		sb.append("sr2:tdrid|||");
-		sb.append(nodeId.getServer());
-		sb.append("|||");
-		sb.append(nodeId.getNode());
-		sb.append("|||");
-		sb.append(transducerId);
-		return sb.toString().getBytes(MyCharSet.UTF8);
-	}
-	
-	private byte[] get(byte[] key) throws CacheMissException {
-		try {
-			byte[] bytes = conn.get(key);
-			if (isNil(bytes)) {
-				throw new CacheMissException();
+		del(new byte[][] { buildKeyForTransducerId(buildTransducerKeyHead(nodeId), transducerId) });
+	}
+
+	@Override
+	public void removeNode(NodeIdentifier nodeId, Collection<String> transducerIds) {
+		byte[][] keys = new byte[1 + transducerIds.size()][];
+		keys[0] = buildKeyForObservationId(nodeId);
+		byte[] head = buildTransducerKeyHead(nodeId);
+		int i = 1;
+		for (String transducerId : transducerIds) {
+			keys[i++] = buildKeyForTransducerId(head, transducerId);
+		}
+		del(keys);
+	}
+
+	private static byte[] buildKeyForObservationId(NodeIdentifier nodeId) {
+		byte[] head = concat(OBSERVATION_KEY_PREFIX, nodeId.getServer(), SEPARATOR);
+		return concat(head, nodeId.getNode(), EMPTY);
+	}
+
+	/**
+	 * @return "sr2:tdrid|||<server>|||<node>|||" (同じnodeのキーを作るときは使いまわす)
+	 */
+	private static byte[] buildTransducerKeyHead(NodeIdentifier nodeId) {
+		byte[] head = concat(TRANSDUCER_KEY_PREFIX, nodeId.getServer(), SEPARATOR);
+		return concat(head, nodeId.getNode(), SEPARATOR);
+	}
+
+	private static byte[] buildKeyForTransducerId(byte[] head, String transducerId) {
+		return concat(head, transducerId, EMPTY);
+	}
+
+	/**
+	 * head + UTF-8(middle) + tail を1回のallocateで作る (ASCIIならStringのgetBytesを経由しない)
+	 */
+	private static byte[] concat(byte[] head, String middle, byte[] tail) {
+		boolean isAscii = true;
+		final int n = middle.length();
+		for (int i = 0; i < n; i++) {
+			if (0x7F < middle.charAt(i)) {
+				isAscii = false;
+				break;
 			}
-			return bytes;
-		} catch (JedisConnectionException e) {
-			int failed = 1;
-			while (failed < retryCount) {
-				try {
-					return conn.get(key);
-				} catch (JedisConnectionException e2) {
-					failed++;
-				}
+		}
+		byte[] encoded = (isAscii) ? null : middle.getBytes(MyCharSet.UTF8);
+		int middleLength = (isAscii) ? n : encoded.length;
+
+		byte[] key = new byte[head.length + middleLength + tail.length];
+		System.arraycopy(head, 0, key, 0, head.length);
+		if (isAscii) {
+			for (int i = 0; i < n; i++) {
+				key[head.length + i] = (byte) middle.charAt(i);
 			}
-			// FIXME: logging
-			return null;
+		} else {
+			System.arraycopy(encoded, 0, key, head.length, middleLength);
 		}
+		System.arraycopy(tail, 0, key, head.length + middleLength, tail.length);
+		return key;
 	}
-	
-	private void set(byte[] key, byte[] value) {
+
+	private <T> T execute(RedisCall<T> call) {
+		BinaryJedis jedis = pool.borrow();
+		boolean broken = false;
 		try {
-			conn.set(key, value);
+			return call.call(jedis);
 		} catch (JedisConnectionException e) {
-			int failed = 1;
-			while (failed < retryCount) {
-				try {
-					conn.set(key, value);
-					return;
-				} catch (JedisConnectionException e2) {
-					failed++;
-				}
+			broken = true;  // 途中で切れたコネクションはプールに戻さない
+			throw e;
+		} finally {
+			pool.release(jedis, broken);
+		}
+	}
+
+	private byte[] get(final byte[] key) throws CacheMissException {
+		byte[] bytes = execute(new RedisCall<byte[]>() {
+			@Override
+			public byte[] call(BinaryJedis jedis) {
+				return jedis.get(key);
 			}
-			// FIXME: logging
+		});
+		if (bytes == null || isNil(bytes)) {
+			throw new CacheMissException();
 		}
+		return bytes;
 	}
-	
-	private void remove(byte[] key) {
-		try {
-			conn.del(key);
-		} catch (JedisConnectionException e) {
-			int failed = 1;
-			while (failed < retryCount) {
-				try {
-					conn.del(key);
-					return;
-				} catch (JedisConnectionException e2) {
-					failed++;
-				}
+
+	private List<byte[]> mget(final byte[][] keys) {
+		return execute(new RedisCall<List<byte[]>>() {
+			@Override
+			public List<byte[]> call(BinaryJedis jedis) {
+				return jedis.mget(keys);
 			}
-			// FIXME: logging
+		});
+	}
+
+	private void mset(final byte[][] keysValues) {
+		execute(new RedisCall<String>() {
+			@Override
+			public String call(BinaryJedis jedis) {
+				return jedis.mset(keysValues);
+			}
+		});
+	}
+
+	private void del(final byte[][] keys) {
+		execute(new RedisCall<Long>() {
+			@Override
+			public Long call(BinaryJedis jedis) {
+				return jedis.del(keys);
+			}
+		});
+	}
+
+	private static long decodeId(byte[] bytes) throws CacheMissException {
+		if (bytes == null || bytes.length != 8) {
+			throw new CacheMissException();
+		}
+		try {
+			return BinaryUtil.bin2long(bytes);
+		} catch (IOException e) {
+			throw new CacheMissException("broken id", e);
 		}
 	}
-	
+
 	private boolean isNil(byte[] test) {
 		if (test.length != NIL.length) {
 			return false;
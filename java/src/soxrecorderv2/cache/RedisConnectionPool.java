@@ -0,0 +1,173 @@
+package soxrecorderv2.cache;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import redis.clients.jedis.BinaryJedis;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisException;
+
+/**
+ * BinaryJedisのコネクションを上限つきで共有するプール。
+ * (JedisPoolはcommons-pool2が要るので, PGConnectionPoolと同じやり方で持つ)
+ *
+ * - 空きがなければmaxWaitMsecまで待ち, それでもなければJedisConnectionExceptionを投げる
+ * - 通信エラーのあとに返されたコネクションは捨てる (release(jedis, true))
+ */
+public class RedisConnectionPool {
+	
+	private final String host;
+	private final int port;
+	private final int timeoutMsec;
+	private final int maxSize;
+	private final long maxWaitMsec;
+	
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition available = lock.newCondition();
+	private final Deque<BinaryJedis> idle = new ArrayDeque<>();
+	private int nOpen = 0;  // 貸し出し中+待機中+接続中
+	private boolean closed = false;
+	
+	// metrics
+	private long borrowCount = 0;
+	private long waitCount = 0;
+	private long timeoutCount = 0;
+	private long createdCount = 0;
+	private long destroyedCount = 0;
+	
+	public RedisConnectionPool(String host, int port, int timeoutMsec, int maxSize, long maxWaitMsec) {
+		this.host = host;
+		this.port = port;
+		this.timeoutMsec = timeoutMsec;
+		this.maxSize = Math.max(1, maxSize);
+		this.maxWaitMsec = maxWaitMsec;
+	}
+	
+	/**
+	 * @return 使いおわったらrelease()すること
+	 * @throws JedisConnectionException 待ち時間切れ, または接続に失敗したとき
+	 */
+	public BinaryJedis borrow() {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMsec);
+		lock.lock();
+		try {
+			while (true) {
+				if (closed) {
+					throw new JedisConnectionException("redis connection pool is closed");
+				}
+				if (!idle.isEmpty()) {
+					borrowCount++;
+					return idle.pollFirst();
+				}
+				if (nOpen < maxSize) {
+					nOpen++;
+					break;
+				}
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					timeoutCount++;
+					throw new JedisConnectionException("timed out waiting for a redis connection: " + getStatsLocked());
+				}
+				waitCount++;
+				try {
+					available.awaitNanos(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new JedisConnectionException("interrupted while waiting for a redis connection", e);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		
+		// 接続はネットワーク越しなのでロックの外でやる
+		BinaryJedis jedis = new BinaryJedis(host, port, timeoutMsec);
+		try {
+			jedis.connect();
+		} catch (JedisException e) {
+			lock.lock();
+			try {
+				nOpen--;
+				available.signal();
+			} finally {
+				lock.unlock();
+			}
+			throw e;
+		}
+		lock.lock();
+		try {
+			createdCount++;
+			borrowCount++;
+		} finally {
+			lock.unlock();
+		}
+		return jedis;
+	}
+	
+	/**
+	 * @param jedis borrow()で借りたもの
+	 * @param broken trueのときは再利用せずに閉じる (通信エラーのあとなど)
+	 */
+	public void release(BinaryJedis jedis, boolean broken) {
+		lock.lock();
+		try {
+			if (!broken && !closed) {
+				idle.addFirst(jedis);
+				available.signal();
+				return;
+			}
+			nOpen--;
+			destroyedCount++;
+			available.signal();
+		} finally {
+			lock.unlock();
+		}
+		destroy(jedis);
+	}
+	
+	public void close() {
+		List<BinaryJedis> toClose;
+		lock.lock();
+		try {
+			closed = true;
+			toClose = new ArrayList<>(idle);
+			nOpen -= idle.size();
+			idle.clear();
+			available.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		for (BinaryJedis jedis : toClose) {
+			destroy(jedis);
+		}
+	}
+	
+	public String getStats() {
+		lock.lock();
+		try {
+			return getStatsLocked();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	private String getStatsLocked() {
+		return "open=" + nOpen + ", idle=" + idle.size() + ", max=" + maxSize
+				+ ", borrowed=" + borrowCount + ", waited=" + waitCount + ", timeouts=" + timeoutCount
+				+ ", created=" + createdCount + ", destroyed=" + destroyedCount;
+	}
+	
+	private static void destroy(BinaryJedis jedis) {
+		try {
+			jedis.close();
+		} catch (JedisException e) {
+			// もう切れている
+		}
+	}
+
+}
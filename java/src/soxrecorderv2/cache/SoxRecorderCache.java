@@ -1,5 +1,8 @@
 package soxrecorderv2.cache;
 
+import java.util.Collection;
+import java.util.Map;
+
 import soxrecorderv2.common.model.NodeIdentifier;
 
 public interface SoxRecorderCache {
@@ -8,12 +11,40 @@ public interface SoxRecorderCache {
 	
 	public long getTransducerId(NodeIdentifier nodeId, String transducerId) throws CacheMissException;
 	
+	/**
+	 * nodeIdsをまとめて1往復で引く
+	 * @return みつかったものだけ
+	 */
+	public Map<NodeIdentifier, Long> getObservationIds(Collection<NodeIdentifier> nodeIds);
+	
+	/**
+	 * transducerIdsをまとめて1往復で引く
+	 * @return みつかったものだけ (transducer_id -> transducer.id)
+	 */
+	public Map<String, Long> getTransducerIds(NodeIdentifier nodeId, Collection<String> transducerIds);
+	
 	public void setObservationId(NodeIdentifier nodeId, long observationId);
 	
 	public void setTransducerId(NodeIdentifier nodeId, String transducerId, long transducerDatabsaeId);
 	
+	/**
+	 * まとめて1往復で書く
+	 * @param transducerIds transducer_id -> transducer.id
+	 */
+	public void setTransducerIds(NodeIdentifier nodeId, Map<String, Long> transducerIds);
+	
+	/**
+	 * 複数nodeのobservation idとtransducer idをまとめて1往復で書く
+	 */
+	public void setIds(Map<NodeIdentifier, Long> observationIds, Map<NodeIdentifier, Map<String, Long>> transducerIds);
+	
 	public void removeObservationId(NodeIdentifier nodeId);
 	
 	public void removeTransducerId(NodeIdentifier nodeId, String transducerId);
+	
+	/**
+	 * nodeのobservation idとtransducerIdsをまとめて1往復で消す
+	 */
+	public void removeNode(NodeIdentifier nodeId, Collection<String> transducerIds);
 
 }
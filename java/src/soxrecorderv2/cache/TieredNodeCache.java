@@ -0,0 +1,298 @@
+package soxrecorderv2.cache;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import jp.ac.keio.sfc.ht.sox.protocol.TransducerValue;
+import soxrecorderv2.common.model.NodeIdentifier;
+import soxrecorderv2.logging.SR2LogType;
+import soxrecorderv2.logging.SR2Logger;
+import soxrecorderv2.util.ConfigUtil;
+
+/**
+ * observation idとtransducer idのキャッシュ。
+ * near (writerごとのNodeInfo) -> shared (SoxRecorderCache: Redisなど, 全recorderで共有) -> PostgreSQL の順に引く。
+ *
+ * sharedに書くのはcommitしてから (rollbackされたidを他のrecorderが使わないように)。
+ * sharedにつながらないときはミスと同じに扱い, PostgreSQLで続ける。
+ * writerごとに1つ持つもので, スレッドセーフではない (sharedとstatsはスレッドセーフ)
+ */
+public class TieredNodeCache {
+	
+	public static final String CONFIG_KEY_BACKEND = "id_cache_backend";
+	
+	public static final String BACKEND_NONE = "none";
+	public static final String BACKEND_LOCAL = "local";
+	public static final String BACKEND_REDIS = "redis";
+	
+	/**
+	 * nearにないときにPostgreSQLから引く方法
+	 */
+	public interface Loader {
+		
+		/**
+		 * @return nodeのobservation idと, そのobservationのtransducerすべて
+		 */
+		public NodeInfo loadNode(NodeIdentifier nodeId) throws SQLException;
+		
+		/**
+		 * @return transducerIdsのidすべて (なければinsertする)
+		 */
+		public Map<String, Long> upsertTransducers(long observationId, List<String> transducerIds) throws SQLException;
+		
+	}
+	
+	private final Cache<NodeIdentifier, NodeInfo> near;
+	private final SoxRecorderCache shared;
+	private final NodeCacheStats stats;
+	private final SR2Logger logger;
+	private boolean isSharedAvailable = true;
+	
+	// このトランザクションでPostgreSQLから引いたもの (commitしたらsharedに書く)
+	private final Map<NodeIdentifier, Long> uncommittedObservations = new HashMap<>();
+	private final Map<NodeIdentifier, Map<String, Long>> uncommittedTransducers = new HashMap<>();
+	
+	/**
+	 * @param shared nullならnearとPostgreSQLだけ
+	 */
+	public TieredNodeCache(int maxSize, long expireSec, SoxRecorderCache shared, NodeCacheStats stats, SR2Logger logger) {
+		this.near = CacheBuilder.newBuilder()
+				.concurrencyLevel(1)
+				.maximumSize(maxSize)
+				.expireAfterAccess(expireSec, TimeUnit.SECONDS)
+				.build();
+		this.shared = shared;
+		this.stats = stats;
+		this.logger = logger;
+	}
+	
+	/**
+	 * id_cache_backendにしたがってsharedの段を作る
+	 * @return noneならnull
+	 */
+	public static SoxRecorderCache openShared(Properties config) {
+		String backend = ConfigUtil.getString(config, CONFIG_KEY_BACKEND, BACKEND_NONE).trim();
+		if (BACKEND_LOCAL.equalsIgnoreCase(backend)) {
+			return new LocalCache();
+		} else if (BACKEND_REDIS.equalsIgnoreCase(backend)) {
+			RedisCache redis = RedisCache.fromConfig(config);
+			redis.open();
+			return redis;
+		} else if (BACKEND_NONE.equalsIgnoreCase(backend)) {
+			return null;
+		}
+		throw new IllegalArgumentException("unknown " + CONFIG_KEY_BACKEND + ": " + backend);
+	}
+	
+	/**
+	 * @return tValuesのtransducerすべてのidがわかっているNodeInfo。
+	 *   observationがなければtransducerは引かずにそのまま返す (キャッシュにも入れないので, observationができたら次で引ける)
+	 */
+	public NodeInfo get(NodeIdentifier nodeId, List<TransducerValue> tValues, Loader loader) throws SQLException {
+		NodeInfo nodeInfo = near.getIfPresent(nodeId);
+		if (nodeInfo != null && nodeInfo.isCovering(tValues)) {
+			stats.nearHits.incrementAndGet();
+			return nodeInfo;
+		}
+		stats.nearMisses.incrementAndGet();
+		
+		if (nodeInfo == null) {
+			nodeInfo = loadNode(nodeId, loader);
+			if (!nodeInfo.hasObservation()) {
+				return nodeInfo;  // observation_id = 0 でtransducerを作らない
+			}
+			near.put(nodeId, nodeInfo);
+		}
+		
+		// idがわからないtransducerだけ, shared -> PostgreSQL の順に引いて足す
+		List<String> unknown = nodeInfo.findUnknownTransducers(tValues);
+		if (unknown.isEmpty()) {
+			return nodeInfo;
+		}
+		Map<String, Long> fromShared = getSharedTransducerIds(nodeId, unknown);
+		nodeInfo.addTransducers(fromShared);
+		if (fromShared.size() < unknown.size()) {
+			Map<String, Long> loaded = loader.upsertTransducers(nodeInfo.getObservationId(), nodeInfo.findUnknownTransducers(tValues));
+			stats.dbLoads.incrementAndGet();
+			nodeInfo.addTransducers(loaded);
+			addUncommittedTransducers(nodeId, loaded);
+		}
+		return nodeInfo;
+	}
+	
+	/**
+	 * nearにないnodeのobservation idを, sharedからまとめて1往復で引いておく
+	 * (バッチの最初に呼ぶと, nodeごとにGETしなくてすむ)
+	 */
+	public void prefetch(Collection<NodeIdentifier> nodeIds) {
+		if (shared == null) {
+			return;
+		}
+		Set<NodeIdentifier> missing = new LinkedHashSet<>();
+		for (NodeIdentifier nodeId : nodeIds) {
+			if (near.getIfPresent(nodeId) == null) {
+				missing.add(nodeId);
+			}
+		}
+		if (missing.isEmpty()) {
+			return;
+		}
+		try {
+			Map<NodeIdentifier, Long> found = shared.getObservationIds(missing);
+			stats.sharedHits.addAndGet(found.size());
+			stats.sharedMisses.addAndGet(missing.size() - found.size());
+			markSharedAvailable();
+			for (Map.Entry<NodeIdentifier, Long> entry : found.entrySet()) {
+				// transducerはget()でメッセージに出てきたものだけ引く
+				near.put(entry.getKey(), new NodeInfo(entry.getKey(), entry.getValue(), Collections.<String, Long>emptyMap()));
+			}
+		} catch (RuntimeException e) {
+			markSharedUnavailable(e);
+		}
+	}
+	
+	/**
+	 * 起動時などにPostgreSQLから読んだcommit済みのNodeInfoを入れる
+	 */
+	public void put(NodeInfo nodeInfo) {
+		near.put(nodeInfo.getNodeId(), nodeInfo);
+	}
+	
+	public long size() {
+		return near.size();
+	}
+	
+	/**
+	 * commitしたので, このトランザクションで引いたidをsharedに書く
+	 */
+	public void onCommit() {
+		if (shared != null) {
+			try {
+				if (!uncommittedObservations.isEmpty() || !uncommittedTransducers.isEmpty()) {
+					shared.setIds(uncommittedObservations, uncommittedTransducers);
+				}
+				markSharedAvailable();
+			} catch (RuntimeException e) {
+				markSharedUnavailable(e);  // 書けなくても, 次に引いたときにPostgreSQLから読みなおすだけ
+			}
+		}
+		uncommittedObservations.clear();
+		uncommittedTransducers.clear();
+	}
+	
+	/**
+	 * rollbackしたので, nodesについてこのトランザクションで覚えたidを捨てる
+	 */
+	public void onRollback(Collection<NodeIdentifier> nodes) {
+		uncommittedObservations.clear();
+		uncommittedTransducers.clear();
+		near.invalidateAll(nodes);
+	}
+	
+	/**
+	 * nodeの登録しなおしなどでidが変わったとき用に, nearとsharedの両方から消す
+	 */
+	public void invalidate(NodeIdentifier nodeId) {
+		NodeInfo nodeInfo = near.getIfPresent(nodeId);
+		near.invalidate(nodeId);
+		if (shared == null) {
+			return;
+		}
+		try {
+			Collection<String> transducerIds = (nodeInfo == null) ? Collections.<String>emptySet() : nodeInfo.getTransducerIdMap().keySet();
+			shared.removeNode(nodeId, transducerIds);
+		} catch (RuntimeException e) {
+			markSharedUnavailable(e);
+		}
+	}
+	
+	private NodeInfo loadNode(NodeIdentifier nodeId, Loader loader) throws SQLException {
+		Long observationId = getSharedObservationId(nodeId);
+		if (observationId != null) {
+			// transducerはメッセージに出てきたものだけsharedから引く
+			return new NodeInfo(nodeId, observationId, Collections.<String, Long>emptyMap());
+		}
+		NodeInfo loaded = loader.loadNode(nodeId);
+		stats.dbLoads.incrementAndGet();
+		if (loaded.hasObservation()) {
+			uncommittedObservations.put(nodeId, loaded.getObservationId());
+			addUncommittedTransducers(nodeId, loaded.getTransducerIdMap());
+		}
+		return loaded;
+	}
+	
+	private Long getSharedObservationId(NodeIdentifier nodeId) {
+		if (shared == null) {
+			return null;
+		}
+		try {
+			long observationId = shared.getObservationId(nodeId);
+			stats.sharedHits.incrementAndGet();
+			markSharedAvailable();
+			return observationId;
+		} catch (CacheMissException e) {
+			stats.sharedMisses.incrementAndGet();
+			markSharedAvailable();
+			return null;
+		} catch (RuntimeException e) {
+			markSharedUnavailable(e);
+			return null;
+		}
+	}
+	
+	private Map<String, Long> getSharedTransducerIds(NodeIdentifier nodeId, List<String> transducerIds) {
+		if (shared == null) {
+			return Collections.emptyMap();
+		}
+		try {
+			Map<String, Long> found = shared.getTransducerIds(nodeId, transducerIds);
+			stats.sharedHits.addAndGet(found.size());
+			stats.sharedMisses.addAndGet(transducerIds.size() - found.size());
+			markSharedAvailable();
+			return found;
+		} catch (RuntimeException e) {
+			markSharedUnavailable(e);
+			return Collections.emptyMap();
+		}
+	}
+	
+	private void addUncommittedTransducers(NodeIdentifier nodeId, Map<String, Long> transducerIds) {
+		if (transducerIds.isEmpty()) {
+			return;
+		}
+		Map<String, Long> pending = uncommittedTransducers.get(nodeId);
+		if (pending == null) {
+			pending = new HashMap<>();
+			uncommittedTransducers.put(nodeId, pending);
+		}
+		pending.putAll(transducerIds);
+	}
+	
+	private void markSharedAvailable() {
+		if (!isSharedAvailable) {
+			isSharedAvailable = true;
+			logger.info(SR2LogType.CACHE_CONNECT, "shared id cache is available again");
+		}
+	}
+	
+	private void markSharedUnavailable(RuntimeException e) {
+		stats.sharedErrors.incrementAndGet();
+		if (isSharedAvailable) {
+			// つながらない間はずっと失敗するので, 最初の1回だけログに出す
+			isSharedAvailable = false;
+			logger.warn(SR2LogType.CACHE_CONNECT_FAILED, "shared id cache is unavailable, falling back to PostgreSQL", e);
+		}
+	}
+
+}
@@ -0,0 +1,50 @@
+package soxrecorderv2.codec;
+
+/**
+ * BitWriterで書いたビット列を上位ビットから順に読む。TimeSeriesChunkDecoder用
+ */
+class BitReader {
+
+	private final byte[] buffer;
+	private long position = 0;
+
+	BitReader(byte[] buffer) {
+		this.buffer = buffer;
+	}
+
+	boolean readBit() {
+		checkAvailable(1);
+		int b = buffer[(int) (position >>> 3)] & 0xff;
+		boolean bit = ((b >>> (7 - (int) (position & 7))) & 1) != 0;
+		position++;
+		return bit;
+	}
+
+	/**
+	 * @param nValueBits 0-64
+	 * @return 下位nValueBitsビットに読んだ値 (符号拡張はしない)
+	 */
+	long readBits(int nValueBits) {
+		checkAvailable(nValueBits);
+		long value = 0;
+		int remaining = nValueBits;
+		while (0 < remaining) {
+			int b = buffer[(int) (position >>> 3)] & 0xff;
+			int bitOffset = (int) (position & 7);
+			int room = 8 - bitOffset;
+			int n = Math.min(room, remaining);
+			int chunk = (b >>> (room - n)) & ((1 << n) - 1);
+			value = (value << n) | chunk;
+			position += n;
+			remaining -= n;
+		}
+		return value;
+	}
+
+	private void checkAvailable(int nMoreBits) {
+		if ((long) buffer.length * 8 < position + nMoreBits) {
+			throw new IllegalStateException("chunk is truncated at bit " + position);
+		}
+	}
+
+}
@@ -0,0 +1,60 @@
+package soxrecorderv2.codec;
+
+import java.util.Arrays;
+
+/**
+ * 上位ビットから順にビット列を書く。TimeSeriesChunkEncoder用
+ */
+class BitWriter {
+
+	private byte[] buffer;
+	private long nBits = 0;
+
+	BitWriter(int initialBytes) {
+		this.buffer = new byte[Math.max(8, initialBytes)];
+	}
+
+	void writeBit(boolean bit) {
+		ensureCapacity(1);
+		if (bit) {
+			int byteIdx = (int) (nBits >>> 3);
+			buffer[byteIdx] |= (byte) (0x80 >>> (int) (nBits & 7));
+		}
+		nBits++;
+	}
+
+	/**
+	 * valueの下位nValueBitsビットを書く
+	 * @param nValueBits 0-64
+	 */
+	void writeBits(long value, int nValueBits) {
+		ensureCapacity(nValueBits);
+		int remaining = nValueBits;
+		while (0 < remaining) {
+			int byteIdx = (int) (nBits >>> 3);
+			int bitOffset = (int) (nBits & 7);
+			int room = 8 - bitOffset;
+			int n = Math.min(room, remaining);
+			int chunk = (int) ((value >>> (remaining - n)) & ((1 << n) - 1));
+			buffer[byteIdx] |= (byte) (chunk << (room - n));
+			nBits += n;
+			remaining -= n;
+		}
+	}
+
+	long getBitLength() {
+		return nBits;
+	}
+
+	byte[] toByteArray() {
+		return Arrays.copyOf(buffer, (int) ((nBits + 7) >>> 3));
+	}
+
+	private void ensureCapacity(int nMoreBits) {
+		long needBytes = (nBits + nMoreBits + 7) >>> 3;
+		if (buffer.length < needBytes) {
+			buffer = Arrays.copyOf(buffer, (int) Math.max(needBytes, buffer.length * 2L));
+		}
+	}
+
+}
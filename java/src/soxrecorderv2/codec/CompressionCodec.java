@@ -0,0 +1,37 @@
+package soxrecorderv2.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * raw_xml, large_objectのcontentの圧縮形式。
+ * getId()がそのまま各行のcodecカラムに入る (CompressionCodecs.CODEC_*)
+ *
+ * 実装はスレッドセーフにすること (DBWriterProcessのスレッドから同時に使われる)
+ */
+public interface CompressionCodec {
+
+	public int getId();
+
+	/**
+	 * @return 使っている辞書のcompression_dictionary.id, 辞書を使わなければ0
+	 */
+	public int getDictionaryId();
+
+	public String getName();
+
+	/**
+	 * inを最後まで読んで圧縮しながらoutに書く
+	 * @return 圧縮前のバイト数
+	 */
+	public long compress(InputStream in, OutputStream out) throws IOException;
+
+	public byte[] compress(byte[] original) throws IOException;
+
+	/**
+	 * @param contentLength 展開後の長さ, わからなければ-1
+	 */
+	public byte[] decompress(byte[] compressed, long contentLength) throws IOException;
+
+}
@@ -0,0 +1,137 @@
+package soxrecorderv2.codec;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.SQLException;
+
+import soxrecorderv2.util.GzipUtil;
+
+/**
+ * codecカラムの値と, 辞書を使わないcodecの実装。
+ *
+ * - 0 (none): 無圧縮
+ * - 1 (gzip): GzipUtil。以前のis_gzipped = trueの行と同じ形式
+ * - 2 (deflate_dictionary): DeflateDictionaryCodec。辞書はcompression_dictionaryにある
+ */
+public class CompressionCodecs {
+
+	public static final int CODEC_NONE = 0;
+	public static final int CODEC_GZIP = 1;
+	public static final int CODEC_DEFLATE_DICTIONARY = 2;
+
+	public static final CompressionCodec NONE = new CompressionCodec() {
+		@Override
+		public int getId() {
+			return CODEC_NONE;
+		}
+
+		@Override
+		public int getDictionaryId() {
+			return 0;
+		}
+
+		@Override
+		public String getName() {
+			return "none";
+		}
+
+		@Override
+		public long compress(InputStream in, OutputStream out) throws IOException {
+			byte[] chunk = new byte[8192];
+			long total = 0;
+			int n;
+			while ((n = in.read(chunk)) != -1) {
+				out.write(chunk, 0, n);
+				total += n;
+			}
+			return total;
+		}
+
+		@Override
+		public byte[] compress(byte[] original) {
+			return original;
+		}
+
+		@Override
+		public byte[] decompress(byte[] compressed, long contentLength) {
+			return compressed;
+		}
+	};
+
+	public static final CompressionCodec GZIP = new CompressionCodec() {
+		@Override
+		public int getId() {
+			return CODEC_GZIP;
+		}
+
+		@Override
+		public int getDictionaryId() {
+			return 0;
+		}
+
+		@Override
+		public String getName() {
+			return "gzip";
+		}
+
+		@Override
+		public long compress(InputStream in, OutputStream out) throws IOException {
+			return GzipUtil.compressTo(in, out);
+		}
+
+		@Override
+		public byte[] compress(byte[] original) throws IOException {
+			return GzipUtil.compress(original);
+		}
+
+		@Override
+		public byte[] decompress(byte[] compressed, long contentLength) throws IOException {
+			return GzipUtil.uncompress(compressed, contentLength);
+		}
+	};
+
+	/**
+	 * 1行ぶんのcontentを展開する
+	 * @param codec codecカラム (NULLならis_gzippedで判断する)
+	 * @param isGzipped is_gzippedカラム
+	 * @param dictionaryId dictionary_idカラム (辞書を使わないcodecなら0)
+	 * @param content
+	 * @param contentLength 展開後の長さ, わからなければ-1
+	 * @param dictionaries deflate_dictionaryの辞書を引く (辞書を使う行がなければnullでもよい)
+	 * @return
+	 * @throws IOException
+	 * @throws SQLException 辞書の読み込みに失敗した
+	 */
+	public static byte[] decompress(Integer codec, boolean isGzipped, int dictionaryId, byte[] content, long contentLength, CompressionDictionaryStore dictionaries) throws IOException, SQLException {
+		if (codec == null) {
+			return (isGzipped) ? GZIP.decompress(content, contentLength) : content;
+		}
+		switch (codec) {
+		case CODEC_NONE:
+			return content;
+		case CODEC_GZIP:
+			return GZIP.decompress(content, contentLength);
+		case CODEC_DEFLATE_DICTIONARY:
+			if (dictionaries == null) {
+				throw new IOException("no dictionary store to decompress dictionary_id=" + dictionaryId);
+			}
+			return dictionaries.getCodec(dictionaryId).decompress(content, contentLength);
+		default:
+			throw new IOException("unknown codec: " + codec);
+		}
+	}
+
+	/**
+	 * @param name 設定値 (none, gzip)。不明ならgzip
+	 */
+	public static CompressionCodec fromConfig(String name) {
+		if (name != null && name.trim().equalsIgnoreCase("none")) {
+			return NONE;
+		}
+		return GZIP;
+	}
+
+	private CompressionCodecs() {}  // you cannot instantiate this class
+
+}
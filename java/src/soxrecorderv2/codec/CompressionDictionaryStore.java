@@ -0,0 +1,113 @@
+package soxrecorderv2.codec;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+import soxrecorderv2.util.PGConnectionManager;
+import soxrecorderv2.util.SQLUtil;
+
+/**
+ * compression_dictionaryテーブルの読み書き。読んだ辞書はidごとに持っておく (辞書は一度作ったら変えない)
+ */
+public class CompressionDictionaryStore {
+
+	private static final String SELECT_BY_ID_SQL = "SELECT content FROM compression_dictionary WHERE id = ?;";
+	private static final String SELECT_LATEST_SQL = "SELECT id, content FROM compression_dictionary WHERE sox_server = ? ORDER BY id DESC LIMIT 1;";
+	private static final String INSERT_SQL = "INSERT INTO compression_dictionary(sox_server, content, created) VALUES (?, ?, ?) RETURNING id;";
+
+	private final PGConnectionManager connManager;
+	private final Map<Integer, DeflateDictionaryCodec> codecs = new HashMap<>();
+
+	public CompressionDictionaryStore(PGConnectionManager connManager) {
+		this.connManager = connManager;
+	}
+
+	public synchronized DeflateDictionaryCodec getCodec(int dictionaryId) throws SQLException {
+		DeflateDictionaryCodec codec = codecs.get(dictionaryId);
+		if (codec != null) {
+			return codec;
+		}
+		try {
+			PreparedStatement ps = connManager.prepareStatement(SELECT_BY_ID_SQL);
+			ps.setInt(1, dictionaryId);
+			ResultSet rs = ps.executeQuery();
+			try {
+				if (!rs.next()) {
+					throw new SQLException("compression dictionary not found: id=" + dictionaryId);
+				}
+				codec = new DeflateDictionaryCodec(dictionaryId, rs.getBytes(1));
+			} finally {
+				rs.close();
+			}
+			connManager.getConnection().commit();
+		} catch (SQLException e) {
+			connManager.invalidateIfBroken(e);
+			throw e;
+		} finally {
+			connManager.release();
+		}
+		codecs.put(dictionaryId, codec);
+		return codec;
+	}
+
+	/**
+	 * @return soxServerのいちばん新しい辞書, なければnull
+	 */
+	public synchronized DeflateDictionaryCodec getLatest(String soxServer) throws SQLException {
+		DeflateDictionaryCodec codec = null;
+		try {
+			PreparedStatement ps = connManager.prepareStatement(SELECT_LATEST_SQL);
+			ps.setString(1, soxServer);
+			ResultSet rs = ps.executeQuery();
+			try {
+				if (rs.next()) {
+					codec = new DeflateDictionaryCodec(rs.getInt(1), rs.getBytes(2));
+				}
+			} finally {
+				rs.close();
+			}
+			connManager.getConnection().commit();
+		} catch (SQLException e) {
+			connManager.invalidateIfBroken(e);
+			throw e;
+		} finally {
+			connManager.release();
+		}
+		if (codec != null) {
+			codecs.put(codec.getDictionaryId(), codec);
+		}
+		return codec;
+	}
+
+	/**
+	 * 辞書を保存してcommitする
+	 */
+	public synchronized DeflateDictionaryCodec save(String soxServer, byte[] dictionary) throws SQLException {
+		DeflateDictionaryCodec codec;
+		try {
+			PreparedStatement ps = connManager.prepareStatement(INSERT_SQL);
+			ps.setString(1, soxServer);
+			ps.setBytes(2, dictionary);
+			ps.setTimestamp(3, SQLUtil.getCurrentTimestamp());
+			ResultSet rs = ps.executeQuery();
+			try {
+				rs.next();
+				codec = new DeflateDictionaryCodec(rs.getInt(1), dictionary);
+			} finally {
+				rs.close();
+			}
+			connManager.getConnection().commit();
+		} catch (SQLException e) {
+			connManager.invalidateIfBroken(e);
+			throw e;
+		} finally {
+			connManager.release();
+		}
+		codecs.put(codec.getDictionaryId(), codec);
+		return codec;
+	}
+
+}
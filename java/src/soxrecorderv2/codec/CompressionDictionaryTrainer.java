@@ -0,0 +1,105 @@
+package soxrecorderv2.codec;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import soxrecorderv2.util.MyCharSet;
+
+/**
+ * サンプルのstanzaからdeflate用の辞書を作る。
+ *
+ * stanzaを「<の前」と「"の後」で区切った断片 (タグ名+属性名, 属性値 など) を数えて,
+ * 出現回数x長さ が大きいものから辞書に入れる。deflateは近い位置への参照ほど短く表せるので,
+ * 大きいものほど辞書の後ろに置く。
+ *
+ * スレッドセーフではない。
+ */
+public class CompressionDictionaryTrainer {
+
+	/** deflateの窓の大きさ。これより前は参照できない */
+	public static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+
+	private final int nSamplesRequired;
+	private final Map<String, Integer> fragmentCounts = new HashMap<>();
+	private int nSamples = 0;
+
+	public CompressionDictionaryTrainer(int nSamplesRequired) {
+		this.nSamplesRequired = Math.max(1, nSamplesRequired);
+	}
+
+	public void addSample(String stanza) {
+		int start = 0;
+		for (int i = 1; i <= stanza.length(); i++) {
+			boolean isBoundary = (i == stanza.length())
+					|| stanza.charAt(i) == '<'
+					|| stanza.charAt(i - 1) == '"';
+			if (isBoundary) {
+				if (1 < i - start) {
+					String fragment = stanza.substring(start, i);
+					Integer count = fragmentCounts.get(fragment);
+					fragmentCounts.put(fragment, (count == null) ? 1 : count + 1);
+				}
+				start = i;
+			}
+		}
+		nSamples++;
+	}
+
+	public boolean isReady() {
+		return nSamplesRequired <= nSamples;
+	}
+
+	public int getSampleCount() {
+		return nSamples;
+	}
+
+	/**
+	 * @return 辞書 (MAX_DICTIONARY_SIZEバイト以下)
+	 */
+	public byte[] build() {
+		List<Map.Entry<String, Integer>> entries = new ArrayList<>(fragmentCounts.entrySet());
+		// たまにしか出てこない断片(値やタイムスタンプ)は辞書に入れても意味がない
+		int minCount = Math.max(2, nSamples / 50);
+		List<Map.Entry<String, Integer>> useful = new ArrayList<>();
+		for (Map.Entry<String, Integer> entry : entries) {
+			if (minCount <= entry.getValue()) {
+				useful.add(entry);
+			}
+		}
+		Collections.sort(useful, new Comparator<Map.Entry<String, Integer>>() {
+			@Override
+			public int compare(Map.Entry<String, Integer> a, Map.Entry<String, Integer> b) {
+				return Long.compare(score(b), score(a));  // 大きい順
+			}
+		});
+
+		List<byte[]> chosen = new ArrayList<>();
+		int total = 0;
+		for (Map.Entry<String, Integer> entry : useful) {
+			byte[] fragment = entry.getKey().getBytes(MyCharSet.UTF8);
+			if (MAX_DICTIONARY_SIZE < total + fragment.length) {
+				continue;
+			}
+			chosen.add(fragment);
+			total += fragment.length;
+		}
+
+		// 大きいものを後ろに置く
+		byte[] dictionary = new byte[total];
+		int pos = total;
+		for (byte[] fragment : chosen) {
+			pos -= fragment.length;
+			System.arraycopy(fragment, 0, dictionary, pos, fragment.length);
+		}
+		return dictionary;
+	}
+
+	private static long score(Map.Entry<String, Integer> entry) {
+		return (long) entry.getValue() * entry.getKey().length();
+	}
+
+}
@@ -0,0 +1,121 @@
+package soxrecorderv2.codec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 辞書つきのdeflate (zlibのヘッダなし)。
+ *
+ * 1つ1つのstanzaは小さいので, gzipだとヘッダと「最初の出現」ばかりになって縮まない。
+ * 同じサーバのstanzaから作った辞書(CompressionDictionaryTrainer)を先に読ませておくと,
+ * タグや属性名などがすべて辞書への参照になる。
+ */
+public class DeflateDictionaryCodec implements CompressionCodec {
+
+	private static final int CHUNK_SIZE = 8192;
+
+	private final int dictionaryId;
+	private final byte[] dictionary;
+
+	// Deflaterは作るのが高いので, スレッドごとに使いまわす (setDictionaryはreset()のたびに必要)
+	private final ThreadLocal<Deflater> deflater = new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue() {
+			return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		}
+	};
+
+	public DeflateDictionaryCodec(int dictionaryId, byte[] dictionary) {
+		this.dictionaryId = dictionaryId;
+		this.dictionary = dictionary;
+	}
+
+	@Override
+	public int getId() {
+		return CompressionCodecs.CODEC_DEFLATE_DICTIONARY;
+	}
+
+	@Override
+	public int getDictionaryId() {
+		return dictionaryId;
+	}
+
+	@Override
+	public String getName() {
+		return "deflate_dictionary(" + dictionaryId + ")";
+	}
+
+	public byte[] getDictionary() {
+		return dictionary;
+	}
+
+	@Override
+	public long compress(InputStream in, OutputStream out) throws IOException {
+		Deflater def = deflater.get();
+		def.reset();
+		def.setDictionary(dictionary);
+		byte[] inChunk = new byte[CHUNK_SIZE];
+		byte[] outChunk = new byte[CHUNK_SIZE];
+		long total = 0;
+		int n;
+		while ((n = in.read(inChunk)) != -1) {
+			if (n == 0) {
+				continue;
+			}
+			total += n;
+			def.setInput(inChunk, 0, n);
+			while (!def.needsInput()) {
+				out.write(outChunk, 0, def.deflate(outChunk));
+			}
+		}
+		def.finish();
+		while (!def.finished()) {
+			out.write(outChunk, 0, def.deflate(outChunk));
+		}
+		return total;
+	}
+
+	@Override
+	public byte[] compress(byte[] original) throws IOException {
+		Deflater def = deflater.get();
+		def.reset();
+		def.setDictionary(dictionary);
+		def.setInput(original);
+		def.finish();
+		ByteArrayOutputStream bout = new ByteArrayOutputStream(Math.max(64, original.length / 4));
+		byte[] outChunk = new byte[Math.min(CHUNK_SIZE, original.length + 64)];
+		while (!def.finished()) {
+			bout.write(outChunk, 0, def.deflate(outChunk));
+		}
+		return bout.toByteArray();
+	}
+
+	@Override
+	public byte[] decompress(byte[] compressed, long contentLength) throws IOException {
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setDictionary(dictionary);  // ヘッダなしなのでneedsDictionary()を待たずに渡す
+			inflater.setInput(compressed);
+			ByteArrayOutputStream bout = new ByteArrayOutputStream((0 <= contentLength) ? (int) contentLength : compressed.length * 4);
+			byte[] outChunk = new byte[CHUNK_SIZE];
+			while (!inflater.finished()) {
+				int n = inflater.inflate(outChunk);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					throw new IOException("truncated deflate stream (dictionary_id=" + dictionaryId + ")");
+				}
+				bout.write(outChunk, 0, n);
+			}
+			return bout.toByteArray();
+		} catch (DataFormatException e) {
+			throw new IOException("broken deflate stream (dictionary_id=" + dictionaryId + ")", e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+}
@@ -0,0 +1,127 @@
+package soxrecorderv2.codec;
+
+/**
+ * TimeSeriesChunkEncoderで作ったビット列を先頭から順に読む。
+ *
+ * <pre>
+ * TimeSeriesChunkDecoder d = new TimeSeriesChunkDecoder(content, isFloat, nValues);
+ * while (d.next()) {
+ *     d.getRecordId(); d.getCreated(); d.getLongValue() or d.getDoubleValue();
+ * }
+ * </pre>
+ */
+public class TimeSeriesChunkDecoder {
+
+	private final boolean isFloat;
+	private final int nValues;
+	private final BitReader in;
+	private int nRead = 0;
+
+	private long recordId;
+	private long recordIdDelta;
+	private long created;
+	private long createdDelta;
+	private long value;
+	private long valueDelta;
+	private int leading = -1;
+	private int trailing;
+
+	/**
+	 * @param nValues transducer_value_chunk.n_values
+	 */
+	public TimeSeriesChunkDecoder(byte[] content, boolean isFloat, int nValues) {
+		this.in = new BitReader(content);
+		this.isFloat = isFloat;
+		this.nValues = nValues;
+	}
+
+	/**
+	 * @return 次の値があればtrue
+	 */
+	public boolean next() {
+		if (nValues <= nRead) {
+			return false;
+		}
+		if (nRead == 0) {
+			recordId = in.readBits(64);
+			created = in.readBits(64);
+			value = in.readBits(64);
+		} else {
+			recordIdDelta += readDeltaOfDelta();
+			recordId += recordIdDelta;
+
+			createdDelta += readDeltaOfDelta();
+			created += createdDelta;
+
+			if (isFloat) {
+				value ^= readXor();
+			} else {
+				valueDelta += readDeltaOfDelta();
+				value += valueDelta;
+			}
+		}
+		nRead++;
+		return true;
+	}
+
+	private long readDeltaOfDelta() {
+		int prefix = 0;
+		while (prefix < TimeSeriesChunkEncoder.DOD_RANGES.length + 1 && in.readBit()) {
+			prefix++;
+		}
+		if (prefix == 0) {
+			return 0;
+		}
+		if (TimeSeriesChunkEncoder.DOD_RANGES.length < prefix) {
+			return in.readBits(64);
+		}
+		int nBits = TimeSeriesChunkEncoder.DOD_BITS[prefix - 1];
+		long raw = in.readBits(nBits);
+		return (raw << (64 - nBits)) >> (64 - nBits);  // 符号拡張
+	}
+
+	private long readXor() {
+		if (!in.readBit()) {
+			return 0;
+		}
+		if (in.readBit()) {
+			leading = (int) in.readBits(5);
+			int length = (int) in.readBits(6) + 1;
+			trailing = 64 - leading - length;
+		}
+		if (leading < 0) {
+			throw new IllegalStateException("xor window is not defined yet");
+		}
+		return in.readBits(64 - leading - trailing) << trailing;
+	}
+
+	public boolean isFloat() {
+		return isFloat;
+	}
+
+	public long getRecordId() {
+		return recordId;
+	}
+
+	/**
+	 * @return record.createdのmsec
+	 */
+	public long getCreated() {
+		return created;
+	}
+
+	/**
+	 * @return INTのときの値
+	 */
+	public long getLongValue() {
+		return value;
+	}
+
+	/**
+	 * @return FLOATのときの値
+	 */
+	public double getDoubleValue() {
+		return Double.longBitsToDouble(value);
+	}
+
+}
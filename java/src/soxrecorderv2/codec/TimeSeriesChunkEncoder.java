@@ -0,0 +1,154 @@
+package soxrecorderv2.codec;
+
+/**
+ * 1つのtransducerの数値をまとめて, transducer_value_chunk.contentのビット列にする。
+ *
+ * 値ごとに (record_id, record.createdのmsec, 値) を書く。
+ * - 最初の値: それぞれ64bitそのまま
+ * - 2つめ以降: record_idとcreatedは前の差分との差 (delta-of-delta) を短い符号で書く
+ *   ('0' => 0, '10'+7bit, '110'+9bit, '1110'+12bit, '11110'+32bit, '11111'+64bit)
+ *   INTの値も同じ。FLOATの値は前の値とのXORを書く
+ *   ('0' => 同じ値, '10'+意味のあるビット => 前の値とleading/trailing zeroの範囲が同じ,
+ *    '11'+leading zero(5bit)+長さ-1(6bit)+意味のあるビット)
+ *
+ * 1Hzくらいで届く気温や位置なら, createdとrecord_idはほぼ1-2bit, 値は数bit-20bitくらいになる
+ *
+ * スレッドセーフではない
+ */
+public class TimeSeriesChunkEncoder {
+
+	static final long[] DOD_RANGES = { 1L << 6, 1L << 8, 1L << 11, 1L << 31 };  // [-range, range)
+	static final int[] DOD_BITS = { 7, 9, 12, 32 };
+
+	private final boolean isFloat;
+	private final BitWriter out;
+	private int nValues = 0;
+
+	private long prevRecordId;
+	private long prevRecordIdDelta;
+	private long prevCreated;
+	private long prevCreatedDelta;
+	private long prevValue;  // FLOATのときはdoubleのビット列
+	private long prevValueDelta;
+	private int prevLeading = -1;  // -1: まだ範囲がない
+	private int prevTrailing;
+
+	private long firstCreated;
+
+	/**
+	 * @param isFloat trueならFLOAT (XOR), falseならINT (delta-of-delta)
+	 */
+	public TimeSeriesChunkEncoder(boolean isFloat) {
+		this.isFloat = isFloat;
+		this.out = new BitWriter(64);
+	}
+
+	public void appendInt(long recordId, long createdMillis, long value) {
+		if (isFloat) {
+			throw new IllegalStateException("this chunk holds float values");
+		}
+		append(recordId, createdMillis, value);
+	}
+
+	public void appendFloat(long recordId, long createdMillis, double value) {
+		if (!isFloat) {
+			throw new IllegalStateException("this chunk holds int values");
+		}
+		append(recordId, createdMillis, Double.doubleToRawLongBits(value));
+	}
+
+	private void append(long recordId, long createdMillis, long value) {
+		if (nValues == 0) {
+			out.writeBits(recordId, 64);
+			out.writeBits(createdMillis, 64);
+			out.writeBits(value, 64);
+			firstCreated = createdMillis;
+		} else {
+			long recordIdDelta = recordId - prevRecordId;
+			writeDeltaOfDelta(recordIdDelta - prevRecordIdDelta);
+			prevRecordIdDelta = recordIdDelta;
+
+			long createdDelta = createdMillis - prevCreated;
+			writeDeltaOfDelta(createdDelta - prevCreatedDelta);
+			prevCreatedDelta = createdDelta;
+
+			if (isFloat) {
+				writeXor(value ^ prevValue);
+			} else {
+				long valueDelta = value - prevValue;
+				writeDeltaOfDelta(valueDelta - prevValueDelta);
+				prevValueDelta = valueDelta;
+			}
+		}
+		prevRecordId = recordId;
+		prevCreated = createdMillis;
+		prevValue = value;
+		nValues++;
+	}
+
+	private void writeDeltaOfDelta(long dod) {
+		if (dod == 0) {
+			out.writeBit(false);
+			return;
+		}
+		for (int i = 0; i < DOD_RANGES.length; i++) {
+			if (-DOD_RANGES[i] <= dod && dod < DOD_RANGES[i]) {
+				out.writeBits((1L << (i + 2)) - 2, i + 2);  // '10', '110', '1110', '11110'
+				out.writeBits(dod, DOD_BITS[i]);
+				return;
+			}
+		}
+		out.writeBits(0x1f, 5);  // '11111'
+		out.writeBits(dod, 64);
+	}
+
+	private void writeXor(long xor) {
+		if (xor == 0) {
+			out.writeBit(false);
+			return;
+		}
+		out.writeBit(true);
+		int leading = Math.min(31, Long.numberOfLeadingZeros(xor));  // 5bitに入るように
+		int trailing = Long.numberOfTrailingZeros(xor);
+		if (0 <= prevLeading && prevLeading <= leading && prevTrailing <= trailing) {
+			out.writeBit(false);
+			out.writeBits(xor >>> prevTrailing, 64 - prevLeading - prevTrailing);
+		} else {
+			int length = 64 - leading - trailing;
+			out.writeBit(true);
+			out.writeBits(leading, 5);
+			out.writeBits(length - 1, 6);
+			out.writeBits(xor >>> trailing, length);
+			prevLeading = leading;
+			prevTrailing = trailing;
+		}
+	}
+
+	public boolean isFloat() {
+		return isFloat;
+	}
+
+	public int size() {
+		return nValues;
+	}
+
+	public long getFirstCreated() {
+		return firstCreated;
+	}
+
+	public long getLastCreated() {
+		return prevCreated;
+	}
+
+	/**
+	 * @return 今までに書いたバイト数 (切り上げ)
+	 */
+	public int getByteLength() {
+		return (int) ((out.getBitLength() + 7) >>> 3);
+	}
+
+	public byte[] toByteArray() {
+		return out.toByteArray();
+	}
+
+}
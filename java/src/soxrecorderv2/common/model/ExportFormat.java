@@ -15,5 +15,18 @@ public enum ExportFormat {
 	public String getFormat() {
 		return format;
 	}
+	
+	/**
+	 * @param format export.format ("csv"など, 大文字小文字は区別しない)
+	 * @return 知らないフォーマットならnull
+	 */
+	public static ExportFormat of(String format) {
+		for (ExportFormat f : values()) {
+			if (f.format.equalsIgnoreCase(format)) {
+				return f;
+			}
+		}
+		return null;
+	}
 
 }
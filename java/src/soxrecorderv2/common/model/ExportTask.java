@@ -6,56 +6,138 @@ import soxrecorderv2.common.model.db.Export;
 
 public class ExportTask {
 
-	private ExportingState state;
+	private volatile ExportingState state;
 	private final Export exportProfile;
-	private AtomicLong totalRecordCount;
-	private AtomicLong exportedCount;
-	
+	private final long estimatedCost;
+	private final AtomicLong totalRecordCount = new AtomicLong();
+	private final AtomicLong exportedCount = new AtomicLong();
+	private long seq = 0;  // 同じコストならキューに入った順
+	private volatile long queuedAt = 0;
+	private volatile long startedAt = 0;
+	private volatile long finishedAt = 0;
+	private volatile boolean isCancelled = false;
+
 	public ExportTask(ExportingState state, Export exportProfile) {
+		this(state, exportProfile, 0);
+	}
+
+	/**
+	 * @param estimatedCost 読むrecord数の見積もり (小さいものから先にexportする)
+	 */
+	public ExportTask(ExportingState state, Export exportProfile, long estimatedCost) {
 		this.state = state;
 		this.exportProfile = exportProfile;
+		this.estimatedCost = estimatedCost;
 	}
-	
+
 	public void setState(ExportingState state) {
 		this.state = state;
 	}
-	
+
 	public ExportingState getState() {
 		return state;
 	}
-	
+
 	public boolean isFinished() {
 		return getState() == ExportingState.FINISHED;
 	}
-	
+
 	public boolean isStarted() {
 		return getState() == ExportingState.STARTED;
 	}
-	
+
 	public boolean isInQueue() {
 		return getState() == ExportingState.IN_QUEUE;
 	}
-	
+
 	public Export getExportProfile() {
 		return exportProfile;
 	}
 
+	public long getExportId() {
+		return exportProfile.getId();
+	}
+
+	public long getUserId() {
+		return exportProfile.getUserId();
+	}
+
+	public boolean hasUser() {
+		return exportProfile.hasUser();
+	}
+
+	public long getEstimatedCost() {
+		return estimatedCost;
+	}
+
+	public long getSeq() {
+		return seq;
+	}
+
+	/**
+	 * キューに入れるときにExportSchedulerが呼ぶ
+	 */
+	public void markQueued(long seq, long now) {
+		this.seq = seq;
+		this.queuedAt = now;
+	}
+
+	public void markStarted(long now) {
+		this.startedAt = now;
+	}
+
+	public void markFinished(long now) {
+		this.finishedAt = now;
+	}
+
+	public long getQueuedAt() {
+		return queuedAt;
+	}
+
+	/**
+	 * @return キューで待った時間 (まだ待っていればいままで)
+	 */
+	public long getQueueWaitMsec(long now) {
+		if (queuedAt == 0) {
+			return 0;
+		}
+		return ((startedAt == 0) ? now : startedAt) - queuedAt;
+	}
+
+	/**
+	 * @return exportにかかった時間 (まだ動いていればいままで)
+	 */
+	public long getRunMsec(long now) {
+		if (startedAt == 0) {
+			return 0;
+		}
+		return ((finishedAt == 0) ? now : finishedAt) - startedAt;
+	}
+
+	public void cancel() {
+		isCancelled = true;
+	}
+
+	public boolean isCancelled() {
+		return isCancelled;
+	}
+
 	public void setTotalRecordCount(long totalRecordCount) {
-		this.totalRecordCount = new AtomicLong(totalRecordCount);
+		this.totalRecordCount.set(totalRecordCount);
 	}
-	
+
 	public long getTotalRecordCount() {
 		return totalRecordCount.get();
 	}
-	
+
 	public void initExportedCount() {
-		exportedCount = new AtomicLong();
+		exportedCount.set(0);
 	}
-	
+
 	public void addProgress(long progress) {
 		exportedCount.addAndGet(progress);
 	}
-	
+
 	public long getExportedCount() {
 		return exportedCount.get();
 	}
@@ -8,7 +8,8 @@ public enum ExportingState {
 	STARTED(3),
 	FINISHED(4),
 	EXPIRED(5),
-	ERROR(-1);
+	ERROR(-1),
+	CANCELLED(-2);
 	
 	private final int state;
 	
@@ -1,39 +1,61 @@
 package soxrecorderv2.common.model;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+
 import jp.ac.keio.sfc.ht.sox.protocol.TransducerValue;
 import soxrecorderv2.util.HashUtil;
-import soxrecorderv2.util.MyCharSet;
+import soxrecorderv2.util.Utf8InputStream;
 
+/**
+ * large_objectにする値。UTF-8のbyte[]は持たず, 必要なときにopenContent()でstreamとして読む
+ */
 public class LargeObjectContainer {
-	
+
 	private final TransducerValue transducerValue;
-	private final byte[] data;
+	private final String content;
 	private final String hash;
+	private final long contentLength;
 	private boolean isRaw;
 
 	public LargeObjectContainer(final TransducerValue transducerValue, boolean useRaw) {
 		this.transducerValue = transducerValue;
 		this.isRaw = useRaw;
-		if (useRaw) {
-			this.data = transducerValue.getRawValue().getBytes(MyCharSet.UTF8);
-		} else {
-			this.data = transducerValue.getTypedValue().getBytes(MyCharSet.UTF8);
+		this.content = (useRaw) ? transducerValue.getRawValue() : transducerValue.getTypedValue();
+
+		// UTF-8にしながらハッシュと長さを1回で求める
+		Utf8InputStream in = new Utf8InputStream(content);
+		try {
+			this.hash = HashUtil.sha256(in);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);  // 文字列から読むだけなので起きない
 		}
-		this.hash = HashUtil.sha256(data);
+		this.contentLength = in.getCount();
 	}
-	
+
 	public TransducerValue getTransducerValue() {
 		return transducerValue;
 	}
-	
-	public byte[] getData() {
-		return this.data;
+
+	/**
+	 * @return 値をUTF-8で読むstream (呼ぶたびに先頭から)
+	 */
+	public InputStream openContent() {
+		return new Utf8InputStream(content);
 	}
-	
+
+	/**
+	 * @return UTF-8でのバイト数
+	 */
+	public long getContentLength() {
+		return contentLength;
+	}
+
 	public String getHash() {
 		return hash;
 	}
-	
+
 	public boolean isRaw() {
 		return isRaw;
 	}
@@ -4,14 +4,34 @@ import jp.ac.keio.sfc.ht.sox.protocol.Data;
 
 public class RecordTask {
 	
+	/**
+	 * SpillJournalから戻したものではないことを表すspillPosition
+	 */
+	public static final long NOT_REPLAYED = -1;
+	
 	private final NodeIdentifier nodeId;
 	private final Data data;
 	private String rawXml;
+	private final long receivedAt;  // epoch msec
+	private final long spillPosition;
 	
 	public RecordTask(NodeIdentifier nodeId, Data data, String rawXml) {
+		this(nodeId, data, rawXml, System.currentTimeMillis());
+	}
+	
+	public RecordTask(NodeIdentifier nodeId, Data data, String rawXml, long receivedAt) {
+		this(nodeId, data, rawXml, receivedAt, NOT_REPLAYED);
+	}
+	
+	/**
+	 * @param spillPosition SpillJournalから戻したタスクならそのEntry.getPosition()
+	 */
+	public RecordTask(NodeIdentifier nodeId, Data data, String rawXml, long receivedAt, long spillPosition) {
 		this.nodeId = nodeId;
 		this.data = data;
 		this.rawXml = rawXml;
+		this.receivedAt = receivedAt;
+		this.spillPosition = spillPosition;
 	}
 	
 	public NodeIdentifier getNodeId() {
@@ -25,5 +45,23 @@ public class RecordTask {
 	public String getRawXml() {
 		return rawXml;
 	}
+	
+	/**
+	 * @return SOXサーバーから受信した時刻 (epoch msec)
+	 */
+	public long getReceivedAt() {
+		return receivedAt;
+	}
+	
+	/**
+	 * @return SpillJournalから戻したタスクならtrue (片づいたらSpillJournal.ack()する)
+	 */
+	public boolean isReplayed() {
+		return spillPosition != NOT_REPLAYED;
+	}
+	
+	public long getSpillPosition() {
+		return spillPosition;
+	}
 
 }
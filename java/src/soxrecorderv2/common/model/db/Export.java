@@ -13,7 +13,10 @@ import soxrecorderv2.common.model.ExportFormat;
  */
 public class Export {
 	
+	public static final long NO_USER = 0;  // export.user_idがNULL (user.idはserialなので0はない)
+	
 	private final long id;
+	private final long userId;
 	private final Calendar timeStart;
 	private final Calendar timeEnd;
 	private final ExportFormat format;
@@ -27,6 +30,7 @@ public class Export {
 	
 	public Export(
 				long id,
+				long userId,
 				Calendar timeStart,
 				Calendar timeEnd,
 				ExportFormat format,
@@ -39,6 +43,7 @@ public class Export {
 				int state
 			) {
 		this.id = id;
+		this.userId = userId;
 		this.timeStart = timeStart;
 		this.timeEnd = timeEnd;
 		this.format = format;
@@ -55,6 +60,17 @@ public class Export {
 		return id;
 	}
 
+	/**
+	 * @return exportを頼んだuser.id, ユーザーがなければNO_USER
+	 */
+	public long getUserId() {
+		return userId;
+	}
+
+	public boolean hasUser() {
+		return userId != NO_USER;
+	}
+
 	public Calendar getTimeStart() {
 		return timeStart;
 	}
@@ -1,13 +1,15 @@
 package soxrecorderv2.common.model.db;
 
 import java.io.IOException;
+import java.sql.SQLException;
 
-import soxrecorderv2.util.GzipUtil;
+import soxrecorderv2.codec.CompressionCodecs;
 
 public class LargeObject {
 	
 	private long databaseId;
 	private boolean isGzipped;
+	private Integer codec;  // NULLならis_gzippedで判断する (codecカラムがなかったころの行)
 	private String hashKey;
 	private byte[] content;
 	private long contentLength;
@@ -22,6 +24,13 @@ public class LargeObject {
 		this.contentLength = contentLength;
 	}
 	
+	public LargeObject(
+			long databaseId, boolean isGzipped, Integer codec, String hashKey,
+			byte[] content, long contentLength) {
+		this(databaseId, isGzipped, hashKey, content, contentLength);
+		this.codec = codec;
+	}
+	
 	public long getDatabaseId() {
 		return databaseId;
 	}
@@ -42,16 +51,17 @@ public class LargeObject {
 		return contentLength;
 	}
 	
+	public Integer getCodec() {
+		return codec;
+	}
+	
 	public byte[] getRealContent() {
-		if (isGzipped) {
-			try {
-				return GzipUtil.uncompress(content, contentLength);
-			} catch (IOException e) {
-				e.printStackTrace();
-				return null;  // FIXME
-			}
-		} else {
-			return content;
+		try {
+			// large_objectは辞書を使うcodecでは書かない
+			return CompressionCodecs.decompress(codec, isGzipped, 0, content, contentLength, null);
+		} catch (IOException | SQLException e) {
+			e.printStackTrace();
+			return null;  // FIXME
 		}
 	}
 
@@ -0,0 +1,63 @@
+package soxrecorderv2.common.model.db;
+
+import java.sql.Timestamp;
+
+/**
+ * record_partitionの1行。
+ * record, raw_xml, transducer_raw_value, transducer_typed_value の子テーブル <table>_<suffix> をまとめて表す
+ */
+public class RecordPartition {
+	
+	private String suffix;
+	private Timestamp rangeStart;
+	private Timestamp rangeEnd;
+	
+	public RecordPartition(String suffix, Timestamp rangeStart, Timestamp rangeEnd) {
+		this.suffix = suffix;
+		this.rangeStart = rangeStart;
+		this.rangeEnd = rangeEnd;
+	}
+	
+	public String getSuffix() {
+		return suffix;
+	}
+	
+	public Timestamp getRangeStart() {
+		return rangeStart;
+	}
+	
+	public Timestamp getRangeEnd() {
+		return rangeEnd;
+	}
+	
+	/**
+	 * @param baseTable SR2Tables.Recordなど
+	 * @return 子テーブルの名前
+	 */
+	public String getTableName(String baseTable) {
+		return baseTable + "_" + suffix;
+	}
+	
+	/**
+	 * @return rangeStart <= created < rangeEnd
+	 */
+	public boolean contains(Timestamp created) {
+		return !created.before(rangeStart) && created.before(rangeEnd);
+	}
+	
+	/**
+	 * @param start nullなら最初から
+	 * @param end nullなら最後まで (endは含まない)
+	 * @return [start, end) とこのパーティションの期間が重なるか
+	 */
+	public boolean overlaps(Timestamp start, Timestamp end) {
+		if (start != null && !start.before(rangeEnd)) {
+			return false;
+		}
+		if (end != null && !rangeStart.before(end)) {
+			return false;
+		}
+		return true;
+	}
+
+}
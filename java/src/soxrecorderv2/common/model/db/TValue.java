@@ -29,6 +29,7 @@ public class TValue {
 		this.transducerId = transducerId;
 		this.type = type;
 		this.stringValue = stringValue;
+		this.intValue = intValue;
 		this.floatValue = floatValue;
 		this.decimalValue = decimalValue;
 		this.largeObjectId = largeObjectId;
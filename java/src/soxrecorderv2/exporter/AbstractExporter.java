@@ -1,11 +1,11 @@
 package soxrecorderv2.exporter;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.math.BigDecimal;
+import java.sql.Array;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -18,7 +18,13 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import com.google.common.base.Joiner;
 
@@ -34,44 +40,81 @@ import soxrecorderv2.common.model.db.TValType;
 import soxrecorderv2.common.model.db.TValue;
 import soxrecorderv2.common.model.db.Transducer;
 import soxrecorderv2.exporter.formatimpl.FormatExporter;
-import soxrecorderv2.util.IDTuple;
-import soxrecorderv2.util.MyCharSet;
+import soxrecorderv2.logging.SR2LogType;
+import soxrecorderv2.util.ConfigUtil;
 import soxrecorderv2.util.PGConnectionManager;
 import soxrecorderv2.util.SQLUtil;
 
 public abstract class AbstractExporter implements FormatExporter {
 	
+	public static final String CONFIG_KEY_FETCH_SIZE = "export_fetch_size";
+	public static final int DEFAULT_FETCH_SIZE = 10000;
+	public static final String CONFIG_KEY_PARALLELISM = "export_parallelism";
+	public static final int DEFAULT_PARALLELISM = 4;
+	
+	// 範囲ごとのrecord数の偏りをならすため, 並列数より多めに分ける
+	public static final int RANGES_PER_WORKER = 4;
+	public static final long WORKER_STOP_TIMEOUT_SEC = 60;
+	
+	// transducer_raw_valueの列 (7-12) と同じ並び
 	private static final String[] TYPED_VALUE_FIELDS = {
-		"record_id",      // 1
-		"transducer_id",  // 2
-		"value_type",     // 3
-		"string_value",   // 4
-		"int_value",      // 5
-		"decimal_value",  // 6
-		"float_value",    // 7
-		"large_object_id" // 8
+		"transducer_typed_value.value_type",     // 13
+		"transducer_typed_value.string_value",   // 14
+		"transducer_typed_value.int_value",      // 15
+		"transducer_typed_value.float_value",    // 16
+		"transducer_typed_value.decimal_value",  // 17
+		"transducer_typed_value.large_object_id" // 18
 	};
 	
+	private static final String LARGE_OBJECT_SELECT_SQL = "SELECT id, is_gzipped, codec, hash_key, content, content_length"
+			+ " FROM large_object WHERE id = ANY(?);";
+	
 	private Exporter parent;
 	private ExportTask task;
+	private PGConnectionManager connManager;
+	private int fetchSize = DEFAULT_FETCH_SIZE;
+	private int parallelism = DEFAULT_PARALLELISM;
 	private boolean isFinished = false;
-	private boolean isRunning = false;
+	private volatile boolean isRunning = false;
+	private volatile boolean isStopRequested = false;  // run()より前にstopExporting()されたとき
+	private final List<AbstractExporter> rangeExporters = Collections.synchronizedList(new ArrayList<AbstractExporter>());
+	// observation.id => (transducer.id => transducer.transducer_id)
+	private final Map<Long, Map<Long, String>> transducerNames = new HashMap<>();
 	
-	public String buildHeaderContent() {
-		return "";
+	public void writeHeader(ExportWriter out) throws IOException {
+		// nothing by default
 	}
 	
-	public abstract String buildItemContent(Observation observation, Record record, Collection<TValue> values);
-
-	public abstract String buildItemContent(Observation observation, Record record, Collection<TValue> values, String rawXml);
+	/**
+	 * 1つのrecordを書く。1行ごとにStringを作らないように, outに直接書くこと
+	 */
+	public abstract void writeItem(ExportWriter out, Observation observation, Record record, List<TValue> values) throws IOException, SQLException;
 	
-	public String buildFooterContent() {
-		return "";
+	public void writeFooter(ExportWriter out) throws IOException {
+		// nothing by default
 	}
 	
+	/**
+	 * 並列exportで1つの範囲を受け持つ, 同じフォーマットのexporterを作る
+	 */
+	protected abstract AbstractExporter newRangeExporter();
+	
 	protected void initialize(final Exporter parent, final ExportTask task) {
 		this.parent = parent;
 		this.task = task;
+		Properties config = parent.getConfig();
+		if (config != null) {
+			this.fetchSize = Math.max(1, ConfigUtil.getInt(config, CONFIG_KEY_FETCH_SIZE, DEFAULT_FETCH_SIZE));
+			this.parallelism = Math.max(1, ConfigUtil.getInt(config, CONFIG_KEY_PARALLELISM, DEFAULT_PARALLELISM));
+			// exporterごとに別のコネクションを借りる (プールは共有)
+			this.connManager = new PGConnectionManager(config);
+		} else {
+			this.connManager = parent.getConnManager();
+		}
+	}
+	
+	protected Exporter getParent() {
+		return parent;
 	}
 	
 	public ExportTask getTask() {
@@ -80,136 +123,89 @@ public abstract class AbstractExporter implements FormatExporter {
 	
 	@Override
 	public void run() {
-		isRunning = true;
+		isRunning = !isStopRequested;
 		isFinished = false;
+		ExecutorService workers = null;
+		List<File> partFiles = new ArrayList<>();
 		try {
 			Export exportProfile = task.getExportProfile();
 			Observation ob = resolveObservation(exportProfile.getId());
-			boolean isUsingRaw = exportProfile.isUsingRawValue();
 			
-			String fileName = task.getExportProfile().getFileName();
-			try (BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(fileName))) {
+			// パーティションに分かれていれば, 期間に重なる子テーブルだけを読む
+			Connection conn = getConnManager().getConnection();
+			Timestamp start = exportProfile.isFromBeginning() ? null : SQLUtil.toTimestamp(exportProfile.getTimeStart());
+			Timestamp end = exportProfile.isUntilLatest() ? null : SQLUtil.toTimestamp(exportProfile.getTimeEnd());
+			ExportRange window = new ExportRange(start, end);
+			List<ExportSegment> segments = ExportSegment.plan(conn, start, end);
+			boolean hasChunks = ChunkValueResolver.hasChunks(conn, start, end);
+			
+			// count target record with SQL to show progress (recordのある範囲も一緒に調べて, 期間を分ける)
+			Timestamp[] createdRange = new Timestamp[2];
+			task.initExportedCount();
+			task.setTotalRecordCount(countTotalRecord(window, segments, createdRange));
+			List<ExportRange> ranges = (parallelism <= 1 || createdRange[0] == null)
+					? Collections.singletonList(window)
+					: window.split(createdRange[0], createdRange[1], parallelism * RANGES_PER_WORKER);
+			endTransaction();  // 範囲ごとのexporterがプールからコネクションを借りるので, 先に返しておく
+			
+			String fileName = exportProfile.getFileName();
+			try (FileOutputStream fileOut = new FileOutputStream(fileName)) {
 				// write header content
-				byte[] headerContent = buildHeaderContent().getBytes(MyCharSet.UTF8);
-				out.write(headerContent);
+				ExportWriter out = new ExportWriter(fileOut);
+				writeHeader(out);
 				
 				// write records
-				Connection conn = getConnManager().getConnection();
-				
-				String[] fields = {
-					"record.id",                                 // 1
-					"record.observation_id",                     // 2
-					"record.is_parse_error",                     // 3
-					"record.created",                            // 4
-					"transducer_raw_value.has_same_typed_value", // 5
-					"transducer_raw_value.transducer_id",        // 6
-					"transducer_raw_value.value_type",           // 7
-					"transducer_raw_value.string_value",         // 8
-					"transducer_raw_value.int_value",            // 9
-					"transducer_raw_value.float_value",          // 10
-					"transducer_raw_value.decimal_value",        // 11
-					"transducer_raw_value.large_object_id"       // 12
-				};
-				
-				Joiner commaJoiner = Joiner.on(",");
-				String joinedFields = commaJoiner.join(fields);
-
-				List<String> conditions = new ArrayList<>();
-				conditions.add("(record.id = transducer_raw_value.record_id)");
-				conditions.addAll(buildTimeConditions(exportProfile));
-				String joinedCond = SQLUtil.andJoin(conditions);
-				
-				String sql = "SELECT " + joinedFields + " FROM record, transducer_raw_value WHERE ";
-				sql += joinedCond;
-				sql += " ORDER BY record.created ASC;";
-				
-				PreparedStatement ps = conn.prepareStatement(sql);
-				int argIdx = 1;
-				if (!exportProfile.isFromBeginning()) {
-					ps.setTimestamp(argIdx++, SQLUtil.toTimestamp(exportProfile.getTimeStart()));
-				}
-				if (!exportProfile.isUntilLatest()) {
-					ps.setTimestamp(argIdx++, SQLUtil.toTimestamp(exportProfile.getTimeEnd()));
-				}
-				
-				// buffering some records for efficient large_object resolve
-				int nFlush = 100; // maximum buffering size
-				List<RecordWithValues> valBuffer = new ArrayList<>();
-				RecordWithValues tmpRec = null;
-				
-				// count target record with SQL to show progress
-				task.setTotalRecordCount(countTotalRecord(exportProfile));
-				
-				ResultSet rs = ps.executeQuery();
-				getConnManager().updateLastCommunicateTime();
-				while (rs.next() && isRunning) {
-					long rId = rs.getLong(1);
-					long rObservationId = rs.getLong(2);
-					boolean rIsParseError = rs.getBoolean(3);
-					Timestamp rCreated = rs.getTimestamp(4);
-					Record record = new Record(rId, rObservationId, rIsParseError, rCreated);
-					
-					if (tmpRec == null) {
-						tmpRec = new RecordWithValues(record);
-					} else if (!tmpRec.getRecord().equals(record)) {
-						valBuffer.add(tmpRec);
-						
-						if (valBuffer.size() == nFlush) {
-							List<RecordWithValues> content = (isUsingRaw) ? valBuffer : replaceWithTypedValues(valBuffer);
-							long wrote = writeValues(out, ob, content);
-							task.addProgress(wrote);
-							valBuffer = new ArrayList<>();  // reset buffer
+				if (ranges.size() == 1) {
+					exportRange(out, ob, ranges.get(0), hasChunks);
+				} else {
+					// 範囲ごとに別のコネクションで読んで一時ファイルに書き, 古い順につなげる
+					// (前の範囲をつなげている間も, 後ろの範囲の読み出しは進む)
+					workers = Executors.newFixedThreadPool(Math.min(parallelism, ranges.size()));
+					List<Future<File>> parts = new ArrayList<>();
+					for (ExportRange range : ranges) {
+						File partFile = new File(fileName + ".part" + parts.size());
+						partFiles.add(partFile);
+						parts.add(workers.submit(buildRangeTask(ob, range, hasChunks, partFile)));
+					}
+					for (Future<File> part : parts) {
+						if (!isRunning) {
+							break;
 						}
-						
-						tmpRec = new RecordWithValues(record);
+						File partFile = part.get();  // 範囲のexportが失敗していればExecutionException
+						appendFile(out, partFile);
+						partFile.delete();
 					}
-					
-					// transducer_raw_valueの値を入れる
-					boolean hasSameTypedValue = rs.getBoolean(5);
-					long transducerId = rs.getLong(6);
-					int dbValType = rs.getInt(7);
-					TValType valType = TValType.typeOf(dbValType);
-					String stringValue = rs.getString(8);
-					long intValue = rs.getLong(9);
-					double floatValue = rs.getDouble(10);
-					BigDecimal decimalValue = rs.getBigDecimal(11);
-					long largeObjectId = rs.getLong(12);
-					
-					TValue value = new TValue(
-						transducerId,
-						valType,
-						stringValue,
-						intValue,
-						floatValue,
-						decimalValue,
-						largeObjectId,
-						hasSameTypedValue
-					);
-					tmpRec.addValue(value);
 				}
 				
 				if (isRunning) {
-					if (tmpRec != null) {
-						valBuffer.add(tmpRec);
-					}
-					
-					if (0 < valBuffer.size()) {  // more data to write
-						List<RecordWithValues> content = (isUsingRaw) ? valBuffer : replaceWithTypedValues(valBuffer);
-						long wrote = writeValues(out, ob, content);
-						task.addProgress(wrote);
-					}
-					
-					byte[] footerContent = buildFooterContent().getBytes(MyCharSet.UTF8);
-					out.write(footerContent);
+					writeFooter(out);
+					out.flush();
 
 					task.setState(ExportingState.FINISHED);
 					isFinished = true;  // successfully exported
 				}
 			}
 		} catch (Exception e) {
-			// TODO: logging
+			if (isRunning) {  // 止めたときのものは失敗ではない
+				parent.getLogger().error(SR2LogType.EXPORT_FAILED, "export failed: export=" + task.getExportId(), e);
+			}
 		} finally {
 			isRunning = false;
+			stopRangeExporters();
+			if (workers != null) {
+				workers.shutdownNow();
+				try {
+					workers.awaitTermination(WORKER_STOP_TIMEOUT_SEC, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			endTransaction();
+			for (File partFile : partFiles) {
+				if (partFile.exists()) {
+					partFile.delete();
+				}
+			}
 			if (!isFinished) {
 				task.setState(ExportingState.ERROR);
 				// remove file if exists
@@ -221,164 +217,331 @@ public abstract class AbstractExporter implements FormatExporter {
 		}
 	}
 	
-	@Override
-	public void stopExporting() {
-		isRunning = true;
-	}
-	
-	public PGConnectionManager getConnManager() {
-		return parent.getConnManager();
+	/**
+	 * 1つの範囲のrecordを, 範囲に重なるセグメントごとに書き出す
+	 */
+	protected void exportRange(ExportWriter out, Observation ob, ExportRange range, boolean hasChunks) throws IOException, SQLException {
+		Export exportProfile = task.getExportProfile();
+		Connection conn = getConnManager().getConnection();
+		List<ExportSegment> segments = ExportSegment.plan(conn, range.getStart(), range.getEnd());
+		for (ExportSegment segment : segments) {
+			if (!isRunning) {
+				break;
+			}
+			exportSegment(out, ob, exportProfile, range, segment, hasChunks);
+		}
 	}
 	
-	protected List<RecordWithValues> replaceWithTypedValues(List<RecordWithValues> values) throws SQLException {
-		// 1. collect idtuple (record_id, transducer_id) of not raw-value records
-		List<IDTuple> resolveTarget = new ArrayList<>();
-		for (RecordWithValues rec : values) {
-			long recordId = rec.getRecord().getDatabaseId();
-			for (TValue tValue : rec.getValues()) {
-				if (!tValue.hasSameTypedValue()) {
-					resolveTarget.add(new IDTuple(recordId, tValue.getTransducerId()));
+	/**
+	 * 範囲ごとのexporter (同じフォーマットの別のインスタンス) で範囲を一時ファイルに書くタスク。
+	 * インスタンスごとにコネクションとtransducer名のキャッシュを持つので, スレッドの間で共有するものはない
+	 */
+	private Callable<File> buildRangeTask(final Observation ob, final ExportRange range, final boolean hasChunks, final File partFile) {
+		return new Callable<File>() {
+			@Override
+			public File call() throws Exception {
+				AbstractExporter rangeExporter = newRangeExporter();
+				rangeExporters.add(rangeExporter);
+				try {
+					if (!isRunning) {
+						throw new IllegalStateException("export is stopped");
+					}
+					rangeExporter.exportPart(ob, range, hasChunks, partFile);
+					return partFile;
+				} finally {
+					rangeExporters.remove(rangeExporter);
 				}
 			}
+		};
+	}
+	
+	private void exportPart(Observation ob, ExportRange range, boolean hasChunks, File partFile) throws IOException, SQLException {
+		// rangeExportersに入ってからここまでの間に止められていれば読まない
+		// (run()と同じだが, isStopRequestedを見たあとにstopExporting()が来てもisRunningがfalseに残るように, 先にtrueにする)
+		isRunning = true;
+		if (isStopRequested) {
+			isRunning = false;
+			throw new IllegalStateException("export is stopped: range=" + range);
 		}
-		
-		// 2. resolve
-		Map<IDTuple, TValue> resolvedTypedValues = resolveTypedValues(resolveTarget);
-		
-		// 3. replace
-		List<RecordWithValues> ret = new ArrayList<>();
-		for (RecordWithValues rec : values) {
-			long recordId = rec.getRecord().getDatabaseId();
-			List<TValue> newTdrValues = new ArrayList<>();
-			
-			for (TValue tValue : rec.getValues()) {
-				if (tValue.hasSameTypedValue()) {
-					newTdrValues.add(tValue);
-				} else {
-					IDTuple key = new IDTuple(recordId, tValue.getTransducerId());
-					TValue typed = resolvedTypedValues.get(key);
-					newTdrValues.add(typed);
-				}
+		boolean isWritten = false;
+		try (FileOutputStream partOut = new FileOutputStream(partFile)) {
+			ExportWriter out = new ExportWriter(partOut);
+			exportRange(out, ob, range, hasChunks);
+			out.flush();
+			isWritten = isRunning;
+		} finally {
+			isRunning = false;
+			endTransaction();
+			if (!isWritten) {
+				partFile.delete();
 			}
-			
-			RecordWithValues newRec = new RecordWithValues(rec.getRecord(), newTdrValues);
-			ret.add(newRec);
 		}
-		
-		return ret;
+		if (!isWritten) {
+			throw new IllegalStateException("export is stopped: range=" + range);
+		}
 	}
 	
-	protected Map<IDTuple, TValue> resolveTypedValues(Collection<IDTuple> ids) throws SQLException {
-		Map<IDTuple, TValue> ret = new HashMap<>();
-		
-		Map<Long, List<Long>> groupedIds = groupByRecordId(ids);
-		Map<Long, List<Long>> buffer = new HashMap<>();
-		int added = 0;
-		final int recordsPerSql = 50;
-		for (Long recordId : groupedIds.keySet()) {
-			buffer.put(recordId, groupedIds.get(recordId));
-			added++;
-			
-			if (added == recordsPerSql) {
-				// perform SQL
-				Map<IDTuple, TValue> subset = resolveTypedValues(buffer);
-				for (IDTuple key : subset.keySet()) {
-					ret.put(key, subset.get(key));
-				}
-				added = 0;
-				buffer.clear();
+	private void appendFile(ExportWriter out, File partFile) throws IOException {
+		byte[] buf = new byte[ExportWriter.DEFAULT_BUFFER_SIZE];
+		try (FileInputStream in = new FileInputStream(partFile)) {
+			int n;
+			while ((n = in.read(buf)) != -1) {
+				out.writeBytes(buf, 0, n);
 			}
 		}
-		
-		if (0 < added) {
-			Map<IDTuple, TValue> subset = resolveTypedValues(buffer);
-			for (IDTuple key : subset.keySet()) {
-				ret.put(key, subset.get(key));
+	}
+	
+	private void stopRangeExporters() {
+		synchronized (rangeExporters) {
+			for (AbstractExporter rangeExporter : rangeExporters) {
+				rangeExporter.stopExporting();
 			}
 		}
-		
-		return ret;
 	}
 	
-	protected Map<IDTuple, TValue> resolveTypedValues(Map<Long, List<Long>> groupedIds) throws SQLException {
-		Joiner j = Joiner.on(",");
-		String fields = j.join(TYPED_VALUE_FIELDS);
+	/**
+	 * 1つのセグメントのrecordを書き出す。typed valueは同じセグメントのテーブルから引くので, セグメントごとにバッファを出し切る
+	 * @param hasChunks trueならtransducer_value_chunkにまとめられた値も戻す
+	 */
+	protected void exportSegment(ExportWriter out, Observation ob, Export exportProfile, ExportRange range, ExportSegment segment,
+			boolean hasChunks) throws IOException, SQLException {
+		boolean isUsingRaw = exportProfile.isUsingRawValue();
+		Connection conn = getConnManager().getConnection();
+		ChunkValueResolver chunkResolver = (hasChunks) ? new ChunkValueResolver(conn) : null;
 		
-		List<String> conds = new ArrayList<>();
-		List<Long> sqlArgs = new ArrayList<>();
-		for (Long recordId : groupedIds.keySet()) {
-			List<Long> tdrIds = groupedIds.get(recordId);
-			int nTransducers = tdrIds.size();
-			String cond = "record_id = ? AND transducer_id IN " + SQLUtil.buildPlaceholders(nTransducers);
-			conds.add(cond);
-			sqlArgs.add(recordId);
-			sqlArgs.addAll(tdrIds);
+		String[] fields = {
+			"record.id",                                 // 1
+			"record.observation_id",                     // 2
+			"record.is_parse_error",                     // 3
+			"record.created",                            // 4
+			"transducer_raw_value.has_same_typed_value", // 5
+			"transducer_raw_value.transducer_id",        // 6
+			"transducer_raw_value.value_type",           // 7
+			"transducer_raw_value.string_value",         // 8
+			"transducer_raw_value.int_value",            // 9
+			"transducer_raw_value.float_value",          // 10
+			"transducer_raw_value.decimal_value",        // 11
+			"transducer_raw_value.large_object_id"       // 12
+		};
+		
+		Joiner commaJoiner = Joiner.on(",");
+		String joinedFields = commaJoiner.join(fields);
+		if (!isUsingRaw) {
+			joinedFields += "," + commaJoiner.join(TYPED_VALUE_FIELDS);  // 13-18
 		}
+
+		// 値がすべてchunkにあるrecordはtransducer_raw_valueの行がないのでLEFT JOIN
+		List<String> conditions = buildTimeConditions(range);
+		String sql = "SELECT " + joinedFields + " FROM " + segment.getRecordFrom()
+				+ " LEFT JOIN " + segment.getRawValueFrom() + " ON (record.id = transducer_raw_value.record_id)";
+		if (!isUsingRaw) {
+			// typed valueは同じ行で引く (rawと同じ値のものは行がないのでLEFT JOIN)
+			sql += " LEFT JOIN " + segment.getTypedValueFrom() + " ON ("
+					+ "NOT transducer_raw_value.has_same_typed_value"
+					+ " AND transducer_typed_value.record_id = transducer_raw_value.record_id"
+					+ " AND transducer_typed_value.transducer_id = transducer_raw_value.transducer_id)";
+		}
+		if (!conditions.isEmpty()) {
+			sql += " WHERE " + SQLUtil.andJoin(conditions);
+		}
+		sql += " ORDER BY record.created ASC, record.id ASC;";  // 同じrecordの行が続くように
 		
-		String condition = SQLUtil.orJoin(conds);
-		String sql = "SELECT " + fields + " FROM " + SR2Tables.TransducerTypedValue +  "WHERE " + condition;
+		// fetch sizeを指定してサーバー側のカーソルで少しずつ読む (指定しないとドライバが結果をすべてメモリに読む)
+		// カーソルはトランザクションの中でしか使えない (プールのコネクションはautoCommit = false)
+		PreparedStatement ps = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+		ps.setFetchSize(fetchSize);
+		setTimeArguments(ps, range);
 		
-		// query to database
-		Map<IDTuple, TValue> ret = new HashMap<>();
-		Connection conn = getConnManager().getConnection();
+		// buffering some records for efficient large_object resolve
+		int nFlush = 100; // maximum buffering size
+		List<RecordWithValues> valBuffer = new ArrayList<>();
+		RecordWithValues tmpRec = null;
 		
-		PreparedStatement ps = conn.prepareStatement(sql);
-		int idx = 1;
-		for (Long arg : sqlArgs) {
-			ps.setLong(idx++, arg);
-		}
 		ResultSet rs = ps.executeQuery();
-		while (rs.next()) {
-			long recordId = rs.getLong(1);
-			long transducerId = rs.getLong(2);
-			
-			int dbValueType = rs.getInt(3);
-			TValType valType = TValType.typeOf(dbValueType);
-			
-			String stringValue = rs.getString(4);
-			Long intValue = rs.getLong(5);
-			BigDecimal decimalValue = rs.getBigDecimal(6);
-			double floatValue = rs.getDouble(7);
-			long largeObjectId = rs.getLong(8);
+		getConnManager().updateLastCommunicateTime();
+		while (rs.next() && isRunning) {
+			long rId = rs.getLong(1);
+			long rObservationId = rs.getLong(2);
+			boolean rIsParseError = rs.getBoolean(3);
+			Timestamp rCreated = rs.getTimestamp(4);
+			Record record = new Record(rId, rObservationId, rIsParseError, rCreated);
 			
-			TValue tVal = new TValue(
-					transducerId, valType, stringValue, intValue, floatValue, decimalValue, largeObjectId, false);
+			if (tmpRec == null) {
+				tmpRec = new RecordWithValues(record);
+			} else if (!tmpRec.getRecord().equals(record)) {
+				valBuffer.add(tmpRec);
+				
+				if (valBuffer.size() == nFlush) {
+					List<RecordWithValues> content = prepareValues(valBuffer, chunkResolver);
+					long wrote = writeValues(out, ob, content);
+					task.addProgress(wrote);
+					valBuffer = new ArrayList<>();  // reset buffer
+				}
+				
+				tmpRec = new RecordWithValues(record);
+			}
 			
-			IDTuple idTuple = new IDTuple(recordId, transducerId);
-			ret.put(idTuple, tVal);
+			// transducer_raw_valueの値を入れる
+			boolean hasSameTypedValue = rs.getBoolean(5);
+			long transducerId = rs.getLong(6);
+			if (rs.wasNull()) {
+				continue;  // LEFT JOINで値の行がなかった
+			}
+			if (isUsingRaw || hasSameTypedValue) {
+				tmpRec.addValue(readValue(rs, 7, transducerId, hasSameTypedValue));
+			} else if (rs.getObject(13) == null) {
+				tmpRec.addValue(null);  // typed valueが見つからなかった (書くときに飛ばす)
+			} else {
+				tmpRec.addValue(readValue(rs, 13, transducerId, false));
+			}
 		}
-		
 		rs.close();
 		ps.close();
 		
-		return ret;
+		if (isRunning) {
+			if (tmpRec != null) {
+				valBuffer.add(tmpRec);
+			}
+			
+			if (0 < valBuffer.size()) {  // more data to write
+				List<RecordWithValues> content = prepareValues(valBuffer, chunkResolver);
+				long wrote = writeValues(out, ob, content);
+				task.addProgress(wrote);
+			}
+		}
 	}
 	
-	protected Map<Long, List<Long>> groupByRecordId(Collection<IDTuple> ids) {
-		Map<Long, List<Long>> ret = new HashMap<>();
-		for (IDTuple idt : ids) {
-			long recordId = idt.getId1();
-			long tdrId = idt.getId2();
-			if (!ret.containsKey(recordId)) {
-				ret.put(recordId, new ArrayList<Long>());
+	/**
+	 * value_type, string_value, int_value, float_value, decimal_value, large_object_id がidxから並んだ列を読む
+	 */
+	private TValue readValue(ResultSet rs, int idx, long transducerId, boolean hasSameTypedValue) throws SQLException {
+		int dbValType = rs.getInt(idx);
+		TValType valType = TValType.typeOf(dbValType);
+		String stringValue = rs.getString(idx + 1);
+		long intValue = rs.getLong(idx + 2);
+		double floatValue = rs.getDouble(idx + 3);
+		BigDecimal decimalValue = rs.getBigDecimal(idx + 4);
+		long largeObjectId = rs.getLong(idx + 5);
+		
+		return new TValue(
+			transducerId,
+			valType,
+			stringValue,
+			intValue,
+			floatValue,
+			decimalValue,
+			largeObjectId,
+			hasSameTypedValue
+		);
+	}
+	
+	/**
+	 * chunkの値を戻し, 値のないrecordを除く
+	 */
+	private List<RecordWithValues> prepareValues(List<RecordWithValues> records, ChunkValueResolver chunkResolver) throws SQLException {
+		if (chunkResolver != null) {
+			chunkResolver.fill(records);
+		}
+		List<RecordWithValues> ret = new ArrayList<>(records.size());
+		for (RecordWithValues rec : records) {
+			if (!rec.getValues().isEmpty()) {
+				ret.add(rec);  // 以前のinner joinと同じく, 値のないrecordは出さない
 			}
-			ret.get(recordId).add(tdrId);
 		}
 		return ret;
 	}
 	
-	protected long writeValues(OutputStream out, Observation ob, List<RecordWithValues> records) throws IOException, SQLException {
+	/**
+	 * 読み出しのループを止める (書きかけのファイルはrun()が消す)
+	 */
+	@Override
+	public void stopExporting() {
+		isStopRequested = true;
+		isRunning = false;
+		stopRangeExporters();
+	}
+	
+	public PGConnectionManager getConnManager() {
+		return connManager;
+	}
+	
+	/**
+	 * 読むだけのトランザクションを終えて (カーソルも閉じる), コネクションをプールに返す
+	 */
+	private void endTransaction() {
+		PGConnectionManager connManager = getConnManager();
+		try {
+			connManager.getConnection().rollback();
+		} catch (SQLException e) {
+			connManager.invalidate();
+		} finally {
+			connManager.release();
+		}
+	}
+	
+	protected long writeValues(ExportWriter out, Observation ob, List<RecordWithValues> records) throws IOException, SQLException {
 		long wroteCount = 0;
 		setLargeObject(records);
 		for (RecordWithValues rv : records) {
-			String itemContent = buildItemContent(ob, rv.getRecord(), rv.getValues());
-			byte[] itemContentBytes = itemContent.getBytes(MyCharSet.UTF8);
-			out.write(itemContentBytes);
+			writeItem(out, ob, rv.getRecord(), rv.getValues());
 			wroteCount++;
 		}
 		return wroteCount;
 	}
 	
+	/**
+	 * 値を型どおりに書く (CSVのフィールド/JSONの値としてのエスケープはisJsonで決める)
+	 */
+	protected void writeValue(ExportWriter out, TValue value, boolean isJson) throws IOException {
+		switch (value.getType()) {
+		case Int:
+			out.writeLong(value.getIntValue());
+			break;
+		case Float:
+			double d = value.getFloatValue();
+			if (isJson && (Double.isNaN(d) || Double.isInfinite(d))) {
+				out.writeAscii("null");  // JSONには書けない
+			} else {
+				out.writeDouble(d);
+			}
+			break;
+		case Deciaml:
+			if (value.getDecimalValue() == null) {
+				out.writeAscii(isJson ? "null" : "");
+			} else {
+				out.writeDecimal(value.getDecimalValue());
+			}
+			break;
+		case LargeObject:
+			if (isJson) {
+				out.writeJsonString(value.getLargeObject());
+			} else {
+				out.writeCsvField(value.getLargeObject());
+			}
+			break;
+		default:
+			if (isJson) {
+				out.writeJsonString(value.getStringValue());
+			} else {
+				out.writeCsvField(value.getStringValue());
+			}
+			break;
+		}
+	}
+	
+	/**
+	 * @return transducer.transducer_id, 見つからなければnull
+	 */
+	protected String getTransducerName(long observationId, long transducerId) throws SQLException {
+		Map<Long, String> names = transducerNames.get(observationId);
+		if (names == null || !names.containsKey(transducerId)) {
+			// はじめてのobservationか, 読んだあとに増えたtransducer
+			names = buildTransducerDatabaseIdToStringIdMap(getTransducers(observationId));
+			transducerNames.put(observationId, names);
+		}
+		return names.get(transducerId);
+	}
+	
 	protected void setLargeObject(List<RecordWithValues> records) throws SQLException {
 		if (records.isEmpty()) {
 			return;
@@ -389,7 +552,7 @@ public abstract class AbstractExporter implements FormatExporter {
 		for (RecordWithValues rv : records) {
 			List<TValue> values = rv.getValues();
 			for (TValue tv : values) { 
-				if (tv.getType() == TValType.LargeObject) {
+				if (tv != null && tv.getType() == TValType.LargeObject) {
 					largeObjectIds.add(tv.getLargeObjectId());
 				}
 			}
@@ -400,7 +563,7 @@ public abstract class AbstractExporter implements FormatExporter {
 		for (RecordWithValues rv : records) {
 			List<TValue> values = rv.getValues();
 			for (TValue tv : values) {
-				if (tv.getType() != TValType.LargeObject) {
+				if (tv == null || tv.getType() != TValType.LargeObject) {
 					continue;  // cannot happen, though...
 				}
 				long tvLargeObjectId = tv.getLargeObjectId();
@@ -415,15 +578,9 @@ public abstract class AbstractExporter implements FormatExporter {
 	
 	protected Map<Long, byte[]> getLargeObjects(Collection<Long> largeObjectIds) throws SQLException {
 		Connection conn = getConnManager().getConnection();
-
-		String placeholders = SQLUtil.buildPlaceholders(largeObjectIds.size());
-		String sql = "SELECT id, is_gzipped, hash_key, content, content_length FROM large_object WHERE id IN " + placeholders + ";";
-		PreparedStatement ps = conn.prepareStatement(sql);
-		
-		int idx = 1;
-		for (Long largeObjectId : largeObjectIds) {
-			ps.setLong(idx++, largeObjectId.longValue());
-		}
+		PreparedStatement ps = getConnManager().prepareStatement(LARGE_OBJECT_SELECT_SQL);  // idの数によらず同じSQL
+		Array ids = conn.createArrayOf("int8", largeObjectIds.toArray());
+		ps.setArray(1, ids);
 		
 		ResultSet rs = ps.executeQuery();
 		getConnManager().updateLastCommunicateTime();
@@ -431,16 +588,20 @@ public abstract class AbstractExporter implements FormatExporter {
 		while (rs.next()) {
 			long loDatabaseId = rs.getLong(1);
 			boolean loIsGzipped = rs.getBoolean(2);
-			String loHashKey = rs.getString(3);
-			byte[] loContent = rs.getBytes(4);
-			long loContentLength = rs.getLong(5);
+			int loCodecValue = rs.getInt(3);
+			Integer loCodec = rs.wasNull() ? null : loCodecValue;
+			String loHashKey = rs.getString(4);
+			byte[] loContent = rs.getBytes(5);
+			long loContentLength = rs.getLong(6);
 			
 			if (!ret.containsKey(loDatabaseId)) {
 				LargeObject lo = new LargeObject(
-					loDatabaseId, loIsGzipped, loHashKey, loContent, loContentLength);
+					loDatabaseId, loIsGzipped, loCodec, loHashKey, loContent, loContentLength);
 				ret.put(loDatabaseId, lo.getRealContent());  // uncompress will be performed if necessary
 			}
 		}
+		rs.close();
+		ids.free();
 		
 		return ret;
 	}
@@ -536,41 +697,62 @@ public abstract class AbstractExporter implements FormatExporter {
 		}
 	}
 	
-	protected long countTotalRecord(Export exportProfile) throws SQLException {
-		String cond = SQLUtil.andJoin(buildTimeConditions(exportProfile));
-		String sql = "SELECT COUNT(*) FROM record WHERE " + cond + ";";
+	/**
+	 * セグメントごとに数えて足す (rawの行ではなくrecordの数)
+	 * @param createdRange 期間の中で一番古い/新しいrecord.createdを入れて返す (recordがなければnullのまま)
+	 */
+	protected long countTotalRecord(ExportRange window, List<ExportSegment> segments, Timestamp[] createdRange) throws SQLException {
+		List<String> conditions = buildTimeConditions(window);
+		String where = conditions.isEmpty() ? "" : " WHERE " + SQLUtil.andJoin(conditions);
 		
 		Connection conn = getConnManager().getConnection();
-		PreparedStatement ps = conn.prepareStatement(sql);
-		int idx = 1;
-		if (!exportProfile.isFromBeginning()) {
-			ps.setTimestamp(idx++, SQLUtil.toTimestamp(exportProfile.getTimeStart()));
-		}
-		if (!exportProfile.isUntilLatest()) {
-			ps.setTimestamp(idx++, SQLUtil.toTimestamp(exportProfile.getTimeEnd()));
-		}
-		
-		ResultSet rs = ps.executeQuery();
-		getConnManager().updateLastCommunicateTime();
-		if (!rs.next()) {
-			// FIXME なにかがおかしい
+		long ret = 0;
+		for (ExportSegment segment : segments) {
+			// 数えるついでにcreatedの範囲も見る (どちらにしても全部なめるので, 別のSQLにしない)
+			String sql = "SELECT COUNT(*), MIN(record.created), MAX(record.created) FROM " + segment.getRecordFrom() + where + ";";
+			PreparedStatement ps = conn.prepareStatement(sql);
+			setTimeArguments(ps, window);
+			
+			ResultSet rs = ps.executeQuery();
+			getConnManager().updateLastCommunicateTime();
+			if (rs.next() && 0 < rs.getLong(1)) {
+				ret += rs.getLong(1);
+				Timestamp minCreated = rs.getTimestamp(2);
+				Timestamp maxCreated = rs.getTimestamp(3);
+				if (createdRange[0] == null || minCreated.before(createdRange[0])) {
+					createdRange[0] = minCreated;
+				}
+				if (createdRange[1] == null || maxCreated.after(createdRange[1])) {
+					createdRange[1] = maxCreated;
+				}
+			}
+			
+			rs.close();
+			ps.close();
 		}
 		
-		long ret = rs.getLong(1);
-		
-		rs.close();
-		ps.close();
-		
 		return ret;
 	}
 	
-	protected List<String> buildTimeConditions(Export exportProfile) {
+	/**
+	 * buildTimeConditions()の?に期間を入れる
+	 */
+	private void setTimeArguments(PreparedStatement ps, ExportRange range) throws SQLException {
+		int idx = 1;
+		if (range.getStart() != null) {
+			ps.setTimestamp(idx++, range.getStart());
+		}
+		if (range.getEnd() != null) {
+			ps.setTimestamp(idx++, range.getEnd());
+		}
+	}
+	
+	protected List<String> buildTimeConditions(ExportRange range) {
 		List<String> ret = new ArrayList<>();
-		ret.add("(record.id = transducer_raw_value.record_id)");
-		if (!exportProfile.isFromBeginning()) {
+		if (range.getStart() != null) {
 			ret.add("(? <= record.created)");
 		}
-		if (!exportProfile.isUntilLatest()) {
+		if (range.getEnd() != null) {
 			ret.add("(record.created < ?)");
 		}
 		return Collections.unmodifiableList(ret);
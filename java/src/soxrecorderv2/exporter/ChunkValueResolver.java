@@ -0,0 +1,169 @@
+package soxrecorderv2.exporter;
+
+import java.math.BigDecimal;
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import soxrecorderv2.codec.TimeSeriesChunkDecoder;
+import soxrecorderv2.common.model.RecordWithValues;
+import soxrecorderv2.common.model.SR2Tables;
+import soxrecorderv2.common.model.db.TValType;
+import soxrecorderv2.common.model.db.TValue;
+import soxrecorderv2.util.SOXUtil;
+import soxrecorderv2.util.SQLUtil;
+
+/**
+ * transducer_value_chunkにまとめられた値を, exportするrecordに戻す。
+ *
+ * exportはrecord.createdの順に進むので, バッファのcreatedの範囲に重なるchunkだけを読んで展開し,
+ * 展開した値はrecordに渡したら捨てる。範囲より古くなったchunkも忘れる。
+ */
+class ChunkValueResolver {
+
+	private static final String SELECT_SQL = "SELECT id, transducer_id, value_type, n_values, last_created, content FROM "
+			+ SR2Tables.TransducerValueChunk
+			+ " WHERE (first_created <= ?) AND (? <= last_created) AND (id <> ALL(?::bigint[]));";
+
+	private static class ExpandedValues {
+		final long created;
+		final List<TValue> values = new ArrayList<>();
+
+		ExpandedValues(long created) {
+			this.created = created;
+		}
+	}
+
+	private final Connection conn;
+	private final Map<Long, Long> loadedChunks = new HashMap<>();  // chunk id => last_created
+	private final Map<Long, ExpandedValues> valuesByRecord = new HashMap<>();  // record.id => 値
+
+	ChunkValueResolver(Connection conn) {
+		this.conn = conn;
+	}
+
+	/**
+	 * @param start nullなら最初から
+	 * @param end nullなら最新まで
+	 * @return 期間に重なるchunkがあればtrue (なければexportでchunkを引かなくてよい)
+	 */
+	static boolean hasChunks(Connection conn, Timestamp start, Timestamp end) throws SQLException {
+		// 開いている側の条件はつけない (numeric_chunk_modeを使っていなければテーブルは空なので, 条件がなくてもすぐ返る)
+		List<String> conditions = new ArrayList<>();
+		List<Timestamp> args = new ArrayList<>();
+		if (start != null) {
+			conditions.add("(? <= last_created)");
+			args.add(start);
+		}
+		if (end != null) {
+			conditions.add("(first_created < ?)");
+			args.add(end);
+		}
+		String sql = "SELECT EXISTS (SELECT 1 FROM " + SR2Tables.TransducerValueChunk;
+		if (!conditions.isEmpty()) {
+			sql += " WHERE " + SQLUtil.andJoin(conditions);
+		}
+		sql += ");";
+		
+		PreparedStatement ps = conn.prepareStatement(sql);
+		int idx = 1;
+		for (Timestamp arg : args) {
+			ps.setTimestamp(idx++, arg);
+		}
+		ResultSet rs = ps.executeQuery();
+		boolean ret = rs.next() && rs.getBoolean(1);
+		rs.close();
+		ps.close();
+		return ret;
+	}
+
+	/**
+	 * recordsにchunkの値を足す
+	 * @param records record.createdの順に並んでいること
+	 */
+	void fill(List<RecordWithValues> records) throws SQLException {
+		if (records.isEmpty()) {
+			return;
+		}
+		long minCreated = records.get(0).getRecord().getCreated().getTime();
+		long maxCreated = records.get(records.size() - 1).getRecord().getCreated().getTime();
+
+		forgetOlderThan(minCreated);
+		load(minCreated, maxCreated);
+
+		for (RecordWithValues rec : records) {
+			ExpandedValues expanded = valuesByRecord.remove(rec.getRecord().getDatabaseId());
+			if (expanded == null) {
+				continue;
+			}
+			for (TValue value : expanded.values) {
+				rec.addValue(value);
+			}
+		}
+	}
+
+	private void forgetOlderThan(long minCreated) {
+		Iterator<Map.Entry<Long, Long>> chunkIt = loadedChunks.entrySet().iterator();
+		while (chunkIt.hasNext()) {
+			if (chunkIt.next().getValue() < minCreated) {
+				chunkIt.remove();
+			}
+		}
+		Iterator<ExpandedValues> valueIt = valuesByRecord.values().iterator();
+		while (valueIt.hasNext()) {
+			if (valueIt.next().created < minCreated) {
+				valueIt.remove();  // exportの期間より前のrecordの値
+			}
+		}
+	}
+
+	private void load(long minCreated, long maxCreated) throws SQLException {
+		PreparedStatement ps = conn.prepareStatement(SELECT_SQL);
+		ps.setTimestamp(1, new Timestamp(maxCreated));
+		ps.setTimestamp(2, new Timestamp(minCreated));
+		Array loadedIds = conn.createArrayOf("int8", loadedChunks.keySet().toArray());
+		ps.setArray(3, loadedIds);
+		ResultSet rs = ps.executeQuery();
+		while (rs.next()) {
+			long chunkId = rs.getLong(1);
+			long transducerId = rs.getLong(2);
+			int valueType = rs.getInt(3);
+			int nValues = rs.getInt(4);
+			long lastCreated = rs.getTimestamp(5).getTime();
+			byte[] content = rs.getBytes(6);
+
+			boolean isFloat = (valueType == SOXUtil.VALUE_TYPE_FLOAT);
+			TValType valType = TValType.typeOf(valueType);
+			TimeSeriesChunkDecoder decoder = new TimeSeriesChunkDecoder(content, isFloat, nValues);
+			while (decoder.next()) {
+				TValue value;
+				if (isFloat) {
+					double d = decoder.getDoubleValue();
+					value = new TValue(transducerId, valType, null, 0, d, BigDecimal.valueOf(d), 0, true);
+				} else {
+					long l = decoder.getLongValue();
+					value = new TValue(transducerId, valType, null, l, 0.0, BigDecimal.ZERO, 0, true);
+				}
+				ExpandedValues expanded = valuesByRecord.get(decoder.getRecordId());
+				if (expanded == null) {
+					expanded = new ExpandedValues(decoder.getCreated());
+					valuesByRecord.put(decoder.getRecordId(), expanded);
+				}
+				expanded.values.add(value);
+			}
+			loadedChunks.put(chunkId, lastCreated);
+		}
+		rs.close();
+		ps.close();
+		loadedIds.free();
+	}
+
+}
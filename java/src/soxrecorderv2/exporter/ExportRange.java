@@ -0,0 +1,73 @@
+package soxrecorderv2.exporter;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * exportの期間 [start, end) の一部。並列にexportするときは期間をいくつかに分けて別々のコネクションで読み,
+ * 範囲ごとに書いたものを古い順につなげる
+ */
+class ExportRange {
+
+	private final Timestamp start;
+	private final Timestamp end;
+
+	/**
+	 * @param start nullなら最初から
+	 * @param end nullなら最新まで (endは含まない)
+	 */
+	ExportRange(Timestamp start, Timestamp end) {
+		this.start = start;
+		this.end = end;
+	}
+
+	/**
+	 * @return nullなら最初から
+	 */
+	public Timestamp getStart() {
+		return start;
+	}
+
+	/**
+	 * @return nullなら最新まで
+	 */
+	public Timestamp getEnd() {
+		return end;
+	}
+
+	/**
+	 * 実際にrecordのある範囲 [minCreated, maxCreated] を時間で等分する。
+	 * 最初の範囲はこの範囲のstartから, 最後の範囲はこの範囲のendまでにするので
+	 * (nullならそのまま), 数えたあとに増えたrecordも落とさない
+	 *
+	 * @param minCreated 期間の中で一番古いrecord.created
+	 * @param maxCreated 期間の中で一番新しいrecord.created
+	 * @param nRanges 分ける数 (recordのある範囲がそれより短ければ1msごと)
+	 * @return 古い順
+	 */
+	public List<ExportRange> split(Timestamp minCreated, Timestamp maxCreated, int nRanges) {
+		long from = minCreated.getTime();
+		long width = maxCreated.getTime() + 1 - from;  // maxCreatedも含める
+		int n = (int) Math.max(1, Math.min(nRanges, width));
+		if (n == 1) {
+			return Collections.singletonList(this);
+		}
+		List<ExportRange> ret = new ArrayList<>(n);
+		Timestamp rangeStart = start;
+		for (int i = 1; i < n; i++) {
+			Timestamp rangeEnd = new Timestamp(from + width * i / n);
+			ret.add(new ExportRange(rangeStart, rangeEnd));
+			rangeStart = rangeEnd;
+		}
+		ret.add(new ExportRange(rangeStart, end));
+		return ret;
+	}
+
+	@Override
+	public String toString() {
+		return "[" + start + ", " + end + ")";
+	}
+
+}
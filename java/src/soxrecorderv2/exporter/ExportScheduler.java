@@ -0,0 +1,306 @@
+package soxrecorderv2.exporter;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+
+import soxrecorderv2.common.model.ExportTask;
+import soxrecorderv2.common.model.ExportingState;
+import soxrecorderv2.logging.SR2LogType;
+import soxrecorderv2.util.ConfigUtil;
+
+/**
+ * exportのタスクを決まった数のworkerスレッドで動かす。
+ *
+ * - キューは見積もりコスト (読むrecord数) の小さい順。大きなexportが小さなexportを待たせない
+ * - ユーザーごとに同時に動かすのはexport_max_per_userまで (あふれたタスクは次に回り, 他のユーザーのタスクが先に動く)。
+ *   ユーザーのないexport (export.user_idがNULL) は数えない
+ * - export_max_wait_secより長く待ったタスクはコストに関係なく古い順に先に動かす (大きなexportが待ち続けないように)
+ * - cancel()でキューから外すか, 動いているexportを止める
+ */
+public class ExportScheduler {
+
+	public static final String CONFIG_KEY_WORKERS = "export_workers";
+	public static final String CONFIG_KEY_MAX_PER_USER = "export_max_per_user";
+	public static final String CONFIG_KEY_MAX_WAIT_SEC = "export_max_wait_sec";
+
+	public static final int DEFAULT_WORKERS = 2;
+	public static final int DEFAULT_MAX_PER_USER = 1;
+	public static final int DEFAULT_MAX_WAIT_SEC = 30 * 60;
+
+	public static final long TAKE_WAIT_MSEC = 1000;
+	public static final long STOP_JOIN_TIMEOUT_MSEC = 60 * 1000;
+
+	private static final Comparator<ExportTask> COST_ORDER = new Comparator<ExportTask>() {
+		@Override
+		public int compare(ExportTask a, ExportTask b) {
+			int c = Long.compare(a.getEstimatedCost(), b.getEstimatedCost());
+			return (c != 0) ? c : Long.compare(a.getSeq(), b.getSeq());
+		}
+	};
+
+	private class Worker implements Runnable {
+		@Override
+		public void run() {
+			while (isRunning) {
+				ExportTaskExecutor executor;
+				try {
+					executor = takeNext();
+				} catch (InterruptedException e) {
+					continue;
+				}
+				if (executor == null) {
+					continue;  // timeout
+				}
+				runTask(executor);
+			}
+		}
+	}
+
+	private final Exporter parent;
+	private final int nWorkers;
+	private final int maxPerUser;
+	private final long maxWaitMsec;
+
+	private final TreeSet<ExportTask> queue = new TreeSet<>(COST_ORDER);
+	private final Map<Long, ExportTaskExecutor> running = new HashMap<>();  // export.id => executor
+	private final Map<Long, Integer> nRunningPerUser = new HashMap<>();  // user.id => 動いている数
+	private final List<Thread> workerThreads = new ArrayList<>();
+	private volatile boolean isRunning = false;
+	private long nextSeq = 0;
+	private long nFinished = 0;
+	private long nFailed = 0;
+	private long nCancelled = 0;
+
+	public ExportScheduler(Exporter parent) {
+		this.parent = parent;
+		Properties config = parent.getConfig();
+		if (config != null) {
+			this.nWorkers = Math.max(1, ConfigUtil.getInt(config, CONFIG_KEY_WORKERS, DEFAULT_WORKERS));
+			this.maxPerUser = Math.max(1, ConfigUtil.getInt(config, CONFIG_KEY_MAX_PER_USER, DEFAULT_MAX_PER_USER));
+			this.maxWaitMsec = Math.max(1, ConfigUtil.getInt(config, CONFIG_KEY_MAX_WAIT_SEC, DEFAULT_MAX_WAIT_SEC)) * 1000L;
+		} else {
+			this.nWorkers = DEFAULT_WORKERS;
+			this.maxPerUser = DEFAULT_MAX_PER_USER;
+			this.maxWaitMsec = DEFAULT_MAX_WAIT_SEC * 1000L;
+		}
+	}
+
+	public synchronized void start() {
+		isRunning = true;
+		for (int i = 0; i < nWorkers; i++) {
+			Thread t = new Thread(new Worker(), "export-worker-" + i);
+			workerThreads.add(t);
+			t.start();
+		}
+	}
+
+	/**
+	 * 動いているexportを止めて, workerが終わるのを待つ。キューに残ったタスクはそのまま
+	 */
+	public void stop() {
+		List<Thread> threads;
+		synchronized (this) {
+			isRunning = false;
+			for (ExportTaskExecutor executor : running.values()) {
+				executor.stopExporting();
+			}
+			notifyAll();
+			threads = new ArrayList<>(workerThreads);
+			workerThreads.clear();
+		}
+		for (Thread t : threads) {
+			try {
+				t.join(STOP_JOIN_TIMEOUT_MSEC);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return 同じexportがキューにあるか動いていればfalse
+	 */
+	public synchronized boolean submit(ExportTask task) {
+		long exportId = task.getExportId();
+		if (running.containsKey(exportId) || findQueued(exportId) != null) {
+			return false;
+		}
+		task.markQueued(nextSeq++, System.currentTimeMillis());
+		task.setState(ExportingState.IN_QUEUE);
+		queue.add(task);
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * キューにあれば外し, 動いていれば止める
+	 * @return 見つからなければfalse
+	 */
+	public boolean cancel(long exportId) {
+		ExportTask removed;
+		synchronized (this) {
+			ExportTaskExecutor executor = running.get(exportId);
+			if (executor != null) {
+				executor.getTask().cancel();
+				executor.stopExporting();  // 状態はworkerが終わったときに書く
+				return true;
+			}
+			removed = findQueued(exportId);
+			if (removed == null) {
+				return false;
+			}
+			queue.remove(removed);
+			removed.cancel();
+			removed.setState(ExportingState.CANCELLED);
+			nCancelled++;
+		}
+		parent.updateStateOnDatabase(removed);
+		return true;
+	}
+
+	/**
+	 * 次に動かすタスクを選んで, 動いているものとして登録する
+	 * @return タイムアウトや停止ならnull
+	 */
+	private synchronized ExportTaskExecutor takeNext() throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TAKE_WAIT_MSEC;
+		while (isRunning) {
+			long now = System.currentTimeMillis();
+			ExportTask task = selectNext(now);
+			if (task != null) {
+				queue.remove(task);
+				if (task.hasUser()) {
+					Integer n = nRunningPerUser.get(task.getUserId());
+					nRunningPerUser.put(task.getUserId(), (n == null) ? 1 : n + 1);
+				}
+				ExportTaskExecutor executor = new ExportTaskExecutor(parent, task);
+				running.put(task.getExportId(), executor);
+				return executor;
+			}
+			if (deadline <= now) {
+				return null;
+			}
+			wait(deadline - now);
+		}
+		return null;
+	}
+
+	/**
+	 * ユーザーの枠が空いているタスクのうち, 待ちすぎたものがあれば一番古いもの, なければ一番コストの小さいもの
+	 */
+	private ExportTask selectNext(long now) {
+		ExportTask overdue = null;
+		ExportTask cheapest = null;
+		for (ExportTask task : queue) {  // コストの小さい順
+			Integer n = task.hasUser() ? nRunningPerUser.get(task.getUserId()) : null;
+			if (n != null && maxPerUser <= n) {
+				continue;
+			}
+			if (cheapest == null) {
+				cheapest = task;
+			}
+			if (maxWaitMsec <= now - task.getQueuedAt() && (overdue == null || task.getSeq() < overdue.getSeq())) {
+				overdue = task;
+			}
+		}
+		return (overdue != null) ? overdue : cheapest;
+	}
+
+	private void runTask(ExportTaskExecutor executor) {
+		ExportTask task = executor.getTask();
+		task.markStarted(System.currentTimeMillis());
+		task.setState(ExportingState.STARTED);
+		parent.updateStateOnDatabase(task);
+		try {
+			executor.run();  // 終わったらexporterがFINISHEDかERRORにする
+		} catch (Exception e) {
+			task.setState(ExportingState.ERROR);
+		} finally {
+			task.markFinished(System.currentTimeMillis());
+			if (task.isFinished()) {
+				// 書き終わったあとに来たcancelは間に合わなかったものとして, ファイルを残したままFINISHEDにする
+			} else if (task.isCancelled()) {
+				task.setState(ExportingState.CANCELLED);
+			} else {
+				task.setState(ExportingState.ERROR);
+			}
+			finish(task);
+		}
+		parent.updateStateOnDatabase(task);
+		long now = System.currentTimeMillis();
+		parent.getLogger().info(SR2LogType.EXPORT, "export=" + task.getExportId() + " " + task.getState()
+				+ ", wait=" + task.getQueueWaitMsec(now) + "ms, run=" + task.getRunMsec(now) + "ms, records=" + task.getExportedCount());
+	}
+
+	private synchronized void finish(ExportTask task) {
+		running.remove(task.getExportId());
+		if (task.hasUser()) {
+			Integer n = nRunningPerUser.get(task.getUserId());
+			if (n == null || n <= 1) {
+				nRunningPerUser.remove(task.getUserId());
+			} else {
+				nRunningPerUser.put(task.getUserId(), n - 1);
+			}
+		}
+		if (task.getState() == ExportingState.CANCELLED) {
+			nCancelled++;
+		} else if (task.isFinished()) {
+			nFinished++;
+		} else {
+			nFailed++;
+		}
+		notifyAll();  // 同じユーザーの次のタスクが動けるようになった
+	}
+
+	private ExportTask findQueued(long exportId) {
+		Iterator<ExportTask> it = queue.iterator();
+		while (it.hasNext()) {
+			ExportTask task = it.next();
+			if (task.getExportId() == exportId) {
+				return task;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * タスクごとの待ち時間と実行時間
+	 */
+	public synchronized String getStats() {
+		long now = System.currentTimeMillis();
+		StringBuilder sb = new StringBuilder();
+		sb.append("export scheduler: workers=").append(nWorkers)
+			.append(", running=").append(running.size())
+			.append(", queued=").append(queue.size())
+			.append(", finished=").append(nFinished)
+			.append(", failed=").append(nFailed)
+			.append(", cancelled=").append(nCancelled)
+			.append('\n');
+		for (ExportTaskExecutor executor : running.values()) {
+			appendTask(sb, executor.getTask(), now);
+		}
+		for (ExportTask task : queue) {
+			appendTask(sb, task, now);
+		}
+		return sb.toString();
+	}
+
+	private static void appendTask(StringBuilder sb, ExportTask task, long now) {
+		sb.append("  export=").append(task.getExportId())
+			.append(" user=").append(task.getUserId())
+			.append(" state=").append(task.getState())
+			.append(" cost=").append(task.getEstimatedCost())
+			.append(" wait=").append(task.getQueueWaitMsec(now)).append("ms")
+			.append(" run=").append(task.getRunMsec(now)).append("ms")
+			.append(" progress=").append(task.getExportedCount()).append('/').append(task.getTotalRecordCount())
+			.append('\n');
+	}
+
+}
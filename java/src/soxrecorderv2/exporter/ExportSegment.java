@@ -0,0 +1,155 @@
+package soxrecorderv2.exporter;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
+import soxrecorderv2.common.model.SR2Tables;
+import soxrecorderv2.common.model.db.RecordPartition;
+import soxrecorderv2.util.SQLUtil;
+import soxrecorderv2.util.SR2DatabaseUtil;
+
+/**
+ * exportで読むrecord/transducer_raw_value/transducer_typed_valueの組。
+ *
+ * 親テーブルにはパーティションを作る前の行のほかに, 書いたときに子テーブルがなかった行 (退避から戻した古いrecordや,
+ * 子テーブルを作りそこねた期間のもの) も入るので, 親テーブルの行もcreatedで期間に分けて読む。
+ * - 子テーブルのある期間: 子テーブルとその期間の親テーブルの行をUNION ALLで1つのセグメントにする
+ * - 子テーブルのない期間 (最初の子テーブルより前, 最後のものより後, 間があいたところ): 親テーブルの行だけ
+ * セグメントは期間の古い順に並び, 期間は重ならないので, セグメントの順に書けばexport全体もcreatedの順になる。
+ * (親テーブルをONLYなしで読むとtransducer_raw_valueの子テーブルにはcreatedがないので全部なめてしまう。
+ * valueの親テーブルはrecord_idでJOINするので期間で絞らなくてよい)
+ *
+ * FROM句ではテーブルに元の名前の別名をつけるので, 列はrecord.idのように書ける
+ */
+class ExportSegment {
+
+	// UNION ALLで並べる列 (子テーブルはALTERの順に列が増えることがあるので, *を使わない)
+	private static final String RECORD_COLUMNS = "id, observation_id, is_parse_error, created";
+	private static final String RAW_VALUE_COLUMNS = "record_id, has_same_typed_value, value_type, transducer_id, string_value,"
+			+ " int_value, float_value, decimal_value, large_object_id, transducer_timestamp";
+	private static final String TYPED_VALUE_COLUMNS = "record_id, value_type, transducer_id, string_value,"
+			+ " int_value, float_value, decimal_value, large_object_id";
+
+	private final String recordFrom;
+	private final String rawValueFrom;
+	private final String typedValueFrom;
+
+	private ExportSegment(String recordFrom, String rawValueFrom, String typedValueFrom) {
+		this.recordFrom = recordFrom;
+		this.rawValueFrom = rawValueFrom;
+		this.typedValueFrom = typedValueFrom;
+	}
+
+	/**
+	 * @param start nullなら最初から
+	 * @param end nullなら最新まで
+	 * @return [start, end) に重なるセグメント (期間の古い順)
+	 */
+	public static List<ExportSegment> plan(Connection conn, Timestamp start, Timestamp end) throws SQLException {
+		List<ExportSegment> ret = new ArrayList<>();
+		Timestamp gapStart = null;  // 子テーブルのない期間の始まり (nullなら最初から)
+		for (RecordPartition partition : SR2DatabaseUtil.getRecordPartitions(conn)) {  // range_startの順
+			if (gapStart == null || gapStart.before(partition.getRangeStart())) {
+				if (overlaps(gapStart, partition.getRangeStart(), start, end)) {
+					ret.add(parentOnly(gapStart, partition.getRangeStart()));
+				}
+			}
+			if (partition.overlaps(start, end)) {
+				ret.add(withPartition(partition));
+			}
+			gapStart = partition.getRangeEnd();
+		}
+		if (overlaps(gapStart, null, start, end)) {
+			ret.add(parentOnly(gapStart, null));
+		}
+		return ret;
+	}
+
+	/**
+	 * 子テーブルのない期間 [from, to) の親テーブルの行
+	 */
+	private static ExportSegment parentOnly(Timestamp from, Timestamp to) {
+		String recordFrom;
+		if (from == null && to == null) {
+			recordFrom = "ONLY " + SR2Tables.Record + " AS " + SR2Tables.Record;  // パーティションを使っていない
+		} else {
+			recordFrom = "(SELECT " + RECORD_COLUMNS + " FROM ONLY " + SR2Tables.Record + " WHERE " + createdCondition(from, to) + ")"
+					+ " AS " + SR2Tables.Record;
+		}
+		return new ExportSegment(
+				recordFrom,
+				"ONLY " + SR2Tables.TransducerRawValue + " AS " + SR2Tables.TransducerRawValue,
+				"ONLY " + SR2Tables.TransducerTypedValue + " AS " + SR2Tables.TransducerTypedValue);
+	}
+
+	/**
+	 * 子テーブルと, その期間の親テーブルの行
+	 */
+	private static ExportSegment withPartition(RecordPartition partition) {
+		String createdCondition = createdCondition(partition.getRangeStart(), partition.getRangeEnd());
+		return new ExportSegment(
+				"(SELECT " + RECORD_COLUMNS + " FROM ONLY " + SR2Tables.Record + " WHERE " + createdCondition
+					+ " UNION ALL SELECT " + RECORD_COLUMNS + " FROM " + partition.getTableName(SR2Tables.Record) + ")"
+					+ " AS " + SR2Tables.Record,
+				unionWithParent(SR2Tables.TransducerRawValue, RAW_VALUE_COLUMNS, partition),
+				unionWithParent(SR2Tables.TransducerTypedValue, TYPED_VALUE_COLUMNS, partition));
+	}
+
+	private static String unionWithParent(String baseTable, String columns, RecordPartition partition) {
+		return "(SELECT " + columns + " FROM ONLY " + baseTable
+				+ " UNION ALL SELECT " + columns + " FROM " + partition.getTableName(baseTable) + ")"
+				+ " AS " + baseTable;
+	}
+
+	/**
+	 * 期間の境目はrecord_partitionから読んだ値なので, パラメータにせずリテラルで埋める (呼び出し側の?の数が変わらない)
+	 */
+	private static String createdCondition(Timestamp from, Timestamp to) {
+		List<String> conditions = new ArrayList<>();
+		if (from != null) {
+			conditions.add("(timestamp '" + from + "' <= created)");
+		}
+		if (to != null) {
+			conditions.add("(created < timestamp '" + to + "')");
+		}
+		return SQLUtil.andJoin(conditions);
+	}
+
+	/**
+	 * @return [from, to) と [start, end) が重なるか (nullは無限)
+	 */
+	private static boolean overlaps(Timestamp from, Timestamp to, Timestamp start, Timestamp end) {
+		if (start != null && to != null && !start.before(to)) {
+			return false;
+		}
+		if (end != null && from != null && !from.before(end)) {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return "record"という別名つきのFROM句
+	 */
+	public String getRecordFrom() {
+		return recordFrom;
+	}
+
+	/**
+	 * @return "transducer_raw_value"という別名つきのFROM句
+	 */
+	public String getRawValueFrom() {
+		return rawValueFrom;
+	}
+
+	/**
+	 * @return "transducer_typed_value"という別名つきのFROM句
+	 */
+	public String getTypedValueFrom() {
+		return typedValueFrom;
+	}
+
+}
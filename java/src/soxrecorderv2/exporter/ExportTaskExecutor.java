@@ -12,28 +12,39 @@ public class ExportTaskExecutor implements Runnable {
 	private final Exporter parent;
 	private final ExportTask task;
 	private FormatExporter exporter;
+	private boolean isStopped = false;
 	
 	public ExportTaskExecutor(Exporter parent, ExportTask task) {
 		this.parent = parent;
 		this.task = task;
 	}
+	
+	public ExportTask getTask() {
+		return task;
+	}
 
 	@Override
 	public void run() {
 		final Export exportProfile = task.getExportProfile();
 		final ExportFormat format = exportProfile.getFormat();
 		
-		if (format == ExportFormat.CSV) {
-			exporter = new CSVExporter(parent, task);
-		} else if (format == ExportFormat.JSON) {
-			exporter = new JSONExporter(parent, task);
-		} else {
-			throw new IllegalArgumentException();
+		synchronized (this) {
+			if (isStopped) {
+				return;  // 始まる前に止められた
+			}
+			if (format == ExportFormat.CSV) {
+				exporter = new CSVExporter(parent, task);
+			} else if (format == ExportFormat.JSON) {
+				exporter = new JSONExporter(parent, task);
+			} else {
+				throw new IllegalArgumentException();
+			}
 		}
 		exporter.run();
 	}
 	
-	public void stopExporting() {
+	public synchronized void stopExporting() {
+		isStopped = true;
 		if (exporter != null) {
 			exporter.stopExporting();
 		}
@@ -0,0 +1,428 @@
+package soxrecorderv2.exporter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.util.Calendar;
+
+/**
+ * exportファイルへの書き込み用。文字列や数値をUTF-8のバイト列として直接バッファに書く。
+ *
+ * exportは数千万行になるので, 1行ごとにStringを作ってgetBytes()するのをやめるためのもの。
+ * - 整数, 小数 (よくある桁数のもの), BigDecimal (18桁まで), 時刻はStringを経由しない
+ * - 文字列はCSV/JSONのエスケープをしながらUTF-8にする
+ *
+ * 下のOutputStreamは呼び出し側で閉じること (flush()はする)。スレッドセーフではない
+ */
+public class ExportWriter {
+
+	public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+	private static final byte[] HEX = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+	private static final long[] POW10 = {
+		1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L
+	};
+	private static final double MAX_EXACT_LONG = 9007199254740992.0;  // 2^53
+	private static final int MAX_FAST_DOUBLE_SCALE = 9;
+
+	private final OutputStream out;
+	private final byte[] buffer;
+	private int position = 0;
+	private long nWrittenBytes = 0;
+
+	// createdは時刻順に来るので, "yyyy-MM-dd HH:mm:" の部分を分ごとに覚えておく (秒以下は計算する)
+	private final Calendar calendar = Calendar.getInstance();
+	private final byte[] minutePrefix = new byte[17];
+	private long cachedMinute = Long.MIN_VALUE;
+
+	public ExportWriter(OutputStream out) {
+		this(out, DEFAULT_BUFFER_SIZE);
+	}
+
+	public ExportWriter(OutputStream out, int bufferSize) {
+		this.out = out;
+		this.buffer = new byte[Math.max(64, bufferSize)];
+	}
+
+	public void writeByte(int b) throws IOException {
+		if (position == buffer.length) {
+			flushBuffer();
+		}
+		buffer[position++] = (byte) b;
+	}
+
+	public void writeBytes(byte[] bytes) throws IOException {
+		writeBytes(bytes, 0, bytes.length);
+	}
+
+	public void writeBytes(byte[] bytes, int offset, int length) throws IOException {
+		if (buffer.length - position < length) {
+			flushBuffer();
+			if (buffer.length < length) {
+				out.write(bytes, offset, length);
+				nWrittenBytes += length;
+				return;
+			}
+		}
+		System.arraycopy(bytes, offset, buffer, position, length);
+		position += length;
+	}
+
+	/**
+	 * ASCIIだけの文字列 (列名や区切りなど) を書く
+	 */
+	public void writeAscii(String s) throws IOException {
+		int n = s.length();
+		if (buffer.length < n) {
+			for (int i = 0; i < n; i++) {
+				writeByte(s.charAt(i));
+			}
+			return;
+		}
+		ensureRoom(n);
+		for (int i = 0; i < n; i++) {
+			buffer[position++] = (byte) s.charAt(i);
+		}
+	}
+
+	/**
+	 * エスケープせずにUTF-8で書く
+	 */
+	public void writeUtf8(String s) throws IOException {
+		int n = s.length();
+		for (int i = 0; i < n; i++) {
+			i = writeUtf8Char(s, i);
+		}
+	}
+
+	public void writeLong(long value) throws IOException {
+		if (value == Long.MIN_VALUE) {
+			writeAscii("-9223372036854775808");
+			return;
+		}
+		ensureRoom(20);
+		if (value < 0) {
+			buffer[position++] = '-';
+			value = -value;
+		}
+		int nDigits = countDigits(value);
+		int end = position + nDigits;
+		for (int i = end - 1; position <= i; i--) {
+			buffer[i] = (byte) ('0' + (value % 10));
+			value /= 10;
+		}
+		position = end;
+	}
+
+	/**
+	 * Double.toString()と同じく, 読みなおすと同じ値になる小数で書く (指数表記にはしない。NaNと無限大は"NaN", "Infinity")。
+	 * 小数点以下9桁までで表せる値 (センサの値はほとんどこれ) はStringを作らない
+	 */
+	public void writeDouble(double value) throws IOException {
+		if (Double.isNaN(value) || Double.isInfinite(value)) {
+			writeAscii(Double.toString(value));
+			return;
+		}
+		double abs = Math.abs(value);
+		if (abs < MAX_EXACT_LONG / POW10[1]) {
+			for (int scale = 1; scale <= MAX_FAST_DOUBLE_SCALE; scale++) {
+				double scaled = abs * POW10[scale];
+				if (MAX_EXACT_LONG <= scaled) {
+					break;
+				}
+				long unscaled = Math.round(scaled);
+				if (unscaled / (double) POW10[scale] == abs) {  // 2^53未満と10^9なので割り算は正しく丸められる
+					if (value < 0 || (value == 0 && 1 / value < 0)) {
+						writeByte('-');
+					}
+					writeScaled(unscaled, scale);
+					return;
+				}
+			}
+		}
+		// 桁の多いものはDouble.toString()と同じ桁で, 指数表記にせずに書く (1.0E-10 => 0.00000000010)
+		writeDecimal(BigDecimal.valueOf(value));
+	}
+
+	/**
+	 * 指数表記を使わずに書く (18桁までならStringを作らない)
+	 */
+	public void writeDecimal(BigDecimal value) throws IOException {
+		int scale = value.scale();
+		if (0 <= scale && scale < POW10.length && value.precision() <= 18) {
+			long unscaled = value.unscaledValue().longValue();
+			if (unscaled < 0) {
+				writeByte('-');
+				unscaled = -unscaled;
+			}
+			if (scale == 0) {
+				writeLong(unscaled);
+			} else {
+				writeScaled(unscaled, scale);
+			}
+			return;
+		}
+		writeAscii(value.toPlainString());
+	}
+
+	/**
+	 * "yyyy-MM-dd HH:mm:ss.SSS" (JVMのタイムゾーン) で書く
+	 */
+	public void writeTimestamp(long millis) throws IOException {
+		long minute = Math.floorDiv(millis, 60000);  // タイムゾーンのずれは分単位なので, 分の区切りはUTCと同じ
+		if (minute != cachedMinute) {
+			calendar.setTimeInMillis(minute * 60000);
+			int p = 0;
+			p = putDigits(minutePrefix, p, calendar.get(Calendar.YEAR), 4);
+			minutePrefix[p++] = '-';
+			p = putDigits(minutePrefix, p, calendar.get(Calendar.MONTH) + 1, 2);
+			minutePrefix[p++] = '-';
+			p = putDigits(minutePrefix, p, calendar.get(Calendar.DAY_OF_MONTH), 2);
+			minutePrefix[p++] = ' ';
+			p = putDigits(minutePrefix, p, calendar.get(Calendar.HOUR_OF_DAY), 2);
+			minutePrefix[p++] = ':';
+			p = putDigits(minutePrefix, p, calendar.get(Calendar.MINUTE), 2);
+			minutePrefix[p++] = ':';
+			cachedMinute = minute;
+		}
+		int millisInMinute = (int) Math.floorMod(millis, 60000);
+		ensureRoom(minutePrefix.length + 6);
+		System.arraycopy(minutePrefix, 0, buffer, position, minutePrefix.length);
+		position += minutePrefix.length;
+		position = putDigits(buffer, position, millisInMinute / 1000, 2);
+		buffer[position++] = '.';
+		position = putDigits(buffer, position, millisInMinute % 1000, 3);
+	}
+
+	/**
+	 * CSVの1つのフィールドとして書く (区切り文字, ", 改行をふくむときだけ""でかこむ)
+	 */
+	public void writeCsvField(String s) throws IOException {
+		if (s == null) {
+			return;
+		}
+		if (!needsCsvQuote(s)) {
+			writeUtf8(s);
+			return;
+		}
+		writeByte('"');
+		int n = s.length();
+		for (int i = 0; i < n; i++) {
+			if (s.charAt(i) == '"') {
+				writeByte('"');
+			}
+			i = writeUtf8Char(s, i);
+		}
+		writeByte('"');
+	}
+
+	/**
+	 * UTF-8のバイト列 (large_objectの中身など) をCSVの1つのフィールドとして書く
+	 */
+	public void writeCsvField(byte[] utf8) throws IOException {
+		if (utf8 == null) {
+			return;
+		}
+		boolean needsQuote = false;
+		for (byte b : utf8) {
+			if (b == ',' || b == '"' || b == '\n' || b == '\r') {
+				needsQuote = true;
+				break;
+			}
+		}
+		if (!needsQuote) {
+			writeBytes(utf8);
+			return;
+		}
+		writeByte('"');
+		for (byte b : utf8) {
+			if (b == '"') {
+				writeByte('"');
+			}
+			writeByte(b);
+		}
+		writeByte('"');
+	}
+
+	/**
+	 * JSONの文字列として書く ("でかこむ, nullならnull)
+	 */
+	public void writeJsonString(String s) throws IOException {
+		if (s == null) {
+			writeAscii("null");
+			return;
+		}
+		writeByte('"');
+		int n = s.length();
+		int i = 0;
+		if (n < buffer.length) {
+			// エスケープのいらないASCIIが続くあいだはまとめて書く
+			ensureRoom(n);
+			while (i < n) {
+				char c = s.charAt(i);
+				if (c < 0x20 || 0x80 <= c || c == '"' || c == '\\') {
+					break;
+				}
+				buffer[position++] = (byte) c;
+				i++;
+			}
+		}
+		for (; i < n; i++) {
+			char c = s.charAt(i);
+			if (c < 0x20 || c == '"' || c == '\\') {
+				writeJsonEscape(c);
+			} else {
+				i = writeUtf8Char(s, i);
+			}
+		}
+		writeByte('"');
+	}
+
+	/**
+	 * UTF-8のバイト列をJSONの文字列として書く (マルチバイト文字はそのまま)
+	 */
+	public void writeJsonString(byte[] utf8) throws IOException {
+		if (utf8 == null) {
+			writeAscii("null");
+			return;
+		}
+		writeByte('"');
+		for (byte b : utf8) {
+			if (0 <= b && (b < 0x20 || b == '"' || b == '\\')) {
+				writeJsonEscape((char) b);
+			} else {
+				writeByte(b);
+			}
+		}
+		writeByte('"');
+	}
+
+	/**
+	 * @return 下のOutputStreamに書いたバイト数 + バッファにあるバイト数
+	 */
+	public long getWrittenBytes() {
+		return nWrittenBytes + position;
+	}
+
+	public void flush() throws IOException {
+		flushBuffer();
+		out.flush();
+	}
+
+	private void writeJsonEscape(char c) throws IOException {
+		ensureRoom(6);
+		buffer[position++] = '\\';
+		switch (c) {
+		case '"':
+			buffer[position++] = '"';
+			break;
+		case '\\':
+			buffer[position++] = '\\';
+			break;
+		case '\n':
+			buffer[position++] = 'n';
+			break;
+		case '\r':
+			buffer[position++] = 'r';
+			break;
+		case '\t':
+			buffer[position++] = 't';
+			break;
+		default:
+			buffer[position++] = 'u';
+			buffer[position++] = '0';
+			buffer[position++] = '0';
+			buffer[position++] = HEX[(c >>> 4) & 0xf];
+			buffer[position++] = HEX[c & 0xf];
+			break;
+		}
+	}
+
+	/**
+	 * s[i]をUTF-8で書く (サロゲートペアならs[i+1]も)
+	 * @return 最後に読んだ文字の位置
+	 */
+	private int writeUtf8Char(String s, int i) throws IOException {
+		char c = s.charAt(i);
+		if (c < 0x80) {
+			writeByte(c);
+			return i;
+		}
+		ensureRoom(4);
+		if (c < 0x800) {
+			buffer[position++] = (byte) (0xc0 | (c >>> 6));
+			buffer[position++] = (byte) (0x80 | (c & 0x3f));
+		} else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+			int cp = Character.toCodePoint(c, s.charAt(i + 1));
+			buffer[position++] = (byte) (0xf0 | (cp >>> 18));
+			buffer[position++] = (byte) (0x80 | ((cp >>> 12) & 0x3f));
+			buffer[position++] = (byte) (0x80 | ((cp >>> 6) & 0x3f));
+			buffer[position++] = (byte) (0x80 | (cp & 0x3f));
+			return i + 1;
+		} else if (Character.isSurrogate(c)) {
+			buffer[position++] = '?';  // 対になっていないサロゲート (String.getBytes()と同じ)
+		} else {
+			buffer[position++] = (byte) (0xe0 | (c >>> 12));
+			buffer[position++] = (byte) (0x80 | ((c >>> 6) & 0x3f));
+			buffer[position++] = (byte) (0x80 | (c & 0x3f));
+		}
+		return i;
+	}
+
+	private static boolean needsCsvQuote(String s) {
+		int n = s.length();
+		for (int i = 0; i < n; i++) {
+			char c = s.charAt(i);
+			if (c == ',' || c == '"' || c == '\n' || c == '\r') {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * unscaled / 10^scale を "整数部.小数部" で書く (unscaled >= 0, 1 <= scale <= 9)
+	 */
+	private void writeScaled(long unscaled, int scale) throws IOException {
+		writeLong(unscaled / POW10[scale]);
+		ensureRoom(1 + scale);
+		buffer[position++] = '.';
+		position = putDigits(buffer, position, (int) (unscaled % POW10[scale]), scale);
+	}
+
+	/**
+	 * valueを0埋めでnDigits桁書く
+	 * @return 書いたあとの位置
+	 */
+	private static int putDigits(byte[] dest, int pos, int value, int nDigits) {
+		for (int i = pos + nDigits - 1; pos <= i; i--) {
+			dest[i] = (byte) ('0' + (value % 10));
+			value /= 10;
+		}
+		return pos + nDigits;
+	}
+
+	private static int countDigits(long value) {
+		int n = 1;
+		while (10 <= value) {
+			value /= 10;
+			n++;
+		}
+		return n;
+	}
+
+	private void ensureRoom(int n) throws IOException {
+		if (buffer.length - position < n) {
+			flushBuffer();
+		}
+	}
+
+	private void flushBuffer() throws IOException {
+		if (0 < position) {
+			out.write(buffer, 0, position);
+			nWrittenBytes += position;
+			position = 0;
+		}
+	}
+
+}
@@ -3,15 +3,30 @@ package soxrecorderv2.exporter;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import net.arnx.jsonic.JSONException;
+import soxrecorderv2.common.model.ExportFormat;
 import soxrecorderv2.common.model.ExportTask;
 import soxrecorderv2.common.model.ExportingState;
+import soxrecorderv2.common.model.SR2Tables;
 import soxrecorderv2.common.model.db.Export;
+import soxrecorderv2.logging.SR2LogItem;
+import soxrecorderv2.logging.SR2LogType;
+import soxrecorderv2.logging.SR2Logger;
+import soxrecorderv2.logging.SR2PostgresLogWriter;
 import soxrecorderv2.util.PGConnectionManager;
+import soxrecorderv2.util.SQLUtil;
 
 /**
  * runs as a daemon, waiting for request to build export archive
@@ -20,68 +35,197 @@ import soxrecorderv2.util.PGConnectionManager;
  */
 public class Exporter implements Runnable {
 	
-	public static final long QUEUE_PUT_TIMEOUT_MSEC = 100;
-	
 	public static final String CONFIG_KEY_ENDPOINT = "controller_endpoint";
 	public static final String CONFIG_KEY_EXPORTER_API_KEY = "exporter_api_key";
+	public static final String SYSTEM = "exporter";  // event_log.system
+	
+	private static final String SELECT_EXPORT_SQL = "SELECT id, user_id, time_start, time_end, format, is_gzipped, is_include_xml,"
+			+ " is_using_raw_value, file_name, save_until, created, state FROM export WHERE id = ?;";
+	private static final String UPDATE_STATE_SQL = "UPDATE export SET state = ? WHERE id = ?;";
+	private static final Pattern PLAN_ROWS = Pattern.compile("rows=(\\d+)");
 	
 	private String configFile;
 //	private SR2SystemConfig config;
 	private Properties config;
 	private PGConnectionManager connManager;
+	private LinkedBlockingQueue<SR2LogItem> logItemQueue;
+	private SR2PostgresLogWriter logWriter;
+	private SR2Logger logger;
 	
-	private LinkedBlockingQueue<ExportTask> taskQueue;
-	private ExportThread exportThread;
+	private ExportScheduler scheduler;
 //	private SoxRecorderClient client;
-	private boolean isRunning;
+	private volatile boolean isRunning;
 	
 	public Exporter(String configFile) throws JSONException, IOException {
 		this.configFile = configFile;
 //		this.config = new SR2SystemConfig(configFile);
 		loadConfig();
 		connManager = new PGConnectionManager(config);
+		logItemQueue = new LinkedBlockingQueue<>(10000);
+		logWriter = new SR2PostgresLogWriter(config, logItemQueue, 500);
+		logger = new SR2Logger(SYSTEM, "Exporter", logItemQueue);
 	}
 	
-	public LinkedBlockingQueue<ExportTask> getTaskQueue() {
-		return taskQueue;
+	public ExportScheduler getScheduler() {
+		return scheduler;
 	}
 	
 	@Override
 	public void run() {
 		isRunning = true;
-		taskQueue = new LinkedBlockingQueue<>();
+		(new Thread(logWriter, "export-log-writer")).start();
+		
+		// start export workers
+		scheduler = new ExportScheduler(this);
+		scheduler.start();
 		
-		// start export thread
-		exportThread = new ExportThread(this);
-		(new Thread(exportThread)).run();
+		// accept commands (start/cancel/stats) on this thread
+		(new ExporterServer(this)).run();
+	}
+	
+	public void stopExporter() {
+		isRunning = false;
+		if (scheduler != null) {
+			scheduler.stop();
+		}
+		logWriter.shutdownSubProcess();
 	}
 	
 	public boolean isRunning() {
 		return isRunning;
 	}
 	
+	public SR2Logger getLogger() {
+		return logger;
+	}
+	
 	public PGConnectionManager getConnManager() {
 		return connManager;
 	}
 	
-	protected void enqueueExportTask(long exportId) {
-		// TODO: fetch export profile
-		Export export = null;
-		
-		ExportingState newState = ExportingState.IN_QUEUE;
-		ExportTask task = new ExportTask(newState, export);
+	public Properties getConfig() {
+		return config;
+	}
+	
+	/**
+	 * exportの設定を読み, 読むrecord数を見積もってキューに入れる
+	 * @return exportが見つからないか, すでにキューにあるか動いていればfalse
+	 */
+	protected synchronized boolean enqueueExportTask(long exportId) {
+		if (!isRunning) {
+			return false;
+		}
+		Export export;
+		long estimatedCost;
+		try {
+			export = loadExport(exportId);
+			estimatedCost = (export == null) ? 0 : estimateCost(export);
+			connManager.getConnection().rollback();
+		} catch (SQLException e) {
+			logger.error(SR2LogType.JAVA_SQL_EXCEPTION, "failed to load export: export=" + exportId, e);
+			connManager.invalidate();
+			return false;
+		} finally {
+			connManager.release();
+		}
+		if (export == null || export.getFormat() == null) {
+			return false;
+		}
 		
-		boolean putFinished = false;
-		while (!putFinished && isRunning) {
-			try {
-				taskQueue.offer(task, QUEUE_PUT_TIMEOUT_MSEC, TimeUnit.MILLISECONDS);
-				putFinished = true;
-			} catch (InterruptedException e) {
-				// TODO: logging
+		ExportTask task = new ExportTask(ExportingState.IN_QUEUE, export, estimatedCost);
+		if (!scheduler.submit(task)) {
+			return false;
+		}
+		updateStateOnDatabase(task);
+		return true;
+	}
+	
+	/**
+	 * export.stateをタスクの状態にする
+	 */
+	public synchronized void updateStateOnDatabase(ExportTask task) {
+		try {
+			Connection conn = connManager.getConnection();
+			PreparedStatement ps = connManager.prepareStatement(UPDATE_STATE_SQL);
+			ps.setInt(1, task.getState().getState());
+			ps.setLong(2, task.getExportId());
+			ps.executeUpdate();
+			conn.commit();
+			connManager.updateLastCommunicateTime();
+		} catch (SQLException e) {
+			logger.error(SR2LogType.JAVA_SQL_EXCEPTION,
+					"failed to update export state: export=" + task.getExportId() + ", state=" + task.getState(), e);
+			connManager.invalidate();
+		} finally {
+			connManager.release();
+		}
+	}
+	
+	private Export loadExport(long exportId) throws SQLException {
+		PreparedStatement ps = connManager.prepareStatement(SELECT_EXPORT_SQL);
+		ps.setLong(1, exportId);
+		ResultSet rs = ps.executeQuery();
+		connManager.updateLastCommunicateTime();
+		Export ret = null;
+		if (rs.next()) {
+			long userId = rs.getLong(2);
+			if (rs.wasNull()) {
+				userId = Export.NO_USER;
 			}
+			ret = new Export(
+				rs.getLong(1),
+				userId,
+				SQLUtil.toCalendar(rs.getTimestamp(3)),
+				SQLUtil.toCalendar(rs.getTimestamp(4)),
+				ExportFormat.of(rs.getString(5)),
+				rs.getBoolean(6),
+				rs.getBoolean(7),
+				rs.getBoolean(8),
+				rs.getString(9),
+				SQLUtil.toCalendar(rs.getTimestamp(10)),
+				SQLUtil.toCalendar(rs.getTimestamp(11)),
+				rs.getInt(12)
+			);
+		}
+		rs.close();
+		return ret;
+	}
+	
+	/**
+	 * プランナーの見積もり (テーブルの統計) で期間のrecord数を見積もる。数えないので大きなexportでもすぐ返る
+	 */
+	private long estimateCost(Export export) throws SQLException {
+		List<String> conditions = new ArrayList<>();
+		List<Timestamp> args = new ArrayList<>();
+		if (!export.isFromBeginning()) {
+			conditions.add("(? <= created)");
+			args.add(SQLUtil.toTimestamp(export.getTimeStart()));
+		}
+		if (!export.isUntilLatest()) {
+			conditions.add("(created < ?)");
+			args.add(SQLUtil.toTimestamp(export.getTimeEnd()));
+		}
+		String sql = "EXPLAIN SELECT id FROM " + SR2Tables.Record;
+		if (!conditions.isEmpty()) {
+			sql += " WHERE " + SQLUtil.andJoin(conditions);
 		}
 		
-//		getClient().updateExportState(exportId, newState);
+		PreparedStatement ps = connManager.getConnection().prepareStatement(sql);
+		int idx = 1;
+		for (Timestamp arg : args) {
+			ps.setTimestamp(idx++, arg);
+		}
+		ResultSet rs = ps.executeQuery();
+		long ret = 0;
+		if (rs.next()) {
+			Matcher m = PLAN_ROWS.matcher(rs.getString(1));  // 一番上のノードの rows=N
+			if (m.find()) {
+				ret = Long.parseLong(m.group(1));
+			}
+		}
+		rs.close();
+		ps.close();
+		return ret;
 	}
 	
 //	protected SoxRecorderClient getClient() {
@@ -94,7 +238,7 @@ public class Exporter implements Runnable {
 //	protected SoxRecorderClient buildClient() {
 //		String endpoint = config.get("controller_endpoint");
 //		String apiKey = config.get("exporter_api_key");
-//		
+//
 //		return new SoxRecorderClient(endpoint, apiKey);
 //	}
 	
@@ -111,7 +255,7 @@ public class Exporter implements Runnable {
 			e.printStackTrace();
 		}
 	}
-
+	
 	public static void main(String[] args) throws JSONException, IOException {
 		if (args.length == 0) {
 			throw new IllegalArgumentException("missing config file in argument");
@@ -119,8 +263,12 @@ public class Exporter implements Runnable {
 		String configFile = args[0];
 		
 		final Exporter exporter = new Exporter(configFile);
-		// TODO: register SIGINT handler to stop exporter
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override public void run() {
+				exporter.stopExporter();  // 動いているexportを止める (SIGINTなど)
+			}
+		});
 		exporter.run();
 	}
-
+	
 }
@@ -3,10 +3,13 @@ package soxrecorderv2.exporter;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.net.ServerSocket;
 import java.net.Socket;
 
 import org.apache.commons.io.IOUtils;
+import soxrecorderv2.util.MyCharSet;
 
 
 /**
@@ -38,6 +41,13 @@ public class ExporterServer implements Runnable {
 				return;
 			}
 			BufferedReader reader = new BufferedReader(inReader);
+			Writer writer;
+			try {
+				writer = new OutputStreamWriter(client.getOutputStream(), MyCharSet.UTF8);
+			} catch (IOException e) {
+				IOUtils.closeQuietly(client);
+				return;
+			}
 			while (true) {
 				String line = null;
 				try {
@@ -55,13 +65,29 @@ public class ExporterServer implements Runnable {
 					break;
 				}
 				
+				String response;
 				if (line.startsWith("start ")) {
-					String[] chunks = line.split(" ");
-					long exportId = Long.parseLong(chunks[1]);
+					long exportId = parseExportId(line);
 					
-					system.enqueueExportTask(exportId);
+					response = system.enqueueExportTask(exportId) ? "queued" : "rejected";
+				} else if (line.startsWith("cancel ")) {
+					long exportId = parseExportId(line);
+					
+					response = system.getScheduler().cancel(exportId) ? "cancelled" : "not found";
+				} else if (line.toLowerCase().equals("stats")) {
+					// 動いている/待っているexportの待ち時間, 実行時間, 進捗
+					response = system.getScheduler().getStats();
+				} else {
+					response = "unknown command (start <export_id>, cancel <export_id>, stats, exit)";
+				}
+				
+				try {
+					writer.write(response);
+					writer.write("\r\n");
+					writer.flush();
+				} catch (IOException e) {
+					break;  // client closed
 				}
-				// TODO: start 以外のコマンドを実装する, 進捗を確認するコマンド
 			}
 			
 			IOUtils.closeQuietly(client);
@@ -70,6 +96,21 @@ public class ExporterServer implements Runnable {
 	
 	private final Exporter system;
 	
+	/**
+	 * @return "start 123" の123, ないか数でなければ-1 (見つからないexportとして扱う)
+	 */
+	private static long parseExportId(String line) {
+		String[] chunks = line.trim().split(" +");
+		if (chunks.length < 2) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(chunks[1]);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+	
 	public ExporterServer(Exporter system) {
 		this.system = system;
 	}
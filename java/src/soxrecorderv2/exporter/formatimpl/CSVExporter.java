@@ -1,36 +1,57 @@
 package soxrecorderv2.exporter.formatimpl;
 
-import java.util.Collection;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.List;
 
 import soxrecorderv2.common.model.ExportTask;
 import soxrecorderv2.common.model.db.Observation;
 import soxrecorderv2.common.model.db.Record;
 import soxrecorderv2.common.model.db.TValue;
 import soxrecorderv2.exporter.AbstractExporter;
+import soxrecorderv2.exporter.ExportWriter;
 import soxrecorderv2.exporter.Exporter;
 
+/**
+ * 1つの値を1行にするCSV (RFC 4180)。
+ * record_id,observation_id,created,transducer,value
+ */
 public class CSVExporter extends AbstractExporter {
 	
+	private static final String HEADER = "record_id,observation_id,created,transducer,value\r\n";
+	
 	public CSVExporter(final Exporter parent, final ExportTask task) {
 		initialize(parent, task);
 	}
 
 	@Override
-	public String buildHeaderContent() {
-		// TODO Auto-generated method stub
-		return null;
+	protected AbstractExporter newRangeExporter() {
+		return new CSVExporter(getParent(), getTask());
 	}
 
 	@Override
-	public String buildItemContent(Observation observation, Record record, Collection<TValue> values) {
-		// TODO Auto-generated method stub
-		return null;
+	public void writeHeader(ExportWriter out) throws IOException {
+		out.writeAscii(HEADER);
 	}
 
 	@Override
-	public String buildItemContent(Observation observation, Record record, Collection<TValue> values, String rawXml) {
-		// TODO Auto-generated method stub
-		return null;
+	public void writeItem(ExportWriter out, Observation observation, Record record, List<TValue> values) throws IOException, SQLException {
+		for (TValue value : values) {
+			if (value == null) {
+				continue;  // typed valueが見つからなかった
+			}
+			out.writeLong(record.getDatabaseId());
+			out.writeByte(',');
+			out.writeLong(record.getObservationId());
+			out.writeByte(',');
+			out.writeTimestamp(record.getCreated().getTime());
+			out.writeByte(',');
+			out.writeCsvField(getTransducerName(record.getObservationId(), value.getTransducerId()));
+			out.writeByte(',');
+			writeValue(out, value, false);
+			out.writeByte('\r');
+			out.writeByte('\n');
+		}
 	}
 
 }
@@ -1,14 +1,21 @@
 package soxrecorderv2.exporter.formatimpl;
 
-import java.util.Collection;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.List;
 
 import soxrecorderv2.common.model.ExportTask;
 import soxrecorderv2.common.model.db.Observation;
 import soxrecorderv2.common.model.db.Record;
 import soxrecorderv2.common.model.db.TValue;
 import soxrecorderv2.exporter.AbstractExporter;
+import soxrecorderv2.exporter.ExportWriter;
 import soxrecorderv2.exporter.Exporter;
 
+/**
+ * 1つのrecordを1行にするJSON Lines。
+ * {"record_id":1,"observation_id":2,"created":"2016-07-01 12:34:56.789","values":{"temperature":21.3,...}}
+ */
 public class JSONExporter extends AbstractExporter {
 	
 	public JSONExporter(final Exporter parent, final ExportTask task) {
@@ -16,15 +23,40 @@ public class JSONExporter extends AbstractExporter {
 	}
 
 	@Override
-	public String buildItemContent(Observation observation, Record record, Collection<TValue> values) {
-		// TODO Auto-generated method stub
-		return null;
+	protected AbstractExporter newRangeExporter() {
+		return new JSONExporter(getParent(), getTask());
 	}
 
 	@Override
-	public String buildItemContent(Observation observation, Record record, Collection<TValue> values, String rawXml) {
-		// TODO Auto-generated method stub
-		return null;
+	public void writeItem(ExportWriter out, Observation observation, Record record, List<TValue> values) throws IOException, SQLException {
+		out.writeAscii("{\"record_id\":");
+		out.writeLong(record.getDatabaseId());
+		out.writeAscii(",\"observation_id\":");
+		out.writeLong(record.getObservationId());
+		out.writeAscii(",\"created\":\"");
+		out.writeTimestamp(record.getCreated().getTime());
+		out.writeAscii("\",\"values\":{");
+		boolean isFirst = true;
+		for (TValue value : values) {
+			if (value == null) {
+				continue;  // typed valueが見つからなかった
+			}
+			if (!isFirst) {
+				out.writeByte(',');
+			}
+			isFirst = false;
+			String name = getTransducerName(record.getObservationId(), value.getTransducerId());
+			if (name == null) {
+				out.writeByte('"');
+				out.writeLong(value.getTransducerId());  // keyは文字列にする
+				out.writeByte('"');
+			} else {
+				out.writeJsonString(name);
+			}
+			out.writeByte(':');
+			writeValue(out, value, true);
+		}
+		out.writeAscii("}}\n");
 	}
 
 }
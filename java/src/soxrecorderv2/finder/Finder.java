@@ -105,6 +105,7 @@ public class Finder implements Runnable, RecorderSubProcess {
 				}
 			}
 			
+			connManager.release();
 			System.out.println("[Finder][" + soxServer + "] sleeping...");
 			while (isRunning && (System.currentTimeMillis() - tBefore < intervalSec)) {
 				ThreadUtil.sleep(250);
@@ -50,7 +50,17 @@ public enum SR2LogType {
 	
 	UNSUBSCRIBE_FAILED         ( 20025 ),
 	
-	SOX_CONN_RENEW             ( 10026 )
+	SOX_CONN_RENEW             ( 10026 ),
+	
+	PIPELINE_STATS             ( 10027 ),
+	
+	COMPRESSION_DICTIONARY_CREATE ( 10028 ),
+	
+	RECORD_PARTITION_CREATE    ( 10029 ),
+	RECORD_PARTITION_DROP      ( 10030 ),
+	
+	EXPORT_FAILED              ( 20031 ),
+	EXPORT                     ( 10031 )
 	
 	;
 	
@@ -7,6 +7,7 @@ import java.sql.Savepoint;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Properties;
 import java.util.concurrent.LinkedBlockingQueue;
 
 import soxrecorderv2.common.model.SR2Tables;
@@ -28,9 +29,16 @@ public class SR2PostgresLogWriter implements Runnable, RecorderSubProcess {
 	private final int batchSize = 50;
 	
 	public SR2PostgresLogWriter(Recorder parent, long interval) {
+		this(parent.getConfig(), parent.getLogItemQueue(), interval);
 		this.parent = parent;
-		this.pgConnManager = new PGConnectionManager(parent.getConfig());
-		this.logItemQueue = parent.getLogItemQueue();
+	}
+	
+	/**
+	 * Recorder以外 (exporterなど) から使うとき
+	 */
+	public SR2PostgresLogWriter(Properties config, LinkedBlockingQueue<SR2LogItem> logItemQueue, long interval) {
+		this.pgConnManager = new PGConnectionManager(config);
+		this.logItemQueue = logItemQueue;
 		this.interval = interval;
 	}
 
@@ -69,6 +77,9 @@ public class SR2PostgresLogWriter implements Runnable, RecorderSubProcess {
 						writeLogItems(logItems);
 					} catch (SQLException e) {
 						e.printStackTrace();  // TODO
+						pgConnManager.invalidateIfBroken(e);
+					} finally {
+						pgConnManager.release();
 					}
 				} else {
 //					debug("zero items to insert to DB");
@@ -0,0 +1,224 @@
+package soxrecorderv2.recorder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+
+import soxrecorderv2.codec.CompressionCodecs;
+import soxrecorderv2.common.model.SR2Tables;
+import soxrecorderv2.common.model.db.RecordPartition;
+import soxrecorderv2.util.MyCharSet;
+
+/**
+ * PostgreSQLの COPY ... FROM STDIN (text format) で行を投入するRecordRowWriter。
+ *
+ * 行ごとのBind/Executeがなくなるので, 件数の多い transducer_raw_value などではJDBCのバッチよりかなり速い。
+ * テーブルごとにテキストをためておいて, flush()でテーブルごとに1回ずつCOPYを流す。
+ */
+public class CopyRecordRowWriter implements RecordRowWriter {
+
+	private static final String COPY_RECORD_COLUMNS = " (id, observation_id, is_parse_error, created) FROM STDIN";
+	private static final String COPY_RAW_XML_COLUMNS = " (record_id, is_gzipped, codec, dictionary_id, raw_xml) FROM STDIN";
+	private static final String COPY_RAW_VALUE_COLUMNS = " (record_id, has_same_typed_value, value_type, transducer_id, string_value,"
+			+ " int_value, float_value, decimal_value, large_object_id, transducer_timestamp) FROM STDIN";
+	private static final String COPY_TYPED_VALUE_COLUMNS = " (record_id, value_type, transducer_id, string_value,"
+			+ " int_value, float_value, decimal_value, large_object_id) FROM STDIN";
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	private static final String NULL = "\\N";
+
+	private final Connection conn;
+	private final String copyRecordSql;
+	private final String copyRawXmlSql;
+	private final String copyRawValueSql;
+	private final String copyTypedValueSql;
+	private final StringBuilder records = new StringBuilder();
+	private final StringBuilder rawXmls = new StringBuilder();
+	private final StringBuilder rawValues = new StringBuilder();
+	private final StringBuilder typedValues = new StringBuilder();
+
+	/**
+	 * @param partition 書き込み先の子テーブル, nullなら親テーブルに書く
+	 */
+	public CopyRecordRowWriter(Connection conn, RecordPartition partition) {
+		this.conn = conn;
+		this.copyRecordSql = "COPY " + tableName(SR2Tables.Record, partition) + COPY_RECORD_COLUMNS;
+		this.copyRawXmlSql = "COPY " + tableName(SR2Tables.RawXml, partition) + COPY_RAW_XML_COLUMNS;
+		this.copyRawValueSql = "COPY " + tableName(SR2Tables.TransducerRawValue, partition) + COPY_RAW_VALUE_COLUMNS;
+		this.copyTypedValueSql = "COPY " + tableName(SR2Tables.TransducerTypedValue, partition) + COPY_TYPED_VALUE_COLUMNS;
+	}
+	
+	private static String tableName(String baseTable, RecordPartition partition) {
+		return (partition == null) ? baseTable : partition.getTableName(baseTable);
+	}
+
+	@Override
+	public void addRecord(long recordId, long observationId, boolean isParseError, Timestamp created) {
+		StringBuilder sb = records;
+		sb.append(recordId).append('\t');
+		sb.append(observationId).append('\t');
+		appendBoolean(sb, isParseError).append('\t');
+		appendTimestamp(sb, created).append('\n');
+	}
+
+	@Override
+	public void addRawXml(long recordId, int codec, int dictionaryId, byte[] content) {
+		StringBuilder sb = rawXmls;
+		sb.append(recordId).append('\t');
+		appendBoolean(sb, codec == CompressionCodecs.CODEC_GZIP).append('\t');
+		sb.append(codec).append('\t');
+		if (dictionaryId == 0) {
+			sb.append(NULL).append('\t');
+		} else {
+			sb.append(dictionaryId).append('\t');
+		}
+		appendBytea(sb, content).append('\n');
+	}
+
+	@Override
+	public void addRawValue(
+			long recordId, boolean hasSameTypedValue, int valueType, long transducerId,
+			String stringValue, long intValue, double floatValue, BigDecimal decimalValue,
+			long largeObjectId, Timestamp transducerTimestamp) {
+		StringBuilder sb = rawValues;
+		sb.append(recordId).append('\t');
+		appendBoolean(sb, hasSameTypedValue).append('\t');
+		sb.append(valueType).append('\t');
+		sb.append(transducerId).append('\t');
+		appendText(sb, stringValue).append('\t');
+		sb.append(intValue).append('\t');
+		appendDouble(sb, floatValue).append('\t');
+		appendDecimal(sb, decimalValue).append('\t');
+		appendLargeObjectId(sb, largeObjectId).append('\t');
+		appendTimestamp(sb, transducerTimestamp).append('\n');
+	}
+
+	@Override
+	public void addTypedValue(
+			long recordId, int valueType, long transducerId,
+			String stringValue, long intValue, double floatValue, BigDecimal decimalValue,
+			long largeObjectId) {
+		StringBuilder sb = typedValues;
+		sb.append(recordId).append('\t');
+		sb.append(valueType).append('\t');
+		sb.append(transducerId).append('\t');
+		appendText(sb, stringValue).append('\t');
+		sb.append(intValue).append('\t');
+		appendDouble(sb, floatValue).append('\t');
+		appendDecimal(sb, decimalValue).append('\t');
+		appendLargeObjectId(sb, largeObjectId).append('\n');
+	}
+
+	@Override
+	public void flush() throws SQLException, IOException {
+		CopyManager copyManager = conn.unwrap(PGConnection.class).getCopyAPI();
+		copy(copyManager, copyRecordSql, records);
+		copy(copyManager, copyRawXmlSql, rawXmls);
+		copy(copyManager, copyRawValueSql, rawValues);
+		copy(copyManager, copyTypedValueSql, typedValues);
+	}
+
+	@Override
+	public void close() {
+		records.setLength(0);
+		rawXmls.setLength(0);
+		rawValues.setLength(0);
+		typedValues.setLength(0);
+	}
+
+	private static void copy(CopyManager copyManager, String sql, StringBuilder rows) throws SQLException, IOException {
+		if (rows.length() == 0) {
+			return;
+		}
+		byte[] content = rows.toString().getBytes(MyCharSet.UTF8);
+		copyManager.copyIn(sql, new ByteArrayInputStream(content));
+		rows.setLength(0);
+	}
+
+	private static StringBuilder appendBoolean(StringBuilder sb, boolean value) {
+		return sb.append(value ? 't' : 'f');
+	}
+
+	private static StringBuilder appendTimestamp(StringBuilder sb, Timestamp value) {
+		if (value == null) {
+			return sb.append(NULL);
+		}
+		return sb.append(value.toString());  // yyyy-mm-dd hh:mm:ss.fffffffff
+	}
+
+	private static StringBuilder appendDouble(StringBuilder sb, double value) {
+		if (Double.isNaN(value)) {
+			return sb.append("NaN");
+		} else if (Double.isInfinite(value)) {
+			return sb.append((0 < value) ? "Infinity" : "-Infinity");
+		}
+		return sb.append(value);
+	}
+
+	private static StringBuilder appendDecimal(StringBuilder sb, BigDecimal value) {
+		if (value == null) {
+			return sb.append(NULL);
+		}
+		return sb.append(value.toPlainString());
+	}
+
+	private static StringBuilder appendLargeObjectId(StringBuilder sb, long largeObjectId) {
+		if (largeObjectId == NO_LARGE_OBJECT) {
+			return sb.append(NULL);
+		}
+		return sb.append(largeObjectId);
+	}
+
+	/**
+	 * COPYのtext formatでエスケープが必要な文字(バックスラッシュ, タブ, 改行, CR)をエスケープする
+	 */
+	private static StringBuilder appendText(StringBuilder sb, String value) {
+		if (value == null) {
+			return sb.append(NULL);
+		}
+		final int len = value.length();
+		for (int i = 0; i < len; i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			default:
+				sb.append(c);
+			}
+		}
+		return sb;
+	}
+
+	/**
+	 * byteaのhex形式 (\x0123...)。COPYの中ではバックスラッシュ自体をエスケープする
+	 */
+	private static StringBuilder appendBytea(StringBuilder sb, byte[] value) {
+		if (value == null) {
+			return sb.append(NULL);
+		}
+		sb.ensureCapacity(sb.length() + value.length * 2 + 3);
+		sb.append("\\\\x");
+		for (byte b : value) {
+			sb.append(HEX[(b >> 4) & 0x0F]);
+			sb.append(HEX[b & 0x0F]);
+		}
+		return sb;
+	}
+
+}
@@ -1,43 +1,45 @@
 package soxrecorderv2.recorder;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.math.BigDecimal;
+import java.sql.Array;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Savepoint;
 import java.sql.Timestamp;
-import java.sql.Types;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.Callable;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
-
-import jp.ac.keio.sfc.ht.sox.protocol.Data;
 import jp.ac.keio.sfc.ht.sox.protocol.TransducerValue;
+import soxrecorderv2.cache.NodeCacheStats;
 import soxrecorderv2.cache.NodeInfo;
+import soxrecorderv2.cache.SoxRecorderCache;
+import soxrecorderv2.cache.TieredNodeCache;
+import soxrecorderv2.codec.CompressionCodec;
+import soxrecorderv2.codec.CompressionCodecs;
+import soxrecorderv2.codec.TimeSeriesChunkEncoder;
 import soxrecorderv2.common.model.LargeObjectContainer;
 import soxrecorderv2.common.model.NodeIdentifier;
 import soxrecorderv2.common.model.RecordTask;
 import soxrecorderv2.common.model.SR2Tables;
+import soxrecorderv2.common.model.db.RecordPartition;
 import soxrecorderv2.logging.SR2LogType;
 import soxrecorderv2.logging.SR2Logger;
+import soxrecorderv2.util.ConfigUtil;
 import soxrecorderv2.util.GzipUtil;
 import soxrecorderv2.util.PGConnectionManager;
+import soxrecorderv2.util.PooledByteArrayOutputStream;
 import soxrecorderv2.util.SOXUtil;
+import soxrecorderv2.util.ScannedValue;
 import soxrecorderv2.util.SQLUtil;
 
 public class DBWriterProcess implements Runnable, RecorderSubProcess {
@@ -48,70 +50,112 @@ public class DBWriterProcess implements Runnable, RecorderSubProcess {
 	public static final String CONFIG_KEY_PG_DBNAME = "pg_dbname";
 	public static final String CONFIG_KEY_PG_USER = "pg_user";
 	public static final String CONFIG_KEY_PG_PASS = "pg_pass";
+	public static final String CONFIG_KEY_BATCH_SIZE = "writer_batch_size";
+	public static final String CONFIG_KEY_BATCH_WAIT_MSEC = "writer_batch_wait_msec";
+	public static final String CONFIG_KEY_RECORD_ID_BLOCK_SIZE = "record_id_block_size";
+	public static final String CONFIG_KEY_WRITER_BACKEND = "writer_backend";
+	
+	public static final String WRITER_BACKEND_JDBC = "jdbc";
+	public static final String WRITER_BACKEND_COPY = "copy";
+	
+	public static final int DEFAULT_BATCH_SIZE = 200;
+	public static final long DEFAULT_BATCH_WAIT_MSEC = 50;
 
-	private static final String[] RAW_VALUE_INSERT_FIELDS = {
-		"record_id",            // 1
-		"has_same_typed_value", // 2
-		"value_type",           // 3
-		"transducer_id",        // 4
-		"string_value",         // 5
-		"int_value",            // 6
-		"float_value",          // 7
-		"decimal_value",        // 8
-		"large_object_id",      // 9
-		"transducer_timestamp"  // 10
-	};
-	public static final String[] TYPED_VALUE_INSERT_FIELDS = {
-		"record_id",      // 1
-		"value_type",     // 2
-		"transducer_id",  // 3
-		"string_value",   // 4
-		"int_value",      // 5
-		"float_value",    // 6
-		"decimal_value",  // 7
-		"large_object_id" // 8
-	};
-	private static final String RAW_VALUE_INSERT_SQL;
-	private static final String TYPED_VALUE_INSERT_SQL;
+	// PostgreSQL 9.3にはON CONFLICTがないので, 既存の行を探してなければinsertする, をCTEで1往復にまとめる
+	// (1: hash_key, 2-6: is_gzipped, codec, hash_key, content, content_length) => (id, insertしたか)
+	private static final String LARGE_OBJECT_UPSERT_SQL =
+			"WITH existing AS (SELECT id FROM large_object WHERE hash_key = ?), "
+			+ "inserted AS ("
+			+ "INSERT INTO large_object(is_gzipped, codec, hash_key, content, content_length) "
+			+ "SELECT ?, ?, ?, ?, ? WHERE NOT EXISTS (SELECT 1 FROM existing) RETURNING id"
+			+ ") "
+			+ "SELECT id, false FROM existing UNION ALL SELECT id, true FROM inserted;";
+	// 別のwriterが同じhash_keyを先にinsertしていたとき (LARGE_OBJECT_UPSERT_SQLがunique_violationになる) に引きなおす
+	private static final String LARGE_OBJECT_SELECT_SQL = "SELECT id FROM large_object WHERE hash_key = ?;";
+	private static final String SQLSTATE_UNIQUE_VIOLATION = "23505";
+	
+	public static final int NODE_CACHE_SIZE = 25000;
+	public static final long NODE_CACHE_EXPIRE_SEC = 3600;
 
-	private static final String[] LARGE_OBJECT_INSERT_FIELDS = {
-		"is_gzipped",    // 1
-		"hash_key",      // 2
-		"content",       // 3
-		"content_length" // 4
+	
+	private static final String TRANSDUCER_SELECT_SQL = "SELECT id, transducer_id FROM transducer WHERE observation_id = ?;";
+	// 未知のtransducerだけを1往復で解決する (既存ならそのid, なければinsertしたid)
+	// 件数が変わってもSQLが変わらないように, VALUES (?),(?),... ではなく配列を渡してunnestする (statementキャッシュが効く)
+	private static final String TRANSDUCER_UPSERT_SQL =
+			"WITH wanted AS (SELECT DISTINCT unnest(?::varchar[]) AS transducer_id), "
+			+ "existing AS ("
+			+ "SELECT t.id, t.transducer_id FROM transducer t JOIN wanted w ON t.transducer_id = w.transducer_id "
+			+ "WHERE t.observation_id = ?"
+			+ "), "
+			+ "inserted AS ("
+			+ "INSERT INTO transducer(observation_id, transducer_id) "
+			+ "SELECT ?, w.transducer_id FROM wanted w "
+			+ "WHERE NOT EXISTS (SELECT 1 FROM existing e WHERE e.transducer_id = w.transducer_id) "
+			+ "RETURNING id, transducer_id"
+			+ ") "
+			+ "SELECT id, transducer_id FROM existing UNION ALL SELECT id, transducer_id FROM inserted;";
+	private static final String OBSERVATION_SELECT_SQL = "SELECT id FROM observation WHERE sox_server = ? AND sox_node = ?;";
+	private static final String[] CHUNK_INSERT_FIELDS = {
+		"observation_id", // 1
+		"transducer_id",  // 2
+		"value_type",     // 3
+		"n_values",       // 4
+		"first_created",  // 5
+		"last_created",   // 6
+		"content"         // 7
 	};
-	private static final String LARGE_OBJECT_INSERT_SQL;
-
-	private static final Cache<NodeIdentifier, NodeInfo> cache;
+	private static final String CHUNK_INSERT_SQL = SQLUtil.buildInsertSql(SR2Tables.TransducerValueChunk, CHUNK_INSERT_FIELDS);
+	// 子テーブルの行も消す (transducer_raw_valueの子テーブルにはcreatedがないので, record_idのインデックスで引く)
+	private static final String CHUNKED_RAW_VALUE_DELETE_SQL = "DELETE FROM " + SR2Tables.TransducerRawValue
+			+ " WHERE transducer_id = ? AND record_id = ANY(?);";
+	private static final long CHUNK_IDLE_CHECK_INTERVAL_MSEC = 1000;
 
-	static {
-		RAW_VALUE_INSERT_SQL = SQLUtil.buildInsertSql(SR2Tables.TransducerRawValue, RAW_VALUE_INSERT_FIELDS);
-		TYPED_VALUE_INSERT_SQL = SQLUtil.buildInsertSql(SR2Tables.TransducerTypedValue, TYPED_VALUE_INSERT_FIELDS);
-		LARGE_OBJECT_INSERT_SQL = SQLUtil.buildInsertSql(SR2Tables.LargeObject, LARGE_OBJECT_INSERT_FIELDS);
-		
-		Cache<NodeIdentifier, NodeInfo> cacheTmp = CacheBuilder.newBuilder()
-				.concurrencyLevel(1)
-				.maximumSize(25000)
-				.expireAfterAccess(3600, TimeUnit.SECONDS)
-				.build();
-		
-		cache = cacheTmp;
-	}
-	
 	@SuppressWarnings("unused")
 	private Recorder parent;
 	
-	private LinkedBlockingQueue<RecordTask> recordTaskQueue;
+	/**
+	 * RecordTaskDispatcherが同じnodeのタスクをかならず同じwriterに振り分けるので,
+	 * nearキャッシュはwriterごとに持てばよい (他のwriterと競合しない)
+	 */
+	private final TieredNodeCache cache;
+	private RecordTaskQueue recordTaskQueue;
 	private volatile boolean isRunning;
 	private PGConnectionManager connManager;
 	private SR2Logger logger;
+	private final int batchSize;
+	private final long batchWaitMsec;
+	private final RecordIdAllocator recordIdAllocator;
+	private final boolean useCopy;
+	private final SpillJournal spillJournal;
+	private boolean lastFailureIsTransient = false;
+	private final LargeObjectIdCache largeObjectIdCache;
+	// このトランザクションでinsertしたlarge_object (commitしたらlargeObjectIdCacheに移す)
+	private final Map<String, Long> uncommittedLargeObjects = new HashMap<>();
+	private final RawXmlCompressor rawXmlCompressor;
+	private final PartitionManager partitionManager;
+	private final ScannedValue scannedValue = new ScannedValue();  // 値ごとに使いまわす
+	private final NumericChunkBuffer chunkBuffer;  // numeric_chunk_modeでなければnull
+	private long lastChunkCheckAt = 0;
 	
-	public DBWriterProcess(Recorder parent, LinkedBlockingQueue<RecordTask> recordTaskQueue) {
+	public DBWriterProcess(Recorder parent, RecordTaskQueue recordTaskQueue, SpillJournal spillJournal, LargeObjectIdCache largeObjectIdCache, RawXmlCompressor rawXmlCompressor,
+			SoxRecorderCache sharedIdCache, NodeCacheStats nodeCacheStats, PartitionManager partitionManager) {
 		this.parent = parent;
+		this.partitionManager = partitionManager;
+		this.rawXmlCompressor = rawXmlCompressor;
+		this.spillJournal = spillJournal;
+		this.largeObjectIdCache = largeObjectIdCache;
 		this.logger = parent.createLogger(getComponentName());
 		this.recordTaskQueue = recordTaskQueue;
 		this.isRunning = false;
+		this.cache = new TieredNodeCache(NODE_CACHE_SIZE, NODE_CACHE_EXPIRE_SEC, sharedIdCache, nodeCacheStats, logger);
 		this.connManager = new PGConnectionManager(parent.getConfig());
+		this.batchSize = Math.max(1, ConfigUtil.getInt(parent.getConfig(), CONFIG_KEY_BATCH_SIZE, DEFAULT_BATCH_SIZE));
+		this.batchWaitMsec = Math.max(0, ConfigUtil.getLong(parent.getConfig(), CONFIG_KEY_BATCH_WAIT_MSEC, DEFAULT_BATCH_WAIT_MSEC));
+		this.recordIdAllocator = new RecordIdAllocator(
+				ConfigUtil.getInt(parent.getConfig(), CONFIG_KEY_RECORD_ID_BLOCK_SIZE, RecordIdAllocator.DEFAULT_BLOCK_SIZE));
+		String backend = ConfigUtil.getString(parent.getConfig(), CONFIG_KEY_WRITER_BACKEND, WRITER_BACKEND_JDBC);
+		this.useCopy = WRITER_BACKEND_COPY.equalsIgnoreCase(backend);
+		this.chunkBuffer = NumericChunkBuffer.fromConfig(parent.getConfig());
 		
 		try {
 			Class.forName(PG_DRIVER);
@@ -134,25 +178,124 @@ public class DBWriterProcess implements Runnable, RecorderSubProcess {
 				logger.error(SR2LogType.JAVA_INTERRUPTED_EXCEPTION, "during task fetching", e);
 			}
 			if (newTask == null) {
+				writeIdleChunks();
 				continue;  // timeout
 			}
 //			System.out.println("[DBW] got new task");
 			
+			// 最初のタスクが来たら, batchSize件 or batchWaitMsecまで後続のタスクをまとめる
+			List<RecordTask> tasks = new ArrayList<>(batchSize);
+			tasks.add(newTask);
+			collectBatch(tasks);
+			
 			try {
-				writeToDatabase(newTask);
+				writeBatch(tasks);
 			} catch (Exception e) {
 				// Auto-generated catch block
 				logger.error(SR2LogType.JAVA_GENERAL_EXCEPTION, "uncaught exception", e);
+			} finally {
+				// バッチごとにコネクションをプールに返す
+				connManager.release();
 			}
 //			System.out.println("[DBW] wrote! server=" + newTask.getNodeId().getServer() + ", node=" + newTask.getNodeId().getNode());
 			
-			// FIXME ミドルウェア(PGなど)との通信に失敗したらログにJSON形式で保存してあとで、そこから投入できるようにする
+			// ミドルウェア(PGなど)との通信に失敗したものはspill journalに退避される (writeBatch())
 		}
 		System.err.println("[DBW] END OF run()");
+		drainOnShutdown();
+		if (chunkBuffer != null) {
+			writeChunksInTransaction(true);  // 開いているchunkを書ききる
+			logger.info(SR2LogType.PIPELINE_STATS, chunkBuffer.getStats());
+		}
 		connManager.close();
 		logger.info(SR2LogType.DB_WRITER_STOP, "db writer stop");
 	}
 	
+	/**
+	 * 止めるときにキューに残っているタスクを書ききる。
+	 * DBに書けなければwriteBatch()の中で退避し, それ以降はDBを待たずにすべてジャーナルに退避する
+	 */
+	private void drainOnShutdown() {
+		List<RecordTask> tasks = new ArrayList<>(batchSize);
+		long nDrained = 0;
+		while (0 < recordTaskQueue.drainTo(tasks, batchSize)) {
+			nDrained += tasks.size();
+			try {
+				if (lastFailureIsTransient) {
+					spill(tasks);
+				} else {
+					writeBatch(tasks);
+				}
+			} catch (Exception e) {
+				logger.error(SR2LogType.JAVA_GENERAL_EXCEPTION, "uncaught exception while draining write queue", e);
+			} finally {
+				connManager.release();
+			}
+			tasks.clear();
+		}
+		if (0 < nDrained) {
+			logger.info(SR2LogType.DB_WRITER_STOP, "drained " + nDrained + " tasks left in write queue");
+		}
+	}
+	
+	/**
+	 * すでにtasksに入っているものに加えて, キューから最大batchSize件までタスクを集める。
+	 * キューが空のときはbatchWaitMsecまで待つ。
+	 * @param tasks
+	 */
+	private void collectBatch(List<RecordTask> tasks) {
+		final long deadline = System.currentTimeMillis() + batchWaitMsec;
+		while (tasks.size() < batchSize) {
+			recordTaskQueue.drainTo(tasks, batchSize - tasks.size());
+			if (batchSize <= tasks.size()) {
+				break;
+			}
+			
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				break;
+			}
+			
+			RecordTask task = null;
+			try {
+				task = recordTaskQueue.poll(remaining, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				logger.error(SR2LogType.JAVA_INTERRUPTED_EXCEPTION, "during batch collecting", e);
+			}
+			if (task == null) {
+				break;  // timeout
+			}
+			tasks.add(task);
+		}
+	}
+	
+	/**
+	 * 複数のタスクを1トランザクションでデータベースに保存する。
+	 * バッチがまるごと失敗したときだけ, 1タスクずつのトランザクションで保存しなおす。
+	 * PostgreSQLにつながらないなどの一時的な失敗のときは, やりなおさずにspill journalに退避する。
+	 * 
+	 * @param tasks
+	 * @throws SQLException
+	 */
+	private void writeBatch(List<RecordTask> tasks) throws SQLException {
+		if (writeInTransaction(tasks)) {
+			return;
+		}
+		if (lastFailureIsTransient) {
+			spill(tasks);
+			return;
+		}
+		if (tasks.size() == 1) {
+			ackReplayed(tasks);  // 1件だけならやりなおしても同じなのであきらめる
+			return;
+		}
+		
+		logger.warn(SR2LogType.RECORD_FAILED, "batch write failed, retrying " + tasks.size() + " tasks one by one");
+		for (RecordTask task : tasks) {
+			writeToDatabase(task);
+		}
+	}
+	
 	/**
 	 * データベースに保存する処理
 	 * 
@@ -160,419 +303,622 @@ public class DBWriterProcess implements Runnable, RecorderSubProcess {
 	 * @throws SQLException
 	 */
 	private void writeToDatabase(RecordTask task) throws SQLException {
-		Data soxData = task.getData();
-		final NodeIdentifier nodeId = task.getNodeId();
-		final List<TransducerValue> tValues = soxData.getTransducerValue();
+		List<RecordTask> single = Collections.singletonList(task);
+		if (writeInTransaction(single)) {
+			return;
+		}
+		if (lastFailureIsTransient) {
+			spill(single);
+		} else {
+			ackReplayed(single);  // 何度やっても書けないのであきらめる
+		}
+	}
+	
+	/**
+	 * SpillJournalから戻したタスクが片づいた (commitした/もう一度退避した/あきらめた) ことをジャーナルに伝える。
+	 * ackしないとジャーナルのcursorはそこから先に進まない
+	 * @param tasks
+	 */
+	private void ackReplayed(List<RecordTask> tasks) {
+		if (spillJournal == null) {
+			return;
+		}
+		for (RecordTask task : tasks) {
+			if (task.isReplayed()) {
+				spillJournal.ack(task.getSpillPosition());
+			}
+		}
+	}
+	
+	/**
+	 * 書けなかったタスクをspill journalに退避する。あとでSpillReplayerが書き込みキューに戻す。
+	 * ジャーナルから戻したタスクは, 書きなおせたら前のEntryをackする (書けなければ再起動後にもう一度replayされる)
+	 * @param tasks
+	 */
+	private void spill(List<RecordTask> tasks) {
+		if (spillJournal == null) {
+			logger.error(SR2LogType.RECORD_GIVE_UP, "database unavailable and spill journal is disabled, dropped " + tasks.size() + " tasks");
+			return;
+		}
+		spillJournal.noteWriteFailure();
+		int nDropped = 0;
+		for (RecordTask task : tasks) {
+			try {
+				if (!spillJournal.append(task.getNodeId(), task.getRawXml(), task.getReceivedAt())) {
+					nDropped++;
+				} else if (task.isReplayed()) {
+					spillJournal.ack(task.getSpillPosition());
+				}
+			} catch (IOException e) {
+				logger.error(SR2LogType.JAVA_GENERAL_EXCEPTION, "spill journal append failed", e);
+				nDropped++;
+			}
+		}
+		if (0 < nDropped) {
+			logger.error(SR2LogType.RECORD_GIVE_UP, "spill journal is full, dropped " + nDropped + " tasks");
+		}
+	}
+	
+	/**
+	 * PostgreSQLが落ちている/つながらないなど, 時間をおけば書けそうな失敗かどうか
+	 * (SQLSTATE class 08: connection exception, 53: insufficient resources, 57: operator intervention)。
+	 * プールの待ち時間切れは08001になる (PGConnectionPool)。SQLSTATEのないものは自分で投げたエラーなので, やりなおしても同じ
+	 */
+	private static boolean isTransient(SQLException e) {
+		String sqlState = e.getSQLState();
+		if (sqlState == null) {
+			return false;
+		}
+		return sqlState.startsWith("08") || sqlState.startsWith("53") || sqlState.startsWith("57");
+	}
+	
+	/**
+	 * tasksを1トランザクションで保存する。
+	 * 失敗したときは, それが一時的なものかどうかをlastFailureIsTransientに入れる
+	 * 
+	 * @param tasks
+	 * @return commitできたらtrue, rollbackしたらfalse
+	 * @throws SQLException
+	 */
+	private boolean writeInTransaction(List<RecordTask> tasks) throws SQLException {
+		lastFailureIsTransient = false;
+		uncommittedLargeObjects.clear();
+		Connection conn;
+		Savepoint savePointBeforeWrite;
+		try {
+			conn = connManager.getConnection();
+			savePointBeforeWrite = conn.setSavepoint();
+		} catch (SQLException e) {
+			logger.warn(SR2LogType.PG_CONNECT_FAILED, "could not start transaction", e);
+			connManager.invalidate();
+			lastFailureIsTransient = true;
+			return false;
+		}
 		
 		// トランザクションを開始する
 		boolean gotProblem = false;
-		Connection conn = connManager.getConnection();
-		Savepoint savePointBeforeWrite = conn.setSavepoint();
+		boolean connBroken = false;
 		try {
-			// 1. observation idとtransducer idを解決する
-			NodeInfo nodeInfo = cache.get(nodeId, new Callable<NodeInfo>() {
-				@Override
-				public NodeInfo call() throws Exception {
-					return resolveNodeInfo(nodeId, tValues);
+			insertTasks(tasks);
+		} catch (Exception e) {
+			gotProblem = true;
+			if (e instanceof SQLException) {
+				// コネクションが死んでいたらプールに捨ててもらい, 次は別のコネクションを借りる
+				connBroken = connManager.invalidateIfBroken((SQLException)e);
+				lastFailureIsTransient = isTransient((SQLException)e);
+			}
+			if (tasks.size() == 1) {
+				e.printStackTrace();
+				logger.error(SR2LogType.JAVA_GENERAL_EXCEPTION, "uncaught exception in writeToDatabase", e);
+			} else {
+				logger.warn(SR2LogType.JAVA_GENERAL_EXCEPTION, "exception in batch write (" + tasks.size() + " tasks)", e);
+			}
+		}
+		
+		if (!gotProblem) {
+			// トランザクションをcommitする
+			try {
+				conn.commit();
+				ackReplayed(tasks);
+				largeObjectIdCache.putAll(uncommittedLargeObjects);
+				uncommittedLargeObjects.clear();
+				cache.onCommit();
+				if (chunkBuffer != null) {
+					chunkBuffer.onCommit(System.currentTimeMillis());
 				}
-			});
-			
-			if (!nodeInfo.isCovering(tValues)) {
-				// キャッシュでidがわからないtransducerがあった場合
-				nodeInfo = resolveNodeInfo(nodeId, tValues);
-				cache.put(nodeId, nodeInfo);
+				return true;
+			} catch (SQLException e) {
+				logger.warn(SR2LogType.JAVA_SQL_EXCEPTION, "commit failed (" + tasks.size() + " tasks)", e);
+				connBroken = connManager.invalidateIfBroken(e);
+				lastFailureIsTransient = isTransient(e);
 			}
+		}
+		
+		// 問題があったのでrollbackする
+		System.err.println("[DBW][w] going to rollback");
+		if (!connBroken) {
+			try {
+				conn.rollback(savePointBeforeWrite);
+			} catch (SQLException e) {
+				connManager.invalidate();
+			}
+		}
+		// rollbackされたtransducerのidがキャッシュに残らないようにする
+		uncommittedLargeObjects.clear();
+		List<NodeIdentifier> nodes = new ArrayList<>(tasks.size());
+		for (RecordTask task : tasks) {
+			nodes.add(task.getNodeId());
+		}
+		cache.onRollback(nodes);
+		if (chunkBuffer != null) {
+			chunkBuffer.onRollback();
+		}
+		System.err.println("[DBW][w] something bad happened! rollback");
+		return false;
+	}
+	
+	/**
+	 * tasksの内容をテーブルごとにまとめてinsertする。
+	 * JDBCのバッチかCOPYかは writer_backend の設定による (RecordRowWriter)
+	 * トランザクションの中だと仮定してよい
+	 * 
+	 * record.createdはタスクごとの受信時刻 (RecordTask.getReceivedAt())。
+	 * 退避から戻したタスクも受信したときのcreatedで書き, 書き込み先の子テーブルもcreatedごとに選ぶ
+	 * 
+	 * @param tasks
+	 * @throws SQLException
+	 * @throws IOException
+	 * @throws ParseException
+	 */
+	private void insertTasks(List<RecordTask> tasks) throws SQLException, IOException, ParseException {
+		Connection conn = connManager.getConnection();
+		
+		// 0. nearキャッシュにないnodeのobservation idをsharedからまとめて引いておく
+		List<NodeIdentifier> nodes = new ArrayList<>(tasks.size());
+		for (RecordTask task : tasks) {
+			nodes.add(task.getNodeId());
+		}
+		cache.prefetch(nodes);
+		
+		List<PendingRecord> pendings = new ArrayList<>(tasks.size());
+		List<TransducerValue> allValues = new ArrayList<>();
+		Map<NodeIdentifier, Integer> nSkippedPerNode = new LinkedHashMap<>();
+		for (RecordTask task : tasks) {
+			final NodeIdentifier nodeId = task.getNodeId();
+			final List<TransducerValue> tValues = task.getData().getTransducerValue();
 			
-			long observationId = nodeInfo.getObservationId();
-			
-			// 2. recordレコードを作成する。recordのidを取得
-			long recordId = insertDataRecord(observationId, task, nodeId);
+			// 1. observation idとtransducer idを解決する
+			NodeInfo nodeInfo = getNodeInfo(nodeId, tValues);
+			if (!nodeInfo.hasObservation()) {
+				// 外部キー違反でバッチ全体をrollbackさせないように, このタスクだけあきらめる
+				Integer n = nSkippedPerNode.get(nodeId);
+				nSkippedPerNode.put(nodeId, (n == null) ? 1 : n + 1);
+				continue;
+			}
 			
-			// 3. raw_xmlレコードを作成する。
-			String rawXml = task.getRawXml();
-			insertRawXml(recordId, rawXml, nodeId);
+			// 2. recordのidは予約済みのものを使う (lastval()で引きなおさない)
+			long recordId = recordIdAllocator.next(conn);
 			
-			// 4. large_objectのidを解決する
-			Collection<LargeObjectContainer> largeObjects = SOXUtil.extractLargeObjects(tValues);
-			Map<String, Long> loInfo = resolveLargeObjects(largeObjects);
+			pendings.add(new PendingRecord(task, nodeInfo, recordId, new Timestamp(task.getReceivedAt())));
+			allValues.addAll(tValues);
+		}
+		
+		for (Map.Entry<NodeIdentifier, Integer> entry : nSkippedPerNode.entrySet()) {
+			NodeIdentifier nodeId = entry.getKey();
+			logger.error(SR2LogType.RECORD_GIVE_UP, "observation not found, dropped " + entry.getValue() + " tasks",
+					nodeId.getServer(), nodeId.getNode());
+		}
+		
+		// 3. large_objectのidをバッチ全体でまとめて解決する
+		Collection<LargeObjectContainer> largeObjects = SOXUtil.extractLargeObjects(allValues);
+		Map<String, Long> loInfo = resolveLargeObjects(largeObjects);
+		// 値ごとのidはTransducerValueで引く (ハッシュを計算しなおさない)
+		Map<TransducerValue, Long> rawLoIds = new IdentityHashMap<>();
+		Map<TransducerValue, Long> typedLoIds = new IdentityHashMap<>();
+		for (LargeObjectContainer loContainer : largeObjects) {
+			Map<TransducerValue, Long> loIds = loContainer.isRaw() ? rawLoIds : typedLoIds;
+			loIds.put(loContainer.getTransducerValue(), loInfo.get(loContainer.getHash()));
+		}
+		
+		// バッチが期間の境目をまたぐと書き込み先の子テーブルが分かれるので, 子テーブルごとにwriterを作る
+		Map<String, RecordRowWriter> rowWriters = new LinkedHashMap<>();  // suffix (親テーブルは"") => writer
+		try {
+			for (PendingRecord pending : pendings) {
+				final NodeIdentifier nodeId = pending.task.getNodeId();
+				final List<TransducerValue> tValues = pending.task.getData().getTransducerValue();
+				final RecordRowWriter rowWriter = rowWriterFor(rowWriters, conn, pending.created);
+				
+				rowWriter.addRecord(pending.recordId, pending.nodeInfo.getObservationId(), false, pending.created); // FIXME is_parse_error
+				
+				// 4. raw_xmlレコードを作成する。
+				addRawXml(rowWriter, pending.recordId, pending.task.getRawXml(), nodeId);
+				
+				// 5. raw valueを保存
+				for (TransducerValue value : tValues) {
+					if (value == null) {
+						continue;
+					}
+					addRawValue(rowWriter, pending.nodeInfo, pending.recordId, pending.created, value, rawLoIds);
+				}
+				
+				// 6. typed(rawと違うもの)があれば, 保存
+				Collection<TransducerValue> originalTypedValues = SOXUtil.extractTypedValueDifferentFromRaw(tValues);
+				for (TransducerValue value : originalTypedValues) {
+					if (value == null || value.getTypedValue() == null) {
+						continue;
+					}
+					addTypedValue(rowWriter, pending.nodeInfo, pending.recordId, value, typedLoIds);
+				}
+			}
 			
-			// 5. raw valueを保存
-			insertRawValues(nodeInfo, recordId, tValues, loInfo);
+			for (RecordRowWriter rowWriter : rowWriters.values()) {
+				rowWriter.flush();
+			}
 			
-			// 6. typed(rawと違うもの)があれば, 保存
-			Collection<TransducerValue> originalTypedValues = SOXUtil.extractTypedValueDifferentFromRaw(tValues);
-			if (0 < originalTypedValues.size()) {
-				insertTypedValues(nodeInfo, recordId, originalTypedValues, loInfo);
+			// 7. たまったchunkがあれば同じトランザクションで書く
+			if (chunkBuffer != null) {
+				insertChunks(chunkBuffer.takeReady(System.currentTimeMillis(), false));
 			}
-		} catch (Exception e) {
-			e.printStackTrace();
-			gotProblem = true;
-			logger.error(SR2LogType.JAVA_GENERAL_EXCEPTION, "uncaught exception in writeToDatabase", e);
+			connManager.updateLastCommunicateTime();
 		} finally {
-			if (gotProblem) {
-				// 問題があったのでrollbackする
-				System.err.println("[DBW][w] going to rollback");
-				conn.rollback(savePointBeforeWrite);
-				System.err.println("[DBW][w] something bad happened! rollback");
+			for (RecordRowWriter rowWriter : rowWriters.values()) {
+				rowWriter.close();
+			}
+		}
+		
+		for (PendingRecord pending : pendings) {
+			NodeIdentifier nodeId = pending.task.getNodeId();
+			logger.debug(SR2LogType.RECORD, "record", nodeId.getServer(), nodeId.getNode());
+		}
+	}
+	
+	/**
+	 * 閉じたchunkをtransducer_value_chunkに書き, chunkに入れた値のtransducer_raw_valueを消す。
+	 * トランザクションの中だと仮定してよい (同じトランザクションなので, 値はどちらかに必ずある)
+	 * @param chunks
+	 * @throws SQLException
+	 */
+	private void insertChunks(List<NumericChunkBuffer.Chunk> chunks) throws SQLException {
+		if (chunks.isEmpty()) {
+			return;
+		}
+		Connection conn = connManager.getConnection();
+		PreparedStatement ps = connManager.prepareStatement(CHUNK_INSERT_SQL);
+		for (NumericChunkBuffer.Chunk chunk : chunks) {
+			TimeSeriesChunkEncoder encoder = chunk.getEncoder();
+			ps.setLong(1, chunk.getObservationId());
+			ps.setLong(2, chunk.getTransducerId());
+			ps.setInt(3, chunk.getValueType());
+			ps.setInt(4, encoder.size());
+			ps.setTimestamp(5, new Timestamp(encoder.getFirstCreated()));
+			ps.setTimestamp(6, new Timestamp(encoder.getLastCreated()));
+			ps.setBytes(7, encoder.toByteArray());
+			ps.addBatch();
+		}
+		ps.executeBatch();
+		
+		PreparedStatement deletePs = connManager.prepareStatement(CHUNKED_RAW_VALUE_DELETE_SQL);
+		List<Array> recordIdArrays = new ArrayList<>();
+		try {
+			for (NumericChunkBuffer.Chunk chunk : chunks) {
+				Array recordIds = conn.createArrayOf("int8", chunk.getRecordIds().toArray());
+				recordIdArrays.add(recordIds);
+				deletePs.setLong(1, chunk.getTransducerId());
+				deletePs.setArray(2, recordIds);
+				deletePs.addBatch();
+			}
+			deletePs.executeBatch();
+		} finally {
+			deletePs.clearBatch();
+			for (Array recordIds : recordIdArrays) {
+				recordIds.free();
+			}
+		}
+	}
+	
+	/**
+	 * タスクが来ないあいだも, 古くなったchunkは書き出す (1秒に1回だけ見る)
+	 */
+	private void writeIdleChunks() {
+		if (chunkBuffer == null) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		if (now - lastChunkCheckAt < CHUNK_IDLE_CHECK_INTERVAL_MSEC) {
+			return;
+		}
+		lastChunkCheckAt = now;
+		if (chunkBuffer.hasReady(now)) {
+			writeChunksInTransaction(false);
+		}
+	}
+	
+	/**
+	 * chunkだけを1トランザクションで書く。失敗したらchunkは持ったままにして次にまわす
+	 * @param all trueなら開いているchunkもすべて書く
+	 */
+	private void writeChunksInTransaction(boolean all) {
+		Connection conn = null;
+		try {
+			conn = connManager.getConnection();
+			insertChunks(chunkBuffer.takeReady(System.currentTimeMillis(), all));
+			conn.commit();
+			connManager.updateLastCommunicateTime();
+			chunkBuffer.onCommit(System.currentTimeMillis());
+		} catch (SQLException e) {
+			logger.warn(SR2LogType.JAVA_SQL_EXCEPTION, "could not write numeric chunks", e);
+			chunkBuffer.onRollback();
+			if (conn != null && !connManager.invalidateIfBroken(e)) {
+				try {
+					conn.rollback();
+				} catch (SQLException e2) {
+					connManager.invalidate();
+				}
+			}
+		} finally {
+			connManager.release();
+		}
+	}
+	
+	/**
+	 * createdを含む子テーブルのwriterを返す (なければ作ってrowWritersに入れる)。
+	 * JdbcRecordRowWriterはstatementをキャッシュから借りるので, 同じ子テーブルのwriterを2つ作らないようにsuffixで引く
+	 */
+	private RecordRowWriter rowWriterFor(Map<String, RecordRowWriter> rowWriters, Connection conn, Timestamp created) {
+		RecordPartition partition = partitionManager.partitionFor(created);
+		String key = (partition == null) ? "" : partition.getSuffix();
+		RecordRowWriter rowWriter = rowWriters.get(key);
+		if (rowWriter == null) {
+			if (useCopy) {
+				rowWriter = new CopyRecordRowWriter(conn, partition);
 			} else {
-				// トランザクションをcommitする
-				conn.commit();
+				rowWriter = new JdbcRecordRowWriter(connManager, partition);
 			}
+			rowWriters.put(key, rowWriter);
 		}
+		return rowWriter;
 	}
 	
-	private NodeInfo resolveNodeInfo(NodeIdentifier nodeId, Collection<TransducerValue> tValues) throws SQLException {
-		return _resolveNodeInfo(nodeId, tValues);
+	/**
+	 * 起動時にNodeCacheWarmerから呼ばれる (このwriterのスレッドを開始する前)
+	 * @param nodeInfo commit済みのid
+	 */
+	public void warmUp(NodeInfo nodeInfo) {
+		cache.put(nodeInfo);
 	}
 	
-	private NodeInfo _resolveNodeInfo(NodeIdentifier nodeId, Collection<TransducerValue> tValues) throws SQLException {
-		final long observationId = resolveObservationId(nodeId);
-		final Map<String, Long> transducerIdMap = resolveTransducers(observationId, SOXUtil.extractTransducerIds(tValues), nodeId);
-		return new NodeInfo(nodeId, observationId, transducerIdMap);
+	private NodeInfo getNodeInfo(final NodeIdentifier nodeId, final List<TransducerValue> tValues) throws SQLException {
+		return cache.get(nodeId, tValues, nodeLoader);
 	}
 	
+	private final TieredNodeCache.Loader nodeLoader = new TieredNodeCache.Loader() {
+		@Override
+		public NodeInfo loadNode(NodeIdentifier nodeId) throws SQLException {
+			// observationのtransducerはすべて読んでおく (一部だけpublishされても引きなおさないように)
+			final long observationId = resolveObservationId(nodeId);
+			return new NodeInfo(nodeId, observationId, selectTransducers(observationId));
+		}
+		
+		@Override
+		public Map<String, Long> upsertTransducers(long observationId, List<String> transducerIds) throws SQLException {
+			return DBWriterProcess.this.upsertTransducers(observationId, transducerIds);
+		}
+	};
+	
+	/**
+	 * large_objectのidを解決する。
+	 * 共有キャッシュ(LargeObjectIdCache)にあればDBに問い合わせない。なければ1件ごとにLARGE_OBJECT_UPSERT_SQLで1往復。
+	 * このトランザクションでinsertしたものはcommitするまで共有キャッシュには入れない
+	 */
 	private Map<String, Long> resolveLargeObjects(Collection<LargeObjectContainer> largeObjects) throws SQLException {
 		if (largeObjects.isEmpty()) {
 			return new HashMap<>();
 		}
-		Connection conn = connManager.getConnection();
-		
-		// まず, DBに存在しないか確認する
-		Collection<LargeObjectContainer> uniqueLargeObjects = SOXUtil.uniqueLargeObjects(largeObjects);
-		Collection<String> hashes = SOXUtil.extractLargeObjectHashes(uniqueLargeObjects);  // 重複を排除
-		String sqlCheck = "SELECT hash_key, id FROM large_object WHERE hash_key IN " + SQLUtil.buildPlaceholders(hashes.size()) + ";";
-		PreparedStatement psCheck = conn.prepareStatement(sqlCheck);
-		int idx = 1;
-		for (String hash : hashes) {
-			psCheck.setString(idx++, hash);
-		}
-		ResultSet rsCheck = psCheck.executeQuery();
-		connManager.updateLastCommunicateTime();
 		
 		Map<String, Long> loIdMap = new HashMap<>();
-		while (rsCheck.next()) {
-			String hash = rsCheck.getString(1);
-			long loId = rsCheck.getLong(2);
-			loIdMap.put(hash, loId);
-		}
-		rsCheck.close();
-		psCheck.close();
-		
-		// 全部ある
-		if (loIdMap.size() == uniqueLargeObjects.size()) {
-			return Collections.unmodifiableMap(loIdMap);
-		}
-		
-		// ないものを追加する
-		PreparedStatement psInsert = conn.prepareStatement(LARGE_OBJECT_INSERT_SQL);
-		List<String> missedLargeObjectHashes = new ArrayList<>();
-		for (LargeObjectContainer loContainer : uniqueLargeObjects) {
+		for (LargeObjectContainer loContainer : SOXUtil.uniqueLargeObjects(largeObjects)) {
 			String hash = loContainer.getHash();
-			if (!loIdMap.containsKey(hash)) {
-				fillLargeObjectValues(psInsert, loContainer);
-				psInsert.addBatch();
-				missedLargeObjectHashes.add(loContainer.getHash());
+			Long loId = uncommittedLargeObjects.get(hash);
+			if (loId == null) {
+				loId = largeObjectIdCache.get(hash);
+			}
+			if (loId == null) {
+				loId = upsertLargeObject(loContainer);
 			}
-		}
-		psInsert.executeBatch();
-		connManager.updateLastCommunicateTime();
-		psInsert.close();
-		
-		// 問い合わせなおす
-		sqlCheck = "SELECT hash_key, id FROM large_object WHERE hash_key IN " + SQLUtil.buildPlaceholders(missedLargeObjectHashes.size()) + ";";
-		psCheck = conn.prepareStatement(sqlCheck);
-		idx = 1;
-		for (String hash : missedLargeObjectHashes) {
-			psCheck.setString(idx++, hash);
-		}
-		rsCheck = psCheck.executeQuery();
-		connManager.updateLastCommunicateTime();
-		
-		while (rsCheck.next()) {
-			String hash = rsCheck.getString(1);
-			long loId = rsCheck.getLong(2);
 			loIdMap.put(hash, loId);
 		}
-		
-		psCheck.close();
-		rsCheck.close();
-		
 		return Collections.unmodifiableMap(loIdMap);
 	}
 	
-	private void fillLargeObjectValues(PreparedStatement ps, LargeObjectContainer largeObject) throws SQLException {
-		String hexHash = largeObject.getHash();
-		byte[] largeObjectContent = largeObject.getData();
-		
-		// gzipしてみる
-		int contentLength = largeObjectContent.length;
-		byte[] sqlArgContent;
-		boolean isGzipped;
-		
+	/**
+	 * 別のwriterが同じlarge_objectを同時にinsertすると, あとの方は先の方のcommitを待ってからunique_violationになる。
+	 * そのときはsavepointまで戻して (バッチの残りはそのまま) commitされた行のidを引く
+	 */
+	private long upsertLargeObject(LargeObjectContainer loContainer) throws SQLException {
+		Connection conn = connManager.getConnection();
+		Savepoint savepoint = conn.setSavepoint();
+		ResultSet rs;
+		try {
+			PreparedStatement ps = connManager.prepareStatement(LARGE_OBJECT_UPSERT_SQL);
+			ps.setString(1, loContainer.getHash());
+			fillLargeObjectValues(ps, loContainer, 2);
+			rs = ps.executeQuery();
+		} catch (SQLException e) {
+			if (!SQLSTATE_UNIQUE_VIOLATION.equals(e.getSQLState())) {
+				throw e;
+			}
+			conn.rollback(savepoint);
+			long loId = selectLargeObjectId(loContainer.getHash());
+			largeObjectIdCache.put(loContainer.getHash(), loId);  // 先にinsertした方はcommit済み
+			return loId;
+		}
+		conn.releaseSavepoint(savepoint);
+		connManager.updateLastCommunicateTime();
 		try {
-			byte[] compressedContent = GzipUtil.compress(largeObjectContent);
-			if (largeObjectContent.length < compressedContent.length) {
-				// gzipしたらおおきくなっちゃった: use orignal
-				isGzipped = false;
-				sqlArgContent = largeObjectContent;
+			if (!rs.next()) {
+				throw new SQLException("large_object upsert returned no row: hash=" + loContainer.getHash());
+			}
+			long loId = rs.getLong(1);
+			boolean inserted = rs.getBoolean(2);
+			if (inserted) {
+				uncommittedLargeObjects.put(loContainer.getHash(), loId);
 			} else {
-				isGzipped = true;
-				sqlArgContent  = compressedContent;
+				largeObjectIdCache.put(loContainer.getHash(), loId);  // もともとcommitされていた行
 			}
-		} catch (IOException e) {
-			sqlArgContent = largeObjectContent;
-			isGzipped = false;
+			return loId;
+		} finally {
+			rs.close();
 		}
-		
-		ps.setBoolean(1, isGzipped);
-		ps.setString(2, hexHash);
-		ps.setBytes(3, sqlArgContent);
-		ps.setLong(4, contentLength);
 	}
 	
-	private void insertRawValues(NodeInfo nodeInfo, long recordId, Collection<TransducerValue> tValues, Map<String, Long> loInfo) throws SQLException, ParseException {
-		Connection conn = connManager.getConnection();
-		PreparedStatement ps = conn.prepareStatement(RAW_VALUE_INSERT_SQL);
-		
-		for (TransducerValue value : tValues) {
-			if (value == null) {
-				continue;
+	private long selectLargeObjectId(String hash) throws SQLException {
+		PreparedStatement ps = connManager.prepareStatement(LARGE_OBJECT_SELECT_SQL);
+		ps.setString(1, hash);
+		ResultSet rs = ps.executeQuery();
+		connManager.updateLastCommunicateTime();
+		try {
+			if (!rs.next()) {
+				throw new SQLException("large_object not found after unique violation: hash=" + hash);
 			}
-			fillRawInsertPreparedStatement(nodeInfo, recordId, ps, value, loInfo);
-			ps.addBatch();
+			return rs.getLong(1);
+		} finally {
+			rs.close();
 		}
-		
-		ps.executeBatch();
-		connManager.updateLastCommunicateTime();
-		ps.close();
 	}
 	
-	private void insertTypedValues(NodeInfo nodeInfo, long recordId, Collection<TransducerValue> tValues, Map<String, Long> loInfo) throws SQLException {
-		Connection conn = connManager.getConnection();
-		PreparedStatement ps = conn.prepareStatement(TYPED_VALUE_INSERT_SQL);
+	/**
+	 * is_gzipped, codec, hash_key, content, content_length の順にfirstIndexからパラメータを埋める
+	 */
+	private void fillLargeObjectValues(PreparedStatement ps, LargeObjectContainer largeObject, int firstIndex) throws SQLException {
+		String hexHash = largeObject.getHash();
+		int contentLength = (int) largeObject.getContentLength();
 		
-		for (TransducerValue value : tValues) {
-			if (value == null) {
-				continue;
-			}
-			fillTypeInsertPreparedStatement(nodeInfo, recordId, ps, value, loInfo);
-			ps.addBatch();
+		// gzipしてみる (スレッドごとのバッファに書き, コピーせずにstreamでJDBCに渡す)
+		PooledByteArrayOutputStream compressed = PooledByteArrayOutputStream.forCurrentThread();
+		boolean isGzipped;
+		try {
+			GzipUtil.compressTo(largeObject.openContent(), compressed);
+			isGzipped = (compressed.size() <= contentLength);  // gzipしたらおおきくなっちゃったら元のまま
+		} catch (IOException e) {
+			isGzipped = false;
 		}
-		ps.executeBatch();
-		connManager.updateLastCommunicateTime();
-		ps.close();
+		
+		ps.setBoolean(firstIndex, isGzipped);
+		ps.setShort(firstIndex + 1, (short) (isGzipped ? CompressionCodecs.CODEC_GZIP : CompressionCodecs.CODEC_NONE));
+		ps.setString(firstIndex + 2, hexHash);
+		if (isGzipped) {
+			ps.setBinaryStream(firstIndex + 3, compressed.toInputStream(), compressed.size());
+		} else {
+			ps.setBinaryStream(firstIndex + 3, largeObject.openContent(), contentLength);
+		}
+		ps.setLong(firstIndex + 4, contentLength);
 	}
 	
-	private void fillRawInsertPreparedStatement(NodeInfo nodeInfo, long recordId, PreparedStatement ps, TransducerValue value, Map<String, Long> loInfo) throws SQLException, ParseException {
+	private void addRawValue(RecordRowWriter rowWriter, NodeInfo nodeInfo, long recordId, Timestamp created, TransducerValue value, Map<TransducerValue, Long> loIds) throws SQLException, ParseException {
 		String tdrIdentity = value.getId();
-//		long tdrRecordId = nodeInfo.getTransducerIdMap().get(tdrIdentity);
 		Map<String, Long> tdrIdMap = nodeInfo.getTransducerIdMap();
 		if (!tdrIdMap.containsKey(tdrIdentity)) {
 			// TODO: おこりえないはずだが
 		}
 		long tdrRecordId = tdrIdMap.get(tdrIdentity);
 		String rawValue = value.getRawValue();
-		int valType = SOXUtil.guessValueType(tdrIdentity, rawValue);
+		ScannedValue scanned = scannedValue.scan(tdrIdentity, rawValue);
+		int valType = scanned.getType();
 		boolean hasSameTypedValue = SOXUtil.hasSameTypedValue(value);
-
-		ps.setLong(1, recordId);
-		ps.setBoolean(2, hasSameTypedValue);
-		ps.setInt(3, valType);
-		ps.setLong(4, tdrRecordId);
-		
-		if (valType == SOXUtil.VALUE_TYPE_STRING) {
-			ps.setString(5, rawValue);
-		} else {
-			ps.setNull(5, Types.VARCHAR);
-		}
-		
-		if (valType == SOXUtil.VALUE_TYPE_INT) {
-			ps.setInt(6, Integer.parseInt(rawValue));
-		} else {
-			ps.setInt(6, 0);
-		}
-		
-		if (valType == SOXUtil.VALUE_TYPE_FLOAT || valType == SOXUtil.VALUE_TYPE_DECIMAL) {
-			// float_value
-			ps.setDouble(7, Double.parseDouble(rawValue));
-		} else {
-			ps.setDouble(7, 0.0);
-		}
-		
-		if (valType == SOXUtil.VALUE_TYPE_DECIMAL || valType == SOXUtil.VALUE_TYPE_FLOAT) {
-			// decimal_value
-			ps.setBigDecimal(8, new BigDecimal(rawValue));
-		} else {
-			ps.setBigDecimal(8, new BigDecimal("0.0"));
-		}
 		
+		long largeObjectId = RecordRowWriter.NO_LARGE_OBJECT;
 		if (valType == SOXUtil.VALUE_TYPE_LARGE_OBJECT) {
-			LargeObjectContainer loContainer = new LargeObjectContainer(value, true);
-			String loHash = loContainer.getHash();
-			if (!loInfo.containsKey(loHash)) {
-				// TODO: おこりえないはずだが
-			}
-			long largeObjectId = loInfo.get(loHash);
-			ps.setLong(9, largeObjectId);
-		} else {
-			ps.setNull(9, Types.INTEGER);
+			largeObjectId = lookupLargeObjectId(value, loIds);
 		}
 		
 		Timestamp tdrTimestamp = SOXUtil.parseTransducerTimeStamp(value);
-		ps.setTimestamp(10, tdrTimestamp);
+		if (chunkBuffer != null && NumericChunkBuffer.isChunkable(valType, hasSameTypedValue, tdrTimestamp != null)) {
+			// chunkにもためる (commitされたらchunkに入り, chunkを書くときにこの行を消す)
+			if (valType == SOXUtil.VALUE_TYPE_INT) {
+				chunkBuffer.stageInt(nodeInfo.getObservationId(), tdrRecordId, recordId, created.getTime(), scanned.getLongValue());
+			} else {
+				chunkBuffer.stageFloat(nodeInfo.getObservationId(), tdrRecordId, recordId, created.getTime(), scanned.getDoubleValue());
+			}
+		}
+		rowWriter.addRawValue(
+			recordId,
+			hasSameTypedValue,
+			valType,
+			tdrRecordId,
+			scanned.getStringValue(),  // string_value
+			scanned.getLongValue(),    // int_value
+			scanned.getDoubleValue(),  // float_value
+			scanned.getDecimalValue(), // decimal_value
+			largeObjectId,
+			tdrTimestamp
+		);
 	}
 	
-	private void fillTypeInsertPreparedStatement(NodeInfo nodeInfo, long recordId, PreparedStatement ps, TransducerValue value, Map<String, Long> loInfo) throws SQLException {
+	private void addTypedValue(RecordRowWriter rowWriter, NodeInfo nodeInfo, long recordId, TransducerValue value, Map<TransducerValue, Long> loIds) throws SQLException {
 		String tdrIdentity = value.getId();
 		Map<String, Long> tdrIdMap = nodeInfo.getTransducerIdMap();
 		if (!tdrIdMap.containsKey(tdrIdentity)) {
 			// TODO ありえないはずだが
 		}
 		long transducerRecordId = tdrIdMap.get(tdrIdentity);
-		ps.setLong(1, recordId);
-
-		String rawValue = value.getRawValue();
-		
-		int valType = SOXUtil.guessValueType(tdrIdentity, rawValue);
-		
-		ps.setInt(2, valType);
-		
-		ps.setLong(3, transducerRecordId);
-		
-		if (valType == SOXUtil.VALUE_TYPE_STRING) {
-			ps.setString(4, rawValue);
-		} else {
-			ps.setNull(4, Types.VARCHAR);
-		}
-		
-		if (valType == SOXUtil.VALUE_TYPE_INT) {
-			ps.setInt(5, Integer.parseInt(rawValue));
-		} else {
-			ps.setInt(5, 0);
-		}
+		String typedValue = value.getTypedValue();
 		
-		if (valType == SOXUtil.VALUE_TYPE_FLOAT || valType == SOXUtil.VALUE_TYPE_DECIMAL) {
-			ps.setDouble(6, Double.parseDouble(rawValue));
-		} else {
-			ps.setDouble(6, 0.0);
-		}
+		ScannedValue scanned = scannedValue.scan(tdrIdentity, typedValue);
+		int valType = scanned.getType();
 		
-		if (valType == SOXUtil.VALUE_TYPE_DECIMAL || valType == SOXUtil.VALUE_TYPE_FLOAT) {
-			ps.setBigDecimal(7, new BigDecimal(rawValue));
-		} else {
-			ps.setBigDecimal(7, new BigDecimal("0.0"));
-		}
-
+		long largeObjectId = RecordRowWriter.NO_LARGE_OBJECT;
 		if (valType == SOXUtil.VALUE_TYPE_LARGE_OBJECT) {
-			LargeObjectContainer loContainer = new LargeObjectContainer(value, false);
-			String loHash = loContainer.getHash();
-			if (!loInfo.containsKey(loHash)) {
-				// TODO: おこりえないはずだが
-			}
-			long largeObjectId = loInfo.get(loHash);
-			ps.setLong(8, largeObjectId);
-		} else {
-			ps.setNull(8, Types.INTEGER);
+			largeObjectId = lookupLargeObjectId(value, loIds);
 		}
+		
+		rowWriter.addTypedValue(
+			recordId,
+			valType,
+			transducerRecordId,
+			scanned.getStringValue(),  // string_value
+			scanned.getLongValue(),    // int_value
+			scanned.getDoubleValue(),  // float_value
+			scanned.getDecimalValue(), // decimal_value
+			largeObjectId
+		);
 	}
 	
-	/**
-	 * "record"テーブルにレコードをinsertする
-	 * @param recordTask
-	 * @return
-	 * @throws SQLException 
-	 */
-	private long insertDataRecord(long observationId, RecordTask recordTask, NodeIdentifier nodeId) throws SQLException {
-		Connection conn = connManager.getConnection();
-		
-		// このやりかたはいいのか？ http://alvinalexander.com/java/java-timestamp-example-current-time-now
-//		Calendar calendar = Calendar.getInstance();
-//		java.util.Date nowDate = calendar.getTime();
-//		java.sql.Timestamp currentTimestamp = new java.sql.Timestamp(nowDate.getTime());
-		java.sql.Timestamp currentTimestamp = SQLUtil.getCurrentTimestamp();
-		
-		String[] fields = { "observation_id", "is_parse_error", "created" };
-		String sql = SQLUtil.buildInsertSql(SR2Tables.Record, fields);
-		PreparedStatement ps = conn.prepareStatement(sql);
-		ps.setLong(1, observationId);
-		ps.setBoolean(2, false); // FIXME
-		ps.setTimestamp(3, currentTimestamp);
-		
-		int affectedRows = ps.executeUpdate();
-		if (affectedRows != 1) {
-			System.err.println("[DBW][w][2] could not insert to record table");
-			logger.error(SR2LogType.RECORD_FAILED, "record failed", nodeId.getServer(), nodeId.getNode());
-		} else {
-			logger.debug(SR2LogType.RECORD, "record", nodeId.getServer(), nodeId.getNode());
-		}
-		ps.close();
-		
-		// 問い合わせる, ユニークなキーがないので lastval() の値をひく。
-		final String sqlGetLastVal = "SELECT lastval();";
-		final PreparedStatement psGetLastVal = conn.prepareStatement(sqlGetLastVal);
-		final ResultSet rsGetLastVal = psGetLastVal.executeQuery();
-		connManager.updateLastCommunicateTime();
-		if (!rsGetLastVal.next()) {
-			System.err.println("[DBW][w][2] could not retrieve lastval() query call");
+	private long lookupLargeObjectId(TransducerValue value, Map<TransducerValue, Long> loIds) throws SQLException {
+		Long loId = loIds.get(value);
+		if (loId == null) {
+			// バッチの前にlarge_objectはすべて引いてあるはず
+			throw new SQLException("large_object id not resolved: transducer=" + value.getId());
 		}
-		long insertedRecordId = rsGetLastVal.getLong(1);
-//		System.out.println("[DBW][w][2] record insert success, insertedRecordId=" + insertedRecordId);
-		rsGetLastVal.close();
-		psGetLastVal.close();
-		return insertedRecordId;
+		return loId;
 	}
 	
 	/**
-	 * raw_xmlテーブルにレコードをinsertする。とくにリレーションで必要というわけではないのでidは引き直さない
+	 * raw_xmlテーブルに行を追加する。とくにリレーションで必要というわけではないのでidは引き直さない
+	 * @param rowWriter
 	 * @param recordId
 	 * @param rawXml
 	 * @throws IOException 
 	 * @throws SQLException 
 	 */
-	private void insertRawXml(long recordId, String rawXml, NodeIdentifier nodeId) throws IOException, SQLException {
-		String[] fields = { "record_id", "is_gzipped", "raw_xml" };
-		
-		boolean isGzipped = true;  // we know compressed data must be smaller than raw xml
+	private void addRawXml(RecordRowWriter rowWriter, long recordId, String rawXml, NodeIdentifier nodeId) throws IOException, SQLException {
+		// codecはraw_xml_codecとサーバごとの辞書による (RawXmlCompressor)
+		CompressionCodec codec = rawXmlCompressor.codecFor(nodeId.getServer(), rawXml);
 		byte[] bytesRawXml = rawXml.getBytes("UTF-8");
-		byte[] compressed = GzipUtil.compress(bytesRawXml);
+		byte[] compressed = codec.compress(bytesRawXml);
 		if (compressed.length == 0) {
 			logger.warn(SR2LogType.RAW_XML_INSERT_FAILED, "compressed.length=0", nodeId.getServer(), nodeId.getNode());
 		}
-		ByteArrayInputStream contentStream = new ByteArrayInputStream(compressed);
-		
-		Connection conn = connManager.getConnection();
-		final String sql = SQLUtil.buildInsertSql(SR2Tables.RawXml, fields);
-		final PreparedStatement ps = conn.prepareStatement(sql);
-		
-		ps.setLong(1, recordId);
-		ps.setBoolean(2, isGzipped);
-		ps.setBinaryStream(3, contentStream);
-		
-		int affectedRows = ps.executeUpdate();
-		connManager.updateLastCommunicateTime();
-		if (affectedRows != 1) {
-//			System.out.println("[DBW][w][3] insert to raw_xml failed...");
-			logger.error(SR2LogType.RAW_XML_INSERT_FAILED, "raw xml insert failed, " + ps.getWarnings(), nodeId.getServer(), nodeId.getNode());
-		} else {
-			logger.debug(SR2LogType.RAW_XML_INSERT, "raw xml inserted", nodeId.getServer(), nodeId.getNode());
-		}
-		
-		ps.close();
+		rowWriter.addRawXml(recordId, codec.getId(), codec.getDictionaryId(), compressed);
 	}
 	
 	/**
 	 * トランザクションの中と仮定してよい
 	 * @param observationId
-	 * @param transducerIds
-	 * @param nodeId
-	 * @return
+	 * @return observationのtransducerすべて (transducer_id -> transducer.id)
 	 * @throws SQLException
 	 */
-	private Map<String, Long> resolveTransducers(long observationId, Collection<String> transducerIds, NodeIdentifier nodeId) throws SQLException {
-		final Connection conn = connManager.getConnection();
-		
-		String sql = "SELECT id, transducer_id FROM transducer WHERE observation_id = ?;";
-		PreparedStatement ps = conn.prepareStatement(sql);
+	private Map<String, Long> selectTransducers(long observationId) throws SQLException {
+		PreparedStatement ps = connManager.prepareStatement(TRANSDUCER_SELECT_SQL);
 		ps.setLong(1, observationId);
 		ResultSet rs = ps.executeQuery();
 		connManager.updateLastCommunicateTime();
@@ -583,48 +929,33 @@ public class DBWriterProcess implements Runnable, RecorderSubProcess {
 			tid2dbid.put(transducerId, tdrDatabaseId);
 		}
 		rs.close();
-		ps.close();
-		
-		Set<String> missingTransducers = new HashSet<>();
-		for (String tid : transducerIds) {
-			if (!tid2dbid.containsKey(tid)) {
-				missingTransducers.add(tid);
-			}
-		}
-		
-		if (missingTransducers.isEmpty()) {
-			return Collections.unmodifiableMap(tid2dbid);
-		}
-		
-		String insertSql = "INSERT INTO transducer(observation_id, transducer_id) VALUES (?, ?);";
-		PreparedStatement insertPs = conn.prepareStatement(insertSql);
-		for (String missingTdr : missingTransducers) {
-			insertPs.setLong(1, observationId);
-			insertPs.setString(2, missingTdr);
-			insertPs.addBatch();
-		}
-		insertPs.executeBatch();
-		connManager.updateLastCommunicateTime();
-		insertPs.close();
+		return tid2dbid;
+	}
+	
+	/**
+	 * トランザクションの中と仮定してよい。rollbackしたらcacheから消すこと
+	 * @param observationId
+	 * @param transducerIds idがわからないtransducer
+	 * @return transducerIdsのidすべて (transducer_id -> transducer.id)
+	 * @throws SQLException
+	 */
+	private Map<String, Long> upsertTransducers(long observationId, List<String> transducerIds) throws SQLException {
+		final Connection conn = connManager.getConnection();
 		
-		String lookupSql = "SELECT id, transducer_id FROM transducer WHERE observation_id = ? AND transducer_id IN " + SQLUtil.buildPlaceholders(missingTransducers.size()) + ";";
-		PreparedStatement lookupPs = conn.prepareStatement(lookupSql);
-		lookupPs.setLong(1, observationId);
-		int idx = 2;
-		for (String missingTdr : missingTransducers) {
-			lookupPs.setString(idx++, missingTdr);
-		}
-		ResultSet lookupRs = lookupPs.executeQuery();
+		PreparedStatement ps = connManager.prepareStatement(TRANSDUCER_UPSERT_SQL);
+		ps.setArray(1, conn.createArrayOf("varchar", transducerIds.toArray()));
+		ps.setLong(2, observationId);
+		ps.setLong(3, observationId);
+		ResultSet rs = ps.executeQuery();
 		connManager.updateLastCommunicateTime();
-		while (lookupRs.next()) {
-			long tdrDatabaseId = lookupRs.getLong(1);
-			String transducerId = lookupRs.getString(2);
+		Map<String, Long> tid2dbid = new HashMap<>();
+		while (rs.next()) {
+			long tdrDatabaseId = rs.getLong(1);
+			String transducerId = rs.getString(2);
 			tid2dbid.put(transducerId, tdrDatabaseId);
 		}
-		lookupRs.close();
-		lookupPs.close();
-		
-		return Collections.unmodifiableMap(tid2dbid);
+		rs.close();
+		return tid2dbid;
 	}
 	
 	/**
@@ -638,10 +969,7 @@ public class DBWriterProcess implements Runnable, RecorderSubProcess {
 		String soxNode = nodeIdentifier.getNode();
 		
 		// SQLでひく
-		Connection conn = connManager.getConnection();
-		final String sql = "SELECT id FROM observation WHERE sox_server = ? AND sox_node = ?;";
-		final PreparedStatement ps = conn.prepareStatement(sql);
-		connManager.updateLastCommunicateTime();
+		final PreparedStatement ps = connManager.prepareStatement(OBSERVATION_SELECT_SQL);
 		ps.setString(1, soxServer);
 		ps.setString(2, soxNode);
 		ResultSet rs = ps.executeQuery();
@@ -650,17 +978,32 @@ public class DBWriterProcess implements Runnable, RecorderSubProcess {
 			// FIXME: みつからなかった
 //			System.out.println("[DBW][w][1] observation for server=" + soxServer + ", node=" + soxNode + " was not found!");
 			rs.close();
-			ps.close();
 			return 0;
 		} else {
 			long foundObservationId = rs.getLong(1);
 //			System.out.println("[DBW][w][1] observation for server=" + soxServer + ", node=" + soxNode + " was found, id=" + foundObservationId);
 			rs.close();
-			ps.close();
 			return foundObservationId;
 		}
 	}
 	
+	/**
+	 * バッチの中で, recordのinsertまで済んだタスク
+	 */
+	private static class PendingRecord {
+		final RecordTask task;
+		final NodeInfo nodeInfo;
+		final long recordId;
+		final Timestamp created;
+		
+		PendingRecord(RecordTask task, NodeInfo nodeInfo, long recordId, Timestamp created) {
+			this.task = task;
+			this.nodeInfo = nodeInfo;
+			this.recordId = recordId;
+			this.created = created;
+		}
+	}
+	
 	@Override
 	public void shutdownSubProcess() {
 		System.out.println("[DBW] @@@@@ shutdown 1");
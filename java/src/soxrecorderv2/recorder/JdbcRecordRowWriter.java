@@ -0,0 +1,227 @@
+package soxrecorderv2.recorder;
+
+import java.io.ByteArrayInputStream;
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+
+import soxrecorderv2.codec.CompressionCodecs;
+import soxrecorderv2.common.model.SR2Tables;
+import soxrecorderv2.common.model.db.RecordPartition;
+import soxrecorderv2.util.PGConnectionManager;
+import soxrecorderv2.util.SQLUtil;
+
+/**
+ * PreparedStatement.addBatch() でテーブルごとに行をためるRecordRowWriter。
+ * statementはPGConnectionManagerのキャッシュから借りるので, close()ではバッチを捨てるだけで閉じない
+ */
+public class JdbcRecordRowWriter implements RecordRowWriter {
+
+	private static final String[] RECORD_INSERT_FIELDS = {
+		"id",             // 1
+		"observation_id", // 2
+		"is_parse_error", // 3
+		"created"         // 4
+	};
+	private static final String[] RAW_XML_INSERT_FIELDS = {
+		"record_id",     // 1
+		"is_gzipped",    // 2
+		"codec",         // 3
+		"dictionary_id", // 4
+		"raw_xml"        // 5
+	};
+	private static final String[] RAW_VALUE_INSERT_FIELDS = {
+		"record_id",            // 1
+		"has_same_typed_value", // 2
+		"value_type",           // 3
+		"transducer_id",        // 4
+		"string_value",         // 5
+		"int_value",            // 6
+		"float_value",          // 7
+		"decimal_value",        // 8
+		"large_object_id",      // 9
+		"transducer_timestamp"  // 10
+	};
+	private static final String[] TYPED_VALUE_INSERT_FIELDS = {
+		"record_id",      // 1
+		"value_type",     // 2
+		"transducer_id",  // 3
+		"string_value",   // 4
+		"int_value",      // 5
+		"float_value",    // 6
+		"decimal_value",  // 7
+		"large_object_id" // 8
+	};
+
+	private static final String RECORD_INSERT_SQL = SQLUtil.buildInsertSql(SR2Tables.Record, RECORD_INSERT_FIELDS);
+	private static final String RAW_XML_INSERT_SQL = SQLUtil.buildInsertSql(SR2Tables.RawXml, RAW_XML_INSERT_FIELDS);
+	private static final String RAW_VALUE_INSERT_SQL = SQLUtil.buildInsertSql(SR2Tables.TransducerRawValue, RAW_VALUE_INSERT_FIELDS);
+	private static final String TYPED_VALUE_INSERT_SQL = SQLUtil.buildInsertSql(SR2Tables.TransducerTypedValue, TYPED_VALUE_INSERT_FIELDS);
+
+	private final PGConnectionManager connManager;
+	private final String recordInsertSql;
+	private final String rawXmlInsertSql;
+	private final String rawValueInsertSql;
+	private final String typedValueInsertSql;
+	private PreparedStatement psRecord;
+	private PreparedStatement psRawXml;
+	private PreparedStatement psRawValue;
+	private PreparedStatement psTypedValue;
+	private int nRecord = 0;
+	private int nRawXml = 0;
+	private int nRawValue = 0;
+	private int nTypedValue = 0;
+
+	/**
+	 * @param partition 書き込み先の子テーブル, nullなら親テーブルに書く
+	 */
+	public JdbcRecordRowWriter(PGConnectionManager connManager, RecordPartition partition) {
+		this.connManager = connManager;
+		if (partition == null) {
+			this.recordInsertSql = RECORD_INSERT_SQL;
+			this.rawXmlInsertSql = RAW_XML_INSERT_SQL;
+			this.rawValueInsertSql = RAW_VALUE_INSERT_SQL;
+			this.typedValueInsertSql = TYPED_VALUE_INSERT_SQL;
+		} else {
+			this.recordInsertSql = SQLUtil.buildInsertSql(partition.getTableName(SR2Tables.Record), RECORD_INSERT_FIELDS);
+			this.rawXmlInsertSql = SQLUtil.buildInsertSql(partition.getTableName(SR2Tables.RawXml), RAW_XML_INSERT_FIELDS);
+			this.rawValueInsertSql = SQLUtil.buildInsertSql(partition.getTableName(SR2Tables.TransducerRawValue), RAW_VALUE_INSERT_FIELDS);
+			this.typedValueInsertSql = SQLUtil.buildInsertSql(partition.getTableName(SR2Tables.TransducerTypedValue), TYPED_VALUE_INSERT_FIELDS);
+		}
+	}
+
+	@Override
+	public void addRecord(long recordId, long observationId, boolean isParseError, Timestamp created) throws SQLException {
+		if (psRecord == null) {
+			psRecord = connManager.prepareStatement(recordInsertSql);
+		}
+		psRecord.setLong(1, recordId);
+		psRecord.setLong(2, observationId);
+		psRecord.setBoolean(3, isParseError);
+		psRecord.setTimestamp(4, created);
+		psRecord.addBatch();
+		nRecord++;
+	}
+
+	@Override
+	public void addRawXml(long recordId, int codec, int dictionaryId, byte[] content) throws SQLException {
+		if (psRawXml == null) {
+			psRawXml = connManager.prepareStatement(rawXmlInsertSql);
+		}
+		psRawXml.setLong(1, recordId);
+		psRawXml.setBoolean(2, codec == CompressionCodecs.CODEC_GZIP);
+		psRawXml.setShort(3, (short) codec);
+		if (dictionaryId == 0) {
+			psRawXml.setNull(4, Types.INTEGER);
+		} else {
+			psRawXml.setInt(4, dictionaryId);
+		}
+		psRawXml.setBinaryStream(5, new ByteArrayInputStream(content), content.length);
+		psRawXml.addBatch();
+		nRawXml++;
+	}
+
+	@Override
+	public void addRawValue(
+			long recordId, boolean hasSameTypedValue, int valueType, long transducerId,
+			String stringValue, long intValue, double floatValue, BigDecimal decimalValue,
+			long largeObjectId, Timestamp transducerTimestamp) throws SQLException {
+		if (psRawValue == null) {
+			psRawValue = connManager.prepareStatement(rawValueInsertSql);
+		}
+		PreparedStatement ps = psRawValue;
+		ps.setLong(1, recordId);
+		ps.setBoolean(2, hasSameTypedValue);
+		ps.setInt(3, valueType);
+		ps.setLong(4, transducerId);
+		setNullableString(ps, 5, stringValue);
+		ps.setLong(6, intValue);
+		ps.setDouble(7, floatValue);
+		ps.setBigDecimal(8, decimalValue);
+		setNullableLargeObjectId(ps, 9, largeObjectId);
+		ps.setTimestamp(10, transducerTimestamp);
+		ps.addBatch();
+		nRawValue++;
+	}
+
+	@Override
+	public void addTypedValue(
+			long recordId, int valueType, long transducerId,
+			String stringValue, long intValue, double floatValue, BigDecimal decimalValue,
+			long largeObjectId) throws SQLException {
+		if (psTypedValue == null) {
+			psTypedValue = connManager.prepareStatement(typedValueInsertSql);
+		}
+		PreparedStatement ps = psTypedValue;
+		ps.setLong(1, recordId);
+		ps.setInt(2, valueType);
+		ps.setLong(3, transducerId);
+		setNullableString(ps, 4, stringValue);
+		ps.setLong(5, intValue);
+		ps.setDouble(6, floatValue);
+		ps.setBigDecimal(7, decimalValue);
+		setNullableLargeObjectId(ps, 8, largeObjectId);
+		ps.addBatch();
+		nTypedValue++;
+	}
+
+	@Override
+	public void flush() throws SQLException {
+		if (0 < nRecord) {
+			psRecord.executeBatch();
+			nRecord = 0;
+		}
+		if (0 < nRawXml) {
+			psRawXml.executeBatch();
+			nRawXml = 0;
+		}
+		if (0 < nRawValue) {
+			psRawValue.executeBatch();
+			nRawValue = 0;
+		}
+		if (0 < nTypedValue) {
+			psTypedValue.executeBatch();
+			nTypedValue = 0;
+		}
+	}
+
+	@Override
+	public void close() {
+		clearQuietly(psRecord);
+		clearQuietly(psRawXml);
+		clearQuietly(psRawValue);
+		clearQuietly(psTypedValue);
+		nRecord = nRawXml = nRawValue = nTypedValue = 0;
+		psRecord = psRawXml = psRawValue = psTypedValue = null;
+	}
+
+	private static void setNullableString(PreparedStatement ps, int idx, String value) throws SQLException {
+		if (value == null) {
+			ps.setNull(idx, Types.VARCHAR);
+		} else {
+			ps.setString(idx, value);
+		}
+	}
+
+	private static void setNullableLargeObjectId(PreparedStatement ps, int idx, long largeObjectId) throws SQLException {
+		if (largeObjectId == NO_LARGE_OBJECT) {
+			ps.setNull(idx, Types.BIGINT);
+		} else {
+			ps.setLong(idx, largeObjectId);
+		}
+	}
+
+	private static void clearQuietly(PreparedStatement ps) {
+		if (ps == null) {
+			return;
+		}
+		try {
+			ps.clearBatch();  // flushされずに残った行を次の利用者に渡さない
+		} catch (SQLException e) {
+			// ignore
+		}
+	}
+
+}
@@ -0,0 +1,101 @@
+package soxrecorderv2.recorder;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import soxrecorderv2.util.ConfigUtil;
+import soxrecorderv2.util.PGConnectionManager;
+
+/**
+ * large_objectのhash_key(SHA-256のhex) => id の索引。全DBWriterProcessで共有する。
+ *
+ * large_objectの行は一度できたら変わらないので, commitされたidだけを入れればキャッシュが古くなることはない。
+ * (まだcommitしていないidを入れると, 他のwriterがrollbackされた行を参照してしまうので入れないこと)
+ */
+public class LargeObjectIdCache {
+
+	public static final String CONFIG_KEY_CACHE_SIZE = "large_object_cache_size";
+	public static final String CONFIG_KEY_WARMUP_SIZE = "large_object_cache_warmup";
+
+	public static final int DEFAULT_CACHE_SIZE = 100000;
+	public static final int DEFAULT_WARMUP_SIZE = 10000;
+
+	private static final String WARMUP_SQL = "SELECT hash_key, id FROM large_object ORDER BY id DESC LIMIT ?;";
+
+	private final Cache<String, Long> cache;
+	private final int warmUpSize;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public LargeObjectIdCache(Properties config) {
+		int size = Math.max(1, ConfigUtil.getInt(config, CONFIG_KEY_CACHE_SIZE, DEFAULT_CACHE_SIZE));
+		this.warmUpSize = Math.min(size, ConfigUtil.getInt(config, CONFIG_KEY_WARMUP_SIZE, DEFAULT_WARMUP_SIZE));
+		this.cache = CacheBuilder.newBuilder()
+				.maximumSize(size)
+				.build();
+	}
+
+	/**
+	 * @return キャッシュになければnull
+	 */
+	public Long get(String hash) {
+		Long id = cache.getIfPresent(hash);
+		if (id == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		return id;
+	}
+
+	/**
+	 * commit済みのidを登録する
+	 */
+	public void put(String hash, long id) {
+		cache.put(hash, id);
+	}
+
+	public void putAll(Map<String, Long> committed) {
+		cache.putAll(committed);
+	}
+
+	/**
+	 * 新しいlarge_objectから順にlarge_object_cache_warmup件読み込む。
+	 * 同じpayloadはだいたい最近のものがくりかえされるので, idの大きい方からでよい
+	 * @return 読み込んだ件数
+	 * @throws SQLException
+	 */
+	public int warmUp(PGConnectionManager connManager) throws SQLException {
+		if (warmUpSize <= 0) {
+			return 0;
+		}
+		Connection conn = connManager.getConnection();
+		PreparedStatement ps = connManager.prepareStatement(WARMUP_SQL);
+		ps.setInt(1, warmUpSize);
+		int n = 0;
+		ResultSet rs = ps.executeQuery();
+		try {
+			while (rs.next()) {
+				cache.put(rs.getString(1), rs.getLong(2));
+				n++;
+			}
+		} finally {
+			rs.close();
+		}
+		conn.commit();
+		return n;
+	}
+
+	public String getStats() {
+		return "large_object_cache: size=" + cache.size() + ", hits=" + hits.get() + ", misses=" + misses.get();
+	}
+
+}
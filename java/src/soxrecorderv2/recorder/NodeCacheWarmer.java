@@ -0,0 +1,105 @@
+package soxrecorderv2.recorder;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import soxrecorderv2.cache.NodeInfo;
+import soxrecorderv2.common.model.NodeIdentifier;
+import soxrecorderv2.util.PGConnectionManager;
+
+/**
+ * 起動時にobservationとtransducerを全件読み, 各writerのnodeキャッシュに入れておく。
+ * (しないと, 再起動直後は全nodeの最初のメッセージがトランザクションの中でidを引くことになる)
+ *
+ * 件数が多いのでsetFetchSize()でカーソルを使って少しずつ読む (autoCommit=falseのコネクションが必要)。
+ * writerのスレッドを開始する前に呼ぶこと
+ */
+public class NodeCacheWarmer {
+	
+	public static final String CONFIG_KEY_ENABLED = "node_cache_warmup";
+	public static final String CONFIG_KEY_FETCH_SIZE = "node_cache_warmup_fetch_size";
+	
+	public static final int DEFAULT_FETCH_SIZE = 5000;
+	
+	private static final String TRANSDUCER_SQL = "SELECT id, observation_id, transducer_id FROM transducer;";
+	private static final String OBSERVATION_SQL = "SELECT id, sox_server, sox_node FROM observation;";
+	
+	private final PGConnectionManager connManager;
+	private final int fetchSize;
+	private int nNodes = 0;
+	private int nTransducers = 0;
+	private long elapsedMsec = 0;
+	
+	public NodeCacheWarmer(PGConnectionManager connManager, int fetchSize) {
+		this.connManager = connManager;
+		this.fetchSize = Math.max(1, fetchSize);
+	}
+	
+	/**
+	 * nodeごとに, そのnodeのタスクを受けもつwriterのキャッシュに入れる
+	 * @param dispatcher nodeがどのwriterに振り分けられるか
+	 * @param writers dispatcherのshardの順
+	 * @throws SQLException
+	 */
+	public void warmUp(RecordTaskDispatcher dispatcher, List<DBWriterProcess> writers) throws SQLException {
+		long tStart = System.currentTimeMillis();
+		Connection conn = connManager.getConnection();
+		
+		// 1. transducerをobservationごとにまとめる
+		Map<Long, Map<String, Long>> transducersByObservation = new HashMap<>();
+		PreparedStatement tdrPs = connManager.prepareStatement(TRANSDUCER_SQL);
+		tdrPs.setFetchSize(fetchSize);
+		ResultSet tdrRs = tdrPs.executeQuery();
+		try {
+			while (tdrRs.next()) {
+				String transducerId = tdrRs.getString(3);
+				if (transducerId == null) {
+					continue;
+				}
+				long observationId = tdrRs.getLong(2);
+				Map<String, Long> tdrIds = transducersByObservation.get(observationId);
+				if (tdrIds == null) {
+					tdrIds = new HashMap<>();
+					transducersByObservation.put(observationId, tdrIds);
+				}
+				tdrIds.put(transducerId, tdrRs.getLong(1));
+				nTransducers++;
+			}
+		} finally {
+			tdrRs.close();
+		}
+		
+		// 2. observationを読みながらNodeInfoを作ってwriterに渡す
+		PreparedStatement obsPs = connManager.prepareStatement(OBSERVATION_SQL);
+		obsPs.setFetchSize(fetchSize);
+		ResultSet obsRs = obsPs.executeQuery();
+		try {
+			while (obsRs.next()) {
+				long observationId = obsRs.getLong(1);
+				NodeIdentifier nodeId = new NodeIdentifier(obsRs.getString(2), obsRs.getString(3));
+				Map<String, Long> tdrIds = transducersByObservation.remove(observationId);
+				if (tdrIds == null) {
+					tdrIds = Collections.emptyMap();
+				}
+				writers.get(dispatcher.shardOf(nodeId)).warmUp(new NodeInfo(nodeId, observationId, tdrIds));
+				nNodes++;
+			}
+		} finally {
+			obsRs.close();
+		}
+		conn.commit();
+		connManager.updateLastCommunicateTime();
+		elapsedMsec = System.currentTimeMillis() - tStart;
+	}
+	
+	public String getStats() {
+		return nNodes + " nodes, " + nTransducers + " transducers in " + elapsedMsec + " msec";
+	}
+
+}
@@ -0,0 +1,235 @@
+package soxrecorderv2.recorder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import soxrecorderv2.codec.TimeSeriesChunkEncoder;
+import soxrecorderv2.util.ConfigUtil;
+import soxrecorderv2.util.SOXUtil;
+
+/**
+ * DBWriterProcessごとに, 数値のtransducer_raw_valueをtransducerごとのchunkにためる (numeric_chunk_mode)。
+ *
+ * - stage(): いまのトランザクションで書いた値を一時的に持つ。onCommit()でchunkに入り, onRollback()で捨てる
+ *   (recordがcommitされなかった値はchunkに入らない)
+ * - takeReady(): numeric_chunk_max_values個たまったか, numeric_chunk_max_age_secたったchunkを閉じて返す。
+ *   writerは同じトランザクションでtransducer_value_chunkに書いてchunkのrecordのtransducer_raw_valueを消し,
+ *   commitできたらonCommit()で手放す。rollbackしたら次のtakeReady()でもう一度返す
+ *
+ * chunkにためている間もtransducer_raw_valueの行は書いてあるので, プロセスが落ちても値はなくならない
+ * (その行はchunkにならずに残る)。スレッドセーフではない
+ */
+public class NumericChunkBuffer {
+
+	public static final String CONFIG_KEY_ENABLED = "numeric_chunk_mode";
+	public static final String CONFIG_KEY_MAX_VALUES = "numeric_chunk_max_values";
+	public static final String CONFIG_KEY_MAX_AGE_SEC = "numeric_chunk_max_age_sec";
+
+	public static final int DEFAULT_MAX_VALUES = 600;
+	public static final int DEFAULT_MAX_AGE_SEC = 600;
+
+	/**
+	 * 閉じたchunk (transducer_value_chunkの1行)
+	 */
+	public static class Chunk {
+		private final long observationId;
+		private final long transducerId;
+		private final TimeSeriesChunkEncoder encoder;
+		private final List<Long> recordIds;
+
+		private Chunk(long observationId, long transducerId, OpenChunk open) {
+			this.observationId = observationId;
+			this.transducerId = transducerId;
+			this.encoder = open.encoder;
+			this.recordIds = open.recordIds;
+		}
+
+		public long getObservationId() {
+			return observationId;
+		}
+
+		public long getTransducerId() {
+			return transducerId;
+		}
+
+		public int getValueType() {
+			return encoder.isFloat() ? SOXUtil.VALUE_TYPE_FLOAT : SOXUtil.VALUE_TYPE_INT;
+		}
+
+		public TimeSeriesChunkEncoder getEncoder() {
+			return encoder;
+		}
+
+		/**
+		 * @return chunkに入れた値のrecord.id (chunkを書いたらこのrecordのtransducer_raw_valueを消す)
+		 */
+		public List<Long> getRecordIds() {
+			return recordIds;
+		}
+	}
+
+	private static class OpenChunk {
+		final long observationId;
+		final TimeSeriesChunkEncoder encoder;
+		final List<Long> recordIds = new ArrayList<>();
+		final long openedAt;
+
+		OpenChunk(long observationId, boolean isFloat, long openedAt) {
+			this.observationId = observationId;
+			this.encoder = new TimeSeriesChunkEncoder(isFloat);
+			this.openedAt = openedAt;
+		}
+	}
+
+	private static class StagedValue {
+		final long observationId;
+		final long transducerId;
+		final long recordId;
+		final long createdMillis;
+		final boolean isFloat;
+		final long longValue;
+		final double doubleValue;
+
+		StagedValue(long observationId, long transducerId, long recordId, long createdMillis, boolean isFloat, long longValue, double doubleValue) {
+			this.observationId = observationId;
+			this.transducerId = transducerId;
+			this.recordId = recordId;
+			this.createdMillis = createdMillis;
+			this.isFloat = isFloat;
+			this.longValue = longValue;
+			this.doubleValue = doubleValue;
+		}
+	}
+
+	private final int maxValues;
+	private final long maxAgeMsec;
+	private final Map<Long, OpenChunk> openChunks = new HashMap<>();  // transducer.id => chunk
+	private final List<StagedValue> staged = new ArrayList<>();
+	private final List<Chunk> sealed = new ArrayList<>();  // 閉じたがまだcommitされていない
+	private int nInFlight = 0;  // sealedの先頭からnInFlight個はいまのトランザクションで書いた
+	private long nChunkedValues = 0;
+	private long nWrittenChunks = 0;
+
+	public NumericChunkBuffer(int maxValues, int maxAgeSec) {
+		this.maxValues = Math.max(1, maxValues);
+		this.maxAgeMsec = Math.max(1, maxAgeSec) * 1000L;
+	}
+
+	/**
+	 * @return numeric_chunk_modeが有効ならバッファ, そうでなければnull
+	 */
+	public static NumericChunkBuffer fromConfig(Properties config) {
+		if (!ConfigUtil.getBoolean(config, CONFIG_KEY_ENABLED, false)) {
+			return null;
+		}
+		return new NumericChunkBuffer(
+				ConfigUtil.getInt(config, CONFIG_KEY_MAX_VALUES, DEFAULT_MAX_VALUES),
+				ConfigUtil.getInt(config, CONFIG_KEY_MAX_AGE_SEC, DEFAULT_MAX_AGE_SEC));
+	}
+
+	/**
+	 * chunkにまとめられる値か: rawとtypedが同じINT/FLOATで, transducerごとのtimestampを持たないもの
+	 * (DECIMALは文字列どおりの値を残したいのでまとめない)
+	 */
+	public static boolean isChunkable(int valueType, boolean hasSameTypedValue, boolean hasTransducerTimestamp) {
+		return hasSameTypedValue && !hasTransducerTimestamp
+				&& (valueType == SOXUtil.VALUE_TYPE_INT || valueType == SOXUtil.VALUE_TYPE_FLOAT);
+	}
+
+	public void stageInt(long observationId, long transducerId, long recordId, long createdMillis, long value) {
+		staged.add(new StagedValue(observationId, transducerId, recordId, createdMillis, false, value, 0.0));
+	}
+
+	public void stageFloat(long observationId, long transducerId, long recordId, long createdMillis, double value) {
+		staged.add(new StagedValue(observationId, transducerId, recordId, createdMillis, true, 0, value));
+	}
+
+	/**
+	 * 書き出すchunkを閉じて返す。返したものはonCommit()まではsealedに残る
+	 * @param all trueなら開いているchunkをすべて閉じる (終了時)
+	 */
+	public List<Chunk> takeReady(long now, boolean all) {
+		Iterator<Map.Entry<Long, OpenChunk>> it = openChunks.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Long, OpenChunk> entry = it.next();
+			OpenChunk open = entry.getValue();
+			if (all || maxAgeMsec <= now - open.openedAt) {
+				sealed.add(new Chunk(open.observationId, entry.getKey(), open));
+				it.remove();
+			}
+		}
+		nInFlight = sealed.size();
+		return Collections.unmodifiableList(new ArrayList<>(sealed));
+	}
+
+	/**
+	 * @return takeReady()で返すものがありそうならtrue (空いているときに書きにいくかどうか)
+	 */
+	public boolean hasReady(long now) {
+		if (!sealed.isEmpty()) {
+			return true;
+		}
+		for (OpenChunk open : openChunks.values()) {
+			if (maxAgeMsec <= now - open.openedAt) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 書いたchunkを手放し, いまのトランザクションの値をchunkに入れる
+	 */
+	public void onCommit(long now) {
+		nWrittenChunks += nInFlight;
+		sealed.subList(0, nInFlight).clear();
+		nInFlight = 0;
+		for (StagedValue v : staged) {
+			OpenChunk open = openChunks.get(v.transducerId);
+			if (open != null && open.encoder.isFloat() != v.isFloat) {
+				// 値の種類が変わったら別のchunkにする
+				sealed.add(new Chunk(open.observationId, v.transducerId, open));
+				open = null;
+			}
+			if (open == null) {
+				open = new OpenChunk(v.observationId, v.isFloat, now);
+				openChunks.put(v.transducerId, open);
+			}
+			if (v.isFloat) {
+				open.encoder.appendFloat(v.recordId, v.createdMillis, v.doubleValue);
+			} else {
+				open.encoder.appendInt(v.recordId, v.createdMillis, v.longValue);
+			}
+			open.recordIds.add(v.recordId);
+			if (maxValues <= open.encoder.size()) {
+				sealed.add(new Chunk(open.observationId, v.transducerId, open));
+				openChunks.remove(v.transducerId);
+			}
+		}
+		nChunkedValues += staged.size();
+		staged.clear();
+	}
+
+	/**
+	 * いまのトランザクションの値を捨てる。書こうとしたchunkは次のtakeReady()でもう一度返す
+	 */
+	public void onRollback() {
+		nInFlight = 0;
+		staged.clear();
+	}
+
+	public String getStats() {
+		long nBuffered = 0;
+		for (OpenChunk open : openChunks.values()) {
+			nBuffered += open.encoder.size();
+		}
+		return "numeric chunks: values=" + nChunkedValues + ", written=" + nWrittenChunks
+				+ ", open=" + openChunks.size() + " (" + nBuffered + " values), pending=" + sealed.size();
+	}
+
+}
@@ -0,0 +1,152 @@
+package soxrecorderv2.recorder;
+
+import java.io.IOException;
+
+import soxrecorderv2.common.model.NodeIdentifier;
+import soxrecorderv2.common.model.RecordTask;
+import soxrecorderv2.logging.SR2LogType;
+import soxrecorderv2.logging.SR2Logger;
+
+/**
+ * OverloadPolicyの実装。task_queue_overload_policy で選ぶ。
+ *
+ * - block: 空きができるまでdeadlineまで待つ。入らなければ呼び出し側 (RecordParseStage) がジャーナルに退避する
+ * - drop_oldest_per_node: 同じnodeのいちばん古いタスクを捨てて入れる。そのnodeのタスクがなければ新しい方を捨てる
+ * - coalesce_latest_per_node: 同じnodeのいちばん新しいタスクのtransducerが新しいタスクに全部含まれるなら, 新しいタスクで置きかえる
+ *   (transducerごとに最新の値だけ残り, nodeごとの順番は変わらない)。置きかえられなければdrop_oldest_per_nodeと同じ
+ * - spill: 待たずにSpillJournalに退避する。ジャーナルが無効ならblockと同じ。ディスクI/Oがあるのでキューのロックの外で動く
+ */
+public class OverloadPolicies {
+
+	public static final OverloadPolicy BLOCK = new OverloadPolicy() {
+		@Override
+		public boolean onFull(RecordTaskQueue queue, RecordTask task, long deadlineNanos) throws InterruptedException {
+			if (queue.awaitNotFull(deadlineNanos)) {
+				queue.enqueue(task);
+				return true;
+			}
+			return false;
+		}
+
+		@Override
+		public boolean runsOutsideLock() {
+			return false;
+		}
+
+		@Override
+		public String getName() {
+			return "block";
+		}
+	};
+
+	public static final OverloadPolicy DROP_OLDEST_PER_NODE = new OverloadPolicy() {
+		@Override
+		public boolean onFull(RecordTaskQueue queue, RecordTask task, long deadlineNanos) {
+			if (queue.evictOldestOf(task.getNodeId())) {
+				queue.enqueue(task);
+				return true;
+			}
+			return false;
+		}
+
+		@Override
+		public boolean runsOutsideLock() {
+			return false;
+		}
+
+		@Override
+		public String getName() {
+			return "drop_oldest_per_node";
+		}
+	};
+
+	public static final OverloadPolicy COALESCE_LATEST_PER_NODE = new OverloadPolicy() {
+		@Override
+		public boolean onFull(RecordTaskQueue queue, RecordTask task, long deadlineNanos) {
+			if (queue.coalesce(task)) {
+				return true;
+			}
+			if (queue.evictOldestOf(task.getNodeId())) {
+				queue.enqueue(task);
+				return true;
+			}
+			return false;
+		}
+
+		@Override
+		public boolean runsOutsideLock() {
+			return false;
+		}
+
+		@Override
+		public String getName() {
+			return "coalesce_latest_per_node";
+		}
+	};
+
+	/**
+	 * ジャーナルに退避する。append()はセグメントのrotate (spill_segment_mbのファイル作成) をふくむので,
+	 * ほかのスレッドのofferやwriterのpollを止めないようにロックの外で呼ばれる
+	 */
+	public static class SpillPolicy implements OverloadPolicy {
+
+		private final SpillJournal journal;
+		private final SR2Logger logger;
+
+		public SpillPolicy(SpillJournal journal, SR2Logger logger) {
+			this.journal = journal;
+			this.logger = logger;
+		}
+
+		@Override
+		public boolean onFull(RecordTaskQueue queue, RecordTask task, long deadlineNanos) {
+			try {
+				if (journal.append(task.getNodeId(), task.getRawXml(), task.getReceivedAt())) {
+					queue.countSpilled();
+					return true;
+				}
+			} catch (IOException e) {
+				// falseを返すとRecordTaskQueueが捨てたものとして数え, 呼び出し側がRECORD_GIVE_UPにする
+				NodeIdentifier nodeId = task.getNodeId();
+				logger.error(SR2LogType.JAVA_GENERAL_EXCEPTION, "spill journal append failed in overload policy",
+						nodeId.getServer(), nodeId.getNode(), e);
+			}
+			return false;
+		}
+
+		@Override
+		public boolean runsOutsideLock() {
+			return true;
+		}
+
+		@Override
+		public String getName() {
+			return "spill";
+		}
+
+	}
+
+	/**
+	 * @param name 設定値 (null/不明ならblock)
+	 * @param journal spillに使う (nullならspillはblockになる)
+	 * @param logger spillに失敗したときに使う
+	 */
+	public static OverloadPolicy fromConfig(String name, SpillJournal journal, SR2Logger logger) {
+		if (name == null) {
+			return BLOCK;
+		}
+		switch (name.trim().toLowerCase()) {
+		case "drop_oldest_per_node":
+			return DROP_OLDEST_PER_NODE;
+		case "coalesce_latest_per_node":
+			return COALESCE_LATEST_PER_NODE;
+		case "spill":
+			return (journal != null) ? new SpillPolicy(journal, logger) : BLOCK;
+		default:
+			return BLOCK;
+		}
+	}
+
+	private OverloadPolicies() {}  // you cannot instantiate this class
+
+}
@@ -0,0 +1,30 @@
+package soxrecorderv2.recorder;
+
+import soxrecorderv2.common.model.RecordTask;
+
+/**
+ * RecordTaskQueueがいっぱいのときに, 新しいタスクをどう扱うかを決める。
+ * 実装はOverloadPoliciesにある。
+ */
+public interface OverloadPolicy {
+
+	/**
+	 * キューがいっぱいのときに, キューのロックを持った状態で呼ばれる (runsOutsideLock()がtrueならロックなしで)。
+	 *
+	 * @param queue 対象のキュー (ロックを持っているときはRecordTaskQueueのpackage privateな操作を使ってよい)
+	 * @param task 入れようとしているタスク
+	 * @param deadlineNanos System.nanoTime()でのこの時刻までは待ってよい
+	 * @return taskを引き受けたら(キューに入れた/ほかのタスクとまとめた/退避した)true, 捨てたらfalse
+	 * @throws InterruptedException
+	 */
+	public boolean onFull(RecordTaskQueue queue, RecordTask task, long deadlineNanos) throws InterruptedException;
+
+	/**
+	 * @return trueならonFull()をキューのロックの外で呼ぶ (ディスクI/Oなど時間のかかるもの)。
+	 *   そのときonFull()で使ってよいのはcountSpilled()だけ
+	 */
+	public boolean runsOutsideLock();
+
+	public String getName();
+
+}
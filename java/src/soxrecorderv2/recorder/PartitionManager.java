@@ -0,0 +1,207 @@
+package soxrecorderv2.recorder;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import soxrecorderv2.common.model.db.RecordPartition;
+import soxrecorderv2.logging.SR2LogType;
+import soxrecorderv2.logging.SR2Logger;
+import soxrecorderv2.util.ConfigUtil;
+import soxrecorderv2.util.PGConnectionManager;
+import soxrecorderv2.util.SR2DatabaseUtil;
+import soxrecorderv2.util.ThreadUtil;
+
+/**
+ * record, raw_xml, transducer_raw_value, transducer_typed_value の期間ごとの子テーブルを管理する。
+ *
+ * - partition_interval_months ごと (0ならパーティションを使わない, 最大12) の子テーブルを,
+ *   今の期間からpartition_create_ahead期間先まで作っておく (create_record_partition)
+ * - partition_retention_months (0なら消さない) より古い期間の子テーブルはテーブルごと消す (drop_record_partition)
+ * - DBWriterProcessはpartitionFor()で書き込み先の子テーブルを決める。なければ親テーブルに書く (exporterはExportSegmentで期間ごとに合わせて読む)
+ *
+ * 期間は1月から数えてinterval monthsごとに区切る (3なら1,4,7,10月始まり)。suffixは期間の最初の月のyyyyMM
+ */
+public class PartitionManager implements Runnable, RecorderSubProcess {
+
+	public static final String CONFIG_KEY_INTERVAL_MONTHS = "partition_interval_months";
+	public static final String CONFIG_KEY_CREATE_AHEAD = "partition_create_ahead";
+	public static final String CONFIG_KEY_RETENTION_MONTHS = "partition_retention_months";
+
+	public static final int DEFAULT_INTERVAL_MONTHS = 0;
+	public static final int DEFAULT_CREATE_AHEAD = 2;
+	public static final int DEFAULT_RETENTION_MONTHS = 0;
+
+	private static final long MAINTENANCE_INTERVAL_MSEC = 60 * 60 * 1000;  // 1hour
+
+	private static final String CREATE_SQL = "SELECT create_record_partition(?, ?, ?);";
+	private static final String DROP_SQL = "SELECT drop_record_partition(?);";
+
+	private final SR2Logger logger;
+	private final PGConnectionManager connManager;
+	private final int intervalMonths;
+	private final int createAhead;
+	private final int retentionMonths;
+	private volatile List<RecordPartition> partitions = Collections.emptyList();  // 古い順
+	private volatile boolean isRunning;
+
+	public PartitionManager(Recorder parent) {
+		this.logger = parent.createLogger(getComponentName());
+		Properties config = parent.getConfig();
+		this.connManager = new PGConnectionManager(config);
+		this.intervalMonths = Math.min(12, Math.max(0, ConfigUtil.getInt(config, CONFIG_KEY_INTERVAL_MONTHS, DEFAULT_INTERVAL_MONTHS)));
+		this.createAhead = Math.max(1, ConfigUtil.getInt(config, CONFIG_KEY_CREATE_AHEAD, DEFAULT_CREATE_AHEAD));
+		this.retentionMonths = Math.max(0, ConfigUtil.getInt(config, CONFIG_KEY_RETENTION_MONTHS, DEFAULT_RETENTION_MONTHS));
+	}
+
+	public boolean isEnabled() {
+		return 0 < intervalMonths;
+	}
+
+	@Override
+	public void run() {
+		isRunning = true;
+		long lastMaintainedAt = System.currentTimeMillis();  // 起動時はRecorderがmaintain()を呼んでいる
+		while (isRunning) {
+			ThreadUtil.sleep(1000);
+			long now = System.currentTimeMillis();
+			if (now - lastMaintainedAt < MAINTENANCE_INTERVAL_MSEC) {
+				continue;
+			}
+			try {
+				maintain();
+			} catch (SQLException e) {
+				logger.error(SR2LogType.JAVA_SQL_EXCEPTION, "partition maintenance failed", e);
+			}
+			lastMaintainedAt = now;
+		}
+	}
+
+	/**
+	 * 先の期間の子テーブルを作り, 保持期間を過ぎたものを消して, 一覧を読みなおす。
+	 * コネクションは終わったらプールに返す (失敗したら捨てる)
+	 * @throws SQLException
+	 */
+	public synchronized void maintain() throws SQLException {
+		if (!isEnabled()) {
+			return;
+		}
+		try {
+			Connection conn = connManager.getConnection();
+
+			// 1. 今の期間から先の期間まで作る
+			Calendar periodStart = startOfPeriod(Calendar.getInstance());
+			for (int i = 0; i <= createAhead; i++) {
+				Calendar periodEnd = (Calendar) periodStart.clone();
+				periodEnd.add(Calendar.MONTH, intervalMonths);
+				String suffix = toSuffix(periodStart);
+				if (callBoolean(CREATE_SQL, suffix, periodStart, periodEnd)) {
+					logger.info(SR2LogType.RECORD_PARTITION_CREATE, "created record partition " + suffix);
+				}
+				conn.commit();
+				periodStart = periodEnd;
+			}
+
+			// 2. 保持期間を過ぎたものを消す
+			List<RecordPartition> current = SR2DatabaseUtil.getRecordPartitions(conn);
+			if (0 < retentionMonths) {
+				Calendar cutoff = Calendar.getInstance();
+				cutoff.add(Calendar.MONTH, -retentionMonths);
+				for (RecordPartition partition : current) {
+					if (partition.getRangeEnd().getTime() <= cutoff.getTimeInMillis()) {
+						if (callBoolean(DROP_SQL, partition.getSuffix(), null, null)) {
+							logger.info(SR2LogType.RECORD_PARTITION_DROP, "dropped expired record partition " + partition.getSuffix());
+						}
+						conn.commit();
+					}
+				}
+				current = SR2DatabaseUtil.getRecordPartitions(conn);
+			}
+			conn.commit();
+			connManager.updateLastCommunicateTime();
+			partitions = Collections.unmodifiableList(current);
+		} catch (SQLException e) {
+			connManager.invalidate();
+			throw e;
+		} finally {
+			connManager.release();  // 1時間に1回しか使わないので持ち続けない
+		}
+	}
+
+	/**
+	 * @param created recordのcreated
+	 * @return createdを含む子テーブル, なければnull (親テーブルに書く)
+	 */
+	public RecordPartition partitionFor(Timestamp created) {
+		List<RecordPartition> snapshot = partitions;
+		for (int i = snapshot.size() - 1; 0 <= i; i--) {  // だいたい最新のもの
+			RecordPartition partition = snapshot.get(i);
+			if (partition.contains(created)) {
+				return partition;
+			}
+		}
+		return null;
+	}
+
+	public String getStats() {
+		List<RecordPartition> snapshot = partitions;
+		if (snapshot.isEmpty()) {
+			return "record partitions: none";
+		}
+		return "record partitions: " + snapshot.size() + " (" + snapshot.get(0).getSuffix() + " - " + snapshot.get(snapshot.size() - 1).getSuffix() + ")";
+	}
+
+	private boolean callBoolean(String sql, String suffix, Calendar start, Calendar end) throws SQLException {
+		PreparedStatement ps = connManager.prepareStatement(sql);
+		ps.setString(1, suffix);
+		if (start != null) {
+			ps.setTimestamp(2, new Timestamp(start.getTimeInMillis()));
+			ps.setTimestamp(3, new Timestamp(end.getTimeInMillis()));
+		}
+		ResultSet rs = ps.executeQuery();
+		try {
+			return rs.next() && rs.getBoolean(1);
+		} finally {
+			rs.close();
+		}
+	}
+
+	private Calendar startOfPeriod(Calendar cal) {
+		Calendar start = (Calendar) cal.clone();
+		int monthIndex = start.get(Calendar.MONTH);  // 0 origin
+		start.set(Calendar.MONTH, monthIndex - (monthIndex % intervalMonths));
+		start.set(Calendar.DAY_OF_MONTH, 1);
+		start.set(Calendar.HOUR_OF_DAY, 0);
+		start.set(Calendar.MINUTE, 0);
+		start.set(Calendar.SECOND, 0);
+		start.set(Calendar.MILLISECOND, 0);
+		return start;
+	}
+
+	private static String toSuffix(Calendar periodStart) {
+		return new SimpleDateFormat("yyyyMM").format(periodStart.getTime());
+	}
+
+	@Override
+	public String getComponentName() {
+		return "partition_manager";
+	}
+
+	@Override
+	public void shutdownSubProcess() {
+		isRunning = false;
+	}
+
+	@Override
+	public PGConnectionManager getConnManager() {
+		return connManager;
+	}
+
+}
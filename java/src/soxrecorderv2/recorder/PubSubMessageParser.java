@@ -0,0 +1,164 @@
+package soxrecorderv2.recorder;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import jp.ac.keio.sfc.ht.sox.protocol.Data;
+import jp.ac.keio.sfc.ht.sox.protocol.TransducerValue;
+
+/**
+ * pubsubのeventメッセージ(stanza)をStAXで1パスで読んで, node名とtransducerValueの一覧を取り出す。
+ *
+ * 以前はDOMを組み立てて(グローバルロックつき) => XPathで&lt;items&gt;と&lt;data&gt;を探して =>
+ * &lt;data&gt;を文字列に戻して => Simple XMLのPersisterで読みなおしていたが, それと同じ結果をロックなしで返す。
+ * XMLInputFactoryは設定後はスレッドセーフなので, インスタンスは共有してよい。
+ */
+public class PubSubMessageParser {
+
+	public static final String ELEM_ITEMS = "items";
+	public static final String ELEM_DATA = "data";
+	public static final String ELEM_TRANSDUCER_VALUE = "transducerValue";
+
+	public static final String ATTR_NODE = "node";
+	public static final String ATTR_ID = "id";
+	public static final String ATTR_TYPED_VALUE = "typedValue";
+	public static final String ATTR_RAW_VALUE = "rawValue";
+	public static final String ATTR_TIMESTAMP = "timestamp";
+
+	private static final XMLInputFactory XML_INPUT_FACTORY;
+
+	static {
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		XML_INPUT_FACTORY = factory;
+	}
+
+	/**
+	 * パース結果
+	 */
+	public static class ParsedMessage {
+		private final String nodeName;
+		private final Data data;
+
+		public ParsedMessage(String nodeName, Data data) {
+			this.nodeName = nodeName;
+			this.data = data;
+		}
+
+		/**
+		 * @return &lt;items node="..."&gt;の値 (例: "hoge_data")
+		 */
+		public String getNodeName() {
+			return nodeName;
+		}
+
+		public Data getData() {
+			return data;
+		}
+	}
+
+	/**
+	 * @param rawXml message stanza全体
+	 * @return &lt;items&gt;がなければnull
+	 * @throws XMLStreamException XMLとして壊れていたとき
+	 */
+	public ParsedMessage parse(String rawXml) throws XMLStreamException {
+		XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(new StringReader(rawXml));
+		try {
+			return parse(reader);
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * パースせずに最初の&lt;items node="..."&gt;の値を文字列から探す。受信スレッドでworkerを選ぶためのもので,
+	 * 見つからないときや実体参照を含むときは正しくないことがある (そのnodeのstanzaはいつも同じ値になるので振り分けには足りる)
+	 * @param rawXml message stanza全体
+	 * @return 見つからなければnull
+	 */
+	public static String peekNodeName(String rawXml) {
+		int itemsAt = rawXml.indexOf("<" + ELEM_ITEMS);
+		if (itemsAt < 0) {
+			return null;
+		}
+		int tagEnd = rawXml.indexOf('>', itemsAt);
+		int attrAt = rawXml.indexOf(ATTR_NODE + "=", itemsAt);
+		if (attrAt < 0 || (0 <= tagEnd && tagEnd < attrAt)) {
+			return null;
+		}
+		int valueAt = attrAt + ATTR_NODE.length() + 1;
+		if (rawXml.length() <= valueAt) {
+			return null;
+		}
+		char quote = rawXml.charAt(valueAt);
+		int valueEnd = rawXml.indexOf(quote, valueAt + 1);
+		if ((quote != '"' && quote != '\'') || valueEnd < 0) {
+			return null;
+		}
+		return rawXml.substring(valueAt + 1, valueEnd);
+	}
+
+	private ParsedMessage parse(XMLStreamReader reader) throws XMLStreamException {
+		String nodeName = null;
+		List<TransducerValue> values = null;
+		int dataDepth = -1;  // 最初の<data>の深さ. <data>の外では-1
+		boolean dataDone = false;
+		int depth = 0;
+
+		while (reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+				String name = reader.getLocalName();
+				if (nodeName == null && ELEM_ITEMS.equals(name)) {
+					nodeName = reader.getAttributeValue(null, ATTR_NODE);
+				} else if (dataDepth < 0 && !dataDone && ELEM_DATA.equals(name)) {
+					dataDepth = depth;
+					values = new ArrayList<>();
+				} else if (0 <= dataDepth && depth == dataDepth + 1 && ELEM_TRANSDUCER_VALUE.equals(name)) {
+					values.add(readTransducerValue(reader));
+				}
+			} else if (event == XMLStreamConstants.END_ELEMENT) {
+				if (depth == dataDepth) {
+					// 最初の<data>だけ読めばよい (XPathの"//data"と同じ)
+					dataDepth = -1;
+					dataDone = true;
+				}
+				depth--;
+				if (dataDone && nodeName != null) {
+					break;  // 残りは読まない
+				}
+			}
+		}
+
+		if (nodeName == null) {
+			return null;
+		}
+		Data data = new Data();
+		data.setTransducerValue((values != null) ? values : new ArrayList<TransducerValue>());
+		return new ParsedMessage(nodeName, data);
+	}
+
+	private static TransducerValue readTransducerValue(XMLStreamReader reader) throws XMLStreamException {
+		String id = reader.getAttributeValue(null, ATTR_ID);
+		if (id == null) {
+			// Persisterと同じく, idは必須
+			throw new XMLStreamException("transducerValue without id", reader.getLocation());
+		}
+		TransducerValue value = new TransducerValue();
+		value.setId(id);
+		value.setTypedValue(reader.getAttributeValue(null, ATTR_TYPED_VALUE));
+		value.setRawValue(reader.getAttributeValue(null, ATTR_RAW_VALUE));
+		value.setTimestamp(reader.getAttributeValue(null, ATTR_TIMESTAMP));
+		return value;
+	}
+
+}
@@ -0,0 +1,102 @@
+package soxrecorderv2.recorder;
+
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import soxrecorderv2.codec.CompressionCodec;
+import soxrecorderv2.codec.CompressionCodecs;
+import soxrecorderv2.codec.CompressionDictionaryStore;
+import soxrecorderv2.codec.CompressionDictionaryTrainer;
+import soxrecorderv2.codec.DeflateDictionaryCodec;
+import soxrecorderv2.logging.SR2LogType;
+import soxrecorderv2.logging.SR2Logger;
+import soxrecorderv2.util.ConfigUtil;
+
+/**
+ * raw_xmlをどのcodecで圧縮するかを決める。全DBWriterProcessで共有する。
+ *
+ * raw_xml_codec = deflate_dictionary のときは, SOXサーバごとに
+ * 1. compression_dictionaryに辞書があればそれを使う
+ * 2. なければ最初のraw_xml_dictionary_samples件をgzipで書きながらサンプルにし, 辞書を作って保存する
+ * 3. 以降はその辞書で圧縮する
+ */
+public class RawXmlCompressor {
+
+	public static final String CONFIG_KEY_RAW_XML_CODEC = "raw_xml_codec";
+	public static final String CONFIG_KEY_DICTIONARY_SAMPLES = "raw_xml_dictionary_samples";
+
+	public static final String CODEC_NAME_DEFLATE_DICTIONARY = "deflate_dictionary";
+	public static final int DEFAULT_DICTIONARY_SAMPLES = 1000;
+
+	private final SR2Logger logger;
+	private final CompressionCodec fallback;
+	private final boolean useDictionary;
+	private final int nSamples;
+	private final CompressionDictionaryStore store;
+	private final ConcurrentHashMap<String, CompressionCodec> codecs = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, CompressionDictionaryTrainer> trainers = new ConcurrentHashMap<>();
+
+	public RawXmlCompressor(Properties config, CompressionDictionaryStore store, SR2Logger logger) {
+		this.logger = logger;
+		this.store = store;
+		String codecName = ConfigUtil.getString(config, CONFIG_KEY_RAW_XML_CODEC, "gzip");
+		this.useDictionary = CODEC_NAME_DEFLATE_DICTIONARY.equalsIgnoreCase(codecName.trim());
+		this.fallback = (useDictionary) ? CompressionCodecs.GZIP : CompressionCodecs.fromConfig(codecName);
+		this.nSamples = ConfigUtil.getInt(config, CONFIG_KEY_DICTIONARY_SAMPLES, DEFAULT_DICTIONARY_SAMPLES);
+	}
+
+	/**
+	 * @param soxServer
+	 * @param rawXml 辞書がまだなければサンプルにする
+	 * @return rawXmlの圧縮に使うcodec
+	 */
+	public CompressionCodec codecFor(String soxServer, String rawXml) {
+		CompressionCodec codec = codecs.get(soxServer);
+		if (codec != null) {
+			return codec;
+		}
+		if (!useDictionary) {
+			return fallback;
+		}
+
+		CompressionDictionaryTrainer trainer = trainers.get(soxServer);
+		if (trainer == null) {
+			// 最初の1件: 保存済みの辞書があればそれを使う
+			DeflateDictionaryCodec saved = null;
+			try {
+				saved = store.getLatest(soxServer);
+			} catch (SQLException e) {
+				logger.error(SR2LogType.JAVA_SQL_EXCEPTION, "could not load compression dictionary", soxServer, null, e);
+			}
+			if (saved != null) {
+				codecs.put(soxServer, saved);
+				return saved;
+			}
+			trainers.putIfAbsent(soxServer, new CompressionDictionaryTrainer(nSamples));
+			trainer = trainers.get(soxServer);
+		}
+
+		synchronized (trainer) {
+			if (codecs.containsKey(soxServer)) {
+				return codecs.get(soxServer);  // 他のwriterが作りおわった
+			}
+			trainer.addSample(rawXml);
+			if (trainer.isReady()) {
+				try {
+					DeflateDictionaryCodec trained = store.save(soxServer, trainer.build());
+					codecs.put(soxServer, trained);
+					trainers.remove(soxServer);
+					logger.info(SR2LogType.COMPRESSION_DICTIONARY_CREATE, "trained compression dictionary id=" + trained.getDictionaryId()
+							+ " (" + trained.getDictionary().length + " bytes) from " + trainer.getSampleCount() + " stanzas", soxServer);
+				} catch (SQLException e) {
+					// サンプルを集めなおしてやりなおす
+					logger.error(SR2LogType.JAVA_SQL_EXCEPTION, "could not save compression dictionary", soxServer, null, e);
+					trainers.put(soxServer, new CompressionDictionaryTrainer(nSamples));
+				}
+			}
+		}
+		return fallback;
+	}
+
+}
@@ -0,0 +1,79 @@
+package soxrecorderv2.recorder;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * "record"テーブルのidを, record_id_seqからまとめて予約してプロセス内で払い出す。
+ *
+ * INSERTのあとに SELECT lastval() でidを引きなおす必要がなくなるので,
+ * record / raw_xml / transducer_*_value をすべてJDBCのバッチでまとめて投入できる。
+ *
+ * sequenceはトランザクションの外で進むので, rollbackされたトランザクションで使ったidは欠番になるだけで
+ * 重複することはない。
+ */
+public class RecordIdAllocator {
+
+	public static final String RECORD_ID_SEQUENCE = "record_id_seq";
+	public static final int DEFAULT_BLOCK_SIZE = 500;
+
+	private static final String SQL_RESERVE = "SELECT nextval('" + RECORD_ID_SEQUENCE + "') FROM generate_series(1, ?);";
+
+	private final int blockSize;
+	private final long[] reserved;
+	private int position = 0;
+	private int available = 0;
+
+	public RecordIdAllocator(int blockSize) {
+		if (blockSize < 1) {
+			throw new IllegalArgumentException("blockSize must be positive");
+		}
+		this.blockSize = blockSize;
+		this.reserved = new long[blockSize];
+	}
+
+	/**
+	 * 予約済みのidをひとつ払い出す。なくなっていたらconnを使って次のブロックを予約する
+	 * @param conn
+	 * @return
+	 * @throws SQLException
+	 */
+	public synchronized long next(Connection conn) throws SQLException {
+		if (available <= position) {
+			reserve(conn);
+		}
+		return reserved[position++];
+	}
+
+	public synchronized int getRemaining() {
+		return available - position;
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	private void reserve(Connection conn) throws SQLException {
+		PreparedStatement ps = conn.prepareStatement(SQL_RESERVE);
+		try {
+			ps.setInt(1, blockSize);
+			ResultSet rs = ps.executeQuery();
+			int n = 0;
+			while (rs.next() && n < blockSize) {
+				reserved[n++] = rs.getLong(1);
+			}
+			rs.close();
+
+			if (n == 0) {
+				throw new SQLException("could not reserve ids from " + RECORD_ID_SEQUENCE);
+			}
+			position = 0;
+			available = n;
+		} finally {
+			ps.close();
+		}
+	}
+
+}
@@ -0,0 +1,350 @@
+package soxrecorderv2.recorder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.stream.XMLStreamException;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+import soxrecorderv2.common.model.NodeIdentifier;
+import soxrecorderv2.common.model.RecordTask;
+import soxrecorderv2.logging.SR2LogType;
+import soxrecorderv2.logging.SR2Logger;
+import soxrecorderv2.util.ConfigUtil;
+import soxrecorderv2.util.PGConnectionManager;
+import soxrecorderv2.util.StageMetrics;
+
+/**
+ * XMPPの受信スレッドとパースを切り離すための段。
+ *
+ * 受信 (ServerRecordProcessのStanzaListener) => [workerごとのrawキュー] => パースworker => [書き込みキュー(RecordTaskDispatcher)] => DBWriterProcess
+ *
+ * - 受信側はsubmit()で生のstanzaを置くだけで, ブロックしない。rawキューがあふれたらparse_queue_overflowにしたがって捨てる
+ * - rawキューはworkerごとに分かれていて (容量はparse_queue_sizeを等分), node名のハッシュでworkerを選ぶ。
+ *   同じnodeのstanzaはいつも同じworkerがパースするので, 書き込みキューに入る順番も受信した順になる
+ * - パースできないstanza (壊れたXML, "_data"でないnodeなど) はログに出して捨てる。workerは止まらない
+ * - パースworkerは書き込みキューに入れる。いっぱいのときはキューのOverloadPolicyにしたがい (blockならwrite_offer_timeout_msecまで待つ),
+ *   それでも入らなければSpillJournalに退避する (ジャーナルが無効かいっぱいのときは捨てる)
+ * これでDBが詰まっても待たされるのはパースworkerだけで, XMPPの受信は止まらない。
+ */
+public class RecordParseStage implements RecorderSubProcess {
+
+	public static final String CONFIG_KEY_PARSE_THREADS = "parse_threads";
+	public static final String CONFIG_KEY_PARSE_QUEUE_SIZE = "parse_queue_size";
+	public static final String CONFIG_KEY_PARSE_QUEUE_OVERFLOW = "parse_queue_overflow";
+	public static final String CONFIG_KEY_WRITE_OFFER_TIMEOUT_MSEC = "write_offer_timeout_msec";
+
+	public static final int DEFAULT_PARSE_THREADS = 2;
+	public static final int DEFAULT_PARSE_QUEUE_SIZE = 5000;
+	public static final long DEFAULT_WRITE_OFFER_TIMEOUT_MSEC = 1000;
+
+	public static final long STATS_INTERVAL_MSEC = 60 * 1000;  // 1min
+	public static final double DROP_LOG_PER_SEC = 1.0;  // 捨てたときのログは1秒に1回まで
+
+	private static final String DATA_NODE_SUFFIX = "_data";
+	private static final int LOG_STANZA_MAX_LENGTH = 1000;
+
+	/**
+	 * rawキューがいっぱいのときの扱い
+	 */
+	public enum OverflowPolicy {
+		/** 新しく来たstanzaを捨てる */
+		DROP_NEWEST,
+		/** いちばん古いstanzaを捨てて新しいものを入れる */
+		DROP_OLDEST;
+
+		public static OverflowPolicy fromConfig(String value) {
+			if (value != null && value.trim().equalsIgnoreCase("drop_oldest")) {
+				return DROP_OLDEST;
+			}
+			return DROP_NEWEST;
+		}
+	}
+
+	/**
+	 * まだパースしていない受信データ
+	 */
+	private static class RawStanza {
+		final String soxServer;
+		final String rawXml;
+		final long receivedAt;  // epoch msec
+		final long receivedAtNanos;
+
+		RawStanza(String soxServer, String rawXml) {
+			this.soxServer = soxServer;
+			this.rawXml = rawXml;
+			this.receivedAt = System.currentTimeMillis();
+			this.receivedAtNanos = System.nanoTime();
+		}
+	}
+
+	private final SR2Logger logger;
+	private final RecordTaskDispatcher writeQueue;
+	private final SpillJournal spillJournal;
+	private final List<ArrayBlockingQueue<RawStanza>> rawQueues;  // workerごと
+	private final OverflowPolicy overflowPolicy;
+	private final int nThreads;
+	private final long writeOfferTimeoutMsec;
+	private final PubSubMessageParser parser = new PubSubMessageParser();
+
+	private final StageMetrics receiveMetrics = new StageMetrics("receive");
+	private final StageMetrics parseMetrics = new StageMetrics("parse");
+	private final StageMetrics writeMetrics = new StageMetrics("write-enqueue");
+	private final RateLimiter receiveDropLogLimiter = RateLimiter.create(DROP_LOG_PER_SEC);
+	private final RateLimiter writeDropLogLimiter = RateLimiter.create(DROP_LOG_PER_SEC);
+
+	private final List<Thread> workers = new ArrayList<>();
+	private volatile boolean isRunning;
+
+	public RecordParseStage(Recorder parent, RecordTaskDispatcher writeQueue, SpillJournal spillJournal) {
+		this.logger = parent.createLogger(getComponentName());
+		this.writeQueue = writeQueue;
+		this.spillJournal = spillJournal;
+		Properties config = parent.getConfig();
+		this.nThreads = Math.max(1, ConfigUtil.getInt(config, CONFIG_KEY_PARSE_THREADS, DEFAULT_PARSE_THREADS));
+		int queueSize = Math.max(1, ConfigUtil.getInt(config, CONFIG_KEY_PARSE_QUEUE_SIZE, DEFAULT_PARSE_QUEUE_SIZE));
+		int queueSizePerWorker = Math.max(1, queueSize / nThreads);
+		List<ArrayBlockingQueue<RawStanza>> queues = new ArrayList<>(nThreads);
+		for (int i = 0; i < nThreads; i++) {
+			queues.add(new ArrayBlockingQueue<RawStanza>(queueSizePerWorker));
+		}
+		this.rawQueues = Collections.unmodifiableList(queues);
+		this.overflowPolicy = OverflowPolicy.fromConfig(ConfigUtil.getString(config, CONFIG_KEY_PARSE_QUEUE_OVERFLOW, null));
+		this.writeOfferTimeoutMsec = ConfigUtil.getLong(config, CONFIG_KEY_WRITE_OFFER_TIMEOUT_MSEC, DEFAULT_WRITE_OFFER_TIMEOUT_MSEC);
+	}
+
+	public void start() {
+		isRunning = true;
+		for (int i = 0; i < nThreads; i++) {
+			final ArrayBlockingQueue<RawStanza> rawQueue = rawQueues.get(i);
+			final boolean reportStats = (i == 0);
+			Thread worker = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					runWorker(rawQueue, reportStats);
+				}
+			}, "parser-" + i);
+			worker.start();
+			workers.add(worker);
+		}
+	}
+
+	/**
+	 * XMPPの受信スレッドから呼ぶ。ブロックしない
+	 * @param soxServer
+	 * @param rawXml
+	 * @return 受け付けたらtrue, 捨てたらfalse
+	 */
+	public boolean submit(String soxServer, String rawXml) {
+		RawStanza stanza = new RawStanza(soxServer, rawXml);
+		receiveMetrics.recordAccepted();
+		ArrayBlockingQueue<RawStanza> rawQueue = rawQueueFor(soxServer, PubSubMessageParser.peekNodeName(rawXml));
+		if (rawQueue.offer(stanza)) {
+			return true;
+		}
+
+		if (overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+			// 古いものを1つ捨てて入れなおす (他のスレッドと競合したらあきらめる)
+			RawStanza oldest = rawQueue.poll();
+			if (oldest != null) {
+				receiveMetrics.recordDropped();
+				logReceiveDrop(oldest.soxServer);
+			}
+			if (rawQueue.offer(stanza)) {
+				return true;
+			}
+		}
+		receiveMetrics.recordDropped();
+		logReceiveDrop(soxServer);
+		return false;
+	}
+
+	/**
+	 * 同じnodeならいつも同じworkerのキュー (node名が取れなければサーバーごと)
+	 */
+	private ArrayBlockingQueue<RawStanza> rawQueueFor(String soxServer, String nodeName) {
+		if (rawQueues.size() == 1) {
+			return rawQueues.get(0);
+		}
+		int h = soxServer.hashCode() * 31 + ((nodeName == null) ? 0 : nodeName.hashCode());
+		h *= 0x9E3779B9;  // RecordTaskDispatcher.shardOf()と同じく下位ビットを混ぜる
+		h ^= (h >>> 16);
+		return rawQueues.get((h & 0x7FFFFFFF) % rawQueues.size());
+	}
+
+	private void logReceiveDrop(String soxServer) {
+		if (receiveDropLogLimiter.tryAcquire()) {
+			logger.error(SR2LogType.RECORD_GIVE_UP, "congestion! parse queue is full, dropped " + receiveMetrics.getDropped() + " stanzas so far", soxServer);
+		}
+	}
+
+	private void runWorker(ArrayBlockingQueue<RawStanza> rawQueue, boolean reportStats) {
+		long lastReportedAt = System.currentTimeMillis();
+		// 止めるときはrawキューにあるものを処理しきってから抜ける
+		while (isRunning || !rawQueue.isEmpty()) {
+			if (reportStats && STATS_INTERVAL_MSEC < System.currentTimeMillis() - lastReportedAt) {
+				reportStats();
+				lastReportedAt = System.currentTimeMillis();
+			}
+
+			RawStanza stanza;
+			try {
+				stanza = rawQueue.poll(100, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				logger.error(SR2LogType.JAVA_INTERRUPTED_EXCEPTION, "during raw stanza fetching", e);
+				continue;
+			}
+			if (stanza == null) {
+				continue;  // timeout
+			}
+			long tDequeued = System.nanoTime();
+			receiveMetrics.recordCompleted(tDequeued - stanza.receivedAtNanos);
+
+			RecordTask task;
+			try {
+				task = parse(stanza);
+			} catch (RuntimeException e) {
+				// おかしなstanzaが1つ来てもworkerを止めない
+				parseMetrics.recordDropped();
+				logger.error(SR2LogType.JAVA_GENERAL_EXCEPTION, "unexpected error in parse stage, dropped: " + abbreviate(stanza.rawXml), stanza.soxServer, null, e);
+				continue;
+			}
+			if (task == null) {
+				continue;
+			}
+			long tParsed = System.nanoTime();
+			parseMetrics.recordCompleted(tParsed - tDequeued);
+
+			try {
+				emit(task, tParsed);
+			} catch (RuntimeException e) {
+				writeMetrics.recordDropped();
+				NodeIdentifier nodeId = task.getNodeId();
+				logger.error(SR2LogType.JAVA_GENERAL_EXCEPTION, "unexpected error in parse stage while enqueueing, dropped", nodeId.getServer(), nodeId.getNode(), e);
+			}
+		}
+	}
+
+	private RecordTask parse(RawStanza stanza) {
+		parseMetrics.recordAccepted();
+		PubSubMessageParser.ParsedMessage parsed;
+		try {
+			parsed = parser.parse(stanza.rawXml);
+		} catch (XMLStreamException e) {
+			parseMetrics.recordDropped();
+			logger.error(SR2LogType.JAVA_GENERAL_EXCEPTION, "xml parse failed in parse stage", stanza.soxServer, null, e);
+			return null;
+		}
+		if (parsed == null) {
+			parseMetrics.recordDropped();
+			logger.error(SR2LogType.JAVA_GENERAL_EXCEPTION, "no items node found in parse stage", stanza.soxServer);
+			return null;
+		}
+
+		String nodeName = parsed.getNodeName();
+		if (!nodeName.endsWith(DATA_NODE_SUFFIX)) {
+			parseMetrics.recordDropped();
+			logger.error(SR2LogType.JAVA_GENERAL_EXCEPTION, "not a data node in parse stage: " + nodeName, stanza.soxServer);
+			return null;
+		}
+		String sensorName = nodeName.substring(0, nodeName.length() - DATA_NODE_SUFFIX.length());  // "_data"を取る
+		NodeIdentifier nodeId = new NodeIdentifier(stanza.soxServer, sensorName);
+		return new RecordTask(nodeId, parsed.getData(), stanza.rawXml, stanza.receivedAt);
+	}
+
+	/**
+	 * ログに出すために長いstanzaを切る
+	 */
+	private static String abbreviate(String rawXml) {
+		if (rawXml == null || rawXml.length() <= LOG_STANZA_MAX_LENGTH) {
+			return rawXml;
+		}
+		return rawXml.substring(0, LOG_STANZA_MAX_LENGTH) + "...";
+	}
+
+	private void emit(RecordTask task, long tParsed) {
+		writeMetrics.recordAccepted();
+		boolean putSucceeded = false;
+		try {
+			putSucceeded = writeQueue.offer(task, writeOfferTimeoutMsec, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			logger.error(SR2LogType.JAVA_INTERRUPTED_EXCEPTION, "during write queue offer", e);
+		}
+		if (putSucceeded) {
+			writeMetrics.recordCompleted(System.nanoTime() - tParsed);
+			return;
+		}
+
+		if (spill(task)) {
+			writeMetrics.recordSpilled();
+			return;
+		}
+		writeMetrics.recordDropped();
+		if (writeDropLogLimiter.tryAcquire()) {
+			NodeIdentifier nodeId = task.getNodeId();
+			System.err.println("[ParseStage][" + nodeId.getServer() + "] congestion! gave up to put into queue");
+			logger.error(SR2LogType.RECORD_GIVE_UP, "congestion! gave up to put into write queue, dropped " + writeMetrics.getDropped() + " so far", nodeId.getServer(), nodeId.getNode());
+		}
+	}
+
+	private boolean spill(RecordTask task) {
+		if (spillJournal == null) {
+			return false;
+		}
+		try {
+			return spillJournal.append(task.getNodeId(), task.getRawXml(), task.getReceivedAt());
+		} catch (IOException e) {
+			logger.error(SR2LogType.JAVA_GENERAL_EXCEPTION, "spill journal append failed", e);
+			return false;
+		}
+	}
+
+	private void reportStats() {
+		for (String line : getStats()) {
+			logger.info(SR2LogType.PIPELINE_STATS, line);
+		}
+	}
+
+	/**
+	 * @return 段ごとのdepth, 件数, latency
+	 */
+	public List<String> getStats() {
+		List<String> lines = new ArrayList<>();
+		int rawDepth = 0;
+		for (ArrayBlockingQueue<RawStanza> rawQueue : rawQueues) {
+			rawDepth += rawQueue.size();
+		}
+		lines.add(receiveMetrics.format(rawDepth));
+		lines.add(parseMetrics.format(0));
+		lines.add(writeMetrics.format(writeQueue.size()));
+		lines.addAll(writeQueue.getStats());
+		return lines;
+	}
+
+	public Collection<Thread> getThreads() {
+		return Collections.unmodifiableList(workers);
+	}
+
+	@Override
+	public String getComponentName() {
+		return "parse_stage";
+	}
+
+	@Override
+	public void shutdownSubProcess() {
+		isRunning = false;
+	}
+
+	@Override
+	public PGConnectionManager getConnManager() {
+		return null;  // DBは使わない
+	}
+
+}
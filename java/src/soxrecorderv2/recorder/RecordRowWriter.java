@@ -0,0 +1,51 @@
+package soxrecorderv2.recorder;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+/**
+ * DBWriterProcessが1トランザクション分の行をためて, まとめてPostgreSQLに投入するためのインタフェース。
+ *
+ * 実装はJDBCのバッチ(JdbcRecordRowWriter)とCOPY FROM STDIN(CopyRecordRowWriter)がある。
+ * flush()では参照関係を守るために record => raw_xml => transducer_raw_value => transducer_typed_value の順に投入する。
+ */
+public interface RecordRowWriter {
+
+	/**
+	 * large_object_idがないことを表す値 (large_object.idはbigserialなので0にはならない)
+	 */
+	public static final long NO_LARGE_OBJECT = 0;
+
+	public void addRecord(long recordId, long observationId, boolean isParseError, Timestamp created) throws SQLException;
+
+	/**
+	 * @param codec CompressionCodecs.CODEC_*
+	 * @param dictionaryId 辞書を使わないcodecなら0
+	 */
+	public void addRawXml(long recordId, int codec, int dictionaryId, byte[] content) throws SQLException;
+
+	public void addRawValue(
+			long recordId, boolean hasSameTypedValue, int valueType, long transducerId,
+			String stringValue, long intValue, double floatValue, BigDecimal decimalValue,
+			long largeObjectId, Timestamp transducerTimestamp) throws SQLException;
+
+	public void addTypedValue(
+			long recordId, int valueType, long transducerId,
+			String stringValue, long intValue, double floatValue, BigDecimal decimalValue,
+			long largeObjectId) throws SQLException;
+
+	/**
+	 * ためた行をすべて投入する
+	 * @throws SQLException
+	 * @throws IOException
+	 */
+	public void flush() throws SQLException, IOException;
+
+	/**
+	 * 内部で使っていたstatementなどを解放する。flush()されていない行は捨てられる
+	 */
+	public void close();
+
+}
@@ -0,0 +1,114 @@
+package soxrecorderv2.recorder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import soxrecorderv2.common.model.NodeIdentifier;
+import soxrecorderv2.common.model.RecordTask;
+
+/**
+ * ServerRecordProcessから来たRecordTaskを, NodeIdentifierのハッシュでDBWriterProcessごとのキューに振り分ける。
+ *
+ * 同じnodeのタスクはかならず同じキュー(=同じDBWriterProcess)に入るので, nodeごとの書き込み順序は保たれるし,
+ * nodeごとのキャッシュ(observation id, transducer id)もwriterごとに独立して持てる。
+ */
+public class RecordTaskDispatcher {
+
+	private final List<RecordTaskQueue> shards;
+
+	public RecordTaskDispatcher(int nShards, int capacityPerShard) {
+		this(nShards, capacityPerShard, capacityPerShard, capacityPerShard, 0, OverloadPolicies.BLOCK);
+	}
+
+	/**
+	 * @param nShards
+	 * @param capacityPerShard キューごとの初期容量
+	 * @param minCapacityPerShard
+	 * @param maxCapacityPerShard
+	 * @param targetLatencyMsec キューの容量をwriterの処理速度xこの時間に合わせる (0以下なら固定)
+	 * @param policy キューがいっぱいのときの扱い
+	 */
+	public RecordTaskDispatcher(int nShards, int capacityPerShard, int minCapacityPerShard, int maxCapacityPerShard, long targetLatencyMsec, OverloadPolicy policy) {
+		if (nShards < 1) {
+			throw new IllegalArgumentException("nShards must be positive");
+		}
+		List<RecordTaskQueue> tmp = new ArrayList<>(nShards);
+		for (int i = 0; i < nShards; i++) {
+			tmp.add(new RecordTaskQueue(capacityPerShard, minCapacityPerShard, maxCapacityPerShard, targetLatencyMsec, policy));
+		}
+		this.shards = Collections.unmodifiableList(tmp);
+	}
+
+	public int getShardCount() {
+		return shards.size();
+	}
+
+	public RecordTaskQueue getShard(int idx) {
+		return shards.get(idx);
+	}
+
+	public int shardOf(NodeIdentifier nodeId) {
+		// NodeIdentifier.hashCode()はxorだけなので, 下位ビットが偏らないように混ぜてから割る
+		int h = nodeId.hashCode() * 0x9E3779B9;
+		h ^= (h >>> 16);
+		return (h & 0x7FFFFFFF) % shards.size();
+	}
+
+	public RecordTaskQueue getShardFor(NodeIdentifier nodeId) {
+		return shards.get(shardOf(nodeId));
+	}
+
+	public boolean offer(RecordTask task) throws InterruptedException {
+		return getShardFor(task.getNodeId()).offer(task);
+	}
+
+	/**
+	 * いっぱいのときはキューのOverloadPolicyにしたがう
+	 */
+	public boolean offer(RecordTask task, long timeout, TimeUnit unit) throws InterruptedException {
+		return getShardFor(task.getNodeId()).offer(task, timeout, unit);
+	}
+
+	/**
+	 * いっぱいのときはOverloadPolicyを使わずにtimeoutまで待つだけ (ライブのタスクを押しのけない)
+	 */
+	public boolean offerWithoutShedding(RecordTask task, long timeout, TimeUnit unit) throws InterruptedException {
+		return getShardFor(task.getNodeId()).offerWithoutShedding(task, timeout, unit);
+	}
+
+	/**
+	 * @return 全キューの容量の合計
+	 */
+	public int getCapacity() {
+		int total = 0;
+		for (RecordTaskQueue shard : shards) {
+			total += shard.getCapacity();
+		}
+		return total;
+	}
+
+	/**
+	 * @return 全キューにたまっているタスクの合計
+	 */
+	public int size() {
+		int total = 0;
+		for (RecordTaskQueue shard : shards) {
+			total += shard.size();
+		}
+		return total;
+	}
+
+	/**
+	 * @return キューごとのdepth, 捨てた数, キューにいた時間
+	 */
+	public List<String> getStats() {
+		List<String> lines = new ArrayList<>(shards.size());
+		for (int i = 0; i < shards.size(); i++) {
+			lines.add(shards.get(i).format("write-queue-" + i));
+		}
+		return lines;
+	}
+
+}
@@ -0,0 +1,341 @@
+package soxrecorderv2.recorder;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import jp.ac.keio.sfc.ht.sox.protocol.TransducerValue;
+import soxrecorderv2.common.model.NodeIdentifier;
+import soxrecorderv2.common.model.RecordTask;
+import soxrecorderv2.util.LatencyHistogram;
+
+/**
+ * DBWriterProcess 1つぶんの書き込みキュー。
+ *
+ * LinkedBlockingQueueとちがって
+ * - いっぱいのときの扱いをOverloadPolicyで差し替えられる (待つ/nodeごとに古いものを捨てる/nodeごとに最新だけ残す/ディスクに退避)
+ * - writerの処理速度を測って, task_queue_target_latency_msec ぶんをためられるように容量を増減する (task_queue_min_size - task_queue_max_size)
+ * - depth, 捨てた数, キューにいた時間のヒストグラムを取れる
+ *
+ * いっぱいのときの探索は線形だが, あふれたときにしか走らない。
+ */
+public class RecordTaskQueue {
+
+	private static final long ADJUST_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+	private static class Entry {
+		RecordTask task;
+		final long enqueuedAtNanos;
+
+		Entry(RecordTask task, long enqueuedAtNanos) {
+			this.task = task;
+			this.enqueuedAtNanos = enqueuedAtNanos;
+		}
+	}
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+	private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+	private final OverloadPolicy policy;
+
+	// 容量の自動調整 (minCapacity == maxCapacity なら固定)
+	private final int minCapacity;
+	private final int maxCapacity;
+	private final long targetLatencyMsec;
+	private volatile int capacity;
+	private long windowStartedAtNanos = System.nanoTime();
+	private long windowTaken = 0;
+
+	private final AtomicLong enqueued = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();     // 新しく来たものを捨てた
+	private final AtomicLong evicted = new AtomicLong();     // キューにあった古いものを捨てた
+	private final AtomicLong coalesced = new AtomicLong();   // 同じnodeのタスクと置きかえた
+	private final AtomicLong spilled = new AtomicLong();     // ジャーナルに退避した
+	private final LatencyHistogram timeInQueue = new LatencyHistogram();
+
+	public RecordTaskQueue(int capacity, OverloadPolicy policy) {
+		this(capacity, capacity, capacity, 0, policy);
+	}
+
+	/**
+	 * @param initialCapacity
+	 * @param minCapacity
+	 * @param maxCapacity
+	 * @param targetLatencyMsec writerがこの時間で処理しきれるぶんを容量にする。0以下なら調整しない
+	 * @param policy
+	 */
+	public RecordTaskQueue(int initialCapacity, int minCapacity, int maxCapacity, long targetLatencyMsec, OverloadPolicy policy) {
+		if (minCapacity < 1 || maxCapacity < minCapacity) {
+			throw new IllegalArgumentException("invalid capacity range: " + minCapacity + " - " + maxCapacity);
+		}
+		this.minCapacity = minCapacity;
+		this.maxCapacity = maxCapacity;
+		this.targetLatencyMsec = targetLatencyMsec;
+		this.capacity = Math.min(maxCapacity, Math.max(minCapacity, initialCapacity));
+		this.policy = policy;
+	}
+
+	// ---------------- 入れる側 ----------------
+
+	public boolean offer(RecordTask task) throws InterruptedException {
+		return offer(task, 0, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * いっぱいならOverloadPolicyにまかせる
+	 * @return タスクを引き受けたらtrue
+	 */
+	public boolean offer(RecordTask task, long timeout, TimeUnit unit) throws InterruptedException {
+		return offer(task, timeout, unit, policy);
+	}
+
+	/**
+	 * いっぱいならOverloadPolicyを使わずにtimeoutまで待つだけにする (ジャーナルからのreplay用)
+	 */
+	public boolean offerWithoutShedding(RecordTask task, long timeout, TimeUnit unit) throws InterruptedException {
+		return offer(task, timeout, unit, OverloadPolicies.BLOCK);
+	}
+
+	private boolean offer(RecordTask task, long timeout, TimeUnit unit, OverloadPolicy p) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			if (entries.size() < capacity) {
+				enqueue(task);
+				return true;
+			}
+			if (!p.runsOutsideLock()) {
+				boolean accepted = p.onFull(this, task, deadline);
+				if (!accepted) {
+					dropped.incrementAndGet();
+				}
+				return accepted;
+			}
+		} finally {
+			lock.unlock();
+		}
+		// ディスクへの退避などはロックを放してから (そのあいだもほかのスレッドはofferやpollできる)
+		boolean accepted = p.onFull(this, task, deadline);
+		if (!accepted) {
+			dropped.incrementAndGet();
+		}
+		return accepted;
+	}
+
+	// ---------------- 取り出す側 ----------------
+
+	public RecordTask poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while (entries.isEmpty()) {
+				if (nanos <= 0) {
+					return null;
+				}
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			return dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int drainTo(Collection<? super RecordTask> dest, int maxElements) {
+		lock.lock();
+		try {
+			int n = 0;
+			while (n < maxElements && !entries.isEmpty()) {
+				dest.add(dequeue());
+				n++;
+			}
+			return n;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// ---------------- OverloadPolicyから呼ぶもの (countSpilled()以外はロックを持った状態で) ----------------
+
+	void enqueue(RecordTask task) {
+		entries.addLast(new Entry(task, System.nanoTime()));
+		enqueued.incrementAndGet();
+		notEmpty.signal();
+	}
+
+	boolean isFull() {
+		return capacity <= entries.size();
+	}
+
+	/**
+	 * 空きができるかdeadlineになるまで待つ
+	 * @return 空きができたらtrue
+	 */
+	boolean awaitNotFull(long deadlineNanos) throws InterruptedException {
+		while (isFull()) {
+			long nanos = deadlineNanos - System.nanoTime();
+			if (nanos <= 0) {
+				return false;
+			}
+			notFull.awaitNanos(nanos);
+		}
+		return true;
+	}
+
+	/**
+	 * nodeIdのタスクのうちいちばん古いものを捨てる。
+	 * SpillJournalから戻したタスクは捨てない (捨てるとジャーナルでackされずにcursorが止まる)
+	 * @return 捨てられたらtrue (nodeIdのタスクがなければfalse)
+	 */
+	boolean evictOldestOf(NodeIdentifier nodeId) {
+		Iterator<Entry> it = entries.iterator();
+		while (it.hasNext()) {
+			Entry e = it.next();
+			if (!e.task.isReplayed() && e.task.getNodeId().equals(nodeId)) {
+				it.remove();
+				evicted.incrementAndGet();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 同じnodeのいちばん新しいタスクが, transducerがすべてtaskに含まれているもの(=taskで上書きされるもの)ならtaskに置きかえる。
+	 * 置きかえたタスクはもとの位置と待ち時間を引き継ぐ。いちばん新しいものだけを見るので, 同じnodeのタスクを追いこさない (nodeごとのFIFO)。
+	 * SpillJournalから戻したタスクは置きかえない
+	 * @return 置きかえたらtrue
+	 */
+	boolean coalesce(RecordTask task) {
+		Iterator<Entry> it = entries.descendingIterator();
+		while (it.hasNext()) {
+			Entry e = it.next();
+			if (!e.task.getNodeId().equals(task.getNodeId())) {
+				continue;
+			}
+			if (e.task.isReplayed() || !transducerIds(task).containsAll(transducerIds(e.task))) {
+				return false;
+			}
+			e.task = task;
+			coalesced.incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+
+	void countSpilled() {
+		spilled.incrementAndGet();
+	}
+
+	private static Set<String> transducerIds(RecordTask task) {
+		Set<String> ids = new HashSet<>();
+		List<TransducerValue> values = task.getData().getTransducerValue();
+		if (values != null) {
+			for (TransducerValue v : values) {
+				ids.add(v.getId());
+			}
+		}
+		return ids;
+	}
+
+	private RecordTask dequeue() {
+		Entry e = entries.pollFirst();
+		long now = System.nanoTime();
+		timeInQueue.record(now - e.enqueuedAtNanos);
+		windowTaken++;
+		adjustCapacity(now);
+		notFull.signal();
+		return e.task;
+	}
+
+	/**
+	 * writerの直近の処理速度 x targetLatency を容量にする。
+	 * 急に縮めると流入がそのまま捨てられるので, 縮めるときは半分ずつ
+	 */
+	private void adjustCapacity(long now) {
+		if (targetLatencyMsec <= 0 || minCapacity == maxCapacity) {
+			return;
+		}
+		long elapsed = now - windowStartedAtNanos;
+		if (elapsed < ADJUST_INTERVAL_NANOS) {
+			return;
+		}
+		double perMsec = (double) windowTaken / TimeUnit.NANOSECONDS.toMillis(elapsed);
+		long wanted = (long) (perMsec * targetLatencyMsec);
+		int next;
+		if (capacity <= wanted) {
+			next = (int) Math.min(maxCapacity, wanted);
+		} else {
+			next = (int) Math.max(wanted, capacity / 2);
+		}
+		next = Math.max(minCapacity, next);
+		if (capacity < next) {
+			notFull.signalAll();
+		}
+		capacity = next;
+		windowStartedAtNanos = now;
+		windowTaken = 0;
+	}
+
+	// ---------------- 統計 ----------------
+
+	public int size() {
+		lock.lock();
+		try {
+			return entries.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public OverloadPolicy getPolicy() {
+		return policy;
+	}
+
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	public long getEvicted() {
+		return evicted.get();
+	}
+
+	public long getCoalesced() {
+		return coalesced.get();
+	}
+
+	public long getSpilled() {
+		return spilled.get();
+	}
+
+	public LatencyHistogram getTimeInQueue() {
+		return timeInQueue;
+	}
+
+	/**
+	 * @return ログ用の1行
+	 */
+	public String format(String name) {
+		return name + ": depth=" + size()
+				+ ", capacity=" + capacity
+				+ ", policy=" + policy.getName()
+				+ ", in=" + enqueued.get()
+				+ ", dropped=" + getDropped()
+				+ ", evicted=" + getEvicted()
+				+ ", coalesced=" + getCoalesced()
+				+ ", spilled=" + getSpilled()
+				+ ", timeInQueue=[" + timeInQueue.format() + "]";
+	}
+
+}
@@ -1,10 +1,13 @@
 package soxrecorderv2.recorder;
 
+import java.io.Closeable;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -13,14 +16,22 @@ import java.util.Properties;
 import java.util.Set;
 import java.util.concurrent.LinkedBlockingQueue;
 
+import redis.clients.jedis.exceptions.JedisException;
+import soxrecorderv2.cache.NodeCacheStats;
+import soxrecorderv2.cache.RedisCache;
+import soxrecorderv2.cache.SoxRecorderCache;
+import soxrecorderv2.cache.TieredNodeCache;
+import soxrecorderv2.codec.CompressionDictionaryStore;
 import soxrecorderv2.common.SoxRecorderClient;
 import soxrecorderv2.common.model.NodeIdentifier;
-import soxrecorderv2.common.model.RecordTask;
 import soxrecorderv2.common.model.SoxLoginInfo;
 import soxrecorderv2.finder.Finder;
 import soxrecorderv2.logging.SR2LogItem;
 import soxrecorderv2.logging.SR2Logger;
 import soxrecorderv2.logging.SR2PostgresLogWriter;
+import soxrecorderv2.util.ConfigUtil;
+import soxrecorderv2.util.PGConnectionManager;
+import soxrecorderv2.util.PGConnectionPool;
 import soxrecorderv2.util.ThreadUtil;
 import sun.misc.Signal;
 import sun.misc.SignalHandler;
@@ -42,7 +53,28 @@ public class Recorder implements Runnable {
 		"soxfujisawa.ht.sfc.keio.ac.jp"
 	};
 	
-	private LinkedBlockingQueue<RecordTask> taskQueue;
+	public static final String CONFIG_KEY_WRITER_THREADS = "writer_threads";
+	public static final String CONFIG_KEY_TASK_QUEUE_SIZE = "task_queue_size";
+	public static final String CONFIG_KEY_TASK_QUEUE_MIN_SIZE = "task_queue_min_size";
+	public static final String CONFIG_KEY_TASK_QUEUE_MAX_SIZE = "task_queue_max_size";
+	public static final String CONFIG_KEY_TASK_QUEUE_TARGET_LATENCY_MSEC = "task_queue_target_latency_msec";
+	public static final String CONFIG_KEY_TASK_QUEUE_OVERLOAD_POLICY = "task_queue_overload_policy";
+	
+	public static final int DEFAULT_WRITER_THREADS = 1;
+	public static final int DEFAULT_TASK_QUEUE_SIZE = 2500;
+	public static final long DEFAULT_TASK_QUEUE_TARGET_LATENCY_MSEC = 0;  // 0: 容量は固定
+	
+	private RecordTaskDispatcher taskDispatcher;
+	private RecordParseStage parseStage;
+	private SpillJournal spillJournal;
+	private LargeObjectIdCache largeObjectIdCache;
+	private RawXmlCompressor rawXmlCompressor;
+	private SoxRecorderCache sharedIdCache;
+	private NodeCacheStats nodeCacheStats;
+	private SpillReplayer spillReplayer;
+	private Thread spillReplayerThread;
+	private PartitionManager partitionManager;
+	private Thread partitionManagerThread;
 	private LinkedBlockingQueue<SR2LogItem> logItemQueue;
 	private SR2PostgresLogWriter logWriter;
 	private List<DBWriterProcess> writers;
@@ -185,27 +217,123 @@ public class Recorder implements Runnable {
 		}
 		
 		// 受信プロセスからDB書き込みプロセスへタスクを渡すキューを準備する
-		taskQueue = new LinkedBlockingQueue<>(2500);
-		System.out.println("[Recorder][run][3] prepared taskQueue");
+		// (nodeのハッシュでwriterごとのキューに振り分ける)
+		int nWriters = Math.max(1, ConfigUtil.getInt(config, CONFIG_KEY_WRITER_THREADS, DEFAULT_WRITER_THREADS));
+		// DBに書けなかったタスクを退避するジャーナルを開く
+		try {
+			spillJournal = SpillJournal.open(config, createLogger("spill_journal"));
+		} catch (IOException e) {
+			System.err.println("[Recorder][run][3] could not open spill journal, running without it");
+			e.printStackTrace();
+			spillJournal = null;
+		}
+		
+		// キューの容量はtask_queue_min_size - task_queue_max_sizeの間で, writerの処理速度に合わせて増減する
+		int taskQueueSize = Math.max(nWriters, ConfigUtil.getInt(config, CONFIG_KEY_TASK_QUEUE_SIZE, DEFAULT_TASK_QUEUE_SIZE));
+		int taskQueueMinSize = Math.max(nWriters, ConfigUtil.getInt(config, CONFIG_KEY_TASK_QUEUE_MIN_SIZE, taskQueueSize));
+		int taskQueueMaxSize = Math.max(taskQueueMinSize, ConfigUtil.getInt(config, CONFIG_KEY_TASK_QUEUE_MAX_SIZE, taskQueueSize));
+		long targetLatencyMsec = ConfigUtil.getLong(config, CONFIG_KEY_TASK_QUEUE_TARGET_LATENCY_MSEC, DEFAULT_TASK_QUEUE_TARGET_LATENCY_MSEC);
+		OverloadPolicy overloadPolicy = OverloadPolicies.fromConfig(ConfigUtil.getString(config, CONFIG_KEY_TASK_QUEUE_OVERLOAD_POLICY, null), spillJournal,
+				createLogger("task_queue"));
+		taskDispatcher = new RecordTaskDispatcher(nWriters,
+				taskQueueSize / nWriters, taskQueueMinSize / nWriters, taskQueueMaxSize / nWriters,
+				targetLatencyMsec, overloadPolicy);
+		System.out.println("[Recorder][run][3.5] prepared taskQueue: writers=" + nWriters + ", policy=" + overloadPolicy.getName());
+		
+		// large_objectのhash => idの索引を, 最近のものから読み込んでおく
+		largeObjectIdCache = new LargeObjectIdCache(config);
+		PGConnectionManager warmUpConnManager = new PGConnectionManager(config);
+		try {
+			int nLoaded = largeObjectIdCache.warmUp(warmUpConnManager);
+			System.out.println("[Recorder][run][3.6] warmed up large object cache: " + nLoaded + " entries");
+		} catch (SQLException e) {
+			System.err.println("[Recorder][run][3.6] could not warm up large object cache, starting cold");
+			e.printStackTrace();
+			warmUpConnManager.invalidate();
+		} finally {
+			warmUpConnManager.close();
+		}
+		
+		// raw_xmlの圧縮 (サーバごとの辞書はcompression_dictionaryに保存する)
+		rawXmlCompressor = new RawXmlCompressor(config,
+				new CompressionDictionaryStore(new PGConnectionManager(config)), createLogger("raw_xml_compressor"));
+		
+		// observation/transducerのidキャッシュ: writerごとのnear -> id_cache_backend (Redisなど) -> PostgreSQL
+		nodeCacheStats = new NodeCacheStats();
+		try {
+			sharedIdCache = TieredNodeCache.openShared(config);
+		} catch (JedisException e) {
+			System.err.println("[Recorder][run][3.8] could not connect to shared id cache, running without it");
+			e.printStackTrace();
+			sharedIdCache = null;
+		}
+		System.out.println("[Recorder][run][3.8] shared id cache: " + ((sharedIdCache == null) ? "none" : sharedIdCache.getClass().getSimpleName()));
+		
+		// record系テーブルの期間ごとの子テーブルを, writerが書き始める前に作っておく
+		partitionManager = new PartitionManager(this);
+		if (partitionManager.isEnabled()) {
+			try {
+				partitionManager.maintain();
+				System.out.println("[Recorder][run][3.85] " + partitionManager.getStats());
+			} catch (SQLException e) {
+				System.err.println("[Recorder][run][3.85] could not prepare record partitions, writing to parent tables");
+				e.printStackTrace();
+			}
+			partitionManagerThread = new Thread(partitionManager, "partition-manager");
+			partitionManagerThread.start();
+		}
 		
 		// 受信したデータをDBに書き込むプロセスを開始する
 		writers = new ArrayList<>();
 		writerThreads = new ArrayList<>();
-		int nWriters = 1;  // FIXME: multi thread?
 		for (int i = 0; i < nWriters; i++) {
-			DBWriterProcess writer = new DBWriterProcess(this, taskQueue);
-			Thread writerThread = new Thread(writer);
-			writerThread.start();
+			DBWriterProcess writer = new DBWriterProcess(this, taskDispatcher.getShard(i), spillJournal, largeObjectIdCache, rawXmlCompressor,
+					sharedIdCache, nodeCacheStats, partitionManager);
 			writers.add(writer);
+		}
+		
+		// 再起動直後に全nodeがidを引きにいかないように, writerのnodeキャッシュを先に埋めておく
+		if (ConfigUtil.getBoolean(config, NodeCacheWarmer.CONFIG_KEY_ENABLED, true)) {
+			PGConnectionManager nodeWarmUpConnManager = new PGConnectionManager(config);
+			NodeCacheWarmer warmer = new NodeCacheWarmer(nodeWarmUpConnManager,
+					ConfigUtil.getInt(config, NodeCacheWarmer.CONFIG_KEY_FETCH_SIZE, NodeCacheWarmer.DEFAULT_FETCH_SIZE));
+			try {
+				warmer.warmUp(taskDispatcher, writers);
+				System.out.println("[Recorder][run][3.9] warmed up node cache: " + warmer.getStats());
+			} catch (SQLException e) {
+				System.err.println("[Recorder][run][3.9] could not warm up node cache, starting cold");
+				e.printStackTrace();
+				nodeWarmUpConnManager.invalidate();
+			} finally {
+				nodeWarmUpConnManager.close();
+			}
+		}
+		
+		for (int i = 0; i < nWriters; i++) {
+			Thread writerThread = new Thread(writers.get(i), "dbwriter-" + i);
+			writerThread.start();
 			writerThreads.add(writerThread);
 		}
 		System.out.println("[Recorder][run][4] started writerThread");
 		
+		// 受信したstanzaをパースして書き込みキューに入れるworkerを開始する
+		parseStage = new RecordParseStage(this, taskDispatcher, spillJournal);
+		parseStage.start();
+		System.out.println("[Recorder][run][4.5] started parseStage");
+		
+		// ジャーナルに退避したタスクを, DBが復旧したら書き込みキューに戻す
+		if (spillJournal != null) {
+			spillReplayer = new SpillReplayer(this, spillJournal, taskDispatcher);
+			spillReplayerThread = new Thread(spillReplayer, "spill-replayer");
+			spillReplayerThread.start();
+			System.out.println("[Recorder][run][4.6] started spillReplayer");
+		}
+		
 		// それぞれのXMPPサーバについてレコーディングプロセスを開始する
 		serverRecorders = new ArrayList<>();
 		recordThreads = new ArrayList<>();
 		for (String soxServer : unifiedTargets) {
-			ServerRecordProcess srvRecorder = new ServerRecordProcess(this, taskQueue, soxServer);
+			ServerRecordProcess srvRecorder = new ServerRecordProcess(this, parseStage, soxServer);
 			Thread srvRecorderThread = new Thread(srvRecorder);
 			srvRecorderThread.start();
 			serverRecorders.add(srvRecorder);
@@ -248,18 +376,58 @@ public class Recorder implements Runnable {
 	}
 	
 	public void stopSoxRecorder() {
-		for (RecorderSubProcess subProcess : getSubProcesses()) {
-			subProcess.shutdownSubProcess();
-		}
+		// 前の段が止まってから次の段を止める。それぞれの段は止まるときにキューに残ったものを流しきる
+		// 受信 => パース (rawキュー) => writer (書き込みキュー) => 残り (ジャーナルはwriterが退避し終わってから閉じる)
+		List<RecorderSubProcess> receivers = new ArrayList<>();
+		receivers.addAll(finders);
+		receivers.addAll(serverRecorders);
+		List<Thread> receiverThreads = new ArrayList<>();
+		receiverThreads.addAll(finderThreads);
+		receiverThreads.addAll(recordThreads);
+		shutdownAndJoin(receivers, receiverThreads);
+		shutdownAndJoin(Collections.<RecorderSubProcess>singletonList(parseStage), parseStage.getThreads());
+		shutdownAndJoin(writers, writerThreads);
 		
-		// join all threads
-		ThreadUtil.joinAll(getSubProcessThreads());
+		// join all threads (止まっているものはすぐ返る)
+		shutdownAndJoin(getSubProcesses(), getSubProcessThreads());
 
 		for (RecorderSubProcess subProcess : getSubProcesses()) {
-			subProcess.getConnManager().close();
+			if (subProcess.getConnManager() != null) {
+				subProcess.getConnManager().close();
+			}
+		}
+		
+		for (String line : parseStage.getStats()) {
+			System.out.println("[Recorder] " + line);
+		}
+		System.out.println("[Recorder] " + largeObjectIdCache.getStats());
+		System.out.println("[Recorder] " + nodeCacheStats.format());
+		if (partitionManager.isEnabled()) {
+			System.out.println("[Recorder] " + partitionManager.getStats());
 		}
+		if (sharedIdCache instanceof RedisCache) {
+			System.out.println("[Recorder] " + ((RedisCache) sharedIdCache).getStats());
+		}
+		if (sharedIdCache instanceof Closeable) {
+			try {
+				((Closeable) sharedIdCache).close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		
+		PGConnectionPool pool = PGConnectionPool.getInstance(config);
+		System.out.println("[Recorder] connection pool: " + pool.getStats());
+		pool.close();
 	}
 
+	private static void shutdownAndJoin(Collection<? extends RecorderSubProcess> subProcesses, Collection<Thread> threads) {
+		for (RecorderSubProcess subProcess : subProcesses) {
+			subProcess.shutdownSubProcess();
+		}
+		ThreadUtil.joinAll(threads);
+	}
+	
 	/**
 	 * 終了時の処理のため, シャットダウンが可能になっているサブコンポーネントを列挙する
 	 * @return
@@ -268,7 +436,14 @@ public class Recorder implements Runnable {
 		List<RecorderSubProcess> subProcesses = new ArrayList<>();
 		subProcesses.addAll(finders);
 		subProcesses.addAll(serverRecorders);
+		subProcesses.add(parseStage);  // 受信が止まってからパースを止める
 		subProcesses.addAll(writers);
+		if (spillReplayer != null) {
+			subProcesses.add(spillReplayer);  // writerのあとに止めてジャーナルを閉じる
+		}
+		if (partitionManagerThread != null) {
+			subProcesses.add(partitionManager);
+		}
 		subProcesses.add(logWriter);  // logWriterは最後
 		return subProcesses;
 	}
@@ -281,7 +456,14 @@ public class Recorder implements Runnable {
 		List<Thread> ret = new ArrayList<>();
 		ret.addAll(finderThreads);
 		ret.addAll(recordThreads);
+		ret.addAll(parseStage.getThreads());
 		ret.addAll(writerThreads);
+		if (partitionManagerThread != null) {
+			ret.add(partitionManagerThread);
+		}
+		if (spillReplayerThread != null) {
+			ret.add(spillReplayerThread);
+		}
 		ret.add(logWriterThread);  // logWriterは最後
 		return ret;
 	}
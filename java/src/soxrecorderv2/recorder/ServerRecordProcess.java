@@ -1,6 +1,5 @@
 package soxrecorderv2.recorder;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
@@ -10,17 +9,8 @@ import java.sql.Savepoint;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
-
 //import org.dom4j.Document;
 //import org.dom4j.DocumentException;
 //import org.dom4j.DocumentHelper;
@@ -36,18 +26,9 @@ import org.jivesoftware.smack.packet.Message;
 import org.jivesoftware.smack.packet.Stanza;
 import org.jivesoftware.smackx.pubsub.LeafNode;
 import org.jivesoftware.smackx.pubsub.PubSubManager;
-import org.simpleframework.xml.Serializer;
-import org.simpleframework.xml.core.Persister;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.ls.DOMImplementationLS;
-import org.w3c.dom.ls.LSSerializer;
-import org.xml.sax.SAXException;
 
-import jp.ac.keio.sfc.ht.sox.protocol.Data;
 import jp.ac.keio.sfc.ht.sox.soxlib.SoxConnection;
 import soxrecorderv2.common.model.NodeIdentifier;
-import soxrecorderv2.common.model.RecordTask;
 import soxrecorderv2.common.model.SoxLoginInfo;
 import soxrecorderv2.logging.SR2LogType;
 import soxrecorderv2.logging.SR2Logger;
@@ -65,23 +46,6 @@ public class ServerRecordProcess implements Runnable, RecorderSubProcess {
 	
 	public static final long CONNECTION_RENEW_PERIOD = 60 * 30 * 1000;  // 30min
 //	public static final long CONNECTION_RENEW_PERIOD = 60 * 2 * 1000;  // 2min
-	private static final DocumentBuilder DOC_BUILDER;
-	private static final XPathFactory XPATH_FACTORY = XPathFactory.newInstance();
-	private static final String XP_ITEMS = "//items";
-	private static final String XP_DATA = "//data";
-	
-	static {
-		DocumentBuilder docBuilder = null;
-		
-		try {
-			docBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-		} catch (ParserConfigurationException e) {
-			e.printStackTrace();  // FIXME
-		}
-		
-		DOC_BUILDER = docBuilder;
-	}
-	
 	/**
 	 * SOX server との XMPP コネクションを維持するスレッド。
 	 * XMPPコネクションが終了するとスレッドは終了する
@@ -103,76 +67,8 @@ public class ServerRecordProcess implements Runnable, RecorderSubProcess {
 			Message message = (Message) arg0;
 			String rawXml = message.toString();
 			
-			Document doc;
-			try {
-				synchronized(DOC_BUILDER) {
-					doc = DOC_BUILDER.parse(new ByteArrayInputStream(rawXml.getBytes("UTF-8")));
-				}
-			} catch (SAXException | IOException e3) {
-				logger.error(SR2LogType.JAVA_GENERAL_EXCEPTION, "uncaught excpetion during processPacket() in subthread", e3);
-				return;
-			}
-
-			/** Get Sensor Name **/
-			XPath xpath = XPATH_FACTORY.newXPath();
-			Node itemsNode = null;
-			try {
-				itemsNode = (Node)xpath.evaluate(XP_ITEMS, doc, XPathConstants.NODE);
-			} catch (XPathExpressionException e2) {
-				logger.error(SR2LogType.JAVA_XPATH_EXCEPTION, "xpath error during processPacket() in subthread", e2);
-				return;
-			}
-			
-			String nodeName = itemsNode.getAttributes().getNamedItem("node").getTextContent();
-			String sensorName = nodeName.substring(0, nodeName.length() - 5);
-
-			/** Get TransducerValues **/
-
-			// FIXME is this right?
-//			dataString = dataString.replaceAll("&lt;", "<");
-//			dataString = dataString.replaceAll("/&gt;", ">");
-//			dataString = dataString.replaceAll("&apos;", "'");
-			
-			Node dataNode = null;
-			try {
-				dataNode = (Node)xpath.evaluate(XP_DATA, doc, XPathConstants.NODE);
-			} catch (XPathExpressionException e1) {
-				System.err.println("@@@@ xml error 2");
-				logger.error(SR2LogType.JAVA_XPATH_EXCEPTION, "xpath error during processPacket() in subthread(2)", e1);
-				return;
-			}
-			DOMImplementationLS ls = (DOMImplementationLS)doc.getImplementation();
-			LSSerializer lsSerializer = ls.createLSSerializer();
-			
-			String dataXml = lsSerializer.writeToString(dataNode);
-			
-			final Serializer serializer = new Persister();
-			Data data = null;
-			try {
-				data = serializer.read(Data.class, dataXml);
-			} catch (Exception e) {
-				logger.error(SR2LogType.JAVA_GENERAL_EXCEPTION, "serializer.read() failed during processPacket() in subthread", e);
-				return;  // FIXME
-			}
-//			System.out.println("[SRP][" + soxServer + "] parsed data");
-
-			NodeIdentifier nodeId = new NodeIdentifier(ServerRecordProcess.this.soxServer, sensorName);
-			RecordTask task = new RecordTask(nodeId, data, rawXml);
-			
-			int putTryCount = 20;  // FIXME
-			while (isRunning && 0 < putTryCount--) {
-				boolean putSucceeded = ServerRecordProcess.this.taskEmitQueue.offer(task);
-				if (putSucceeded) {
-//					System.out.println("[SRP][" + soxServer + "] put item to queue, node=" + sensorName);
-					break;
-				}
-				
-				ThreadUtil.sleep(1000);
-			}
-			if (isRunning && putTryCount == 0) {
-				System.err.println("[SRP][" + soxServer + "] congestion! gave up to put into queue");
-				logger.error(SR2LogType.RECORD_GIVE_UP, "congestion! gave up to put into write queue", nodeId.getServer(), nodeId.getNode());
-			}
+			// パースと書き込みキューへの投入はparse stageのworkerがやる (ここではブロックしない)
+			ServerRecordProcess.this.parseStage.submit(soxServer, rawXml);
 		}
 		
 		public boolean isConnected() {
@@ -356,7 +252,7 @@ public class ServerRecordProcess implements Runnable, RecorderSubProcess {
 	}
 	
 	private Recorder parent;
-	private final LinkedBlockingQueue<RecordTask> taskEmitQueue;
+	private final RecordParseStage parseStage;
 	private final String soxServer;
 	private volatile boolean isRunning;
 	private SubscribeThread subThread;
@@ -366,12 +262,13 @@ public class ServerRecordProcess implements Runnable, RecorderSubProcess {
 	
 	private Object subThreadOperationLock = new Object();
 	
-	public ServerRecordProcess(Recorder parent, LinkedBlockingQueue<RecordTask> taskEmitQueue, String soxServer) {
+	public ServerRecordProcess(Recorder parent, RecordParseStage parseStage, String soxServer) {
 		this.parent = parent;
 		this.logger = parent.createLogger(getComponentName());
-		this.taskEmitQueue = taskEmitQueue;
+		this.parseStage = parseStage;
 		this.soxServer = soxServer;
 		this.connManager = new PGConnectionManager(parent.getConfig());
+		this.connManager.setLeakDetection(false);  // subscribe中のスレッドと共有していて, 寿命の間ずっと持つ
 	}
 
 	@Override
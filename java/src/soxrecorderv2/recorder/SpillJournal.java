@@ -0,0 +1,417 @@
+package soxrecorderv2.recorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+import soxrecorderv2.common.model.NodeIdentifier;
+import soxrecorderv2.logging.SR2LogType;
+import soxrecorderv2.logging.SR2Logger;
+import soxrecorderv2.util.ConfigUtil;
+
+/**
+ * PostgreSQLに書けなかったRecordTaskを一時的に置いておく, ディスク上の追記専用ジャーナル。
+ *
+ * ファイルはsegmentBytesごとのセグメント(00000000000000000001.seg, ...)に分かれていて, 書き込みも読み出しもmmapで行う。
+ * 1レコードは [int 長さ][int CRC32][long 受信時刻][int+bytes サーバー][int+bytes ノード][int+bytes raw XML]。
+ * 長さ0のところがセグメントの終わり(まだ書かれていない所)。
+ *
+ * poll()で読んだ1件は, DBにcommitされた(かもう一度退避した/あきらめた)ことをack()されるまで「処理中」として残る。
+ * cursorファイルに保存するのはいちばん古い処理中の位置 (なければ読み出し位置) なので, 再起動するとcommitされていないものから
+ * もう一度replayされる。少なくとも1回は書かれるが, それより後ろのack済みのものや, commitからcheckpoint()までの間に
+ * 落ちた分は二重に書かれる。
+ * 保存した位置より前のセグメントは削除する。再起動後の書き込みは必ず新しいセグメントから始める。
+ * データはDataではなくraw XMLで持つので, 読み出した側でパースしなおす。
+ */
+public class SpillJournal {
+
+	public static final String CONFIG_KEY_SPILL_ENABLED = "spill_journal_enabled";
+	public static final String CONFIG_KEY_SPILL_DIR = "spill_journal_dir";
+	public static final String CONFIG_KEY_SPILL_SEGMENT_MB = "spill_segment_mb";
+	public static final String CONFIG_KEY_SPILL_MAX_MB = "spill_max_mb";
+
+	public static final String DEFAULT_SPILL_DIR = "spill_journal";
+	public static final int DEFAULT_SPILL_SEGMENT_MB = 64;
+	public static final long DEFAULT_SPILL_MAX_MB = 4096;
+
+	public static final String SEGMENT_SUFFIX = ".seg";
+	public static final String CURSOR_FILE = "cursor";
+
+	private static final int HEADER_BYTES = 8;  // length + crc
+
+	/**
+	 * ジャーナルから読んだ1件
+	 */
+	public static class Entry {
+		private final NodeIdentifier nodeId;
+		private final String rawXml;
+		private final long receivedAt;
+		private final long position;
+
+		Entry(NodeIdentifier nodeId, String rawXml, long receivedAt, long position) {
+			this.nodeId = nodeId;
+			this.rawXml = rawXml;
+			this.receivedAt = receivedAt;
+			this.position = position;
+		}
+
+		public NodeIdentifier getNodeId() {
+			return nodeId;
+		}
+
+		public String getRawXml() {
+			return rawXml;
+		}
+
+		public long getReceivedAt() {
+			return receivedAt;
+		}
+
+		/**
+		 * @return ack()に渡す, ジャーナルの中での位置
+		 */
+		public long getPosition() {
+			return position;
+		}
+	}
+
+	private final SR2Logger logger;
+	private final File dir;
+	private final int segmentBytes;
+	private final long maxBytes;
+
+	private final TreeSet<Long> segments = new TreeSet<>();  // ディスク上にあるセグメントのid
+
+	// 書き込み側
+	private long writeSegmentId = 0;
+	private MappedByteBuffer writeBuf = null;
+	private boolean dirty = false;
+
+	// 読み出し側
+	private long readSegmentId = 0;
+	private int readOffset = 0;
+	private MappedByteBuffer readBuf = null;
+	private final TreeSet<Long> inFlight = new TreeSet<>();  // poll()してまだack()されていないもののposition
+	private long savedPosition = -1;
+
+	private long appendedCount = 0;
+	private long replayedCount = 0;
+	private long rejectedCount = 0;
+	private long corruptedCount = 0;
+	private volatile long lastWriteFailureAt = 0;
+
+	/**
+	 * 設定にしたがってジャーナルを開く
+	 * @param config
+	 * @param logger カーソルを保存できなかったときなどに使う
+	 * @return spill_journal_enabledがfalseならnull
+	 * @throws IOException
+	 */
+	public static SpillJournal open(Properties config, SR2Logger logger) throws IOException {
+		if (!ConfigUtil.getBoolean(config, CONFIG_KEY_SPILL_ENABLED, true)) {
+			return null;
+		}
+		File dir = new File(ConfigUtil.getString(config, CONFIG_KEY_SPILL_DIR, DEFAULT_SPILL_DIR));
+		int segmentMb = Math.min(1024, Math.max(1, ConfigUtil.getInt(config, CONFIG_KEY_SPILL_SEGMENT_MB, DEFAULT_SPILL_SEGMENT_MB)));  // mmapできるのは2GBまで
+		long maxMb = Math.max(segmentMb, ConfigUtil.getLong(config, CONFIG_KEY_SPILL_MAX_MB, DEFAULT_SPILL_MAX_MB));
+		return new SpillJournal(dir, segmentMb * 1024 * 1024, maxMb * 1024 * 1024, logger);
+	}
+
+	public SpillJournal(File dir, int segmentBytes, long maxBytes, SR2Logger logger) throws IOException {
+		this.logger = logger;
+		this.dir = dir;
+		this.segmentBytes = segmentBytes;
+		this.maxBytes = maxBytes;
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("could not create journal directory: " + dir);
+		}
+
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				String name = f.getName();
+				if (name.endsWith(SEGMENT_SUFFIX)) {
+					try {
+						segments.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+					} catch (NumberFormatException e) {
+						// 関係ないファイル
+					}
+				}
+			}
+		}
+		loadCursor();
+	}
+
+	/**
+	 * タスクを追記する
+	 * @param nodeId
+	 * @param rawXml
+	 * @param receivedAt 受信時刻 (epoch msec)
+	 * @return 書けたらtrue. 大きすぎるか, maxBytesを超えるときはfalse
+	 * @throws IOException
+	 */
+	public synchronized boolean append(NodeIdentifier nodeId, String rawXml, long receivedAt) throws IOException {
+		byte[] payload = encode(nodeId, rawXml, receivedAt);
+		int need = HEADER_BYTES + payload.length;
+		if (segmentBytes < need + 4) {
+			rejectedCount++;
+			return false;  // 1セグメントに入らない
+		}
+		if (writeBuf == null || writeBuf.remaining() < need + 4) {
+			if (maxBytes < (long)(segments.size() + 1) * segmentBytes) {
+				rejectedCount++;
+				return false;
+			}
+			rotate();
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		writeBuf.putInt(payload.length);
+		writeBuf.putInt((int)crc.getValue());
+		writeBuf.put(payload);
+		dirty = true;
+		appendedCount++;
+		return true;
+	}
+
+	/**
+	 * DBへの書き込みが一時的な理由で失敗したことを記録する (SpillReplayerはしばらくreplayを控える)
+	 */
+	public void noteWriteFailure() {
+		lastWriteFailureAt = System.currentTimeMillis();
+	}
+
+	public long getLastWriteFailureAt() {
+		return lastWriteFailureAt;
+	}
+
+	/**
+	 * 次の1件を読んで読み出し位置を進める。読んだものはack()するまで処理中で, cursorはその手前から先に進まない
+	 * @return なければnull
+	 * @throws IOException
+	 */
+	public synchronized Entry poll() throws IOException {
+		while (true) {
+			if (readBuf == null) {
+				Long next = segments.ceiling(readSegmentId);
+				if (next == null) {
+					return null;
+				}
+				if (next != readSegmentId) {
+					readSegmentId = next;
+					readOffset = 0;
+				}
+				readBuf = map(readSegmentId, FileChannel.MapMode.READ_ONLY);
+			}
+
+			boolean isActive = (writeBuf != null && readSegmentId == writeSegmentId);
+			int limit = isActive ? writeBuf.position() : readBuf.capacity();
+			int length = (readOffset + HEADER_BYTES <= limit) ? readBuf.getInt(readOffset) : 0;
+			if (0 < length && limit < readOffset + HEADER_BYTES + length) {
+				length = -1;  // 書きかけで落ちた
+			}
+			if (0 < length) {
+				int crc = readBuf.getInt(readOffset + 4);
+				byte[] payload = new byte[length];
+				ByteBuffer src = readBuf.duplicate();
+				src.position(readOffset + HEADER_BYTES);
+				src.get(payload);
+				CRC32 actual = new CRC32();
+				actual.update(payload);
+				if ((int)actual.getValue() == crc) {
+					long position = toPosition(readSegmentId, readOffset);
+					readOffset += HEADER_BYTES + length;
+					replayedCount++;
+					inFlight.add(position);
+					return decode(payload, position);
+				}
+				corruptedCount++;  // 以降は信用できないので, このセグメントは終わりとみなす
+			}
+
+			if (isActive) {
+				return null;  // まだ書かれていない
+			}
+			// このセグメントは読み終わった (消すのは処理中のものがなくなってcheckpoint()したとき)
+			readBuf = null;
+			readSegmentId++;
+			readOffset = 0;
+		}
+	}
+
+	/**
+	 * poll()で読んだ1件が片づいた (DBにcommitした, もう一度append()した, あきらめた) ことを記録する
+	 * @param position Entry.getPosition()
+	 */
+	public synchronized void ack(long position) {
+		inFlight.remove(position);
+	}
+
+	/**
+	 * いちばん古い処理中の位置 (なければ読み出し位置) をcursorファイルに保存し, それより前のセグメントを消す
+	 * @throws IOException
+	 */
+	public synchronized void checkpoint() throws IOException {
+		saveCursor();
+	}
+
+	/**
+	 * 書き込み中のセグメントをディスクにforceする
+	 */
+	public synchronized void sync() {
+		if (writeBuf != null && dirty) {
+			writeBuf.force();
+			dirty = false;
+		}
+	}
+
+	/**
+	 * @return まだreplayされていないデータがありそうならtrue
+	 */
+	public synchronized boolean hasPending() {
+		if (segments.isEmpty()) {
+			return false;
+		}
+		if (segments.size() == 1 && writeBuf != null && readSegmentId == writeSegmentId) {
+			return readOffset < writeBuf.position();
+		}
+		return true;
+	}
+
+	public synchronized void close() {
+		sync();
+		try {
+			saveCursor();
+		} catch (IOException e) {
+			// 最後に保存したカーソルから読みなおすので, 次の起動でそこからのタスクがもう一度書かれる
+			logger.error(SR2LogType.JAVA_GENERAL_EXCEPTION, "could not save spill journal cursor on close,"
+					+ " entries since the last saved cursor will be replayed again", e);
+		}
+		writeBuf = null;
+		readBuf = null;
+	}
+
+	public synchronized String getStats() {
+		return "spill: segments=" + segments.size()
+				+ ", appended=" + appendedCount
+				+ ", replayed=" + replayedCount
+				+ ", inFlight=" + inFlight.size()
+				+ ", rejected=" + rejectedCount
+				+ ", corrupted=" + corruptedCount;
+	}
+
+	private void rotate() throws IOException {
+		if (writeBuf != null) {
+			writeBuf.force();
+		}
+		long nextId = segments.isEmpty() ? Math.max(1, readSegmentId) : segments.last() + 1;
+		writeSegmentId = nextId;
+		segments.add(nextId);
+		writeBuf = map(nextId, FileChannel.MapMode.READ_WRITE);
+		dirty = false;
+	}
+
+	private MappedByteBuffer map(long segmentId, FileChannel.MapMode mode) throws IOException {
+		File file = segmentFile(segmentId);
+		try (RandomAccessFile raf = new RandomAccessFile(file, mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw")) {
+			if (mode == FileChannel.MapMode.READ_WRITE && raf.length() < segmentBytes) {
+				raf.setLength(segmentBytes);  // 0で埋まる
+			}
+			long size = (mode == FileChannel.MapMode.READ_ONLY) ? raf.length() : segmentBytes;
+			// mapはチャネルを閉じても有効
+			return raf.getChannel().map(mode, 0, size);
+		}
+	}
+
+	private void deleteSegment(long segmentId) {
+		segments.remove(segmentId);
+		File file = segmentFile(segmentId);
+		if (!file.delete()) {
+			logger.warn(SR2LogType.JAVA_GENERAL_EXCEPTION, "could not delete spill journal segment " + file);
+		}
+	}
+
+	private File segmentFile(long segmentId) {
+		return new File(dir, String.format("%020d", segmentId) + SEGMENT_SUFFIX);
+	}
+
+	private void loadCursor() throws IOException {
+		File file = new File(dir, CURSOR_FILE);
+		if (!file.exists()) {
+			readSegmentId = segments.isEmpty() ? 1 : segments.first();
+			readOffset = 0;
+			return;
+		}
+		String[] parts = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim().split(" ");
+		readSegmentId = Long.parseLong(parts[0]);
+		readOffset = Integer.parseInt(parts[1]);
+		// cursorより前のセグメントは読み終わっている
+		for (Long id : Arrays.asList(segments.toArray(new Long[0]))) {
+			if (id < readSegmentId) {
+				deleteSegment(id);
+			}
+		}
+	}
+
+	private void saveCursor() throws IOException {
+		long position = inFlight.isEmpty() ? toPosition(readSegmentId, readOffset) : inFlight.first();
+		if (position == savedPosition) {
+			return;
+		}
+		long segmentId = position >>> 32;
+		File tmp = new File(dir, CURSOR_FILE + ".tmp");
+		Files.write(tmp.toPath(), (segmentId + " " + (int) position).getBytes(StandardCharsets.UTF_8));
+		Files.move(tmp.toPath(), new File(dir, CURSOR_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		savedPosition = position;
+		// 保存した位置より前のセグメントはもう読まない
+		while (!segments.isEmpty() && segments.first() < segmentId && segments.first() != writeSegmentId) {
+			deleteSegment(segments.first());
+		}
+	}
+
+	/**
+	 * セグメントの大きさは2GBまでなので, 上位32bitをセグメント, 下位32bitをoffsetにする
+	 */
+	private static long toPosition(long segmentId, int offset) {
+		return (segmentId << 32) | offset;
+	}
+
+	private static byte[] encode(NodeIdentifier nodeId, String rawXml, long receivedAt) {
+		byte[] server = nodeId.getServer().getBytes(StandardCharsets.UTF_8);
+		byte[] node = nodeId.getNode().getBytes(StandardCharsets.UTF_8);
+		byte[] xml = rawXml.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer buf = ByteBuffer.allocate(8 + 4 + server.length + 4 + node.length + 4 + xml.length);
+		buf.putLong(receivedAt);
+		buf.putInt(server.length).put(server);
+		buf.putInt(node.length).put(node);
+		buf.putInt(xml.length).put(xml);
+		return buf.array();
+	}
+
+	private static Entry decode(byte[] payload, long position) {
+		ByteBuffer buf = ByteBuffer.wrap(payload);
+		long receivedAt = buf.getLong();
+		String server = readString(buf);
+		String node = readString(buf);
+		String xml = readString(buf);
+		return new Entry(new NodeIdentifier(server, node), xml, receivedAt, position);
+	}
+
+	private static String readString(ByteBuffer buf) {
+		int len = buf.getInt();
+		String s = new String(buf.array(), buf.position(), len, StandardCharsets.UTF_8);
+		buf.position(buf.position() + len);
+		return s;
+	}
+
+}
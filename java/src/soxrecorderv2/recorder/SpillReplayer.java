@@ -0,0 +1,159 @@
+package soxrecorderv2.recorder;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.stream.XMLStreamException;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+import soxrecorderv2.common.model.RecordTask;
+import soxrecorderv2.logging.SR2LogType;
+import soxrecorderv2.logging.SR2Logger;
+import soxrecorderv2.util.ConfigUtil;
+import soxrecorderv2.util.PGConnectionManager;
+import soxrecorderv2.util.ThreadUtil;
+
+/**
+ * SpillJournalに退避されたタスクを, 決まったレートで書き込みキューに戻すスレッド。
+ *
+ * 次のときはreplayしない:
+ * - 直近spill_replay_backoff_msecの間にDBへの書き込みが一時的な理由で失敗している (まだ復旧していない)
+ * - 書き込みキューが半分以上埋まっている (ライブのデータを優先する)
+ *
+ * 戻したタスクはDBWriterProcessがcommitしたときにSpillJournal.ack()する。
+ * ここでは定期的にcheckpoint()するだけで, cursorはackされていないものより先には進まない。
+ */
+public class SpillReplayer implements Runnable, RecorderSubProcess {
+
+	public static final String CONFIG_KEY_REPLAY_PER_SEC = "spill_replay_per_sec";
+	public static final String CONFIG_KEY_REPLAY_BACKOFF_MSEC = "spill_replay_backoff_msec";
+
+	public static final double DEFAULT_REPLAY_PER_SEC = 200;
+	public static final long DEFAULT_REPLAY_BACKOFF_MSEC = 10 * 1000;  // 10sec
+
+	private static final long SYNC_INTERVAL_MSEC = 1000;
+	private static final long CHECKPOINT_INTERVAL_MSEC = 1000;
+	private static final long STATS_INTERVAL_MSEC = 60 * 1000;
+
+	private final SR2Logger logger;
+	private final SpillJournal journal;
+	private final RecordTaskDispatcher writeQueue;
+	private final PubSubMessageParser parser = new PubSubMessageParser();
+	private final RateLimiter rateLimiter;
+	private final long backoffMsec;
+	private volatile boolean isRunning;
+
+	public SpillReplayer(Recorder parent, SpillJournal journal, RecordTaskDispatcher writeQueue) {
+		this.logger = parent.createLogger(getComponentName());
+		this.journal = journal;
+		this.writeQueue = writeQueue;
+		Properties config = parent.getConfig();
+		double perSec = Double.parseDouble(ConfigUtil.getString(config, CONFIG_KEY_REPLAY_PER_SEC, Double.toString(DEFAULT_REPLAY_PER_SEC)));
+		this.rateLimiter = RateLimiter.create(Math.max(1.0, perSec));
+		this.backoffMsec = ConfigUtil.getLong(config, CONFIG_KEY_REPLAY_BACKOFF_MSEC, DEFAULT_REPLAY_BACKOFF_MSEC);
+	}
+
+	@Override
+	public void run() {
+		isRunning = true;
+		SpillJournal.Entry pending = null;
+		long lastSyncedAt = 0;
+		long lastCheckpointAt = System.currentTimeMillis();
+		long lastReportedAt = System.currentTimeMillis();
+
+		while (isRunning) {
+			long now = System.currentTimeMillis();
+			if (SYNC_INTERVAL_MSEC <= now - lastSyncedAt) {
+				journal.sync();
+				lastSyncedAt = now;
+			}
+			if (STATS_INTERVAL_MSEC <= now - lastReportedAt) {
+				logger.info(SR2LogType.PIPELINE_STATS, journal.getStats());
+				lastReportedAt = now;
+			}
+			if (CHECKPOINT_INTERVAL_MSEC <= now - lastCheckpointAt) {
+				checkpoint();
+				lastCheckpointAt = now;
+			}
+
+			if (pending == null) {
+				if (now - journal.getLastWriteFailureAt() < backoffMsec || writeQueue.getCapacity() / 2 < writeQueue.size()) {
+					ThreadUtil.sleep(200);
+					continue;
+				}
+				try {
+					pending = journal.poll();
+				} catch (IOException e) {
+					logger.error(SR2LogType.JAVA_GENERAL_EXCEPTION, "spill journal read failed", e);
+					ThreadUtil.sleep(1000);
+					continue;
+				}
+				if (pending == null) {
+					ThreadUtil.sleep(500);  // 空
+					continue;
+				}
+			}
+
+			RecordTask task = toTask(pending);
+			if (task == null) {
+				journal.ack(pending.getPosition());  // 読めないものは捨てる
+				pending = null;
+				continue;
+			}
+
+			rateLimiter.acquire();
+			boolean putSucceeded = false;
+			try {
+				putSucceeded = writeQueue.offerWithoutShedding(task, 100, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				logger.error(SR2LogType.JAVA_INTERRUPTED_EXCEPTION, "during spill replay", e);
+			}
+			if (putSucceeded) {
+				pending = null;
+			}
+		}
+
+		// pendingやwriterがcommitしていないものはackされていないので, 次回もう一度読む
+		journal.close();
+	}
+
+	private RecordTask toTask(SpillJournal.Entry entry) {
+		PubSubMessageParser.ParsedMessage parsed;
+		try {
+			parsed = parser.parse(entry.getRawXml());
+		} catch (XMLStreamException e) {
+			logger.error(SR2LogType.JAVA_GENERAL_EXCEPTION, "could not parse spilled stanza", entry.getNodeId().getServer(), entry.getNodeId().getNode(), e);
+			return null;
+		}
+		if (parsed == null) {
+			return null;
+		}
+		return new RecordTask(entry.getNodeId(), parsed.getData(), entry.getRawXml(), entry.getReceivedAt(), entry.getPosition());
+	}
+
+	private void checkpoint() {
+		try {
+			journal.checkpoint();
+		} catch (IOException e) {
+			logger.error(SR2LogType.JAVA_GENERAL_EXCEPTION, "spill journal checkpoint failed", e);
+		}
+	}
+
+	@Override
+	public String getComponentName() {
+		return "spill_replayer";
+	}
+
+	@Override
+	public void shutdownSubProcess() {
+		isRunning = false;
+	}
+
+	@Override
+	public PGConnectionManager getConnManager() {
+		return null;  // DBは使わない
+	}
+
+}
@@ -1,32 +1,34 @@
 package soxrecorderv2.util;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 
 
 public class BinaryUtil {
 	
+	/**
+	 * DataInputStream.readLong()と同じ (big endian)
+	 */
 	public static long bin2long(byte[] longData) throws IOException {
-		ByteArrayInputStream bIn = new ByteArrayInputStream(longData);
-		DataInputStream dataIn = new DataInputStream(bIn);
+		if (longData.length < 8) {
+			throw new EOFException("need 8 bytes but got " + longData.length);
+		}
 		long ret = 0;
-		ret = dataIn.readLong();
+		for (int i = 0; i < 8; i++) {
+			ret = (ret << 8) | (longData[i] & 0xFF);
+		}
 		return ret;
 	}
 	
+	/**
+	 * DataOutputStream.writeLong()と同じ (big endian)
+	 */
 	public static byte[] long2bin(long longValue) {
-		ByteArrayOutputStream bOut = new ByteArrayOutputStream();
-		DataOutputStream dataOut = new DataOutputStream(bOut);
-		try {
-			dataOut.writeLong(longValue);
-			dataOut.close();
-		} catch (IOException e) {
-			
+		byte[] ret = new byte[8];
+		for (int i = 7; 0 <= i; i--) {
+			ret[i] = (byte) longValue;
+			longValue >>>= 8;
 		}
-		byte[] ret = bOut.toByteArray();
 		return ret;
 	}
 
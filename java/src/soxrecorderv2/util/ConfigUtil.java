@@ -0,0 +1,57 @@
+package soxrecorderv2.util;
+
+import java.util.Properties;
+
+/**
+ * recorder.secret.ini (java.util.Properties) から値を型つきで読むためのユーティリティ。
+ * キーがない, もしくは値が壊れているときはデフォルト値を返す。
+ */
+public class ConfigUtil {
+
+	public static String getString(Properties config, String key, String defaultValue) {
+		if (config == null) {
+			return defaultValue;
+		}
+		String value = config.getProperty(key);
+		if (value == null) {
+			return defaultValue;
+		}
+		value = value.trim();
+		return (value.isEmpty()) ? defaultValue : value;
+	}
+
+	public static int getInt(Properties config, String key, int defaultValue) {
+		String value = getString(config, key, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	public static long getLong(Properties config, String key, long defaultValue) {
+		String value = getString(config, key, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	public static boolean getBoolean(Properties config, String key, boolean defaultValue) {
+		String value = getString(config, key, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		return ("true".equalsIgnoreCase(value) || "yes".equalsIgnoreCase(value) || "1".equals(value));
+	}
+
+	private ConfigUtil() {}  // you cannot instantiate this class
+
+}
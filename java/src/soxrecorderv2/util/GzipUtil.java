@@ -3,26 +3,103 @@ package soxrecorderv2.util;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 public class GzipUtil {
 
+	private static final int CHUNK_SIZE = 8192;
+
+	// GZIPOutputStreamと同じヘッダ (mtimeなし, OS=0)
+	private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+
+	// GZIPOutputStreamは毎回Deflater(ネイティブのバッファつき)を作って捨てるので, スレッドごとに使いまわす
+	private static final ThreadLocal<Deflater> DEFLATER = new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue() {
+			return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		}
+	};
+
+	private static final ThreadLocal<byte[][]> CHUNKS = new ThreadLocal<byte[][]>() {
+		@Override
+		protected byte[][] initialValue() {
+			return new byte[][] { new byte[CHUNK_SIZE], new byte[CHUNK_SIZE] };
+		}
+	};
+
 	public static byte[] compress(byte[] original) throws IOException {
-		ByteArrayOutputStream bout = new ByteArrayOutputStream();
-		GZIPOutputStream gzout = new GZIPOutputStream(bout);
-		gzout.write(original);
-		gzout.close();
+		ByteArrayOutputStream bout = new ByteArrayOutputStream(Math.max(64, original.length / 2));
+		compressTo(new ByteArrayInputStream(original), bout);
 		return bout.toByteArray();
 	}
-	
+
+	/**
+	 * inを最後まで読んでgzipしながらoutに書く。GZIPOutputStreamと同じ形式
+	 * @param in
+	 * @param out
+	 * @return 圧縮前のバイト数
+	 * @throws IOException
+	 */
+	public static long compressTo(InputStream in, OutputStream out) throws IOException {
+		Deflater deflater = DEFLATER.get();
+		deflater.reset();
+		byte[][] chunks = CHUNKS.get();
+		byte[] inChunk = chunks[0];
+		byte[] outChunk = chunks[1];
+		CRC32 crc = new CRC32();
+		long total = 0;
+
+		out.write(GZIP_HEADER);
+		int n;
+		while ((n = in.read(inChunk)) != -1) {
+			if (n == 0) {
+				continue;
+			}
+			crc.update(inChunk, 0, n);
+			total += n;
+			deflater.setInput(inChunk, 0, n);
+			while (!deflater.needsInput()) {
+				int m = deflater.deflate(outChunk);
+				out.write(outChunk, 0, m);
+			}
+		}
+		deflater.finish();
+		while (!deflater.finished()) {
+			int m = deflater.deflate(outChunk);
+			out.write(outChunk, 0, m);
+		}
+		writeIntLE(out, (int) crc.getValue());
+		writeIntLE(out, (int) total);  // ISIZE: 2^32で割ったあまり
+		return total;
+	}
+
+	private static void writeIntLE(OutputStream out, int v) throws IOException {
+		out.write(v & 0xff);
+		out.write((v >>> 8) & 0xff);
+		out.write((v >>> 16) & 0xff);
+		out.write((v >>> 24) & 0xff);
+	}
+
+	/**
+	 * @param compressed
+	 * @param contentLength 展開後の長さ, わからなければ-1
+	 */
 	public static byte[] uncompress(byte[] compressed, long contentLength) throws IOException {
 		ByteArrayInputStream bin = new ByteArrayInputStream(compressed);
 		GZIPInputStream gzin = new GZIPInputStream(bin);
-		byte[] buffer = new byte[(int)contentLength];
-		gzin.read(buffer);
+		// read()は1回で全部読めるとはかぎらないので, 最後まで読む
+		ByteArrayOutputStream bout = new ByteArrayOutputStream((0 <= contentLength) ? (int)contentLength : compressed.length * 4);
+		byte[] chunk = new byte[CHUNK_SIZE];
+		int n;
+		while ((n = gzin.read(chunk)) != -1) {
+			bout.write(chunk, 0, n);
+		}
 		gzin.close();
-		return buffer;
+		return bout.toByteArray();
 	}
 
 }
@@ -1,9 +1,34 @@
 package soxrecorderv2.util;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
 public class HashUtil {
+
+	private static final char[] HEX_CHARS = "0123456789abcdef".toCharArray();
+	private static final int CHUNK_SIZE = 8192;
+
+	// MessageDigest.getInstance()は毎回プロバイダを探すので, スレッドごとに使いまわす
+	private static final ThreadLocal<MessageDigest> SHA256 = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException("SHA-256 is not available", e);
+			}
+		}
+	};
+
+	private static final ThreadLocal<byte[]> CHUNK = new ThreadLocal<byte[]>() {
+		@Override
+		protected byte[] initialValue() {
+			return new byte[CHUNK_SIZE];
+		}
+	};
+
 	/**
 	 * byte列contentの内容をSHA-256でハッシュダイジェストを求めて16進数の文字列で返す
 	 * @param content
@@ -11,22 +36,40 @@ public class HashUtil {
 	 */
 	public static String sha256(byte[] content) {
 		// memo: http://qiita.com/rsuzuki/items/7e3bd8248c55dab8341d
-		String algo = "SHA-256";
-		MessageDigest digest = null;
-		try {
-			digest = MessageDigest.getInstance(algo);
-		} catch (NoSuchAlgorithmException e) {
-	
-		}
-		
+		MessageDigest digest = SHA256.get();
+		digest.reset();
 		digest.update(content);
-		
-		byte[] binDigest = digest.digest();
-		StringBuilder sb = new StringBuilder();
-		for (byte b : binDigest) {
-			sb.append(String.format("%02x", b));
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * inを最後まで読んで, SHA-256のハッシュダイジェストを16進数の文字列で返す。全体をメモリには載せない
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	public static String sha256(InputStream in) throws IOException {
+		MessageDigest digest = SHA256.get();
+		digest.reset();
+		byte[] chunk = CHUNK.get();
+		int n;
+		while ((n = in.read(chunk)) != -1) {
+			digest.update(chunk, 0, n);
+		}
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * 小文字の16進数にする (String.format("%02x")は遅いので使わない)
+	 */
+	public static String toHex(byte[] bytes) {
+		char[] chars = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			int v = bytes[i] & 0xff;
+			chars[i * 2] = HEX_CHARS[v >>> 4];
+			chars[i * 2 + 1] = HEX_CHARS[v & 0x0f];
 		}
-		return sb.toString();
+		return new String(chars);
 	}
 
 }
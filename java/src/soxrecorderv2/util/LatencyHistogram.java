@@ -0,0 +1,48 @@
+package soxrecorderv2.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 待ち時間などのおおまかなヒストグラム。バケツは 1ms, 10ms, 100ms, 1s, 10s, それ以上 の固定。
+ * 複数スレッドから同時に更新してよい。
+ */
+public class LatencyHistogram {
+
+	private static final long[] UPPER_BOUNDS_MSEC = { 1, 10, 100, 1000, 10000 };
+	private static final String[] LABELS = { "<1ms", "<10ms", "<100ms", "<1s", "<10s", ">=10s" };
+
+	private final AtomicLongArray counts = new AtomicLongArray(UPPER_BOUNDS_MSEC.length + 1);
+
+	public void record(long nanos) {
+		long msec = TimeUnit.NANOSECONDS.toMillis(nanos);
+		int idx = 0;
+		while (idx < UPPER_BOUNDS_MSEC.length && UPPER_BOUNDS_MSEC[idx] <= msec) {
+			idx++;
+		}
+		counts.incrementAndGet(idx);
+	}
+
+	public long getCount(int bucket) {
+		return counts.get(bucket);
+	}
+
+	public int getBucketCount() {
+		return counts.length();
+	}
+
+	/**
+	 * @return "<1ms=10 <10ms=3 ..." のような1行
+	 */
+	public String format() {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < counts.length(); i++) {
+			if (0 < i) {
+				sb.append(' ');
+			}
+			sb.append(LABELS[i]).append('=').append(counts.get(i));
+		}
+		return sb.toString();
+	}
+
+}
@@ -1,83 +1,116 @@
 package soxrecorderv2.util;
 
 import java.sql.Connection;
-import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
-import java.util.Calendar;
 import java.util.Properties;
 
+/**
+ * コンポーネントごとのPostgreSQLコネクションの窓口。
+ *
+ * 実際のコネクションは接続先ごとに共有されるPGConnectionPoolから借りる。
+ * getConnection()は次にrelease()されるまで同じコネクションを返すので, 呼び出し側は今までどおり
+ * getConnection() => commit/rollback の流れで使い, 処理のひと区切りでrelease()してプールに返す。
+ * 何度も実行するSQLはprepareStatement()を使うと, コネクションごとにキャッシュされたstatementが返る。
+ */
 public class PGConnectionManager {
 
 	public static final String CONFIG_KEY_PG_HOST   = "pg_host";
 	public static final String CONFIG_KEY_PG_DBNAME = "pg_dbname";
 	public static final String CONFIG_KEY_PG_USER   = "pg_user";
 	public static final String CONFIG_KEY_PG_PASS   = "pg_pass";
-	
-	private Properties config;
+
+	private final PGConnectionPool pool;
 
 	private Connection conn = null;
-	private long connectionResetPeriod = 1000 * 60 * 10; // 10minutes
+	private boolean leakDetection = true;
 	private long lastCommunicatedAt = 0;
-	
+
 	public PGConnectionManager(Properties config) {
 //		this.config = parent.getConfig();
-		this.config = config;
+		this.pool = PGConnectionPool.getInstance(config);
 	}
-	
-	public Connection getConnection() throws SQLException {
-		// memo: http://mountainbigroad.jp/fc5/pgsql_java.html
-		if (conn == null && connectionResetPeriod < getNow() - lastCommunicatedAt) {
-//			System.out.println("[PGConnectionManager][getConnection] conn is null or cache expired, going to newly open");
-			if (conn != null) {
-				try {
-					conn.close();
-				} catch (SQLException e) {
-				}
-			}
-			
-			conn = openConnection();
+
+	public synchronized Connection getConnection() throws SQLException {
+		if (conn == null) {
+			conn = pool.borrow(leakDetection);
 			updateLastCommunicateTime();
-		} else {
-//			System.out.println("[PGConnectionManager][getConnection] going to use cached conn");
 		}
 		return conn;
 	}
 
-	private Connection openConnection() throws SQLException {
-//		System.out.println("[PGConnectionManager](0) going to open connection to PostgreSQL");
-		String pgHost     = config.getProperty(CONFIG_KEY_PG_HOST);
-		String pgDatabase = config.getProperty(CONFIG_KEY_PG_DBNAME);
-		String pgUser     = config.getProperty(CONFIG_KEY_PG_USER);
-		String pgPass     = config.getProperty(CONFIG_KEY_PG_PASS);
-		String url = "jdbc:postgresql://" + pgHost + "/" + pgDatabase;
-//		System.out.println("[PGConnectionManager](1): host=" + pgHost + ", db=" + pgDatabase + ", user=" + pgUser + ", pass=" + pgPass);
-//		System.out.println("[PGConnectionManager](2): url=" + url);
-		Connection conn = DriverManager.getConnection(url, pgUser, pgPass);
-		conn.setAutoCommit(false);
-		return conn;
-	}
-	
-	public void updateLastCommunicateTime() {
-		lastCommunicatedAt = getNow();
+	/**
+	 * 借りているコネクションでキャッシュされたPreparedStatementを取得する。
+	 * 戻り値はclose()しないこと。バッチは使い終わったらclearBatch()しておく
+	 * @param sql
+	 * @return
+	 * @throws SQLException
+	 */
+	public synchronized PreparedStatement prepareStatement(String sql) throws SQLException {
+		Connection conn = getConnection();
+		PreparedStatementCache statements = pool.getStatementCache(conn);
+		if (statements == null) {
+			throw new SQLException("connection is not borrowed from the pool");
+		}
+		return statements.prepare(sql);
 	}
 
 	/**
-	 * 
-	 * @return epoch秒をミリ秒で返す
+	 * 借りているコネクションをプールに返す。次のgetConnection()で改めて借りる
 	 */
-	private long getNow() {
-		return Calendar.getInstance().getTimeInMillis();
+	public synchronized void release() {
+		if (conn != null) {
+			pool.release(conn, false);
+			conn = null;
+		}
 	}
-	
-	public void close() {
+
+	/**
+	 * 借りているコネクションを捨てる。通信エラーなどで使えなくなったときに呼ぶ
+	 */
+	public synchronized void invalidate() {
 		if (conn != null) {
-			try {
-				conn.close();
-			} catch (SQLException e) {
-				// FIXME Auto-generated catch block
-				e.printStackTrace();
-			}
+			pool.release(conn, true);
+			conn = null;
+		}
+	}
+
+	/**
+	 * SQLExceptionがコネクションの異常(SQLSTATE class 08)によるものならinvalidate()する
+	 * @param e
+	 * @return invalidateしたらtrue
+	 */
+	public boolean invalidateIfBroken(SQLException e) {
+		String sqlState = e.getSQLState();
+		if (sqlState != null && sqlState.startsWith("08")) {
+			invalidate();
+			return true;
 		}
+		return false;
+	}
+
+	/**
+	 * コンポーネントが寿命の間ずっとコネクションを持ち続ける場合はfalseにして, プールのリーク検出の対象から外す
+	 * @param leakDetection
+	 */
+	public synchronized void setLeakDetection(boolean leakDetection) {
+		this.leakDetection = leakDetection;
+	}
+
+	public void updateLastCommunicateTime() {
+		lastCommunicatedAt = System.currentTimeMillis();
+	}
+
+	public long getLastCommunicatedAt() {
+		return lastCommunicatedAt;
+	}
+
+	public PGConnectionPool getPool() {
+		return pool;
+	}
+
+	public void close() {
+		release();
 	}
 
 }
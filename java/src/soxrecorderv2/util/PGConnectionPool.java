@@ -0,0 +1,459 @@
+package soxrecorderv2.util;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * PostgreSQLへのコネクションを上限つきで共有するプール。
+ *
+ * 同じ接続先(host, dbname, user)に対してはプロセス内で1つのプールを使う(getInstance())。
+ * 各コンポーネントはPGConnectionManager経由でborrow/releaseする。
+ *
+ * - borrow時に一定時間以上使われていなかったコネクションはisValid()で確認し, 死んでいたら作り直す
+ * - maxLifetimeを超えたコネクションはrelease時/borrow時に閉じて作り直す
+ * - leakDetectMsecより長く返ってこないコネクションは, borrowした場所のスタックトレースつきで一度だけ警告する
+ * - コネクションごとにPreparedStatementCacheを持つ(PGConnectionManager.prepareStatement())
+ */
+public class PGConnectionPool {
+
+	public static final String CONFIG_KEY_POOL_MAX_SIZE          = "pg_pool_max_size";
+	public static final String CONFIG_KEY_POOL_MAX_WAIT_MSEC     = "pg_pool_max_wait_msec";
+	public static final String CONFIG_KEY_POOL_MAX_LIFETIME_MSEC = "pg_pool_max_lifetime_msec";
+	public static final String CONFIG_KEY_POOL_VALIDATE_IDLE_MSEC = "pg_pool_validate_idle_msec";
+	public static final String CONFIG_KEY_POOL_LEAK_DETECT_MSEC  = "pg_pool_leak_detect_msec";
+	public static final String CONFIG_KEY_STATEMENT_CACHE_SIZE   = "pg_statement_cache_size";
+
+	public static final int  DEFAULT_MAX_SIZE           = 16;
+	public static final long DEFAULT_MAX_WAIT_MSEC      = 10 * 1000;       // 10sec
+	public static final long DEFAULT_MAX_LIFETIME_MSEC  = 30 * 60 * 1000;  // 30min
+	public static final long DEFAULT_VALIDATE_IDLE_MSEC = 1000;
+	public static final long DEFAULT_LEAK_DETECT_MSEC   = 5 * 60 * 1000;   // 5min, 0 means disabled
+
+	private static final int VALIDATION_TIMEOUT_SEC = 2;
+	// プールがコネクションを渡せなかったときのSQLSTATE (sqlclient_unable_to_establish_sqlconnection)。
+	// class 08なので, 呼び出し側は一時的な失敗として扱える
+	private static final String SQLSTATE_UNABLE_TO_CONNECT = "08001";
+
+	private static final Map<String, PGConnectionPool> POOLS = new HashMap<>();
+
+	/**
+	 * 接続先ごとに共有されるプールを取得する
+	 * @param config
+	 * @return
+	 */
+	public static PGConnectionPool getInstance(Properties config) {
+		String url = buildUrl(config);
+		String key = url + "|" + config.getProperty(PGConnectionManager.CONFIG_KEY_PG_USER);
+		synchronized (POOLS) {
+			PGConnectionPool pool = POOLS.get(key);
+			if (pool == null || pool.isClosed()) {
+				pool = new PGConnectionPool(config);
+				POOLS.put(key, pool);
+			}
+			return pool;
+		}
+	}
+
+	/**
+	 * 貸し出し中/待機中のコネクションの情報
+	 */
+	private static class PooledConnection {
+		final Connection conn;
+		final PreparedStatementCache statements;
+		final long createdAt;
+		long lastUsedAt;
+		long borrowedAt;
+		Throwable borrowedFrom;
+		boolean leakReported;
+		boolean leakDetection;
+
+		PooledConnection(Connection conn, int statementCacheSize, long now) {
+			this.conn = conn;
+			this.statements = new PreparedStatementCache(conn, statementCacheSize);
+			this.createdAt = now;
+			this.lastUsedAt = now;
+		}
+	}
+
+	private final String url;
+	private final String user;
+	private final String pass;
+	private final int maxSize;
+	private final long maxWaitMsec;
+	private final long maxLifetimeMsec;
+	private final long validateIdleMsec;
+	private final long leakDetectMsec;
+	private final int statementCacheSize;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition available = lock.newCondition();
+	private final Deque<PooledConnection> idle = new ArrayDeque<>();
+	private final Map<Connection, PooledConnection> active = new IdentityHashMap<>();
+	private int pending = 0;  // ロック外でopen/validation中の本数
+	private boolean closed = false;
+
+	// metrics
+	private long borrowCount = 0;
+	private long waitCount = 0;
+	private long totalWaitNanos = 0;
+	private long maxWaitNanos = 0;
+	private long timeoutCount = 0;
+	private long createdCount = 0;
+	private long destroyedCount = 0;
+	private long validationFailedCount = 0;
+	private long leakCount = 0;
+	private long retiredStatementHits = 0;    // 捨てたコネクションのキャッシュの分
+	private long retiredStatementMisses = 0;
+
+	public PGConnectionPool(Properties config) {
+		this.url = buildUrl(config);
+		this.user = config.getProperty(PGConnectionManager.CONFIG_KEY_PG_USER);
+		this.pass = config.getProperty(PGConnectionManager.CONFIG_KEY_PG_PASS);
+		this.maxSize = Math.max(1, ConfigUtil.getInt(config, CONFIG_KEY_POOL_MAX_SIZE, DEFAULT_MAX_SIZE));
+		this.maxWaitMsec = ConfigUtil.getLong(config, CONFIG_KEY_POOL_MAX_WAIT_MSEC, DEFAULT_MAX_WAIT_MSEC);
+		this.maxLifetimeMsec = ConfigUtil.getLong(config, CONFIG_KEY_POOL_MAX_LIFETIME_MSEC, DEFAULT_MAX_LIFETIME_MSEC);
+		this.validateIdleMsec = ConfigUtil.getLong(config, CONFIG_KEY_POOL_VALIDATE_IDLE_MSEC, DEFAULT_VALIDATE_IDLE_MSEC);
+		this.leakDetectMsec = ConfigUtil.getLong(config, CONFIG_KEY_POOL_LEAK_DETECT_MSEC, DEFAULT_LEAK_DETECT_MSEC);
+		this.statementCacheSize = ConfigUtil.getInt(config, CONFIG_KEY_STATEMENT_CACHE_SIZE, PreparedStatementCache.DEFAULT_MAX_SIZE);
+	}
+
+	private static String buildUrl(Properties config) {
+		String pgHost     = config.getProperty(PGConnectionManager.CONFIG_KEY_PG_HOST);
+		String pgDatabase = config.getProperty(PGConnectionManager.CONFIG_KEY_PG_DBNAME);
+		return "jdbc:postgresql://" + pgHost + "/" + pgDatabase;
+	}
+
+	/**
+	 * コネクションを借りる。空きがなければmaxWaitMsecまで待つ
+	 * @param leakDetection falseのときはコンポーネントが寿命の間ずっと持つコネクションとして扱い, リーク検出の対象にしない
+	 * @return autoCommit=falseのコネクション
+	 * @throws SQLException 待ち時間切れ, または接続に失敗したとき
+	 */
+	public Connection borrow(boolean leakDetection) throws SQLException {
+		long tStart = System.nanoTime();
+		long deadline = tStart + TimeUnit.MILLISECONDS.toNanos(maxWaitMsec);
+		boolean waited = false;
+
+		while (true) {
+			PooledConnection candidate = null;
+			boolean shouldOpen = false;
+
+			lock.lock();
+			try {
+				detectLeaks();
+				while (true) {
+					if (closed) {
+						throw new SQLException("connection pool is closed", SQLSTATE_UNABLE_TO_CONNECT);
+					}
+					if (!idle.isEmpty()) {
+						candidate = idle.pollFirst();  // 最後に返されたものから使う
+						pending++;
+						break;
+					}
+					if (active.size() + pending < maxSize) {
+						pending++;
+						shouldOpen = true;
+						break;
+					}
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						timeoutCount++;
+						throw new SQLException("timed out waiting for a connection: " + getStatsLocked(), SQLSTATE_UNABLE_TO_CONNECT);
+					}
+					waited = true;
+					try {
+						available.awaitNanos(remaining);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new SQLException("interrupted while waiting for a connection", SQLSTATE_UNABLE_TO_CONNECT, e);
+					}
+				}
+			} finally {
+				lock.unlock();
+			}
+
+			// 接続やvalidationはネットワーク越しなのでロックの外でやる
+			long now = System.currentTimeMillis();
+			if (shouldOpen) {
+				Connection conn;
+				try {
+					conn = openConnection();
+				} catch (SQLException e) {
+					lock.lock();
+					try {
+						pending--;
+						available.signal();
+					} finally {
+						lock.unlock();
+					}
+					throw e;
+				}
+				candidate = new PooledConnection(conn, statementCacheSize, now);
+				lock.lock();
+				try {
+					createdCount++;
+				} finally {
+					lock.unlock();
+				}
+			} else if (isExpired(candidate, now) || !validate(candidate, now)) {
+				lock.lock();
+				try {
+					pending--;
+				} finally {
+					lock.unlock();
+				}
+				destroy(candidate);
+				continue;  // 作り直し
+			}
+
+			lock.lock();
+			try {
+				pending--;
+				candidate.borrowedAt = now;
+				candidate.leakDetection = leakDetection;
+				candidate.leakReported = false;
+				candidate.borrowedFrom = (leakDetection && 0 < leakDetectMsec) ? new Throwable("connection borrowed here") : null;
+				active.put(candidate.conn, candidate);
+				borrowCount++;
+				if (waited) {
+					long waitNanos = System.nanoTime() - tStart;
+					waitCount++;
+					totalWaitNanos += waitNanos;
+					maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+				}
+			} finally {
+				lock.unlock();
+			}
+			return candidate.conn;
+		}
+	}
+
+	/**
+	 * 借りたコネクションを返す。
+	 * @param conn
+	 * @param broken trueのときは再利用せずに閉じる(通信エラーのあとなど)
+	 */
+	public void release(Connection conn, boolean broken) {
+		PooledConnection pc;
+		lock.lock();
+		try {
+			pc = active.get(conn);
+		} finally {
+			lock.unlock();
+		}
+		if (pc == null) {
+			return;  // このプールのものではないか, 二重に返された
+		}
+
+		long now = System.currentTimeMillis();
+		boolean reusable = !broken && !isExpired(pc, now);
+		if (reusable) {
+			try {
+				// 書きかけのトランザクションを次の利用者に渡さない
+				conn.rollback();
+			} catch (SQLException e) {
+				reusable = false;
+			}
+		}
+
+		lock.lock();
+		try {
+			active.remove(conn);
+			if (reusable && !closed) {
+				pc.lastUsedAt = now;
+				pc.borrowedFrom = null;
+				idle.addFirst(pc);
+				available.signal();
+				return;
+			}
+		} finally {
+			lock.unlock();
+		}
+		destroy(pc);
+	}
+
+	/**
+	 * 借りているコネクションのstatementキャッシュを取得する
+	 * @param conn borrow()で借りたコネクション
+	 * @return 貸し出し中でなければnull
+	 */
+	public PreparedStatementCache getStatementCache(Connection conn) {
+		lock.lock();
+		try {
+			PooledConnection pc = active.get(conn);
+			return (pc == null) ? null : pc.statements;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void close() {
+		List<PooledConnection> toClose;
+		lock.lock();
+		try {
+			closed = true;
+			toClose = new ArrayList<>(idle);
+			idle.clear();
+			available.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		for (PooledConnection pc : toClose) {
+			destroy(pc);
+		}
+	}
+
+	public boolean isClosed() {
+		lock.lock();
+		try {
+			return closed;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getActiveCount() {
+		lock.lock();
+		try {
+			return active.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getIdleCount() {
+		lock.lock();
+		try {
+			return idle.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return プールの状態(active/idle/待ち時間など)を1行で
+	 */
+	public String getStats() {
+		lock.lock();
+		try {
+			return getStatsLocked();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private String getStatsLocked() {
+		long avgWaitMsec = (waitCount == 0) ? 0 : TimeUnit.NANOSECONDS.toMillis(totalWaitNanos / waitCount);
+		long statementHits = retiredStatementHits;
+		long statementMisses = retiredStatementMisses;
+		for (PooledConnection pc : idle) {
+			statementHits += pc.statements.getHits();
+			statementMisses += pc.statements.getMisses();
+		}
+		for (PooledConnection pc : active.values()) {
+			statementHits += pc.statements.getHits();
+			statementMisses += pc.statements.getMisses();
+		}
+		return "active=" + active.size()
+				+ ", idle=" + idle.size()
+				+ ", max=" + maxSize
+				+ ", borrowed=" + borrowCount
+				+ ", waited=" + waitCount
+				+ ", avgWaitMsec=" + avgWaitMsec
+				+ ", maxWaitMsec=" + TimeUnit.NANOSECONDS.toMillis(maxWaitNanos)
+				+ ", timeouts=" + timeoutCount
+				+ ", created=" + createdCount
+				+ ", destroyed=" + destroyedCount
+				+ ", validationFailed=" + validationFailedCount
+				+ ", leaks=" + leakCount
+				+ ", stmtCacheHits=" + statementHits
+				+ ", stmtCacheMisses=" + statementMisses;
+	}
+
+	/**
+	 * lockを持った状態で呼ぶ
+	 */
+	private void detectLeaks() {
+		if (leakDetectMsec <= 0) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		for (PooledConnection pc : active.values()) {
+			if (!pc.leakDetection || pc.leakReported) {
+				continue;
+			}
+			if (leakDetectMsec < now - pc.borrowedAt) {
+				pc.leakReported = true;
+				leakCount++;
+				System.err.println("[PGConnectionPool] possible connection leak: not returned for "
+						+ (now - pc.borrowedAt) + "msec (" + getStatsLocked() + ")");
+				if (pc.borrowedFrom != null) {
+					pc.borrowedFrom.printStackTrace();
+				}
+			}
+		}
+	}
+
+	private boolean isExpired(PooledConnection pc, long now) {
+		return 0 < maxLifetimeMsec && maxLifetimeMsec < now - pc.createdAt;
+	}
+
+	private boolean validate(PooledConnection pc, long now) {
+		if (now - pc.lastUsedAt < validateIdleMsec) {
+			return true;
+		}
+		boolean valid;
+		try {
+			valid = pc.conn.isValid(VALIDATION_TIMEOUT_SEC);
+		} catch (SQLException e) {
+			valid = false;
+		}
+		if (!valid) {
+			lock.lock();
+			try {
+				validationFailedCount++;
+			} finally {
+				lock.unlock();
+			}
+		}
+		return valid;
+	}
+
+	private void destroy(PooledConnection pc) {
+		pc.statements.clear();
+		try {
+			pc.conn.close();
+		} catch (SQLException e) {
+			// ignore
+		}
+		lock.lock();
+		try {
+			destroyedCount++;
+			retiredStatementHits += pc.statements.getHits();
+			retiredStatementMisses += pc.statements.getMisses();
+			available.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private Connection openConnection() throws SQLException {
+		// memo: http://mountainbigroad.jp/fc5/pgsql_java.html
+		Connection conn = DriverManager.getConnection(url, user, pass);
+		conn.setAutoCommit(false);
+		return conn;
+	}
+
+}
@@ -0,0 +1,47 @@
+package soxrecorderv2.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+/**
+ * スレッドごとに使いまわすByteArrayOutputStream。
+ * toByteArray()でコピーせずに, 中身をそのままInputStreamとして渡せる。
+ *
+ * forCurrentThread()で取ったものは, 同じスレッドで次にforCurrentThread()を呼ぶまで使える。
+ * (入れ子で使わないこと)
+ */
+public class PooledByteArrayOutputStream extends ByteArrayOutputStream {
+
+	public static final int INITIAL_SIZE = 64 * 1024;
+	public static final int MAX_RETAINED_SIZE = 4 * 1024 * 1024;  // これより大きくなったバッファは持ち続けない
+
+	private static final ThreadLocal<PooledByteArrayOutputStream> POOL = new ThreadLocal<PooledByteArrayOutputStream>() {
+		@Override
+		protected PooledByteArrayOutputStream initialValue() {
+			return new PooledByteArrayOutputStream();
+		}
+	};
+
+	public static PooledByteArrayOutputStream forCurrentThread() {
+		PooledByteArrayOutputStream bout = POOL.get();
+		if (MAX_RETAINED_SIZE < bout.buf.length) {
+			bout = new PooledByteArrayOutputStream();
+			POOL.set(bout);
+		}
+		bout.reset();
+		return bout;
+	}
+
+	private PooledByteArrayOutputStream() {
+		super(INITIAL_SIZE);
+	}
+
+	/**
+	 * @return いまの中身を読むInputStream (コピーしない。次にforCurrentThread()を呼ぶまで有効)
+	 */
+	public InputStream toInputStream() {
+		return new ByteArrayInputStream(buf, 0, count);
+	}
+
+}
@@ -0,0 +1,106 @@
+package soxrecorderv2.util;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.postgresql.PGStatement;
+
+/**
+ * 1本のコネクションに対する, SQL文字列をキーにしたPreparedStatementのLRUキャッシュ。
+ *
+ * キャッシュしたstatementはprepareThreshold=1にしておくので, 最初の実行からサーバー側でprepareされたままになり,
+ * 同じ形のINSERT/SELECTが毎回パース/プランされることがなくなる。
+ * 取得したstatementは呼び出し側でclose()してはいけない(コネクションがプールから捨てられるときにclear()で閉じる)。
+ * コネクションと同じく, 同時には1スレッドからしか使わない前提。
+ */
+public class PreparedStatementCache {
+
+	public static final int DEFAULT_MAX_SIZE = 64;
+
+	private final Connection conn;
+	private final int maxSize;
+	private final LinkedHashMap<String, PreparedStatement> statements;
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	public PreparedStatementCache(Connection conn, int maxSize) {
+		this.conn = conn;
+		this.maxSize = Math.max(1, maxSize);
+		this.statements = new LinkedHashMap<>(this.maxSize + 1, 1.0f, true);  // access order
+	}
+
+	/**
+	 * sqlに対応するPreparedStatementを返す。なければprepareしてキャッシュする
+	 * @param sql
+	 * @return パラメータとバッチがクリアされたPreparedStatement
+	 * @throws SQLException
+	 */
+	public PreparedStatement prepare(String sql) throws SQLException {
+		PreparedStatement ps = statements.get(sql);
+		if (ps != null) {
+			hits++;
+			ps.clearParameters();
+			ps.clearBatch();  // 前の利用者が例外でexecuteBatch()まで行かなかった場合
+			return ps;
+		}
+
+		misses++;
+		ps = conn.prepareStatement(sql);
+		if (ps.isWrapperFor(PGStatement.class)) {
+			ps.unwrap(PGStatement.class).setPrepareThreshold(1);
+		}
+		statements.put(sql, ps);
+		evictIfNeeded();
+		return ps;
+	}
+
+	private void evictIfNeeded() {
+		Iterator<Map.Entry<String, PreparedStatement>> it = statements.entrySet().iterator();
+		while (maxSize < statements.size() && it.hasNext()) {
+			PreparedStatement eldest = it.next().getValue();
+			it.remove();
+			closeQuietly(eldest);
+			evictions++;
+		}
+	}
+
+	/**
+	 * キャッシュしているstatementを全部閉じる
+	 */
+	public void clear() {
+		for (PreparedStatement ps : statements.values()) {
+			closeQuietly(ps);
+		}
+		statements.clear();
+	}
+
+	public int size() {
+		return statements.size();
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	public long getEvictions() {
+		return evictions;
+	}
+
+	private static void closeQuietly(PreparedStatement ps) {
+		try {
+			ps.close();
+		} catch (SQLException e) {
+			// ignore
+		}
+	}
+
+}
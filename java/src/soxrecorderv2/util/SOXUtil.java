@@ -9,7 +9,6 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.regex.Pattern;
 
 import org.jivesoftware.smack.SmackException;
 import org.jivesoftware.smack.SmackException.NoResponseException;
@@ -31,9 +30,6 @@ public class SOXUtil {
 	public static final int VALUE_TYPE_DECIMAL      = 4;
 	public static final int VALUE_TYPE_LARGE_OBJECT = 5;
 
-	public static final Pattern PATTERN_INT;
-	public static final Pattern PATTERN_FLOAT;
-
 	public static final String[] DECIMAL_NAMES_ARRAY = {
 		"lat",
 		"lng",
@@ -43,20 +39,11 @@ public class SOXUtil {
 	public static final Set<String> DECIMAL_NAMES;
 	
 	static {
-		Pattern patInt = null;
-		Pattern patFloat = null;
-		
-		patInt = Pattern.compile("\\A-?[1-9][0-9]*\\z");
-		patFloat = Pattern.compile("\\A-?([0-9]|[1-9][0-9]*)\\.[0-9]+\\z");
-
 		Set<String> decimalNames = new HashSet<>();
 		for (String dn : DECIMAL_NAMES_ARRAY) {
 			decimalNames.add(dn);
 		}
 		
-		PATTERN_INT = patInt;
-		PATTERN_FLOAT = patFloat;
-
 		DECIMAL_NAMES = Collections.unmodifiableSet(decimalNames);
 	}
 	
@@ -109,25 +96,14 @@ public class SOXUtil {
 	 * valueの形式からtypeを推測する。
 	 * 場合によってはtransducerIdも推測に必要なので値としてとる。
 	 * (transducerIdがlatやlngだったら緯度経度なので精度誤差を出さないためにVALUE_TYPE_DECIMALにするなど
+	 * 数値として読んだ値も必要なときはScannedValueを直接使う
 	 * 
 	 * @param transducerId
 	 * @param value
 	 * @return
 	 */
 	public static int guessValueType(String transducerId, String value) {
-		if (255 < value.length()) {
-			return VALUE_TYPE_LARGE_OBJECT;
-		} else if (PATTERN_INT.matcher(value).matches()) {
-			return VALUE_TYPE_INT;
-		} else if (PATTERN_FLOAT.matcher(value).matches()) {
-			if (isDecimalName(transducerId)) {
-				return VALUE_TYPE_DECIMAL;
-			} else {
-				return VALUE_TYPE_FLOAT;
-			}
-		} else {
-			return VALUE_TYPE_STRING;
-		}
+		return new ScannedValue().scan(transducerId, value).getType();
 	}
 	
 	public static boolean isLargeObject(TransducerValue tValue, boolean isRaw) {
@@ -68,6 +68,18 @@ public class SQLUtil {
 		return timestamp;
 	}
 	
+	/**
+	 * @return tsがnullならnull
+	 */
+	public static Calendar toCalendar(Timestamp ts) {
+		if (ts == null) {
+			return null;
+		}
+		Calendar cal = Calendar.getInstance();
+		cal.setTimeInMillis(ts.getTime());
+		return cal;
+	}
+	
 	public static final String andJoin(List<String> conditions) {
 		return AND_JOINER.join(addParen(conditions));
 	}
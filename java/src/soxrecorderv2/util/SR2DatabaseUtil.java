@@ -4,12 +4,17 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
+import soxrecorderv2.common.model.db.RecordPartition;
+
 public class SR2DatabaseUtil {
 	
 	public static final String SQL_GET_BLACKLIST = "SELECT sox_node FROM blacklist WHERE sox_server = ?;";
+	public static final String SQL_GET_RECORD_PARTITIONS = "SELECT suffix, range_start, range_end FROM record_partition ORDER BY range_start;";
 	
 	public static Set<String> getBlacklistNodes(Connection conn, String soxServer) throws SQLException {
 		PreparedStatement ps = conn.prepareStatement(SQL_GET_BLACKLIST);
@@ -23,5 +28,20 @@ public class SR2DatabaseUtil {
 		ps.close();
 		return ret;
 	}
+	
+	/**
+	 * @return record_partitionの全行 (古い順)
+	 */
+	public static List<RecordPartition> getRecordPartitions(Connection conn) throws SQLException {
+		PreparedStatement ps = conn.prepareStatement(SQL_GET_RECORD_PARTITIONS);
+		ResultSet rs = ps.executeQuery();
+		List<RecordPartition> ret = new ArrayList<>();
+		while (rs.next()) {
+			ret.add(new RecordPartition(rs.getString(1), rs.getTimestamp(2), rs.getTimestamp(3)));
+		}
+		rs.close();
+		ps.close();
+		return ret;
+	}
 
 }
@@ -0,0 +1,196 @@
+package soxrecorderv2.util;
+
+import java.math.BigDecimal;
+
+/**
+ * transducerの値の種類の判定と数値への変換を, 文字列を1回なめるだけで行う。
+ * (以前は正規表現2つで判定してから Integer.parseInt / Double.parseDouble / new BigDecimal で読みなおしていた)
+ *
+ * 判定はSOXUtil.guessValueTypeの以前の正規表現と同じ:
+ * - INT: -?[1-9][0-9]*  (ただしbigintに入らないものはSTRING)
+ * - FLOAT/DECIMAL: -?([0-9]|[1-9][0-9]*)\.[0-9]+  (transducer idがlat/lngなどならDECIMAL)
+ * - 256文字以上: LARGE_OBJECT
+ * - それ以外: STRING
+ *
+ * 呼び出し側でインスタンスを使いまわすこと (scan()は中身を上書きする)。スレッドセーフではない
+ */
+public class ScannedValue {
+
+	// 2^53未満の整数と10^22以下の10のべき乗はdoubleで正確に表せるので, 1回の割り算で正しく丸められる
+	private static final long MAX_EXACT_MANTISSA = 1L << 53;
+	private static final double[] POW10 = new double[23];
+
+	static {
+		double p = 1.0;
+		for (int i = 0; i < POW10.length; i++) {
+			POW10[i] = p;
+			p *= 10.0;
+		}
+	}
+
+	private String source;
+	private int type;
+	private long longValue;
+	private double doubleValue;
+	private long unscaledValue;
+	private int scale;
+	private boolean isUnscaledOverflow;
+
+	/**
+	 * valueを判定して, 数値ならその値も読んでおく
+	 * @param transducerId DECIMALにするかどうかの判定に使う
+	 * @param value nullでないこと
+	 * @return this
+	 */
+	public ScannedValue scan(String transducerId, String value) {
+		source = value;
+		type = SOXUtil.VALUE_TYPE_STRING;
+		longValue = 0;
+		doubleValue = 0.0;
+		unscaledValue = 0;
+		scale = 0;
+		isUnscaledOverflow = false;
+
+		final int n = value.length();
+		if (255 < n) {
+			type = SOXUtil.VALUE_TYPE_LARGE_OBJECT;
+			return this;
+		}
+
+		int i = 0;
+		boolean isNegative = false;
+		if (0 < n && value.charAt(0) == '-') {
+			isNegative = true;
+			i = 1;
+		}
+
+		// 整数部
+		final int intStart = i;
+		long acc = 0;
+		boolean isOverflow = false;
+		while (i < n) {
+			int d = value.charAt(i) - '0';
+			if (d < 0 || 9 < d) {
+				break;
+			}
+			if (!isOverflow) {
+				if ((Long.MAX_VALUE - d) / 10 < acc) {
+					isOverflow = true;
+				} else {
+					acc = acc * 10 + d;
+				}
+			}
+			i++;
+		}
+		final int nIntDigits = i - intStart;
+		if (nIntDigits == 0) {
+			return this;  // 数字で始まらない
+		}
+		final boolean hasLeadingZero = (value.charAt(intStart) == '0');
+
+		if (i == n) {
+			// 整数: 0や0始まりはINTにしない (以前の正規表現と同じ), bigintに入らないものは文字列のまま持つ
+			if (!hasLeadingZero && !isOverflow) {
+				type = SOXUtil.VALUE_TYPE_INT;
+				longValue = (isNegative) ? -acc : acc;
+			}
+			return this;
+		}
+
+		if (value.charAt(i) != '.' || (1 < nIntDigits && hasLeadingZero)) {
+			return this;
+		}
+		i++;
+
+		// 小数部 (整数部とあわせてunscaledValueにする)
+		final int fracStart = i;
+		while (i < n) {
+			int d = value.charAt(i) - '0';
+			if (d < 0 || 9 < d) {
+				return this;  // 数字以外がまざっている
+			}
+			if (!isOverflow) {
+				if ((Long.MAX_VALUE - d) / 10 < acc) {
+					isOverflow = true;
+				} else {
+					acc = acc * 10 + d;
+				}
+			}
+			i++;
+		}
+		final int nFracDigits = i - fracStart;
+		if (nFracDigits == 0) {
+			return this;  // "1." はFLOATにしない
+		}
+
+		type = isDecimalName(transducerId) ? SOXUtil.VALUE_TYPE_DECIMAL : SOXUtil.VALUE_TYPE_FLOAT;
+		isUnscaledOverflow = isOverflow;
+		unscaledValue = (isNegative) ? -acc : acc;
+		scale = nFracDigits;
+		if (!isOverflow && acc < MAX_EXACT_MANTISSA && nFracDigits < POW10.length) {
+			double d = acc / POW10[nFracDigits];
+			doubleValue = (isNegative) ? -d : d;
+		} else {
+			doubleValue = Double.parseDouble(value);  // 桁が多いときはJDKにまかせる
+		}
+		return this;
+	}
+
+	/**
+	 * SOXUtil.DECIMAL_NAMESを小文字にしないで比べる
+	 */
+	private static boolean isDecimalName(String transducerId) {
+		if (transducerId == null) {
+			return false;
+		}
+		for (String name : SOXUtil.DECIMAL_NAMES_ARRAY) {
+			if (name.equalsIgnoreCase(transducerId)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public int getType() {
+		return type;
+	}
+
+	public boolean isFloating() {
+		return type == SOXUtil.VALUE_TYPE_FLOAT || type == SOXUtil.VALUE_TYPE_DECIMAL;
+	}
+
+	/**
+	 * @return INTのときの値, それ以外は0
+	 */
+	public long getLongValue() {
+		return longValue;
+	}
+
+	/**
+	 * @return FLOAT/DECIMALのときの値 (Double.parseDouble()と同じ), それ以外は0.0
+	 */
+	public double getDoubleValue() {
+		return doubleValue;
+	}
+
+	/**
+	 * @return FLOAT/DECIMALのときの値 (new BigDecimal(value)と同じ), それ以外はBigDecimal.ZERO
+	 */
+	public BigDecimal getDecimalValue() {
+		if (!isFloating()) {
+			return BigDecimal.ZERO;
+		}
+		if (isUnscaledOverflow) {
+			return new BigDecimal(source);
+		}
+		return BigDecimal.valueOf(unscaledValue, scale);
+	}
+
+	/**
+	 * @return STRINGのときの値, それ以外はnull
+	 */
+	public String getStringValue() {
+		return (type == SOXUtil.VALUE_TYPE_STRING) ? source : null;
+	}
+
+}
@@ -0,0 +1,94 @@
+package soxrecorderv2.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * パイプラインの1段ぶんのカウンタ (受け取った数, 次に渡した数, 捨てた数, 処理にかかった時間)。
+ * 複数スレッドから同時に更新してよい。
+ */
+public class StageMetrics {
+
+	private final String name;
+	private final AtomicLong accepted = new AtomicLong();
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong spilled = new AtomicLong();
+	private final AtomicLong latencyTotalNanos = new AtomicLong();
+	private final AtomicLong latencyMaxNanos = new AtomicLong();
+
+	public StageMetrics(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void recordAccepted() {
+		accepted.incrementAndGet();
+	}
+
+	public void recordDropped() {
+		dropped.incrementAndGet();
+	}
+
+	/**
+	 * 次の段に渡せなかったが, 捨てずにディスクに退避した
+	 */
+	public void recordSpilled() {
+		spilled.incrementAndGet();
+	}
+
+	/**
+	 * @param latencyNanos この段に入ってから出るまでの時間
+	 */
+	public void recordCompleted(long latencyNanos) {
+		completed.incrementAndGet();
+		latencyTotalNanos.addAndGet(latencyNanos);
+		long max = latencyMaxNanos.get();
+		while (max < latencyNanos && !latencyMaxNanos.compareAndSet(max, latencyNanos)) {
+			max = latencyMaxNanos.get();
+		}
+	}
+
+	public long getAccepted() {
+		return accepted.get();
+	}
+
+	public long getCompleted() {
+		return completed.get();
+	}
+
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	public long getSpilled() {
+		return spilled.get();
+	}
+
+	public long getAverageLatencyMicros() {
+		long n = completed.get();
+		return (n == 0) ? 0 : TimeUnit.NANOSECONDS.toMicros(latencyTotalNanos.get() / n);
+	}
+
+	public long getMaxLatencyMicros() {
+		return TimeUnit.NANOSECONDS.toMicros(latencyMaxNanos.get());
+	}
+
+	/**
+	 * @param depth いまこの段のバッファにたまっている数
+	 * @return ログ用の1行
+	 */
+	public String format(int depth) {
+		return name + ": depth=" + depth
+				+ ", in=" + getAccepted()
+				+ ", out=" + getCompleted()
+				+ ", dropped=" + getDropped()
+				+ ", spilled=" + getSpilled()
+				+ ", avgLatencyUsec=" + getAverageLatencyMicros()
+				+ ", maxLatencyUsec=" + getMaxLatencyMicros();
+	}
+
+}
@@ -0,0 +1,73 @@
+package soxrecorderv2.util;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * 文字列をUTF-8にしながら少しずつ読むInputStream。String.getBytes(UTF8)のように全体のbyte[]を作らない。
+ * 不正なサロゲートはString.getBytes()と同じく'?'になるので, 結果のバイト列はgetBytes()と一致する。
+ */
+public class Utf8InputStream extends InputStream {
+
+	private static final int CHUNK_SIZE = 8192;
+
+	private final CharBuffer in;
+	private final CharsetEncoder encoder;
+	private final ByteBuffer out = ByteBuffer.allocate(CHUNK_SIZE);
+	private boolean isEndOfInput = false;
+	private long count = 0;
+
+	public Utf8InputStream(CharSequence content) {
+		this.in = CharBuffer.wrap(content);
+		this.encoder = MyCharSet.UTF8.newEncoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		out.flip();  // 最初は空
+	}
+
+	@Override
+	public int read() {
+		byte[] one = new byte[1];
+		int n = read(one, 0, 1);
+		return (n == -1) ? -1 : (one[0] & 0xff);
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+		if (len == 0) {
+			return 0;
+		}
+		while (!out.hasRemaining()) {
+			if (isEndOfInput) {
+				return -1;
+			}
+			fill();
+		}
+		int n = Math.min(len, out.remaining());
+		out.get(b, off, n);
+		count += n;
+		return n;
+	}
+
+	private void fill() {
+		out.clear();
+		CoderResult result = encoder.encode(in, out, true);
+		if (result.isUnderflow()) {
+			encoder.flush(out);
+			isEndOfInput = true;
+		}
+		out.flip();
+	}
+
+	/**
+	 * @return これまでに読んだバイト数 (最後まで読めばUTF-8での長さ)
+	 */
+	public long getCount() {
+		return count;
+	}
+
+}
@@ -0,0 +1,139 @@
+/*
+	schema.sqlで作った既存のDBを, 今のschema.sqlと同じ形にする (PostgreSQL 9.3)
+	何度流してもよい (あるものは作らない)。fab deploy_java / fab migrate_pg_schema で流れる
+
+	- raw_xml.codec, raw_xml.dictionary_id, large_object.codec と compression_dictionary (圧縮形式ごとの行)
+	- transducer_value_chunk (numeric_chunk_mode)
+	- record_partition と create_record_partition / drop_record_partition (期間ごとのパーティション)
+	- export.user_id (ユーザーごとのexportの同時実行数)
+
+	親テーブルに足した列は, すでにある子テーブル (record_<suffix>など) にも継承で入る
+	ADD COLUMN IF NOT EXISTS / CREATE INDEX IF NOT EXISTS は9.3にはないので, DOでカタログを見てから作る
+*/
+
+BEGIN;
+
+CREATE TABLE IF NOT EXISTS compression_dictionary(
+	id serial,
+	sox_server varchar(255) NOT NULL,
+	content bytea NOT NULL,
+	created timestamp NOT NULL,
+	PRIMARY KEY (id)
+);
+
+DO $$
+BEGIN
+	IF NOT EXISTS (SELECT 1 FROM pg_indexes WHERE schemaname = current_schema() AND indexname = 'compression_dictionary_sox_server') THEN
+		CREATE INDEX compression_dictionary_sox_server ON compression_dictionary (sox_server, id);
+	END IF;
+
+	IF NOT EXISTS (SELECT 1 FROM information_schema.columns
+			WHERE table_schema = current_schema() AND table_name = 'raw_xml' AND column_name = 'codec') THEN
+		ALTER TABLE raw_xml ADD COLUMN codec smallint;
+	END IF;
+	IF NOT EXISTS (SELECT 1 FROM information_schema.columns
+			WHERE table_schema = current_schema() AND table_name = 'raw_xml' AND column_name = 'dictionary_id') THEN
+		ALTER TABLE raw_xml ADD COLUMN dictionary_id integer REFERENCES compression_dictionary (id);
+	END IF;
+	IF NOT EXISTS (SELECT 1 FROM information_schema.columns
+			WHERE table_schema = current_schema() AND table_name = 'large_object' AND column_name = 'codec') THEN
+		ALTER TABLE large_object ADD COLUMN codec smallint;
+	END IF;
+END;
+$$;
+
+CREATE TABLE IF NOT EXISTS transducer_value_chunk(
+	id bigserial,
+	observation_id bigint REFERENCES observation (id),
+	transducer_id bigint REFERENCES transducer (id),
+	value_type smallint NOT NULL,
+	n_values int NOT NULL,
+	first_created timestamp NOT NULL,
+	last_created timestamp NOT NULL,
+	content bytea NOT NULL,
+	PRIMARY KEY (id)
+);
+
+DO $$
+BEGIN
+	IF NOT EXISTS (SELECT 1 FROM pg_indexes WHERE schemaname = current_schema() AND indexname = 'transducer_value_chunk_last_created') THEN
+		CREATE INDEX transducer_value_chunk_last_created ON transducer_value_chunk (last_created);
+	END IF;
+	IF NOT EXISTS (SELECT 1 FROM pg_indexes WHERE schemaname = current_schema() AND indexname = 'transducer_value_chunk_transducer_first_created') THEN
+		CREATE INDEX transducer_value_chunk_transducer_first_created ON transducer_value_chunk (transducer_id, first_created);
+	END IF;
+END;
+$$;
+
+CREATE TABLE IF NOT EXISTS record_partition(
+	suffix varchar(32) NOT NULL,
+	range_start timestamp NOT NULL,
+	range_end timestamp NOT NULL,
+	created timestamp NOT NULL,
+	PRIMARY KEY (suffix)
+);
+
+-- 関数の中身はschema.sqlと同じ (変えるときは両方)
+CREATE OR REPLACE FUNCTION create_record_partition(p_suffix varchar, p_start timestamp, p_end timestamp) RETURNS boolean AS $$
+BEGIN
+	-- 複数のrecorderが同時に作ろうとしても1回だけ作る
+	LOCK TABLE record_partition IN EXCLUSIVE MODE;
+	IF EXISTS (SELECT 1 FROM record_partition WHERE suffix = p_suffix) THEN
+		RETURN false;
+	END IF;
+
+	EXECUTE format('CREATE TABLE %I (LIKE record INCLUDING DEFAULTS INCLUDING INDEXES,'
+			' FOREIGN KEY (observation_id) REFERENCES observation (id),'
+			' CHECK (%L <= created AND created < %L)) INHERITS (record)',
+		'record_' || p_suffix, p_start, p_end);
+	EXECUTE format('CREATE TABLE %I (LIKE raw_xml INCLUDING DEFAULTS INCLUDING INDEXES,'
+			' FOREIGN KEY (record_id) REFERENCES %I (id),'
+			' FOREIGN KEY (dictionary_id) REFERENCES compression_dictionary (id)) INHERITS (raw_xml)',
+		'raw_xml_' || p_suffix, 'record_' || p_suffix);
+	EXECUTE format('CREATE TABLE %I (LIKE transducer_raw_value INCLUDING DEFAULTS INCLUDING INDEXES,'
+			' FOREIGN KEY (record_id) REFERENCES %I (id),'
+			' FOREIGN KEY (transducer_id) REFERENCES transducer (id),'
+			' FOREIGN KEY (large_object_id) REFERENCES large_object (id)) INHERITS (transducer_raw_value)',
+		'transducer_raw_value_' || p_suffix, 'record_' || p_suffix);
+	EXECUTE format('CREATE TABLE %I (LIKE transducer_typed_value INCLUDING DEFAULTS INCLUDING INDEXES,'
+			' FOREIGN KEY (record_id) REFERENCES %I (id),'
+			' FOREIGN KEY (transducer_id) REFERENCES transducer (id),'
+			' FOREIGN KEY (large_object_id) REFERENCES large_object (id)) INHERITS (transducer_typed_value)',
+		'transducer_typed_value_' || p_suffix, 'record_' || p_suffix);
+
+	INSERT INTO record_partition(suffix, range_start, range_end, created) VALUES (p_suffix, p_start, p_end, now());
+	RETURN true;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION drop_record_partition(p_suffix varchar) RETURNS boolean AS $$
+BEGIN
+	LOCK TABLE record_partition IN EXCLUSIVE MODE;
+	IF NOT EXISTS (SELECT 1 FROM record_partition WHERE suffix = p_suffix) THEN
+		RETURN false;
+	END IF;
+
+	-- その期間だけのchunkも消す (期間をまたぐものは残す)
+	DELETE FROM transducer_value_chunk c USING record_partition p
+		WHERE p.suffix = p_suffix AND p.range_start <= c.first_created AND c.last_created < p.range_end;
+
+	-- 参照している側から消す
+	EXECUTE format('DROP TABLE IF EXISTS %I, %I, %I, %I',
+		'transducer_typed_value_' || p_suffix, 'transducer_raw_value_' || p_suffix,
+		'raw_xml_' || p_suffix, 'record_' || p_suffix);
+
+	DELETE FROM record_partition WHERE suffix = p_suffix;
+	RETURN true;
+END;
+$$ LANGUAGE plpgsql;
+
+DO $$
+BEGIN
+	IF NOT EXISTS (SELECT 1 FROM information_schema.columns
+			WHERE table_schema = current_schema() AND table_name = 'export' AND column_name = 'user_id') THEN
+		ALTER TABLE export ADD COLUMN user_id bigint REFERENCES "user" (id);
+	END IF;
+END;
+$$;
+
+COMMIT;
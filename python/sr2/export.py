@@ -13,6 +13,7 @@ import os.path
 import collections
 import multiprocessing
 import traceback
+import struct
 
 import simplejson as json
 import psycopg2
@@ -118,7 +119,121 @@ def resolve_large_objects(pg_conn, lo_ids):
     return ret
 
 
-def get_transducer_values(pg_conn, tid2tname, recbuf, columns):
+# transducer_value_chunk.content を読む (soxrecorderv2.codec.TimeSeriesChunkDecoder と同じ)
+_MASK64 = (1 << 64) - 1
+_DOD_BITS = (7, 9, 12, 32)
+
+
+def _to_signed64(n):
+    n &= _MASK64
+    return n - (1 << 64) if n >> 63 else n
+
+
+class _BitReader(object):
+    def __init__(self, content):
+        self.buf = bytearray(content)
+        self.pos = 0
+
+    def read_bit(self):
+        return self.read_bits(1) == 1
+
+    def read_bits(self, n_bits):
+        if len(self.buf) * 8 < self.pos + n_bits:
+            raise ValueError('chunk is truncated at bit %d' % self.pos)
+        value = 0
+        remaining = n_bits
+        while 0 < remaining:
+            b = self.buf[self.pos >> 3]
+            room = 8 - (self.pos & 7)
+            n = min(room, remaining)
+            value = (value << n) | ((b >> (room - n)) & ((1 << n) - 1))
+            self.pos += n
+            remaining -= n
+        return value
+
+
+def _read_delta_of_delta(reader):
+    prefix = 0
+    while prefix < len(_DOD_BITS) + 1 and reader.read_bit():
+        prefix += 1
+    if prefix == 0:
+        return 0
+    if len(_DOD_BITS) < prefix:
+        return reader.read_bits(64)
+    n_bits = _DOD_BITS[prefix - 1]
+    raw = reader.read_bits(n_bits)
+    return raw - (1 << n_bits) if raw >> (n_bits - 1) else raw
+
+
+def decode_chunk(content, is_float, n_values):
+    """
+    yields (record_id, created_msec, value)
+    """
+    reader = _BitReader(content)
+    record_id = created = value = 0
+    record_id_delta = created_delta = value_delta = 0
+    leading = -1
+    trailing = 0
+    for i in range(n_values):
+        if i == 0:
+            record_id = reader.read_bits(64)
+            created = reader.read_bits(64)
+            value = reader.read_bits(64)
+        else:
+            record_id_delta = (record_id_delta + _read_delta_of_delta(reader)) & _MASK64
+            record_id = (record_id + record_id_delta) & _MASK64
+            created_delta = (created_delta + _read_delta_of_delta(reader)) & _MASK64
+            created = (created + created_delta) & _MASK64
+            if is_float:
+                if reader.read_bit():
+                    if reader.read_bit():
+                        leading = reader.read_bits(5)
+                        trailing = 64 - leading - (reader.read_bits(6) + 1)
+                    if leading < 0:
+                        raise ValueError('xor window is not defined yet')
+                    value ^= reader.read_bits(64 - leading - trailing) << trailing
+            else:
+                value_delta = (value_delta + _read_delta_of_delta(reader)) & _MASK64
+                value = (value + value_delta) & _MASK64
+        if is_float:
+            v = struct.unpack('>d', struct.pack('>Q', value))[0]
+        else:
+            v = _to_signed64(value)
+        yield (_to_signed64(record_id), _to_signed64(created), v)
+
+
+def get_chunk_values(pg_conn, ob_id, recbuf):
+    """
+    numeric_chunk_mode でまとめられた値 (transducer_raw_valueの行は消してある) を
+    [(record_id, transducer.id, value_type, value)] で返す
+    """
+    r_ids = set([ r['id'] for r in recbuf ])
+    # recbufのcreatedは秒までなので, 1秒広くとる
+    min_created = parse_dt(recbuf[0]['created'])
+    max_created = parse_dt(recbuf[-1]['created']) + datetime.timedelta(seconds=1)
+    ret = []
+    with closing(pg_conn.cursor()) as cursor:
+        sql = '''
+        SELECT
+            transducer_id,
+            value_type,
+            n_values,
+            content
+        FROM
+            transducer_value_chunk
+        WHERE
+            observation_id = %s AND first_created < %s AND %s <= last_created
+        ;
+        '''
+        cursor.execute(sql, (ob_id, max_created, min_created))
+        for tid, vt, n_values, content in cursor:
+            for rid, created, value in decode_chunk(content, vt == TYPE_FLOAT, n_values):
+                if rid in r_ids:
+                    ret.append( (rid, tid, vt, value) )
+    return ret
+
+
+def get_transducer_values(pg_conn, ob_id, tid2tname, recbuf, columns):
     if len(recbuf) == 0:
         return dict()
     ret = dict()
@@ -173,6 +288,13 @@ def get_transducer_values(pg_conn, tid2tname, recbuf, columns):
 
             ret[rid][tname] = value
 
+    for rid, tid, vt, value in get_chunk_values(pg_conn, ob_id, recbuf):
+        tname = tid2tname[tid]
+        columns[tname] = columns.get(tname, False) or False
+        if rid not in ret:
+            ret[rid] = dict()
+        ret[rid][tname] = value
+
     # resolve large object
     query_loids = set([ loid for rid, tname, loid in lo_ids ])
     loid2content = resolve_large_objects(pg_conn, query_loids)
@@ -182,8 +304,8 @@ def get_transducer_values(pg_conn, tid2tname, recbuf, columns):
     return ret
 
 
-def fill_recbuf(pg_conn, tid2tname, recbuf, columns):
-    rid2tdrvalues = get_transducer_values(pg_conn, tid2tname, recbuf, columns)
+def fill_recbuf(pg_conn, ob_id, tid2tname, recbuf, columns):
+    rid2tdrvalues = get_transducer_values(pg_conn, ob_id, tid2tname, recbuf, columns)
     for record in recbuf:
         rec_tdrvalues = rid2tdrvalues.get(record['id'], {})
         for tdr_name, tdr_value in rec_tdrvalues.iteritems():
@@ -312,7 +434,7 @@ def export_json(pg_conn, sox_server, sox_node, out_file, from_time, until_time):
                         }
                         recbuf.append(record)
                         if n_flush <= len(recbuf):
-                            fill_recbuf(pg_conn, tid2tname, recbuf, columns)
+                            fill_recbuf(pg_conn, ob_id, tid2tname, recbuf, columns)
 
                             for rec_jsonline in pool.imap(make_json_line, recbuf, chunksize=chunks):
                                 fh.write(rec_jsonline)
@@ -321,7 +443,7 @@ def export_json(pg_conn, sox_server, sox_node, out_file, from_time, until_time):
                             recbuf = []
 
                     if 0 < len(recbuf):
-                        fill_recbuf(pg_conn, tid2tname, recbuf, columns)
+                        fill_recbuf(pg_conn, ob_id, tid2tname, recbuf, columns)
                         for rec_jsonline in pool.imap(make_json_line, recbuf, chunksize=chunks):
                             fh.write(rec_jsonline)
                             bar.update(1)
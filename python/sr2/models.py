@@ -315,6 +315,7 @@ class TransducerTypedValue(BaseModel):
 class Export(BaseModel):
     id = PrimaryKeyField(null=False, primary_key=True)
     observation_id = BigIntegerField(null=False)
+    user_id = BigIntegerField(null=True)
     time_start = DateTimeField(null=False)
     time_end = DateTimeField(null=False)
     format = CharField(null=False)
@@ -330,6 +331,7 @@ class Export(BaseModel):
         database = database_proxy
         constraints = (
             SQL('FOREIGN KEY (observation_id) REFERENCES observation (id)'),
+            SQL('FOREIGN KEY (user_id) REFERENCES "user" (id)'),
         )
         indexes = (
             (('created',), False),
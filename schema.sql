@@ -118,10 +118,28 @@ CREATE TABLE record(
 	PRIMARY KEY (id)
 );
 
+/*
+	codec: raw_xmlとlarge_objectのcontentの圧縮形式 (soxrecorderv2.codec.CompressionCodecs)
+		0 => 無圧縮, 1 => gzip, 2 => compression_dictionaryの辞書つきdeflate
+		NULLの行(以前のもの)はis_gzippedで判断する
+	is_gzippedは codec = 1 のときだけtrue
+*/
+CREATE TABLE compression_dictionary(
+	id serial,
+	sox_server varchar(255) NOT NULL,
+	content bytea NOT NULL,
+	created timestamp NOT NULL,
+	PRIMARY KEY (id)
+);
+
+CREATE INDEX compression_dictionary_sox_server ON compression_dictionary (sox_server, id);
+
 CREATE TABLE raw_xml(
 	id bigserial,
 	record_id bigint REFERENCES record (id),
     is_gzipped boolean NOT NULL,
+	codec smallint,
+	dictionary_id integer REFERENCES compression_dictionary (id),
 	raw_xml bytea NOT NULL,
 	PRIMARY KEY (id)
 );
@@ -134,6 +152,7 @@ CREATE INDEX record_observation_id_created ON record (observation_id, created);
 CREATE TABLE large_object(
 	id bigserial,
 	is_gzipped boolean,
+	codec smallint,
 	hash_key varchar(64) NOT NULL,
 	content bytea NOT NULL,
 	content_length integer NOT NULL,
@@ -192,9 +211,106 @@ CREATE TABLE transducer_typed_value(
 	PRIMARY KEY (record_id, transducer_id)
 );
 
+/*
+	数値 (value_type = 2:INT, 3:FLOAT) のtransducer_raw_valueを, transducerごとにまとめて圧縮したもの
+	(numeric_chunk_mode = true のときだけrecorderが書く。transducer_raw_valueの行はいったん書き,
+	 chunkを書くのと同じトランザクションで消す。python/sr2/export.py もchunkを展開して読む)
+	content => 値ごとに record_id, record.created(msec), 値 を並べたビット列
+		record_idとcreatedはdelta-of-delta, INTの値もdelta-of-delta, FLOATの値は前の値とのXOR
+		(soxrecorderv2.codec.TimeSeriesChunkEncoder)
+	first_created/last_created => まとめた値のrecord.createdの範囲 (exporterはこれで引く)
+*/
+CREATE TABLE transducer_value_chunk(
+	id bigserial,
+	observation_id bigint REFERENCES observation (id),
+	transducer_id bigint REFERENCES transducer (id),
+	value_type smallint NOT NULL,
+	n_values int NOT NULL,
+	first_created timestamp NOT NULL,
+	last_created timestamp NOT NULL,
+	content bytea NOT NULL,
+	PRIMARY KEY (id)
+);
+
+CREATE INDEX transducer_value_chunk_last_created ON transducer_value_chunk (last_created);
+CREATE INDEX transducer_value_chunk_transducer_first_created ON transducer_value_chunk (transducer_id, first_created);
+
+/*
+	record, raw_xml, transducer_raw_value, transducer_typed_value の期間ごとのパーティション (テーブル継承)
+	suffix => 子テーブル名の接尾辞 (例: 201607 => record_201607, raw_xml_201607, transducer_raw_value_201607, transducer_typed_value_201607)
+	record_<suffix> には range_start <= created < range_end の行が入り (CHECK制約があるのでconstraint_exclusionも効く),
+	それに属するraw_xml/transducer_*_valueの行は同じsuffixの子テーブルに入る (recorderが直接書く)
+
+	recorderが partition_interval_months ごとに先に作っておき (create_record_partition),
+	保持期間を過ぎたものは drop_record_partition で子テーブルごと消す (DELETEしない)
+	子テーブルのない期間の行 (パーティションを使いはじめる前のものなど) は親テーブルに入る (exporterは親テーブルの行もcreatedの期間ごとに子テーブルと合わせて読む)
+*/
+CREATE TABLE record_partition(
+	suffix varchar(32) NOT NULL,
+	range_start timestamp NOT NULL,
+	range_end timestamp NOT NULL,
+	created timestamp NOT NULL,
+	PRIMARY KEY (suffix)
+);
+
+-- 既存のDBにはmigrate.sqlで入れる (関数を変えるときは両方)
+CREATE OR REPLACE FUNCTION create_record_partition(p_suffix varchar, p_start timestamp, p_end timestamp) RETURNS boolean AS $$
+BEGIN
+	-- 複数のrecorderが同時に作ろうとしても1回だけ作る
+	LOCK TABLE record_partition IN EXCLUSIVE MODE;
+	IF EXISTS (SELECT 1 FROM record_partition WHERE suffix = p_suffix) THEN
+		RETURN false;
+	END IF;
+
+	EXECUTE format('CREATE TABLE %I (LIKE record INCLUDING DEFAULTS INCLUDING INDEXES,'
+			' FOREIGN KEY (observation_id) REFERENCES observation (id),'
+			' CHECK (%L <= created AND created < %L)) INHERITS (record)',
+		'record_' || p_suffix, p_start, p_end);
+	EXECUTE format('CREATE TABLE %I (LIKE raw_xml INCLUDING DEFAULTS INCLUDING INDEXES,'
+			' FOREIGN KEY (record_id) REFERENCES %I (id),'
+			' FOREIGN KEY (dictionary_id) REFERENCES compression_dictionary (id)) INHERITS (raw_xml)',
+		'raw_xml_' || p_suffix, 'record_' || p_suffix);
+	EXECUTE format('CREATE TABLE %I (LIKE transducer_raw_value INCLUDING DEFAULTS INCLUDING INDEXES,'
+			' FOREIGN KEY (record_id) REFERENCES %I (id),'
+			' FOREIGN KEY (transducer_id) REFERENCES transducer (id),'
+			' FOREIGN KEY (large_object_id) REFERENCES large_object (id)) INHERITS (transducer_raw_value)',
+		'transducer_raw_value_' || p_suffix, 'record_' || p_suffix);
+	EXECUTE format('CREATE TABLE %I (LIKE transducer_typed_value INCLUDING DEFAULTS INCLUDING INDEXES,'
+			' FOREIGN KEY (record_id) REFERENCES %I (id),'
+			' FOREIGN KEY (transducer_id) REFERENCES transducer (id),'
+			' FOREIGN KEY (large_object_id) REFERENCES large_object (id)) INHERITS (transducer_typed_value)',
+		'transducer_typed_value_' || p_suffix, 'record_' || p_suffix);
+
+	INSERT INTO record_partition(suffix, range_start, range_end, created) VALUES (p_suffix, p_start, p_end, now());
+	RETURN true;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION drop_record_partition(p_suffix varchar) RETURNS boolean AS $$
+BEGIN
+	LOCK TABLE record_partition IN EXCLUSIVE MODE;
+	IF NOT EXISTS (SELECT 1 FROM record_partition WHERE suffix = p_suffix) THEN
+		RETURN false;
+	END IF;
+
+	-- その期間だけのchunkも消す (期間をまたぐものは残す)
+	DELETE FROM transducer_value_chunk c USING record_partition p
+		WHERE p.suffix = p_suffix AND p.range_start <= c.first_created AND c.last_created < p.range_end;
+
+	-- 参照している側から消す
+	EXECUTE format('DROP TABLE IF EXISTS %I, %I, %I, %I',
+		'transducer_typed_value_' || p_suffix, 'transducer_raw_value_' || p_suffix,
+		'raw_xml_' || p_suffix, 'record_' || p_suffix);
+
+	DELETE FROM record_partition WHERE suffix = p_suffix;
+	RETURN true;
+END;
+$$ LANGUAGE plpgsql;
+
 CREATE TABLE export(
     id bigserial,
 	observation_id bigint REFERENCES observation (id),
+	user_id bigint REFERENCES "user" (id),
     time_start timestamp,
     time_end timestamp,
     format varchar(255) NOT NULL,
@@ -227,6 +343,9 @@ CREATE INDEX export_state_created ON export (state, created);
         4: export finished (FINISHED)
         5: expired(removed) (EXPIRED)
 		-1: ERROR
+		-2: cancelled (CANCELLED)
+
+    user_id: exportを頼んだユーザー (exporterはユーザーごとに同時に動かす数を制限する), NULLならユーザーなし
 */
 
 CREATE TABLE event_log(